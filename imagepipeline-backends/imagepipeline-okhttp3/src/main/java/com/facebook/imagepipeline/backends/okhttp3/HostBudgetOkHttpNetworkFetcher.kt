@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.backends.okhttp3
+
+import android.os.Looper
+import android.os.SystemClock
+import androidx.annotation.VisibleForTesting
+import com.facebook.imagepipeline.backends.okhttp3.OkHttpNetworkFetcher.OkHttpNetworkFetchState
+import com.facebook.imagepipeline.common.BytesRange
+import com.facebook.imagepipeline.common.BytesRange.Companion.fromContentRangeHeader
+import com.facebook.imagepipeline.common.Priority
+import com.facebook.imagepipeline.producers.BaseProducerContextCallbacks
+import com.facebook.imagepipeline.producers.Consumer
+import com.facebook.imagepipeline.producers.NetworkFetcher
+import java.io.ByteArrayInputStream
+import java.io.IOException
+import java.io.InputStream
+import java.util.concurrent.Executor
+import okhttp3.Call
+import okhttp3.Callback
+import okhttp3.OkHttpClient
+import okhttp3.Protocol
+import okhttp3.Request
+import okhttp3.Response
+
+/**
+ * [OkHttpNetworkFetcher] that budgets the calls in flight per host and coalesces identical
+ * requests.
+ *
+ * At most [maxRequestsPerHost] calls are in flight per host, or [maxRequestsPerHttp2Host] once the
+ * host answered over HTTP/2, where the calls share one connection and compete for its bandwidth.
+ * The other calls wait per host and the one with the highest [Priority] among its fetches starts
+ * first, so that visible images win on a saturated link. OkHttp does not expose HTTP/2 stream
+ * weights, so priority is applied by this ordering only.
+ *
+ * Fetches of the same URL, range and If-Range validator, e.g. by image requests with different
+ * cache keys, share one call until its response arrives. The body is then read into memory once
+ * and passed to every fetch. The call is cancelled only once all of its fetches are cancelled.
+ *
+ * The limits of the [okhttp3.Dispatcher] of the client should be at least as high as these budgets.
+ *
+ * @param maxRequestsPerHost calls in flight per host until it is known to support HTTP/2
+ * @param maxRequestsPerHttp2Host calls in flight per host that answered over HTTP/2
+ */
+class HostBudgetOkHttpNetworkFetcher
+@JvmOverloads
+constructor(
+    private val callFactory: Call.Factory,
+    private val cancellationExecutor: Executor,
+    private val maxRequestsPerHost: Int = DEFAULT_MAX_REQUESTS_PER_HOST,
+    private val maxRequestsPerHttp2Host: Int = DEFAULT_MAX_REQUESTS_PER_HTTP2_HOST,
+    disableOkHttpCache: Boolean = true
+) : OkHttpNetworkFetcher(callFactory, cancellationExecutor, disableOkHttpCache) {
+
+  /** @param okHttpClient client to use */
+  constructor(
+      okHttpClient: OkHttpClient
+  ) : this(okHttpClient, okHttpClient.dispatcher().executorService())
+
+  init {
+    require(maxRequestsPerHost > 0 && maxRequestsPerHttp2Host > 0)
+  }
+
+  private class Fetch(
+      val fetchState: OkHttpNetworkFetchState,
+      val callback: NetworkFetcher.Callback
+  )
+
+  /** A call shared by the fetches of the same request. */
+  private class SharedCall(val key: String, val host: HostState, val request: Request) {
+    val fetches: MutableList<Fetch> = ArrayList()
+    var call: Call? = null
+    var isResponding = false
+
+    val priority: Priority
+      get() =
+          fetches.fold(Priority.LOW) { priority, fetch ->
+            Priority.getHigherPriority(priority, fetch.fetchState.context.priority)
+          }
+  }
+
+  private class HostState(val host: String) {
+    val waiting: MutableList<SharedCall> = ArrayList()
+    var inFlight = 0
+    var isHttp2 = false
+  }
+
+  private val lock = Any()
+  private val hosts: MutableMap<String, HostState> = HashMap()
+  private val sharedCalls: MutableMap<String, SharedCall> = HashMap()
+
+  /** Number of hosts with calls waiting or in flight, or known to support HTTP/2. */
+  @VisibleForTesting
+  internal val hostCount: Int
+    get() = synchronized(lock) { hosts.size }
+
+  override fun fetchWithRequest(
+      fetchState: OkHttpNetworkFetchState,
+      callback: NetworkFetcher.Callback,
+      request: Request
+  ) {
+    val fetch = Fetch(fetchState, callback)
+    val range = request.header("Range").orEmpty()
+    val key = "${request.url()} $range ${request.header("If-Range").orEmpty()}"
+    val sharedCall: SharedCall
+    val callsToStart: List<SharedCall>
+    synchronized(lock) {
+      val existingCall = sharedCalls[key]
+      if (existingCall != null) {
+        sharedCall = existingCall
+      } else {
+        val hostName = request.url().host()
+        val host = hosts.getOrPut(hostName) { HostState(hostName) }
+        sharedCall = SharedCall(key, host, request)
+        sharedCalls[key] = sharedCall
+        host.waiting.add(sharedCall)
+      }
+      sharedCall.fetches.add(fetch)
+      callsToStart = takeCallsToStart(sharedCall.host)
+    }
+    fetchState.context.addCallbacks(
+        object : BaseProducerContextCallbacks() {
+          override fun onCancellationRequested() = cancel(sharedCall, fetch)
+        })
+    callsToStart.forEach(::start)
+  }
+
+  /** Takes the waiting calls of the host that fit its budget, highest priority first. */
+  private fun takeCallsToStart(host: HostState): List<SharedCall> {
+    val budget = if (host.isHttp2) maxRequestsPerHttp2Host else maxRequestsPerHost
+    var callsToStart: MutableList<SharedCall>? = null
+    while (host.inFlight < budget && host.waiting.isNotEmpty()) {
+      // the first call of the highest priority, priorities may have changed while waiting
+      var next = host.waiting[0]
+      var nextPriority = next.priority
+      for (i in 1 until host.waiting.size) {
+        val priority = host.waiting[i].priority
+        if (priority > nextPriority) {
+          next = host.waiting[i]
+          nextPriority = priority
+        }
+      }
+      host.waiting.remove(next)
+      host.inFlight++
+      next.call = callFactory.newCall(next.request)
+      (callsToStart ?: ArrayList<SharedCall>().also { callsToStart = it }).add(next)
+    }
+    return callsToStart ?: emptyList()
+  }
+
+  private fun start(sharedCall: SharedCall) {
+    val call = checkNotNull(sharedCall.call)
+    call.enqueue(
+        object : Callback {
+          @Throws(IOException::class)
+          override fun onResponse(call: Call, response: Response) {
+            try {
+              handleResponse(sharedCall, call, response)
+            } finally {
+              onCallFinished(sharedCall, response.protocol())
+            }
+          }
+
+          override fun onFailure(call: Call, e: IOException) {
+            try {
+              takeFetches(sharedCall).forEach { handleException(call, e, it.callback) }
+            } finally {
+              onCallFinished(sharedCall, null)
+            }
+          }
+        })
+  }
+
+  private fun handleResponse(sharedCall: SharedCall, call: Call, response: Response) {
+    val fetches = takeFetches(sharedCall)
+    val responseTime = SystemClock.elapsedRealtime()
+    fetches.forEach { it.fetchState.responseTime = responseTime }
+    val body = response.body()
+    if (body == null) {
+      val e = IOException("Response body null: $response")
+      fetches.forEach { handleException(call, e, it.callback) }
+      return
+    }
+    body.use {
+      if (!response.isSuccessful) {
+        val e = IOException("Unexpected HTTP code $response")
+        fetches.forEach { handleException(call, e, it.callback) }
+        return
+      }
+      val eTag = response.header("ETag")
+      val lastModified = response.header("Last-Modified")
+      fetches.forEach {
+        it.fetchState.responseETag = eTag
+        it.fetchState.responseLastModified = lastModified
+      }
+      val responseRange = fromContentRangeHeader(response.header("Content-Range"))
+      if (responseRange != null &&
+          !(responseRange.from == 0 && responseRange.to == BytesRange.TO_END_OF_CONTENT)) {
+        // Only treat as a partial image if the range is not all of the content
+        fetches.forEach {
+          it.fetchState.responseBytesRange = responseRange
+          it.fetchState.onNewResultStatusFlags = Consumer.IS_PARTIAL_RESULT
+        }
+      }
+      if (fetches.size == 1) {
+        // no need to hold the whole body in memory
+        val contentLength = if (body.contentLength() < 0) 0 else body.contentLength().toInt()
+        deliver(call, fetches[0], body.byteStream(), contentLength)
+        return
+      }
+      val bytes =
+          try {
+            body.bytes()
+          } catch (e: IOException) {
+            fetches.forEach { handleException(call, e, it.callback) }
+            return
+          }
+      fetches.forEach { deliver(call, it, ByteArrayInputStream(bytes), bytes.size) }
+    }
+  }
+
+  private fun deliver(call: Call, fetch: Fetch, response: InputStream, responseLength: Int) {
+    try {
+      fetch.callback.onResponse(response, responseLength)
+    } catch (e: Exception) {
+      handleException(call, e, fetch.callback)
+    }
+  }
+
+  /** Stops new fetches from joining the call and returns the fetches that have not cancelled. */
+  private fun takeFetches(sharedCall: SharedCall): List<Fetch> =
+      synchronized(lock) {
+        sharedCall.isResponding = true
+        if (sharedCalls[sharedCall.key] === sharedCall) {
+          sharedCalls.remove(sharedCall.key)
+        }
+        ArrayList(sharedCall.fetches)
+      }
+
+  private fun onCallFinished(sharedCall: SharedCall, protocol: Protocol?) {
+    val callsToStart: List<SharedCall>
+    synchronized(lock) {
+      val host = sharedCall.host
+      host.inFlight--
+      if (protocol == Protocol.HTTP_2) {
+        host.isHttp2 = true
+      }
+      callsToStart = takeCallsToStart(host)
+      removeIfIdle(host)
+    }
+    callsToStart.forEach(::start)
+  }
+
+  private fun removeIfIdle(host: HostState) {
+    // hosts known to support HTTP/2 are kept to remember it
+    if (host.inFlight == 0 && host.waiting.isEmpty() && !host.isHttp2) {
+      hosts.remove(host.host)
+    }
+  }
+
+  private fun cancel(sharedCall: SharedCall, fetch: Fetch) {
+    var callToCancel: Call? = null
+    var isRemoved = false
+    synchronized(lock) {
+      if (sharedCall.isResponding) {
+        // a body read by a single fetch is streamed, cancelling the call stops reading it; shared
+        // bodies are already read in memory
+        if (sharedCall.fetches.size == 1 && sharedCall.fetches[0] === fetch) {
+          callToCancel = sharedCall.call
+        }
+      } else if (sharedCall.fetches.remove(fetch)) {
+        isRemoved = true
+        if (sharedCall.fetches.isEmpty()) {
+          sharedCalls.remove(sharedCall.key)
+          callToCancel = sharedCall.call
+          if (callToCancel == null) {
+            sharedCall.host.waiting.remove(sharedCall)
+            removeIfIdle(sharedCall.host)
+          }
+        }
+      }
+    }
+    if (isRemoved) {
+      fetch.callback.onCancellation()
+    }
+    callToCancel?.let { call ->
+      if (Looper.myLooper() != Looper.getMainLooper()) {
+        call.cancel()
+      } else {
+        cancellationExecutor.execute { call.cancel() }
+      }
+    }
+  }
+
+  private companion object {
+    private const val DEFAULT_MAX_REQUESTS_PER_HOST = 5
+    private const val DEFAULT_MAX_REQUESTS_PER_HTTP2_HOST = 16
+  }
+}
@@ -76,9 +76,10 @@ constructor(
       val requestBuilder = Request.Builder().url(uri.toString()).get()
       cacheControl?.let(requestBuilder::cacheControl)
 
-      fetchState.context.imageRequest.bytesRange?.let {
+      (fetchState.requestBytesRange ?: fetchState.context.imageRequest.bytesRange)?.let {
         requestBuilder.addHeader("Range", it.toHttpRangeHeaderValue())
       }
+      fetchState.requestIfRange?.let { requestBuilder.addHeader("If-Range", it) }
       fetchWithRequest(fetchState, callback, requestBuilder.build())
     } catch (e: Exception) {
       // handle error while creating the request
@@ -128,6 +129,8 @@ constructor(
                   handleException(call, IOException("Unexpected HTTP code $response"), callback)
                   return@use
                 }
+                fetchState.responseETag = response.header("ETag")
+                fetchState.responseLastModified = response.header("Last-Modified")
                 val responseRange = fromContentRangeHeader(response.header("Content-Range"))
                 if (responseRange != null &&
                     !(responseRange.from == 0 &&
@@ -157,7 +160,7 @@ constructor(
    * request cancellation, then the exception is interpreted as successful cancellation and
    * onCancellation is called. Otherwise onFailure is called.
    */
-  private fun handleException(call: Call, e: Exception, callback: NetworkFetcher.Callback) {
+  protected fun handleException(call: Call, e: Exception, callback: NetworkFetcher.Callback) {
     if (call.isCanceled) {
       callback.onCancellation()
     } else {
@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.backends.okhttp3
+
+import com.facebook.imagepipeline.common.Priority
+import com.facebook.imagepipeline.core.ImagePipelineConfigInterface
+import com.facebook.imagepipeline.image.EncodedImage
+import com.facebook.imagepipeline.producers.Consumer
+import com.facebook.imagepipeline.producers.NetworkFetcher
+import com.facebook.imagepipeline.producers.ProducerListener2
+import com.facebook.imagepipeline.producers.SettableProducerContext
+import com.facebook.imagepipeline.request.ImageRequest
+import java.io.IOException
+import java.io.InputStream
+import okhttp3.Call
+import okhttp3.Callback
+import okhttp3.MediaType
+import okhttp3.Protocol
+import okhttp3.Request
+import okhttp3.Response
+import okhttp3.ResponseBody
+import okio.Timeout
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.kotlin.mock
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE)
+class HostBudgetOkHttpNetworkFetcherTest {
+
+  private lateinit var callFactory: FakeCallFactory
+
+  @Before
+  fun setUp() {
+    callFactory = FakeCallFactory()
+  }
+
+  @Test
+  fun testLimitsCallsInFlightPerHost() {
+    val fetcher = createFetcher(maxRequestsPerHost = 2)
+    fetch(fetcher, "http://a.com/1")
+    fetch(fetcher, "http://a.com/2")
+    fetch(fetcher, "http://a.com/3")
+    fetch(fetcher, "http://b.com/1")
+    assertThat(callFactory.urls())
+        .containsExactly("http://a.com/1", "http://a.com/2", "http://b.com/1")
+
+    callFactory.calls[0].respond(BODY)
+    assertThat(callFactory.urls()).hasSize(4)
+    assertThat(callFactory.calls[3].url()).isEqualTo("http://a.com/3")
+  }
+
+  @Test
+  fun testStartsHighestPriorityWaitingCallFirst() {
+    val fetcher = createFetcher(maxRequestsPerHost = 1)
+    fetch(fetcher, "http://a.com/1", Priority.LOW)
+    fetch(fetcher, "http://a.com/2", Priority.LOW)
+    val raised = fetch(fetcher, "http://a.com/3", Priority.LOW)
+    fetch(fetcher, "http://a.com/4", Priority.MEDIUM)
+    raised.context.setPriority(Priority.HIGH)
+
+    callFactory.calls[0].respond(BODY)
+    callFactory.calls[1].respond(BODY)
+    callFactory.calls[2].respond(BODY)
+    assertThat(callFactory.urls())
+        .containsExactly("http://a.com/1", "http://a.com/3", "http://a.com/4", "http://a.com/2")
+  }
+
+  @Test
+  fun testUsesHttp2BudgetOnceHostAnsweredOverHttp2() {
+    val fetcher = createFetcher(maxRequestsPerHost = 1, maxRequestsPerHttp2Host = 3)
+    for (i in 1..5) {
+      fetch(fetcher, "http://a.com/$i")
+    }
+    assertThat(callFactory.calls).hasSize(1)
+
+    callFactory.calls[0].respond(BODY, Protocol.HTTP_2)
+    assertThat(callFactory.calls).hasSize(4)
+    // the host is kept to remember it supports HTTP/2
+    for (i in 1 until 5) {
+      callFactory.calls[i].respond(BODY)
+    }
+    assertThat(fetcher.hostCount).isEqualTo(1)
+  }
+
+  @Test
+  fun testCoalescesIdenticalRequests() {
+    val fetcher = createFetcher()
+    val first = fetch(fetcher, "http://a.com/1")
+    val second = fetch(fetcher, "http://a.com/1")
+    assertThat(callFactory.calls).hasSize(1)
+
+    callFactory.calls[0].respond(BODY)
+    assertThat(first.callback.response).isEqualTo(BODY)
+    assertThat(second.callback.response).isEqualTo(BODY)
+    assertThat(fetcher.hostCount).isEqualTo(0)
+
+    // the call is no longer shared once it responded
+    fetch(fetcher, "http://a.com/1")
+    assertThat(callFactory.calls).hasSize(2)
+  }
+
+  @Test
+  fun testCoalescedFetchesAllFail() {
+    val fetcher = createFetcher()
+    val first = fetch(fetcher, "http://a.com/1")
+    val second = fetch(fetcher, "http://a.com/1")
+
+    callFactory.calls[0].fail()
+    assertThat(first.callback.failure).isInstanceOf(IOException::class.java)
+    assertThat(second.callback.failure).isInstanceOf(IOException::class.java)
+    assertThat(fetcher.hostCount).isEqualTo(0)
+  }
+
+  @Test
+  fun testCancellingOneOfSeveralFetchesKeepsCall() {
+    val fetcher = createFetcher()
+    val first = fetch(fetcher, "http://a.com/1")
+    val second = fetch(fetcher, "http://a.com/1")
+
+    first.context.cancel()
+    assertThat(first.callback.isCancelled).isTrue()
+    assertThat(callFactory.calls[0].isCanceled()).isFalse()
+
+    callFactory.calls[0].respond(BODY)
+    assertThat(first.callback.response).isNull()
+    assertThat(second.callback.response).isEqualTo(BODY)
+  }
+
+  @Test
+  fun testCancellingLastFetchCancelsCall() {
+    val fetcher = createFetcher()
+    val first = fetch(fetcher, "http://a.com/1")
+    val second = fetch(fetcher, "http://a.com/1")
+
+    first.context.cancel()
+    second.context.cancel()
+    assertThat(second.callback.isCancelled).isTrue()
+    assertThat(callFactory.calls[0].isCanceled()).isTrue()
+    assertThat(fetcher.hostCount).isEqualTo(0)
+  }
+
+  @Test
+  fun testCancellingLastFetchOfWaitingCallNeverStartsIt() {
+    val fetcher = createFetcher(maxRequestsPerHost = 1)
+    fetch(fetcher, "http://a.com/1")
+    val waiting = fetch(fetcher, "http://a.com/2")
+
+    waiting.context.cancel()
+    assertThat(waiting.callback.isCancelled).isTrue()
+    callFactory.calls[0].respond(BODY)
+    assertThat(callFactory.urls()).containsExactly("http://a.com/1")
+    assertThat(fetcher.hostCount).isEqualTo(0)
+  }
+
+  @Test
+  fun testCancellingAllFetchesOfHostRemovesIt() {
+    val fetcher = createFetcher(maxRequestsPerHost = 1)
+    val inFlight = fetch(fetcher, "http://a.com/1")
+    val waiting = fetch(fetcher, "http://a.com/2")
+
+    inFlight.context.cancel()
+    // the cancelled call made room for the waiting one
+    assertThat(callFactory.urls()).containsExactly("http://a.com/1", "http://a.com/2")
+    waiting.context.cancel()
+    assertThat(callFactory.calls[1].isCanceled()).isTrue()
+    assertThat(fetcher.hostCount).isEqualTo(0)
+  }
+
+  private fun createFetcher(
+      maxRequestsPerHost: Int = 5,
+      maxRequestsPerHttp2Host: Int = 16
+  ): HostBudgetOkHttpNetworkFetcher =
+      HostBudgetOkHttpNetworkFetcher(
+          callFactory, { it.run() }, maxRequestsPerHost, maxRequestsPerHttp2Host)
+
+  private fun fetch(
+      fetcher: HostBudgetOkHttpNetworkFetcher,
+      url: String,
+      priority: Priority = Priority.MEDIUM
+  ): TestFetch {
+    val context =
+        SettableProducerContext(
+            checkNotNull(ImageRequest.fromUri(url)),
+            url,
+            mock<ProducerListener2>(),
+            null,
+            ImageRequest.RequestLevel.FULL_FETCH,
+            false,
+            true,
+            priority,
+            mock<ImagePipelineConfigInterface>())
+    val callback = RecordingCallback()
+    fetcher.fetch(fetcher.createFetchState(mock<Consumer<EncodedImage>>(), context), callback)
+    return TestFetch(context, callback)
+  }
+
+  private class TestFetch(val context: SettableProducerContext, val callback: RecordingCallback)
+
+  private class RecordingCallback : NetworkFetcher.Callback {
+    var response: String? = null
+    var failure: Throwable? = null
+    var isCancelled = false
+
+    override fun onResponse(response: InputStream, responseLength: Int) {
+      this.response = String(response.readBytes())
+    }
+
+    override fun onFailure(throwable: Throwable) {
+      failure = throwable
+    }
+
+    override fun onCancellation() {
+      isCancelled = true
+    }
+  }
+
+  private class FakeCallFactory : Call.Factory {
+    val calls: MutableList<FakeCall> = ArrayList()
+
+    override fun newCall(request: Request): Call = FakeCall(request).also { calls.add(it) }
+
+    fun urls(): List<String> = calls.map { it.url() }
+  }
+
+  /** Call that completes when the test says so, or fails when cancelled like OkHttp calls do. */
+  private class FakeCall(private val request: Request) : Call {
+    private var callback: Callback? = null
+    private var isCompleted = false
+    private var canceled = false
+
+    fun url(): String = request.url().toString()
+
+    fun respond(body: String, protocol: Protocol = Protocol.HTTP_1_1) {
+      val response =
+          Response.Builder()
+              .request(request)
+              .protocol(protocol)
+              .code(200)
+              .message("OK")
+              .body(ResponseBody.create(MediaType.parse("image/jpeg"), body))
+              .build()
+      complete { it.onResponse(this, response) }
+    }
+
+    fun fail() {
+      complete { it.onFailure(this, IOException("Failed")) }
+    }
+
+    private fun complete(action: (Callback) -> Unit) {
+      check(!isCompleted)
+      isCompleted = true
+      action(checkNotNull(callback))
+    }
+
+    override fun request(): Request = request
+
+    override fun execute(): Response = throw UnsupportedOperationException()
+
+    override fun enqueue(responseCallback: Callback) {
+      callback = responseCallback
+    }
+
+    override fun cancel() {
+      canceled = true
+      if (callback != null && !isCompleted) {
+        complete { it.onFailure(this, IOException("Canceled")) }
+      }
+    }
+
+    override fun isExecuted(): Boolean = callback != null
+
+    override fun isCanceled(): Boolean = canceled
+
+    override fun clone(): Call = FakeCall(request)
+
+    override fun timeout(): Timeout = Timeout.NONE
+  }
+
+  private companion object {
+    private const val BODY = "image"
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.binaryresource
+
+import java.io.IOException
+import java.io.InputStream
+import java.nio.ByteBuffer
+
+/**
+ * A [BinaryResource] backed by a [ByteBuffer], typically a slice of a memory-mapped file. Streams
+ * read straight from the buffer, only [read] copies its content.
+ */
+class ByteBufferBinaryResource(buffer: ByteBuffer) : BinaryResource {
+
+  private val buffer: ByteBuffer = buffer.slice()
+
+  /** A read-only view of the underlying buffer, positioned at the start of the resource. */
+  val byteBuffer: ByteBuffer
+    get() = buffer.asReadOnlyBuffer()
+
+  @Throws(IOException::class)
+  override fun openStream(): InputStream = ByteBufferInputStream(buffer.duplicate())
+
+  @Throws(IOException::class)
+  override fun read(): ByteArray {
+    val source = buffer.duplicate()
+    val bytes = ByteArray(source.remaining())
+    source.get(bytes)
+    return bytes
+  }
+
+  override fun size(): Long = buffer.remaining().toLong()
+
+  private class ByteBufferInputStream(private val buffer: ByteBuffer) : InputStream() {
+
+    private var mark = 0
+
+    override fun read(): Int = if (buffer.hasRemaining()) buffer.get().toInt() and 0xFF else -1
+
+    override fun read(bytes: ByteArray, offset: Int, length: Int): Int {
+      if (length == 0) {
+        return 0
+      }
+      if (!buffer.hasRemaining()) {
+        return -1
+      }
+      val count = minOf(length, buffer.remaining())
+      buffer.get(bytes, offset, count)
+      return count
+    }
+
+    override fun skip(n: Long): Long {
+      val count = minOf(n, buffer.remaining().toLong()).toInt()
+      if (count <= 0) {
+        return 0
+      }
+      buffer.position(buffer.position() + count)
+      return count.toLong()
+    }
+
+    override fun available(): Int = buffer.remaining()
+
+    override fun markSupported(): Boolean = true
+
+    override fun mark(readlimit: Int) {
+      mark = buffer.position()
+    }
+
+    override fun reset() {
+      buffer.position(mark)
+    }
+  }
+}
@@ -7,11 +7,10 @@
 
 package com.facebook.cache.common;
 
-import com.facebook.common.util.SecureHashUtil;
 import com.facebook.infer.annotation.Nullsafe;
-import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.List;
+import javax.annotation.Nullable;
 
 @Nullsafe(Nullsafe.Mode.STRICT)
 public final class CacheKeyUtil {
@@ -20,43 +19,71 @@ public final class CacheKeyUtil {
    * Get a list of possible resourceIds from MultiCacheKey or get single resourceId from CacheKey.
    */
   public static List<String> getResourceIds(final CacheKey key) {
-    try {
-      final List<String> ids;
-      if (key instanceof MultiCacheKey) {
-        List<CacheKey> keys = ((MultiCacheKey) key).getCacheKeys();
-        ids = new ArrayList<>(keys.size());
+    return getResourceIds(key, Sha1ResourceIdHasher.getInstance(), null);
+  }
+
+  /**
+   * Get a list of possible resourceIds from MultiCacheKey or get single resourceId from CacheKey,
+   * computed by the given hasher.
+   *
+   * @param legacyHasher if not null, the ids computed by this hasher are appended after the
+   *     primary ones, so that entries written before switching hashers can still be found
+   */
+  public static List<String> getResourceIds(
+      final CacheKey key, ResourceIdHasher hasher, @Nullable ResourceIdHasher legacyHasher) {
+    if (legacyHasher == hasher) {
+      legacyHasher = null;
+    }
+    final List<String> ids;
+    if (key instanceof MultiCacheKey) {
+      List<CacheKey> keys = ((MultiCacheKey) key).getCacheKeys();
+      ids = new ArrayList<>(legacyHasher == null ? keys.size() : keys.size() * 2);
+      for (int i = 0; i < keys.size(); i++) {
+        ids.add(hashKey(keys.get(i), hasher));
+      }
+      if (legacyHasher != null) {
         for (int i = 0; i < keys.size(); i++) {
-          ids.add(secureHashKey(keys.get(i)));
+          ids.add(hashKey(keys.get(i), legacyHasher));
         }
-      } else {
-        ids = new ArrayList<>(1);
-        ids.add(key.isResourceIdForDebugging() ? key.getUriString() : secureHashKey(key));
       }
-      return ids;
-    } catch (UnsupportedEncodingException e) {
-      // This should never happen. All VMs support UTF-8
-      throw new RuntimeException(e);
+    } else if (key.isResourceIdForDebugging()) {
+      ids = new ArrayList<>(1);
+      ids.add(key.getUriString());
+    } else {
+      ids = new ArrayList<>(legacyHasher == null ? 1 : 2);
+      ids.add(hashKey(key, hasher));
+      if (legacyHasher != null) {
+        ids.add(hashKey(key, legacyHasher));
+      }
     }
+    return ids;
   }
 
   /**
    * Get the resourceId from the first key in MultiCacheKey or get single resourceId from CacheKey.
    */
   public static String getFirstResourceId(final CacheKey key) {
-    try {
-      if (key instanceof MultiCacheKey) {
-        List<CacheKey> keys = ((MultiCacheKey) key).getCacheKeys();
-        return secureHashKey(keys.get(0));
-      } else {
-        return secureHashKey(key);
-      }
-    } catch (UnsupportedEncodingException e) {
-      // This should never happen. All VMs support UTF-8
-      throw new RuntimeException(e);
+    return getFirstResourceId(key, Sha1ResourceIdHasher.getInstance());
+  }
+
+  /**
+   * Get the resourceId from the first key in MultiCacheKey or get single resourceId from CacheKey,
+   * computed by the given hasher.
+   */
+  public static String getFirstResourceId(final CacheKey key, ResourceIdHasher hasher) {
+    if (key instanceof MultiCacheKey) {
+      List<CacheKey> keys = ((MultiCacheKey) key).getCacheKeys();
+      return hashKey(keys.get(0), hasher);
+    } else {
+      return hashKey(key, hasher);
     }
   }
 
-  private static String secureHashKey(final CacheKey key) throws UnsupportedEncodingException {
-    return SecureHashUtil.makeSHA1HashBase64(key.getUriString().getBytes("UTF-8"));
+  private static String hashKey(final CacheKey key, ResourceIdHasher hasher) {
+    if (key instanceof SimpleCacheKey) {
+      // memoized, as the same key is usually looked up, probed and written in a row
+      return ((SimpleCacheKey) key).getResourceId(hasher);
+    }
+    return hasher.hash(key.getUriString());
   }
 }
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.cache.common;
+
+import android.util.Base64;
+import com.facebook.infer.annotation.Nullsafe;
+import java.io.UnsupportedEncodingException;
+import javax.annotation.Nullable;
+
+/**
+ * A fast, non-cryptographic {@link ResourceIdHasher} based on the 128-bit x64 variant of
+ * MurmurHash3. Resource ids are the URL-safe base64 encoding of the 16 byte hash.
+ *
+ * <p>Collisions are as unlikely as with SHA-1 for non-adversarial input such as image URIs, at a
+ * fraction of the cost.
+ */
+@Nullsafe(Nullsafe.Mode.STRICT)
+public class Murmur3ResourceIdHasher implements ResourceIdHasher {
+
+  private static final long C1 = 0x87c37b91114253d5L;
+  private static final long C2 = 0x4cf5ad432745937fL;
+
+  private static @Nullable Murmur3ResourceIdHasher sInstance = null;
+
+  private Murmur3ResourceIdHasher() {}
+
+  public static synchronized Murmur3ResourceIdHasher getInstance() {
+    if (sInstance == null) {
+      sInstance = new Murmur3ResourceIdHasher();
+    }
+    return sInstance;
+  }
+
+  @Override
+  public String hash(String uriString) {
+    byte[] bytes;
+    try {
+      bytes = uriString.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      // This should never happen. All VMs support UTF-8
+      throw new RuntimeException(e);
+    }
+    return Base64.encodeToString(
+        hash128(bytes, 0), Base64.URL_SAFE | Base64.NO_PADDING | Base64.NO_WRAP);
+  }
+
+  /** Computes the 128-bit x64 MurmurHash3 of the given bytes, in little endian order. */
+  static byte[] hash128(byte[] data, int seed) {
+    final int length = data.length;
+    final int blockCount = length / 16;
+    long h1 = seed & 0xffffffffL;
+    long h2 = seed & 0xffffffffL;
+
+    for (int i = 0; i < blockCount; i++) {
+      long k1 = getLongLittleEndian(data, i * 16);
+      long k2 = getLongLittleEndian(data, i * 16 + 8);
+
+      k1 *= C1;
+      k1 = Long.rotateLeft(k1, 31);
+      k1 *= C2;
+      h1 ^= k1;
+      h1 = Long.rotateLeft(h1, 27);
+      h1 += h2;
+      h1 = h1 * 5 + 0x52dce729;
+
+      k2 *= C2;
+      k2 = Long.rotateLeft(k2, 33);
+      k2 *= C1;
+      h2 ^= k2;
+      h2 = Long.rotateLeft(h2, 31);
+      h2 += h1;
+      h2 = h2 * 5 + 0x38495ab5;
+    }
+
+    long k1 = 0;
+    long k2 = 0;
+    int tail = blockCount * 16;
+    switch (length & 15) {
+      case 15:
+        k2 ^= (long) (data[tail + 14] & 0xff) << 48;
+        // fall through
+      case 14:
+        k2 ^= (long) (data[tail + 13] & 0xff) << 40;
+        // fall through
+      case 13:
+        k2 ^= (long) (data[tail + 12] & 0xff) << 32;
+        // fall through
+      case 12:
+        k2 ^= (long) (data[tail + 11] & 0xff) << 24;
+        // fall through
+      case 11:
+        k2 ^= (long) (data[tail + 10] & 0xff) << 16;
+        // fall through
+      case 10:
+        k2 ^= (long) (data[tail + 9] & 0xff) << 8;
+        // fall through
+      case 9:
+        k2 ^= (long) (data[tail + 8] & 0xff);
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1;
+        h2 ^= k2;
+        // fall through
+      case 8:
+        k1 ^= (long) (data[tail + 7] & 0xff) << 56;
+        // fall through
+      case 7:
+        k1 ^= (long) (data[tail + 6] & 0xff) << 48;
+        // fall through
+      case 6:
+        k1 ^= (long) (data[tail + 5] & 0xff) << 40;
+        // fall through
+      case 5:
+        k1 ^= (long) (data[tail + 4] & 0xff) << 32;
+        // fall through
+      case 4:
+        k1 ^= (long) (data[tail + 3] & 0xff) << 24;
+        // fall through
+      case 3:
+        k1 ^= (long) (data[tail + 2] & 0xff) << 16;
+        // fall through
+      case 2:
+        k1 ^= (long) (data[tail + 1] & 0xff) << 8;
+        // fall through
+      case 1:
+        k1 ^= (long) (data[tail] & 0xff);
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        h1 ^= k1;
+        break;
+      default:
+        break;
+    }
+
+    h1 ^= length;
+    h2 ^= length;
+    h1 += h2;
+    h2 += h1;
+    h1 = fmix64(h1);
+    h2 = fmix64(h2);
+    h1 += h2;
+    h2 += h1;
+
+    byte[] result = new byte[16];
+    putLongLittleEndian(result, 0, h1);
+    putLongLittleEndian(result, 8, h2);
+    return result;
+  }
+
+  private static long fmix64(long k) {
+    k ^= k >>> 33;
+    k *= 0xff51afd7ed558ccdL;
+    k ^= k >>> 33;
+    k *= 0xc4ceb9fe1a85ec53L;
+    k ^= k >>> 33;
+    return k;
+  }
+
+  private static long getLongLittleEndian(byte[] data, int offset) {
+    long result = 0;
+    for (int i = 7; i >= 0; i--) {
+      result = (result << 8) | (data[offset + i] & 0xffL);
+    }
+    return result;
+  }
+
+  private static void putLongLittleEndian(byte[] data, int offset, long value) {
+    for (int i = 0; i < 8; i++) {
+      data[offset + i] = (byte) (value >>> (8 * i));
+    }
+  }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.cache.common;
+
+import com.facebook.infer.annotation.Nullsafe;
+
+/**
+ * Strategy used to turn the URI string of a {@link CacheKey} into the resource id under which the
+ * disk cache stores it.
+ *
+ * <p>Changing the hasher of an existing cache changes every resource id, see {@link
+ * com.facebook.cache.disk.DiskCacheConfig.Builder#setLegacyResourceIdHasher} to keep entries
+ * written with the previous hasher readable.
+ */
+@Nullsafe(Nullsafe.Mode.STRICT)
+public interface ResourceIdHasher {
+
+  /**
+   * Computes the resource id for the given URI string. The result must be stable across process
+   * restarts and usable as a file name.
+   */
+  String hash(String uriString);
+}
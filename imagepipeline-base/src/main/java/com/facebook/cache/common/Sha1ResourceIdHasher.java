@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.cache.common;
+
+import com.facebook.common.util.SecureHashUtil;
+import com.facebook.infer.annotation.Nullsafe;
+import java.io.UnsupportedEncodingException;
+import javax.annotation.Nullable;
+
+/** The default {@link ResourceIdHasher}: URL-safe base64 of the SHA-1 of the UTF-8 URI string. */
+@Nullsafe(Nullsafe.Mode.STRICT)
+public class Sha1ResourceIdHasher implements ResourceIdHasher {
+
+  private static @Nullable Sha1ResourceIdHasher sInstance = null;
+
+  private Sha1ResourceIdHasher() {}
+
+  public static synchronized Sha1ResourceIdHasher getInstance() {
+    if (sInstance == null) {
+      sInstance = new Sha1ResourceIdHasher();
+    }
+    return sInstance;
+  }
+
+  @Override
+  public String hash(String uriString) {
+    try {
+      return SecureHashUtil.makeSHA1HashBase64(uriString.getBytes("UTF-8"));
+    } catch (UnsupportedEncodingException e) {
+      // This should never happen. All VMs support UTF-8
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -23,6 +23,9 @@ public class SimpleCacheKey implements CacheKey {
   final String mKey;
   final boolean mIsResourceIdForDebugging;
 
+  // Resource ids memoized by CacheKeyUtil, for the two most recently used hashers
+  private volatile @Nullable MemoizedResourceId mMemoizedResourceId;
+
   public SimpleCacheKey(final String key) {
     this(key, false);
   }
@@ -68,4 +71,35 @@ public class SimpleCacheKey implements CacheKey {
   public boolean isResourceIdForDebugging() {
     return mIsResourceIdForDebugging;
   }
+
+  /** Returns the resource id computed by the given hasher, hashing the key at most once. */
+  String getResourceId(ResourceIdHasher hasher) {
+    MemoizedResourceId memoized = mMemoizedResourceId;
+    if (memoized != null) {
+      if (memoized.hasher == hasher) {
+        return memoized.resourceId;
+      }
+      if (memoized.previous != null && memoized.previous.hasher == hasher) {
+        return memoized.previous.resourceId;
+      }
+    }
+    String resourceId = hasher.hash(mKey);
+    MemoizedResourceId previous =
+        memoized != null ? new MemoizedResourceId(memoized.hasher, memoized.resourceId, null) : null;
+    mMemoizedResourceId = new MemoizedResourceId(hasher, resourceId, previous);
+    return resourceId;
+  }
+
+  private static class MemoizedResourceId {
+    final ResourceIdHasher hasher;
+    final String resourceId;
+    final @Nullable MemoizedResourceId previous;
+
+    MemoizedResourceId(
+        ResourceIdHasher hasher, String resourceId, @Nullable MemoizedResourceId previous) {
+      this.hasher = hasher;
+      this.resourceId = resourceId;
+      this.previous = previous;
+    }
+  }
 }
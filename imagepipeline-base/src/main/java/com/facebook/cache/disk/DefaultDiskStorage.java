@@ -60,6 +60,9 @@ public class DefaultDiskStorage implements DiskStorage {
   /** We will allow purging of any temp files older than this. */
   static final long TEMP_FILE_LIFETIME_MS = TimeUnit.MINUTES.toMillis(30);
 
+  /** How long the entries are listed from the journal before the directories are walked again. */
+  static final long JOURNAL_VALIDATION_INTERVAL_MS = TimeUnit.HOURS.toMillis(2);
+
   /** The base directory used for the cache */
   private final File mRootDirectory;
 
@@ -78,6 +81,12 @@ public class DefaultDiskStorage implements DiskStorage {
   private final CacheErrorLogger mCacheErrorLogger;
   private final Clock mClock;
 
+  /** Journal of content files, used instead of a directory walk to list entries. May be null. */
+  private final @Nullable DiskStorageJournal mJournal;
+
+  /** When the entries must be listed from the directories rather than from the journal. */
+  private volatile long mNextJournalValidationMs;
+
   /**
    * Instantiates a ShardedDiskStorage that will use the directory to save a map between keys and
    * files. The version is very important if clients change the format saved in those files.
@@ -90,6 +99,21 @@ public class DefaultDiskStorage implements DiskStorage {
    * @param cacheErrorLogger logger for various events
    */
   public DefaultDiskStorage(File rootDirectory, int version, CacheErrorLogger cacheErrorLogger) {
+    this(rootDirectory, version, cacheErrorLogger, false);
+  }
+
+  /**
+   * Same as {@link #DefaultDiskStorage(File, int, CacheErrorLogger)}, optionally keeping a journal
+   * of the content files so that {@link #getEntries()} does not need to walk all the shard
+   * directories.
+   *
+   * @param journalEnabled whether to maintain a {@link DiskStorageJournal}
+   */
+  public DefaultDiskStorage(
+      File rootDirectory,
+      int version,
+      CacheErrorLogger cacheErrorLogger,
+      boolean journalEnabled) {
     Preconditions.checkNotNull(rootDirectory);
 
     mRootDirectory = rootDirectory;
@@ -103,6 +127,9 @@ public class DefaultDiskStorage implements DiskStorage {
     mCacheErrorLogger = cacheErrorLogger;
     recreateDirectoryIfVersionChanges();
     mClock = SystemClock.get();
+    // a journal left by a run with the journal enabled is kept, the periodic walk catches up
+    mJournal = journalEnabled ? new DiskStorageJournal(mVersionDirectory, cacheErrorLogger) : null;
+    mNextJournalValidationMs = mClock.now() + JOURNAL_VALIDATION_INTERVAL_MS;
   }
 
   @SuppressWarnings("ExternalStorageUse")
@@ -300,6 +327,9 @@ public class DefaultDiskStorage implements DiskStorage {
     }
 
     private boolean isExpectedFile(File file) {
+      if (mJournal != null && mJournal.isJournalFile(file)) {
+        return true;
+      }
       FileInfo info = getShardFileInfo(file);
       if (info == null) {
         return false;
@@ -363,9 +393,17 @@ public class DefaultDiskStorage implements DiskStorage {
   public @Nullable BinaryResource getResource(String resourceId, Object debugInfo) {
     final File file = getContentFileFor(resourceId);
     if (file.exists()) {
-      file.setLastModified(mClock.now());
+      long now = mClock.now();
+      file.setLastModified(now);
+      if (mJournal != null) {
+        mJournal.recordTouch(resourceId, now);
+      }
       return FileBinaryResource.createOrNull(file);
     }
+    if (mJournal != null) {
+      // the file was deleted behind our back
+      mJournal.recordRemove(resourceId);
+    }
     return null;
   }
 
@@ -389,7 +427,11 @@ public class DefaultDiskStorage implements DiskStorage {
     File contentFile = getContentFileFor(resourceId);
     boolean exists = contentFile.exists();
     if (touch && exists) {
-      contentFile.setLastModified(mClock.now());
+      long now = mClock.now();
+      contentFile.setLastModified(now);
+      if (mJournal != null) {
+        mJournal.recordTouch(resourceId, now);
+      }
     }
     return exists;
   }
@@ -399,21 +441,27 @@ public class DefaultDiskStorage implements DiskStorage {
     // it should be one entry return by us :)
     EntryImpl entryImpl = (EntryImpl) entry;
     FileBinaryResource resource = entryImpl.getResource();
-    return doRemove(resource.getFile());
+    return doRemove(entryImpl.getId(), resource.getFile());
   }
 
   @Override
   public long remove(final String resourceId) {
-    return doRemove(getContentFileFor(resourceId));
+    return doRemove(resourceId, getContentFileFor(resourceId));
   }
 
-  private long doRemove(final File contentFile) {
+  private long doRemove(final String resourceId, final File contentFile) {
     if (!contentFile.exists()) {
+      if (mJournal != null) {
+        mJournal.recordRemove(resourceId);
+      }
       return 0;
     }
 
     final long fileSize = contentFile.length();
     if (contentFile.delete()) {
+      if (mJournal != null) {
+        mJournal.recordRemove(resourceId);
+      }
       return fileSize;
     }
 
@@ -421,6 +469,9 @@ public class DefaultDiskStorage implements DiskStorage {
   }
 
   public void clearAll() {
+    if (mJournal != null) {
+      mJournal.reset();
+    }
     FileTree.deleteContents(mRootDirectory);
   }
 
@@ -476,9 +527,52 @@ public class DefaultDiskStorage implements DiskStorage {
   /**
    * Returns a list of entries.
    *
+   * <p>If the journal is enabled and readable the entries are restored from it, otherwise all the
+   * shard directories are walked (and the journal is rebuilt from the result). The directories are
+   * also walked every {@link #JOURNAL_VALIDATION_INTERVAL_MS} to catch the changes the journal
+   * missed.
+   *
    * <p>This list is immutable.
    */
   public List<Entry> getEntries() throws IOException {
+    if (mJournal != null && mClock.now() < mNextJournalValidationMs) {
+      List<DiskStorageJournal.Record> records = mJournal.getRecords();
+      if (records != null) {
+        List<Entry> entries = new ArrayList<>(records.size());
+        for (DiskStorageJournal.Record record : records) {
+          entries.add(
+              new EntryImpl(
+                  record.resourceId,
+                  getContentFileFor(record.resourceId),
+                  record.size,
+                  record.timestamp));
+        }
+        return Collections.unmodifiableList(entries);
+      }
+    }
+    DiskStorageJournal journal = mJournal;
+    if (journal == null) {
+      return walkEntries();
+    }
+    // commits and removals made during the walk are kept aside by the journal, see beginRebuild
+    boolean rebuilt = false;
+    journal.beginRebuild();
+    try {
+      List<Entry> entries = walkEntries();
+      if (mVersionDirectory.exists()) {
+        journal.rebuild(entries);
+        rebuilt = true;
+        mNextJournalValidationMs = mClock.now() + JOURNAL_VALIDATION_INTERVAL_MS;
+      }
+      return entries;
+    } finally {
+      if (!rebuilt) {
+        journal.cancelRebuild();
+      }
+    }
+  }
+
+  private List<Entry> walkEntries() {
     EntriesCollector collector = new EntriesCollector();
     FileTree.walkFileTree(mVersionDirectory, collector);
     return collector.getEntries();
@@ -493,11 +587,15 @@ public class DefaultDiskStorage implements DiskStorage {
     private long timestamp;
 
     private EntryImpl(String id, File cachedFile) {
+      this(id, cachedFile, -1, -1);
+    }
+
+    private EntryImpl(String id, File cachedFile, long size, long timestamp) {
       Preconditions.checkNotNull(cachedFile);
       this.id = Preconditions.checkNotNull(id);
       this.resource = FileBinaryResource.create(cachedFile);
-      this.size = -1;
-      this.timestamp = -1;
+      this.size = size;
+      this.timestamp = timestamp;
     }
 
     @Override
@@ -636,32 +734,40 @@ public class DefaultDiskStorage implements DiskStorage {
 
     @Override
     public void writeData(WriterCallback callback, Object debugInfo) throws IOException {
-      FileOutputStream fileStream;
+      CountingOutputStream countingStream = openOutputStream();
       try {
-        fileStream = new FileOutputStream(mTemporaryFile);
-      } catch (FileNotFoundException fne) {
-        mCacheErrorLogger.logError(
-            CacheErrorLogger.CacheErrorCategory.WRITE_UPDATE_FILE_NOT_FOUND,
-            TAG,
-            "updateResource",
-            fne);
-        throw fne;
-      }
-
-      long length;
-      try {
-        CountingOutputStream countingStream = new CountingOutputStream(fileStream);
         callback.write(countingStream);
         // just in case underlying stream's close method doesn't flush:
         // we flush it manually and inside the try/catch
         countingStream.flush();
-        length = countingStream.getCount();
       } finally {
         // if it fails to close (or write the last piece) we really want to know
         // Normally we would want this to be quiet because a closing exception would hide one
         // inside the try, but now we really want to know if something fails at flush or close
-        fileStream.close();
+        countingStream.close();
+      }
+      checkWrittenLength(countingStream.getCount());
+    }
+
+    /**
+     * Opens the temporary file for callers that produce the content themselves instead of through
+     * a {@link WriterCallback}. Once written, the stream must be flushed, closed and checked with
+     * {@link #checkWrittenLength}, as {@link #writeData} does.
+     */
+    CountingOutputStream openOutputStream() throws FileNotFoundException {
+      try {
+        return new CountingOutputStream(new FileOutputStream(mTemporaryFile));
+      } catch (FileNotFoundException fne) {
+        mCacheErrorLogger.logError(
+            CacheErrorLogger.CacheErrorCategory.WRITE_UPDATE_FILE_NOT_FOUND,
+            TAG,
+            "updateResource",
+            fne);
+        throw fne;
       }
+    }
+
+    void checkWrittenLength(long length) throws IOException {
       // this code should never throw, but if filesystem doesn't fail on a failing/uncomplete close
       // we want to know and manually fail
       if (mTemporaryFile.length() != length) {
@@ -699,6 +805,9 @@ public class DefaultDiskStorage implements DiskStorage {
       }
       if (targetFile.exists()) {
         targetFile.setLastModified(time);
+        if (mJournal != null) {
+          mJournal.recordInsert(mResourceId, targetFile.length(), time);
+        }
       }
       return FileBinaryResource.create(targetFile);
     }
@@ -12,6 +12,8 @@ import com.facebook.cache.common.CacheErrorLogger;
 import com.facebook.cache.common.CacheEventListener;
 import com.facebook.cache.common.NoOpCacheErrorLogger;
 import com.facebook.cache.common.NoOpCacheEventListener;
+import com.facebook.cache.common.ResourceIdHasher;
+import com.facebook.cache.common.Sha1ResourceIdHasher;
 import com.facebook.common.disk.DiskTrimmable;
 import com.facebook.common.disk.DiskTrimmableRegistry;
 import com.facebook.common.disk.NoOpDiskTrimmableRegistry;
@@ -39,6 +41,11 @@ public class DiskCacheConfig {
   private final DiskTrimmableRegistry mDiskTrimmableRegistry;
   @Nullable private final Context mContext;
   private final boolean mIndexPopulateAtStartupEnabled;
+  private final boolean mJournalEnabled;
+  private final boolean mConcurrentModeEnabled;
+  private final ResourceIdHasher mResourceIdHasher;
+  private final @Nullable ResourceIdHasher mLegacyResourceIdHasher;
+  private final int mMaxSlabEntrySize;
 
   protected DiskCacheConfig(Builder builder) {
     mContext = builder.mContext;
@@ -76,6 +83,14 @@ public class DiskCacheConfig {
             ? NoOpDiskTrimmableRegistry.getInstance()
             : builder.mDiskTrimmableRegistry;
     mIndexPopulateAtStartupEnabled = builder.mIndexPopulateAtStartupEnabled;
+    mJournalEnabled = builder.mJournalEnabled;
+    mConcurrentModeEnabled = builder.mConcurrentModeEnabled;
+    mResourceIdHasher =
+        builder.mResourceIdHasher == null
+            ? Sha1ResourceIdHasher.getInstance()
+            : builder.mResourceIdHasher;
+    mLegacyResourceIdHasher = builder.mLegacyResourceIdHasher;
+    mMaxSlabEntrySize = builder.mMaxSlabEntrySize;
   }
 
   public int getVersion() {
@@ -126,6 +141,26 @@ public class DiskCacheConfig {
     return mIndexPopulateAtStartupEnabled;
   }
 
+  public boolean getJournalEnabled() {
+    return mJournalEnabled;
+  }
+
+  public boolean getConcurrentModeEnabled() {
+    return mConcurrentModeEnabled;
+  }
+
+  public ResourceIdHasher getResourceIdHasher() {
+    return mResourceIdHasher;
+  }
+
+  public @Nullable ResourceIdHasher getLegacyResourceIdHasher() {
+    return mLegacyResourceIdHasher;
+  }
+
+  public int getMaxSlabEntrySize() {
+    return mMaxSlabEntrySize;
+  }
+
   /**
    * Create a new builder.
    *
@@ -153,6 +188,11 @@ public class DiskCacheConfig {
     private @Nullable CacheEventListener mCacheEventListener;
     private @Nullable DiskTrimmableRegistry mDiskTrimmableRegistry;
     private boolean mIndexPopulateAtStartupEnabled;
+    private boolean mJournalEnabled;
+    private boolean mConcurrentModeEnabled;
+    private @Nullable ResourceIdHasher mResourceIdHasher;
+    private @Nullable ResourceIdHasher mLegacyResourceIdHasher;
+    private int mMaxSlabEntrySize;
 
     private final @Nullable Context mContext;
 
@@ -251,6 +291,53 @@ public class DiskCacheConfig {
       return this;
     }
 
+    /**
+     * Keeps an append-only journal of the cached files, so that the index can be loaded with one
+     * sequential read instead of walking all the cache directories at startup.
+     */
+    public Builder setJournalEnabled(boolean journalEnabled) {
+      mJournalEnabled = journalEnabled;
+      return this;
+    }
+
+    /**
+     * Lets reads and inserts of different resources proceed in parallel. Only size accounting and
+     * eviction are serialized, commits and removals lock per resource id.
+     */
+    public Builder setConcurrentModeEnabled(boolean concurrentModeEnabled) {
+      mConcurrentModeEnabled = concurrentModeEnabled;
+      return this;
+    }
+
+    /**
+     * Sets how resource ids (and hence file names) are computed from cache keys. Defaults to {@link
+     * Sha1ResourceIdHasher}.
+     */
+    public Builder setResourceIdHasher(ResourceIdHasher resourceIdHasher) {
+      mResourceIdHasher = resourceIdHasher;
+      return this;
+    }
+
+    /**
+     * The hasher previously used by this cache, if it was changed with {@link
+     * #setResourceIdHasher}. Entries stored under the legacy ids are still found and removed, and
+     * age out through regular eviction, so the existing cache does not have to be thrown away.
+     * Typically {@link Sha1ResourceIdHasher#getInstance()}.
+     */
+    public Builder setLegacyResourceIdHasher(@Nullable ResourceIdHasher legacyResourceIdHasher) {
+      mLegacyResourceIdHasher = legacyResourceIdHasher;
+      return this;
+    }
+
+    /**
+     * Entries up to this size are packed into memory-mapped slab files instead of getting a file
+     * each, see {@link SlabDiskStorage}. 0 (the default) disables slabs.
+     */
+    public Builder setMaxSlabEntrySize(int maxSlabEntrySize) {
+      mMaxSlabEntrySize = maxSlabEntrySize;
+      return this;
+    }
+
     public DiskCacheConfig build() {
       return new DiskCacheConfig(this);
     }
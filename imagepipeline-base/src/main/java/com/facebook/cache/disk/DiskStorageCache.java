@@ -13,6 +13,8 @@ import com.facebook.cache.common.CacheErrorLogger;
 import com.facebook.cache.common.CacheEventListener;
 import com.facebook.cache.common.CacheKey;
 import com.facebook.cache.common.CacheKeyUtil;
+import com.facebook.cache.common.ResourceIdHasher;
+import com.facebook.cache.common.Sha1ResourceIdHasher;
 import com.facebook.cache.common.WriterCallback;
 import com.facebook.common.disk.DiskTrimmable;
 import com.facebook.common.disk.DiskTrimmableRegistry;
@@ -29,9 +31,11 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
@@ -53,6 +57,8 @@ public class DiskStorageCache implements FileCache, DiskTrimmable {
   private static final long FILECACHE_SIZE_UPDATE_PERIOD_MS = TimeUnit.MINUTES.toMillis(30);
   private static final double TRIMMING_LOWER_BOUND = 0.02;
   private static final long UNINITIALIZED = -1;
+  // Number of per resource id locks used in concurrent mode, must be a power of two
+  private static final int LOCK_STRIPE_COUNT = 16;
 
   private final long mLowDiskSpaceCacheSizeLimit;
   private final long mDefaultCacheSizeLimit;
@@ -61,10 +67,9 @@ public class DiskStorageCache implements FileCache, DiskTrimmable {
 
   private final CacheEventListener mCacheEventListener;
 
-  @GuardedBy("mLock")
-  // All resourceId stored on disk (if any).
-  @VisibleForTesting
-  final Set<String> mResourceIndex;
+  // All resourceId stored on disk (if any). Guarded by mLock, unless concurrent mode is enabled in
+  // which case it is a concurrent set.
+  @VisibleForTesting final Set<String> mResourceIndex;
 
   private long mCacheSizeLastUpdateTime;
 
@@ -84,6 +89,18 @@ public class DiskStorageCache implements FileCache, DiskTrimmable {
   // synchronization object.
   private final Object mLock = new Object();
 
+  // In concurrent mode, reads don't lock at all and commits and removals of a given resource id
+  // only lock the stripe for that id. mLock then only coordinates size accounting and eviction.
+  private final boolean mConcurrentModeEnabled;
+  private final Object[] mLockStripes;
+
+  // In concurrent mode, commits and removals hold the read side, and the recount of the size and
+  // index from the storage the write side, so that the recount does not lose or double count them.
+  private final ReentrantReadWriteLock mRecountLock = new ReentrantReadWriteLock();
+
+  private final ResourceIdHasher mResourceIdHasher;
+  private final @Nullable ResourceIdHasher mLegacyResourceIdHasher;
+
   private boolean mIndexReady;
 
   /**
@@ -150,6 +167,32 @@ public class DiskStorageCache implements FileCache, DiskTrimmable {
       @Nullable DiskTrimmableRegistry diskTrimmableRegistry,
       final Executor executorForBackgrountInit,
       boolean indexPopulateAtStartupEnabled) {
+    this(
+        diskStorage,
+        entryEvictionComparatorSupplier,
+        params,
+        cacheEventListener,
+        cacheErrorLogger,
+        diskTrimmableRegistry,
+        executorForBackgrountInit,
+        indexPopulateAtStartupEnabled,
+        false,
+        Sha1ResourceIdHasher.getInstance(),
+        null);
+  }
+
+  public DiskStorageCache(
+      DiskStorage diskStorage,
+      EntryEvictionComparatorSupplier entryEvictionComparatorSupplier,
+      Params params,
+      CacheEventListener cacheEventListener,
+      CacheErrorLogger cacheErrorLogger,
+      @Nullable DiskTrimmableRegistry diskTrimmableRegistry,
+      final Executor executorForBackgrountInit,
+      boolean indexPopulateAtStartupEnabled,
+      boolean concurrentModeEnabled,
+      ResourceIdHasher resourceIdHasher,
+      @Nullable ResourceIdHasher legacyResourceIdHasher) {
     this.mLowDiskSpaceCacheSizeLimit = params.mLowDiskSpaceCacheSizeLimit;
     this.mDefaultCacheSizeLimit = params.mDefaultCacheSizeLimit;
     this.mCacheSizeLimit = params.mDefaultCacheSizeLimit;
@@ -173,7 +216,20 @@ public class DiskStorageCache implements FileCache, DiskTrimmable {
 
     mIndexPopulateAtStartupEnabled = indexPopulateAtStartupEnabled;
 
-    this.mResourceIndex = new HashSet<>();
+    mResourceIdHasher = resourceIdHasher;
+    mLegacyResourceIdHasher = legacyResourceIdHasher;
+
+    mConcurrentModeEnabled = concurrentModeEnabled;
+    if (mConcurrentModeEnabled) {
+      this.mResourceIndex = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+      this.mLockStripes = new Object[LOCK_STRIPE_COUNT];
+      for (int i = 0; i < LOCK_STRIPE_COUNT; i++) {
+        mLockStripes[i] = new Object();
+      }
+    } else {
+      this.mResourceIndex = new HashSet<>();
+      this.mLockStripes = new Object[0];
+    }
 
     if (diskTrimmableRegistry != null) {
       diskTrimmableRegistry.registerDiskTrimmable(this);
@@ -241,29 +297,13 @@ public class DiskStorageCache implements FileCache, DiskTrimmable {
    */
   @Override
   public @Nullable BinaryResource getResource(final CacheKey key) {
-    String resourceId = null;
     SettableCacheEvent cacheEvent = SettableCacheEvent.obtain().setCacheKey(key);
     try {
+      if (mConcurrentModeEnabled) {
+        return doGetResource(key, cacheEvent);
+      }
       synchronized (mLock) {
-        BinaryResource resource = null;
-        List<String> resourceIds = CacheKeyUtil.getResourceIds(key);
-        for (int i = 0; i < resourceIds.size(); i++) {
-          resourceId = resourceIds.get(i);
-          cacheEvent.setResourceId(resourceId);
-          resource = mStorage.getResource(resourceId, key);
-          if (resource != null) {
-            break;
-          }
-        }
-        if (resource == null) {
-          mCacheEventListener.onMiss(cacheEvent);
-          mResourceIndex.remove(resourceId);
-        } else {
-          Preconditions.checkNotNull(resourceId);
-          mCacheEventListener.onHit(cacheEvent);
-          mResourceIndex.add(resourceId);
-        }
-        return resource;
+        return doGetResource(key, cacheEvent);
       }
     } catch (IOException ioe) {
       mCacheErrorLogger.logError(
@@ -276,6 +316,30 @@ public class DiskStorageCache implements FileCache, DiskTrimmable {
     }
   }
 
+  private @Nullable BinaryResource doGetResource(CacheKey key, SettableCacheEvent cacheEvent)
+      throws IOException {
+    String resourceId = null;
+    BinaryResource resource = null;
+    List<String> resourceIds = getResourceIds(key);
+    for (int i = 0; i < resourceIds.size(); i++) {
+      resourceId = resourceIds.get(i);
+      cacheEvent.setResourceId(resourceId);
+      resource = mStorage.getResource(resourceId, key);
+      if (resource != null) {
+        break;
+      }
+    }
+    if (resource == null) {
+      mCacheEventListener.onMiss(cacheEvent);
+      mResourceIndex.remove(resourceId);
+    } else {
+      Preconditions.checkNotNull(resourceId);
+      mCacheEventListener.onHit(cacheEvent);
+      mResourceIndex.add(resourceId);
+    }
+    return resource;
+  }
+
   /**
    * Probes whether the object corresponding to the mKey is in the cache. Note that the act of
    * probing touches the item (if present in cache), thus changing its LRU timestamp.
@@ -289,8 +353,19 @@ public class DiskStorageCache implements FileCache, DiskTrimmable {
   public boolean probe(final CacheKey key) {
     String resourceId = null;
     try {
+      if (mConcurrentModeEnabled) {
+        List<String> resourceIds = getResourceIds(key);
+        for (int i = 0; i < resourceIds.size(); i++) {
+          resourceId = resourceIds.get(i);
+          if (mStorage.touch(resourceId, key)) {
+            mResourceIndex.add(resourceId);
+            return true;
+          }
+        }
+        return false;
+      }
       synchronized (mLock) {
-        List<String> resourceIds = CacheKeyUtil.getResourceIds(key);
+        List<String> resourceIds = getResourceIds(key);
         for (int i = 0; i < resourceIds.size(); i++) {
           resourceId = resourceIds.get(i);
           if (mStorage.touch(resourceId, key)) {
@@ -324,11 +399,16 @@ public class DiskStorageCache implements FileCache, DiskTrimmable {
   private BinaryResource endInsert(
       final DiskStorage.Inserter inserter, final CacheKey key, String resourceId)
       throws IOException {
-    synchronized (mLock) {
-      BinaryResource resource = inserter.commit(key);
-      mResourceIndex.add(resourceId);
-      mCacheStats.increment(resource.size(), 1);
-      return resource;
+    lockAgainstRecount();
+    try {
+      synchronized (getLockFor(resourceId)) {
+        BinaryResource resource = inserter.commit(key);
+        mResourceIndex.add(resourceId);
+        mCacheStats.increment(resource.size(), 1);
+        return resource;
+      }
+    } finally {
+      unlockAgainstRecount();
     }
   }
 
@@ -339,9 +419,13 @@ public class DiskStorageCache implements FileCache, DiskTrimmable {
     SettableCacheEvent cacheEvent = SettableCacheEvent.obtain().setCacheKey(key);
     mCacheEventListener.onWriteAttempt(cacheEvent);
     String resourceId;
-    synchronized (mLock) {
-      // for multiple resource ids associated with the same image, we only write one file
-      resourceId = CacheKeyUtil.getFirstResourceId(key);
+    if (mConcurrentModeEnabled) {
+      resourceId = CacheKeyUtil.getFirstResourceId(key, mResourceIdHasher);
+    } else {
+      synchronized (mLock) {
+        // for multiple resource ids associated with the same image, we only write one file
+        resourceId = CacheKeyUtil.getFirstResourceId(key, mResourceIdHasher);
+      }
     }
     cacheEvent.setResourceId(resourceId);
     try {
@@ -371,22 +455,79 @@ public class DiskStorageCache implements FileCache, DiskTrimmable {
 
   @Override
   public void remove(CacheKey key) {
+    if (mConcurrentModeEnabled) {
+      doRemove(key);
+      return;
+    }
     synchronized (mLock) {
-      try {
-        String resourceId = null;
-        List<String> resourceIds = CacheKeyUtil.getResourceIds(key);
-        for (int i = 0; i < resourceIds.size(); i++) {
-          resourceId = resourceIds.get(i);
+      doRemove(key);
+    }
+  }
+
+  private void doRemove(CacheKey key) {
+    lockAgainstRecount();
+    try {
+      String resourceId = null;
+      List<String> resourceIds = getResourceIds(key);
+      for (int i = 0; i < resourceIds.size(); i++) {
+        resourceId = resourceIds.get(i);
+        synchronized (getLockFor(resourceId)) {
           mStorage.remove(resourceId);
           mResourceIndex.remove(resourceId);
         }
-      } catch (IOException e) {
-        mCacheErrorLogger.logError(
-            CacheErrorLogger.CacheErrorCategory.DELETE_FILE, TAG, "delete: " + e.getMessage(), e);
       }
+    } catch (IOException e) {
+      mCacheErrorLogger.logError(
+          CacheErrorLogger.CacheErrorCategory.DELETE_FILE, TAG, "delete: " + e.getMessage(), e);
+    } finally {
+      unlockAgainstRecount();
+    }
+  }
+
+  /**
+   * Removes a listed entry while holding the lock for its resource id, so that a concurrent commit
+   * of the same id is not lost in concurrent mode.
+   */
+  private long removeEntry(DiskStorage.Entry entry) throws IOException {
+    synchronized (getLockFor(entry.getId())) {
+      long removedSize = mStorage.remove(entry);
+      mResourceIndex.remove(entry.getId());
+      return removedSize;
     }
   }
 
+  /**
+   * Returns all the resource ids the key may be stored under: the ones computed by the current
+   * hasher first, then the ones of the legacy hasher, if any.
+   */
+  private List<String> getResourceIds(CacheKey key) {
+    return CacheKeyUtil.getResourceIds(key, mResourceIdHasher, mLegacyResourceIdHasher);
+  }
+
+  /**
+   * In concurrent mode, keeps the recount from running until {@link #unlockAgainstRecount()}.
+   * Callers must not hold mLock, which the recount holds while waiting for them.
+   */
+  private void lockAgainstRecount() {
+    if (mConcurrentModeEnabled) {
+      mRecountLock.readLock().lock();
+    }
+  }
+
+  private void unlockAgainstRecount() {
+    if (mConcurrentModeEnabled) {
+      mRecountLock.readLock().unlock();
+    }
+  }
+
+  /** Returns the lock guarding commits and removals of the given resource id. */
+  private Object getLockFor(String resourceId) {
+    if (!mConcurrentModeEnabled) {
+      return mLock;
+    }
+    return mLockStripes[resourceId.hashCode() & (LOCK_STRIPE_COUNT - 1)];
+  }
+
   /**
    * Deletes old cache files.
    *
@@ -407,8 +548,7 @@ public class DiskStorageCache implements FileCache, DiskTrimmable {
           // entry age of zero is disallowed.
           long entryAgeMs = Math.max(1, Math.abs(now - entry.getTimestamp()));
           if (entryAgeMs >= cacheExpirationMs) {
-            long entryRemovedSize = mStorage.remove(entry);
-            mResourceIndex.remove(entry.getId());
+            long entryRemovedSize = removeEntry(entry);
             if (entryRemovedSize > 0) {
               itemsRemovedCount++;
               itemsRemovedSize += entryRemovedSize;
@@ -493,8 +633,7 @@ public class DiskStorageCache implements FileCache, DiskTrimmable {
       if (sumItemSizes > (deleteSize)) {
         break;
       }
-      long deletedSize = mStorage.remove(entry);
-      mResourceIndex.remove(entry.getId());
+      long deletedSize = removeEntry(entry);
       if (deletedSize > 0) {
         itemCount++;
         sumItemSizes += deletedSize;
@@ -557,6 +696,11 @@ public class DiskStorageCache implements FileCache, DiskTrimmable {
     }
   }
 
+  /** Returns the hasher computing the resource ids of the entries written to the cache. */
+  public ResourceIdHasher getResourceIdHasher() {
+    return mResourceIdHasher;
+  }
+
   public long getSize() {
     return mCacheStats.getSize();
   }
@@ -581,39 +725,50 @@ public class DiskStorageCache implements FileCache, DiskTrimmable {
 
   @Override
   public boolean hasKeySync(CacheKey key) {
+    if (mConcurrentModeEnabled) {
+      return isInIndex(key);
+    }
     synchronized (mLock) {
-      String resourceId = null;
-      List<String> resourceIds = CacheKeyUtil.getResourceIds(key);
-      for (int i = 0; i < resourceIds.size(); i++) {
-        resourceId = resourceIds.get(i);
-        if (mResourceIndex.contains(resourceId)) {
-          return true;
-        }
+      return isInIndex(key);
+    }
+  }
+
+  private boolean isInIndex(CacheKey key) {
+    String resourceId = null;
+    List<String> resourceIds = getResourceIds(key);
+    for (int i = 0; i < resourceIds.size(); i++) {
+      resourceId = resourceIds.get(i);
+      if (mResourceIndex.contains(resourceId)) {
+        return true;
       }
-      return false;
     }
+    return false;
   }
 
   @Override
   public boolean hasKey(final CacheKey key) {
+    if (mConcurrentModeEnabled) {
+      return isInIndex(key) || isInStorage(key);
+    }
     synchronized (mLock) {
-      if (hasKeySync(key)) {
-        return true;
-      }
-      try {
-        String resourceId = null;
-        List<String> resourceIds = CacheKeyUtil.getResourceIds(key);
-        for (int i = 0; i < resourceIds.size(); i++) {
-          resourceId = resourceIds.get(i);
-          if (mStorage.contains(resourceId, key)) {
-            mResourceIndex.add(resourceId);
-            return true;
-          }
+      return isInIndex(key) || isInStorage(key);
+    }
+  }
+
+  private boolean isInStorage(CacheKey key) {
+    try {
+      String resourceId = null;
+      List<String> resourceIds = getResourceIds(key);
+      for (int i = 0; i < resourceIds.size(); i++) {
+        resourceId = resourceIds.get(i);
+        if (mStorage.contains(resourceId, key)) {
+          mResourceIndex.add(resourceId);
+          return true;
         }
-        return false;
-      } catch (IOException e) {
-        return false;
       }
+      return false;
+    } catch (IOException e) {
+      return false;
     }
   }
 
@@ -672,6 +827,19 @@ public class DiskStorageCache implements FileCache, DiskTrimmable {
 
   @GuardedBy("mLock")
   private boolean maybeUpdateFileCacheSizeAndIndex() {
+    if (!mConcurrentModeEnabled) {
+      return updateFileCacheSizeAndIndex();
+    }
+    mRecountLock.writeLock().lock();
+    try {
+      return updateFileCacheSizeAndIndex();
+    } finally {
+      mRecountLock.writeLock().unlock();
+    }
+  }
+
+  @GuardedBy("mLock")
+  private boolean updateFileCacheSizeAndIndex() {
     long size = 0;
     int count = 0;
     boolean foundFutureTimestamp = false;
@@ -0,0 +1,473 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.cache.disk;
+
+import androidx.annotation.VisibleForTesting;
+import com.facebook.cache.common.CacheErrorLogger;
+import com.facebook.common.internal.Closeables;
+import com.facebook.common.internal.Preconditions;
+import com.facebook.infer.annotation.Nullsafe;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Append-only journal of the content files kept by {@link DefaultDiskStorage}.
+ *
+ * <p>Every commit, touch and removal is appended as a small record, so the whole index (ids, sizes
+ * and LRU timestamps) can be restored with a single sequential read instead of walking all the
+ * shard directories. When the number of records grows well beyond the number of live entries the
+ * journal is compacted by rewriting it from the in-memory state.
+ *
+ * <p>If the journal is missing or cannot be parsed, {@link #getRecords()} returns null and the
+ * storage is expected to fall back to a directory walk and {@link #rebuild(Collection)} the journal
+ * from its result. Changes recorded while the walk runs are kept aside and applied on top of it.
+ *
+ * <p>Touches are only kept in memory until the next insert or removal is appended or the records
+ * are listed again, as losing some of them only affects the eviction order.
+ *
+ * <p>A journal misses the changes made while the storage ran without it and the files deleted
+ * behind its back, so the storage still walks the directories now and then to rebuild it.
+ */
+@ThreadSafe
+@Nullsafe(Nullsafe.Mode.STRICT)
+class DiskStorageJournal {
+
+  private static final Class<?> TAG = DiskStorageJournal.class;
+
+  static final String JOURNAL_FILE_NAME = "journal";
+  static final String JOURNAL_TEMP_FILE_NAME = "journal.tmp";
+
+  private static final int MAGIC = 0x46524a4c; // "FRJL"
+  private static final int FORMAT_VERSION = 1;
+
+  private static final byte OP_INSERT = 1;
+  private static final byte OP_TOUCH = 2;
+  private static final byte OP_REMOVE = 3;
+
+  /** Journals with fewer records than this are never compacted. */
+  @VisibleForTesting static final int MIN_RECORDS_FOR_COMPACTION = 2000;
+
+  /** Compact once there are this many records per live entry. */
+  private static final int COMPACTION_RATIO = 2;
+
+  /** Touches kept in memory before they are appended on their own. */
+  @VisibleForTesting static final int MAX_PENDING_TOUCHES = 64;
+
+  /** A single live entry, as known by the journal. */
+  static class Record {
+    final String resourceId;
+    final long size;
+    long timestamp;
+
+    Record(String resourceId, long size, long timestamp) {
+      this.resourceId = resourceId;
+      this.size = size;
+      this.timestamp = timestamp;
+    }
+  }
+
+  /** A change recorded while a directory walk runs, to be applied on top of its result. */
+  private static class PendingChange {
+    final byte op;
+    final Record record;
+
+    PendingChange(byte op, Record record) {
+      this.op = op;
+      this.record = record;
+    }
+  }
+
+  private final File mJournalFile;
+  private final File mTempFile;
+  private final CacheErrorLogger mCacheErrorLogger;
+
+  @GuardedBy("this")
+  private @Nullable Map<String, Record> mRecords;
+
+  @GuardedBy("this")
+  private @Nullable DataOutputStream mOutput;
+
+  @GuardedBy("this")
+  private int mRecordCount;
+
+  /** Timestamps of the touches not appended yet, by resource id. */
+  @GuardedBy("this")
+  private final Map<String, Long> mPendingTouches = new LinkedHashMap<>();
+
+  /** Changes recorded since the oldest directory walk in progress started, null if none is. */
+  @GuardedBy("this")
+  private @Nullable List<PendingChange> mPendingChanges;
+
+  @GuardedBy("this")
+  private int mRebuildsInProgress;
+
+  /** Whether the journal was reset since the directory walks in progress started. */
+  @GuardedBy("this")
+  private boolean mRebuildDiscarded;
+
+  DiskStorageJournal(File directory, CacheErrorLogger cacheErrorLogger) {
+    mJournalFile = new File(directory, JOURNAL_FILE_NAME);
+    mTempFile = new File(directory, JOURNAL_TEMP_FILE_NAME);
+    mCacheErrorLogger = cacheErrorLogger;
+  }
+
+  /** @return true if the given file is owned by the journal and must not be purged */
+  boolean isJournalFile(File file) {
+    return mJournalFile.equals(file) || mTempFile.equals(file);
+  }
+
+  /**
+   * Returns a snapshot of the live records, replaying the journal file if this has not been done
+   * yet.
+   *
+   * @return the live records, or null if the journal is missing or corrupt
+   */
+  synchronized @Nullable List<Record> getRecords() {
+    if (mRecords == null && !replay()) {
+      return null;
+    }
+    flushTouches();
+    if (mRecords == null) {
+      // the touches could not be appended and the journal was dropped
+      return null;
+    }
+    Map<String, Record> records = Preconditions.checkNotNull(mRecords);
+    List<Record> result = new ArrayList<>(records.size());
+    for (Record record : records.values()) {
+      result.add(new Record(record.resourceId, record.size, record.timestamp));
+    }
+    return result;
+  }
+
+  /**
+   * Starts recording changes aside before a directory walk, so that the changes the walk misses
+   * are not lost. Must be followed by {@link #rebuild(Collection)} or {@link #cancelRebuild()}.
+   */
+  synchronized void beginRebuild() {
+    if (mRebuildsInProgress++ == 0) {
+      mPendingChanges = new ArrayList<>();
+    }
+  }
+
+  /**
+   * Replaces the journal with the entries found by the directory walk started after {@link
+   * #beginRebuild()}, plus the changes recorded since.
+   */
+  synchronized void rebuild(Collection<DiskStorage.Entry> entries) {
+    Map<String, Record> records = new LinkedHashMap<>();
+    for (DiskStorage.Entry entry : entries) {
+      records.put(
+          entry.getId(), new Record(entry.getId(), entry.getSize(), entry.getTimestamp()));
+    }
+    for (PendingChange change : Preconditions.checkNotNull(mPendingChanges)) {
+      Record record = change.record;
+      switch (change.op) {
+        case OP_INSERT:
+          records.put(record.resourceId, record);
+          break;
+        case OP_TOUCH:
+          Record touched = records.get(record.resourceId);
+          if (touched != null) {
+            touched.timestamp = record.timestamp;
+          }
+          break;
+        case OP_REMOVE:
+          records.remove(record.resourceId);
+          break;
+      }
+    }
+    boolean discarded = mRebuildDiscarded;
+    endRebuild();
+    if (discarded) {
+      return;
+    }
+    mRecords = records;
+    writeSnapshot();
+  }
+
+  /** Ends a rebuild whose directory walk did not complete. */
+  synchronized void cancelRebuild() {
+    endRebuild();
+  }
+
+  @GuardedBy("this")
+  private void endRebuild() {
+    if (--mRebuildsInProgress == 0) {
+      mPendingChanges = null;
+      mRebuildDiscarded = false;
+    }
+  }
+
+  @GuardedBy("this")
+  private void addPendingChange(byte op, String resourceId, long size, long timestamp) {
+    if (mPendingChanges != null) {
+      mPendingChanges.add(new PendingChange(op, new Record(resourceId, size, timestamp)));
+    }
+  }
+
+  synchronized void recordInsert(String resourceId, long size, long timestamp) {
+    addPendingChange(OP_INSERT, resourceId, size, timestamp);
+    if (mRecords == null) {
+      return;
+    }
+    mRecords.put(resourceId, new Record(resourceId, size, timestamp));
+    DataOutputStream output = openForAppend();
+    if (output == null) {
+      return;
+    }
+    try {
+      appendPendingTouches(output);
+      output.writeByte(OP_INSERT);
+      output.writeUTF(resourceId);
+      output.writeLong(size);
+      output.writeLong(timestamp);
+      onRecordAppended(output);
+    } catch (IOException ioe) {
+      onWriteFailed("recordInsert", ioe);
+    }
+  }
+
+  synchronized void recordTouch(String resourceId, long timestamp) {
+    addPendingChange(OP_TOUCH, resourceId, 0, timestamp);
+    if (mRecords == null) {
+      return;
+    }
+    Record record = mRecords.get(resourceId);
+    if (record == null) {
+      return;
+    }
+    record.timestamp = timestamp;
+    mPendingTouches.put(resourceId, timestamp);
+    if (mPendingTouches.size() >= MAX_PENDING_TOUCHES) {
+      flushTouches();
+    }
+  }
+
+  /** Appends the touches kept in memory so far. */
+  synchronized void flushTouches() {
+    if (mPendingTouches.isEmpty()) {
+      return;
+    }
+    DataOutputStream output = openForAppend();
+    if (output == null) {
+      return;
+    }
+    try {
+      appendPendingTouches(output);
+      onRecordsAppended(output);
+    } catch (IOException ioe) {
+      onWriteFailed("flushTouches", ioe);
+    }
+  }
+
+  synchronized void recordRemove(String resourceId) {
+    addPendingChange(OP_REMOVE, resourceId, 0, 0);
+    if (mRecords == null || mRecords.remove(resourceId) == null) {
+      return;
+    }
+    DataOutputStream output = openForAppend();
+    if (output == null) {
+      return;
+    }
+    try {
+      appendPendingTouches(output);
+      output.writeByte(OP_REMOVE);
+      output.writeUTF(resourceId);
+      onRecordAppended(output);
+    } catch (IOException ioe) {
+      onWriteFailed("recordRemove", ioe);
+    }
+  }
+
+  /** Drops the journal file. The next {@link #getRecords()} will report it as missing. */
+  synchronized void reset() {
+    closeOutput();
+    // walks in progress may have listed files that are gone or missed changes that were not kept
+    mRebuildDiscarded = mRebuildsInProgress > 0;
+    mRecords = null;
+    mRecordCount = 0;
+    mPendingTouches.clear();
+    mJournalFile.delete();
+    mTempFile.delete();
+  }
+
+  @GuardedBy("this")
+  private boolean replay() {
+    if (!mJournalFile.exists()) {
+      return false;
+    }
+    Map<String, Record> records = new LinkedHashMap<>();
+    int recordCount = 0;
+    DataInputStream input = null;
+    try {
+      input = new DataInputStream(new BufferedInputStream(new FileInputStream(mJournalFile)));
+      if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION) {
+        throw new IOException("Unknown journal header");
+      }
+      int op;
+      while ((op = input.read()) != -1) {
+        String resourceId = input.readUTF();
+        switch (op) {
+          case OP_INSERT:
+            long size = input.readLong();
+            long timestamp = input.readLong();
+            if (size < 0) {
+              throw new IOException("Invalid size " + size + " for " + resourceId);
+            }
+            records.put(resourceId, new Record(resourceId, size, timestamp));
+            break;
+          case OP_TOUCH:
+            long touchTimestamp = input.readLong();
+            Record record = records.get(resourceId);
+            if (record != null) {
+              record.timestamp = touchTimestamp;
+            }
+            break;
+          case OP_REMOVE:
+            records.remove(resourceId);
+            break;
+          default:
+            throw new IOException("Unknown journal op " + op);
+        }
+        recordCount++;
+      }
+    } catch (IOException ioe) {
+      // includes EOFException for a record cut short when the process died while appending
+      onCorrupt(ioe);
+      return false;
+    } finally {
+      Closeables.closeQuietly(input);
+    }
+    mRecords = records;
+    mRecordCount = recordCount;
+    return true;
+  }
+
+  @GuardedBy("this")
+  private void onCorrupt(IOException ioe) {
+    mCacheErrorLogger.logError(
+        CacheErrorLogger.CacheErrorCategory.READ_INVALID_ENTRY,
+        TAG,
+        "journal is corrupt, falling back to directory walk",
+        ioe);
+    reset();
+  }
+
+  @GuardedBy("this")
+  private @Nullable DataOutputStream openForAppend() {
+    if (mOutput == null) {
+      try {
+        mOutput =
+            new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(mJournalFile, true)));
+      } catch (FileNotFoundException fnfe) {
+        onWriteFailed("openForAppend", fnfe);
+      }
+    }
+    return mOutput;
+  }
+
+  @GuardedBy("this")
+  private void appendPendingTouches(DataOutputStream output) throws IOException {
+    for (Map.Entry<String, Long> touch : mPendingTouches.entrySet()) {
+      output.writeByte(OP_TOUCH);
+      output.writeUTF(touch.getKey());
+      output.writeLong(touch.getValue());
+      mRecordCount++;
+    }
+    mPendingTouches.clear();
+  }
+
+  @GuardedBy("this")
+  private void onRecordAppended(DataOutputStream output) throws IOException {
+    mRecordCount++;
+    onRecordsAppended(output);
+  }
+
+  @GuardedBy("this")
+  private void onRecordsAppended(DataOutputStream output) throws IOException {
+    // flush each write so that a crash can only ever lose a partial trailing record
+    output.flush();
+    Map<String, Record> records = Preconditions.checkNotNull(mRecords);
+    if (mRecordCount > MIN_RECORDS_FOR_COMPACTION
+        && mRecordCount > COMPACTION_RATIO * records.size()) {
+      writeSnapshot();
+    }
+  }
+
+  /**
+   * Writes the in-memory records to a temporary file and swaps it in. On failure the journal is
+   * dropped, which only means the next startup will walk the directories.
+   */
+  @GuardedBy("this")
+  private void writeSnapshot() {
+    closeOutput();
+    // the snapshot carries the timestamps of the pending touches
+    mPendingTouches.clear();
+    Map<String, Record> records = Preconditions.checkNotNull(mRecords);
+    DataOutputStream output = null;
+    try {
+      output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mTempFile)));
+      output.writeInt(MAGIC);
+      output.writeInt(FORMAT_VERSION);
+      for (Record record : records.values()) {
+        output.writeByte(OP_INSERT);
+        output.writeUTF(record.resourceId);
+        output.writeLong(record.size);
+        output.writeLong(record.timestamp);
+      }
+      output.close();
+      output = null;
+      if (!mTempFile.renameTo(mJournalFile)) {
+        throw new IOException("Could not rename " + mTempFile + " to " + mJournalFile);
+      }
+      mRecordCount = records.size();
+    } catch (IOException ioe) {
+      closeOutputQuietly(output);
+      onWriteFailed("writeSnapshot", ioe);
+    }
+  }
+
+  @GuardedBy("this")
+  private void onWriteFailed(String message, IOException ioe) {
+    mCacheErrorLogger.logError(
+        CacheErrorLogger.CacheErrorCategory.WRITE_UPDATE_FILE_NOT_FOUND, TAG, message, ioe);
+    // a journal that misses records is worse than none at all
+    reset();
+  }
+
+  @GuardedBy("this")
+  private void closeOutput() {
+    closeOutputQuietly(mOutput);
+    mOutput = null;
+  }
+
+  private static void closeOutputQuietly(@Nullable Closeable closeable) {
+    try {
+      Closeables.close(closeable, true);
+    } catch (IOException ioe) {
+      // swallowed by Closeables
+    }
+  }
+}
@@ -30,6 +30,7 @@ public class DynamicDefaultDiskStorage implements DiskStorage {
   private final Supplier<File> mBaseDirectoryPathSupplier;
   private final String mBaseDirectoryName;
   private final CacheErrorLogger mCacheErrorLogger;
+  private final boolean mJournalEnabled;
 
   @VisibleForTesting volatile State mCurrentState;
 
@@ -51,8 +52,18 @@ public class DynamicDefaultDiskStorage implements DiskStorage {
       Supplier<File> baseDirectoryPathSupplier,
       String baseDirectoryName,
       CacheErrorLogger cacheErrorLogger) {
+    this(version, baseDirectoryPathSupplier, baseDirectoryName, cacheErrorLogger, false);
+  }
+
+  public DynamicDefaultDiskStorage(
+      int version,
+      Supplier<File> baseDirectoryPathSupplier,
+      String baseDirectoryName,
+      CacheErrorLogger cacheErrorLogger,
+      boolean journalEnabled) {
     mVersion = version;
     mCacheErrorLogger = cacheErrorLogger;
+    mJournalEnabled = journalEnabled;
     mBaseDirectoryPathSupplier = baseDirectoryPathSupplier;
     mBaseDirectoryName = baseDirectoryName;
     mCurrentState = new State(null, null);
@@ -178,7 +189,8 @@ public class DynamicDefaultDiskStorage implements DiskStorage {
   private void createStorage() throws IOException {
     File rootDirectory = new File(mBaseDirectoryPathSupplier.get(), mBaseDirectoryName);
     createRootDirectoryIfNecessary(rootDirectory);
-    DiskStorage storage = new DefaultDiskStorage(rootDirectory, mVersion, mCacheErrorLogger);
+    DiskStorage storage =
+        new DefaultDiskStorage(rootDirectory, mVersion, mCacheErrorLogger, mJournalEnabled);
     mCurrentState = new State(rootDirectory, storage);
   }
 
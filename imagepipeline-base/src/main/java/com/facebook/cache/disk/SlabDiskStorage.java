@@ -0,0 +1,863 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.cache.disk;
+
+import androidx.annotation.VisibleForTesting;
+import com.facebook.binaryresource.BinaryResource;
+import com.facebook.binaryresource.ByteBufferBinaryResource;
+import com.facebook.cache.common.CacheErrorLogger;
+import com.facebook.cache.common.WriterCallback;
+import com.facebook.common.file.FileTree;
+import com.facebook.common.file.FileUtils;
+import com.facebook.common.internal.Closeables;
+import com.facebook.common.internal.CountingOutputStream;
+import com.facebook.common.internal.Preconditions;
+import com.facebook.common.internal.Supplier;
+import com.facebook.common.time.Clock;
+import com.facebook.common.time.SystemClock;
+import com.facebook.common.util.ByteConstants;
+import com.facebook.infer.annotation.Nullsafe;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A {@link DiskStorage} that packs small entries into a few large, memory-mapped slab files and
+ * delegates larger ones to another storage (usually a {@link DynamicDefaultDiskStorage}).
+ *
+ * <p>Small entries cost neither an inode nor a temp file and a rename, and are read through a slice
+ * of the mapped slab without any copy, see {@link ByteBufferBinaryResource}.
+ *
+ * <p>Each record in a slab is laid out as: magic, payload length, timestamp, id length, UTF-8 id,
+ * payload. A record is written flagged as removed and only gets its magic once complete, so a
+ * record interrupted by the process dying is skipped on reload. The slabs are never forced to disk
+ * though, and the kernel writes mapped pages back in no particular order, so records are not safe
+ * from a power loss. Removed records are only flagged; slabs that become mostly dead are compacted
+ * in {@link #purgeUnexpectedResources()}, which {@link DiskStorageCache} calls after each eviction.
+ *
+ * <p>Since the size of an entry is only known once its {@link WriterCallback} has run, the first
+ * bytes of each entry are buffered in memory. Entries that outgrow a slab entry are streamed to the
+ * other storage from there.
+ *
+ * <p>The lock only guards the index and the allocation of space in the slabs. Payloads are copied
+ * into the space reserved for them and read through slices of the mappings without holding it.
+ */
+@ThreadSafe
+@Nullsafe(Nullsafe.Mode.STRICT)
+public class SlabDiskStorage implements DiskStorage {
+
+  private static final Class<?> TAG = SlabDiskStorage.class;
+
+  /** Default maximum size of an entry stored in a slab. */
+  public static final int DEFAULT_MAX_SLAB_ENTRY_SIZE = 24 * ByteConstants.KB;
+
+  @VisibleForTesting static final int DEFAULT_SLAB_SIZE = 4 * ByteConstants.MB;
+
+  private static final String SLAB_FILE_PREFIX = "slab_";
+  private static final String SLAB_FILE_EXTENSION = ".slb";
+
+  private static final int RECORD_MAGIC = 0x534c4252; // "SLBR"
+  private static final int REMOVED_RECORD_MAGIC = 0x534c4244; // "SLBD"
+  // magic, payload length, timestamp, id length
+  private static final int RECORD_HEADER_SIZE = 4 + 4 + 8 + 2;
+  private static final int TIMESTAMP_OFFSET = 8;
+
+  /** Initial capacity of the buffer of an entry being written. */
+  private static final int INITIAL_BUFFER_SIZE = 4 * ByteConstants.KB;
+
+  /** Slabs with less live data than this ratio get compacted. */
+  private static final float COMPACTION_LIVE_RATIO = 0.5f;
+
+  private final DiskStorage mLargeEntryStorage;
+  private final Supplier<File> mSlabDirectorySupplier;
+  private final int mVersion;
+  private final int mMaxSlabEntrySize;
+  private final int mSlabSize;
+  private final CacheErrorLogger mCacheErrorLogger;
+  private final Clock mClock;
+  private final Object mLock = new Object();
+
+  @GuardedBy("mLock")
+  private final Map<String, SlabEntry> mIndex = new HashMap<>();
+
+  @GuardedBy("mLock")
+  private final TreeMap<Integer, Slab> mSlabs = new TreeMap<>();
+
+  /**
+   * Ids of the entries the other storage may hold, complete once {@link #getEntries()} has listed
+   * it. A small entry is only removed from the other storage when its id is in there.
+   */
+  @GuardedBy("mLock")
+  private final Set<String> mLargeEntryIds = new HashSet<>();
+
+  @GuardedBy("mLock")
+  private boolean mLargeEntryIdsKnown;
+
+  @GuardedBy("mLock")
+  private @Nullable File mVersionDirectory;
+
+  @GuardedBy("mLock")
+  private @Nullable Slab mActiveSlab;
+
+  @GuardedBy("mLock")
+  private int mNextSlabNumber;
+
+  /**
+   * @param largeEntryStorage storage for entries above maxSlabEntrySize
+   * @param slabDirectorySupplier directory holding the slab files, must not be shared with the
+   *     large entry storage as it purges unknown files
+   * @param version version of the content, slabs of other versions are deleted
+   * @param maxSlabEntrySize entries up to this size are stored in slabs
+   * @param cacheErrorLogger logger for various events
+   */
+  public SlabDiskStorage(
+      DiskStorage largeEntryStorage,
+      Supplier<File> slabDirectorySupplier,
+      int version,
+      int maxSlabEntrySize,
+      CacheErrorLogger cacheErrorLogger) {
+    this(
+        largeEntryStorage,
+        slabDirectorySupplier,
+        version,
+        maxSlabEntrySize,
+        DEFAULT_SLAB_SIZE,
+        cacheErrorLogger);
+  }
+
+  @VisibleForTesting
+  SlabDiskStorage(
+      DiskStorage largeEntryStorage,
+      Supplier<File> slabDirectorySupplier,
+      int version,
+      int maxSlabEntrySize,
+      int slabSize,
+      CacheErrorLogger cacheErrorLogger) {
+    Preconditions.checkArgument(maxSlabEntrySize + RECORD_HEADER_SIZE < slabSize);
+    mLargeEntryStorage = largeEntryStorage;
+    mSlabDirectorySupplier = slabDirectorySupplier;
+    mVersion = version;
+    mMaxSlabEntrySize = maxSlabEntrySize;
+    mSlabSize = slabSize;
+    mCacheErrorLogger = cacheErrorLogger;
+    mClock = SystemClock.get();
+  }
+
+  @Override
+  public boolean isEnabled() {
+    return mLargeEntryStorage.isEnabled();
+  }
+
+  @Override
+  public boolean isExternal() {
+    return mLargeEntryStorage.isExternal();
+  }
+
+  @Override
+  public String getStorageName() {
+    return mLargeEntryStorage.getStorageName();
+  }
+
+  @Override
+  public @Nullable BinaryResource getResource(String resourceId, Object debugInfo)
+      throws IOException {
+    SlabEntry entry;
+    synchronized (mLock) {
+      entry = getIndex().get(resourceId);
+      if (entry != null) {
+        entry = touchEntry(entry);
+      }
+    }
+    if (entry != null) {
+      entry.writeTimestamp();
+      return entry.getResource();
+    }
+    return mLargeEntryStorage.getResource(resourceId, debugInfo);
+  }
+
+  @Override
+  public boolean contains(String resourceId, Object debugInfo) throws IOException {
+    synchronized (mLock) {
+      if (getIndex().containsKey(resourceId)) {
+        return true;
+      }
+    }
+    return mLargeEntryStorage.contains(resourceId, debugInfo);
+  }
+
+  @Override
+  public boolean touch(String resourceId, Object debugInfo) throws IOException {
+    SlabEntry entry;
+    synchronized (mLock) {
+      entry = getIndex().get(resourceId);
+      if (entry != null) {
+        entry = touchEntry(entry);
+      }
+    }
+    if (entry != null) {
+      entry.writeTimestamp();
+      return true;
+    }
+    return mLargeEntryStorage.touch(resourceId, debugInfo);
+  }
+
+  @Override
+  public void purgeUnexpectedResources() {
+    mLargeEntryStorage.purgeUnexpectedResources();
+    synchronized (mLock) {
+      try {
+        getIndex();
+        compactSlabs();
+      } catch (IOException ioe) {
+        mCacheErrorLogger.logError(
+            CacheErrorLogger.CacheErrorCategory.EVICTION, TAG, "compactSlabs", ioe);
+      }
+    }
+  }
+
+  @Override
+  public Inserter insert(String resourceId, Object debugInfo) throws IOException {
+    return new InserterImpl(resourceId);
+  }
+
+  @Override
+  public Collection<Entry> getEntries() throws IOException {
+    Collection<Entry> largeEntries = mLargeEntryStorage.getEntries();
+    synchronized (mLock) {
+      // ids committed to the other storage while it was listed were added to the set on commit
+      for (Entry entry : largeEntries) {
+        mLargeEntryIds.add(entry.getId());
+      }
+      mLargeEntryIdsKnown = true;
+      Map<String, SlabEntry> index = getIndex();
+      List<Entry> entries = new ArrayList<>(largeEntries.size() + index.size());
+      entries.addAll(largeEntries);
+      entries.addAll(index.values());
+      return Collections.unmodifiableList(entries);
+    }
+  }
+
+  @Override
+  public long remove(Entry entry) throws IOException {
+    if (entry instanceof SlabEntry) {
+      synchronized (mLock) {
+        SlabEntry slabEntry = (SlabEntry) entry;
+        SlabEntry current = getIndex().get(slabEntry.getId());
+        if (current == null || !current.isSameRecord(slabEntry)) {
+          return 0;
+        }
+        return removeFromSlab(current);
+      }
+    }
+    long size = mLargeEntryStorage.remove(entry);
+    synchronized (mLock) {
+      mLargeEntryIds.remove(entry.getId());
+    }
+    return size;
+  }
+
+  @Override
+  public long remove(String resourceId) throws IOException {
+    synchronized (mLock) {
+      SlabEntry entry = getIndex().get(resourceId);
+      if (entry != null) {
+        return removeFromSlab(entry);
+      }
+    }
+    long size = mLargeEntryStorage.remove(resourceId);
+    synchronized (mLock) {
+      mLargeEntryIds.remove(resourceId);
+    }
+    return size;
+  }
+
+  @Override
+  public void clearAll() throws IOException {
+    mLargeEntryStorage.clearAll();
+    synchronized (mLock) {
+      mLargeEntryIds.clear();
+      mLargeEntryIdsKnown = true;
+      mIndex.clear();
+      mSlabs.clear();
+      mActiveSlab = null;
+      if (mVersionDirectory != null) {
+        FileTree.deleteContents(mVersionDirectory);
+      }
+    }
+  }
+
+  @Override
+  public DiskDumpInfo getDumpInfo() throws IOException {
+    DiskDumpInfo dumpInfo = mLargeEntryStorage.getDumpInfo();
+    synchronized (mLock) {
+      for (SlabEntry entry : getIndex().values()) {
+        String path = entry.mSlab.mFile.getPath() + "@" + entry.mRecordOffset;
+        dumpInfo.entries.add(new DiskDumpInfoEntry(entry.getId(), path, "slab", entry.mSize, ""));
+        Integer typeCount = dumpInfo.typeCounts.get("slab");
+        dumpInfo.typeCounts.put("slab", typeCount == null ? 1 : typeCount + 1);
+      }
+    }
+    return dumpInfo;
+  }
+
+  /** Loads the slabs the first time the storage is accessed. */
+  @GuardedBy("mLock")
+  private Map<String, SlabEntry> getIndex() throws IOException {
+    if (mVersionDirectory == null) {
+      File slabDirectory = mSlabDirectorySupplier.get();
+      File versionDirectory =
+          new File(slabDirectory, String.format((Locale) null, "v%d", mVersion));
+      deleteOtherVersions(slabDirectory, versionDirectory);
+      FileUtils.mkdirs(versionDirectory);
+      mVersionDirectory = versionDirectory;
+      loadSlabs(versionDirectory);
+    }
+    return mIndex;
+  }
+
+  private static void deleteOtherVersions(File slabDirectory, File versionDirectory) {
+    File[] files = slabDirectory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (!file.equals(versionDirectory)) {
+        FileTree.deleteRecursively(file);
+      }
+    }
+  }
+
+  @GuardedBy("mLock")
+  private void loadSlabs(File versionDirectory) {
+    File[] files = versionDirectory.listFiles();
+    if (files == null) {
+      return;
+    }
+    TreeMap<Integer, File> slabFiles = new TreeMap<>();
+    for (File file : files) {
+      int number = getSlabNumber(file);
+      if (number < 0) {
+        file.delete();
+      } else {
+        slabFiles.put(number, file);
+      }
+    }
+    // slabs are scanned oldest first, so a later record for the same id wins
+    for (Map.Entry<Integer, File> slabFile : slabFiles.entrySet()) {
+      try {
+        Slab slab = mapSlab(slabFile.getKey(), slabFile.getValue());
+        scanSlab(slab);
+        mSlabs.put(slab.mNumber, slab);
+        mActiveSlab = slab;
+        mNextSlabNumber = slab.mNumber + 1;
+      } catch (IOException ioe) {
+        mCacheErrorLogger.logError(
+            CacheErrorLogger.CacheErrorCategory.READ_FILE, TAG, "loadSlabs", ioe);
+        slabFile.getValue().delete();
+      }
+    }
+  }
+
+  @GuardedBy("mLock")
+  private void scanSlab(Slab slab) throws UnsupportedEncodingException {
+    ByteBuffer buffer = slab.mBuffer;
+    int position = 0;
+    while (position + RECORD_HEADER_SIZE <= mSlabSize) {
+      int magic = buffer.getInt(position);
+      if (magic != RECORD_MAGIC && magic != REMOVED_RECORD_MAGIC) {
+        break;
+      }
+      int size = buffer.getInt(position + 4);
+      long timestamp = buffer.getLong(position + TIMESTAMP_OFFSET);
+      int idLength = buffer.getShort(position + 16) & 0xFFFF;
+      int payloadOffset = position + RECORD_HEADER_SIZE + idLength;
+      int recordEnd = payloadOffset + size;
+      if (size < 0 || recordEnd > mSlabSize) {
+        break;
+      }
+      if (magic == RECORD_MAGIC) {
+        byte[] idBytes = new byte[idLength];
+        ByteBuffer idBuffer = buffer.duplicate();
+        idBuffer.position(position + RECORD_HEADER_SIZE);
+        idBuffer.get(idBytes);
+        String resourceId = new String(idBytes, "UTF-8");
+        SlabEntry previous = mIndex.get(resourceId);
+        if (previous != null) {
+          removeFromSlab(previous);
+        }
+        mIndex.put(
+            resourceId, new SlabEntry(resourceId, slab, position, payloadOffset, size, timestamp));
+        slab.mLiveBytes += recordEnd - position;
+      }
+      position = recordEnd;
+    }
+    slab.mWritePosition = position;
+  }
+
+  private static int getSlabNumber(File file) {
+    String name = file.getName();
+    if (!name.startsWith(SLAB_FILE_PREFIX) || !name.endsWith(SLAB_FILE_EXTENSION)) {
+      return -1;
+    }
+    try {
+      return Integer.parseInt(
+          name.substring(SLAB_FILE_PREFIX.length(), name.length() - SLAB_FILE_EXTENSION.length()));
+    } catch (NumberFormatException nfe) {
+      return -1;
+    }
+  }
+
+  private Slab mapSlab(int number, File file) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      if (randomAccessFile.length() != mSlabSize) {
+        randomAccessFile.setLength(mSlabSize);
+      }
+      // the mapping stays valid after the file is closed, and even after it is deleted
+      MappedByteBuffer buffer =
+          randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSlabSize);
+      return new Slab(number, file, buffer);
+    } finally {
+      randomAccessFile.close();
+    }
+  }
+
+  @GuardedBy("mLock")
+  private SlabEntry append(String resourceId, byte[] data, int offset, int size, long timestamp)
+      throws IOException {
+    SlabEntry entry = reserve(resourceId, size, timestamp);
+    boolean written = false;
+    try {
+      entry.writePayload(data, offset);
+      written = true;
+    } finally {
+      if (!written) {
+        abandon(entry);
+      }
+    }
+    publish(entry);
+    return entry;
+  }
+
+  /**
+   * Reserves the space of a record and writes its header, flagged as removed until {@link
+   * #publish(SlabEntry)} is called. Slabs with reserved records are not compacted.
+   */
+  @GuardedBy("mLock")
+  private SlabEntry reserve(String resourceId, int size, long timestamp) throws IOException {
+    byte[] idBytes = resourceId.getBytes("UTF-8");
+    int recordSize = RECORD_HEADER_SIZE + idBytes.length + size;
+    Slab slab = mActiveSlab;
+    if (slab == null || slab.mWritePosition + recordSize > mSlabSize) {
+      slab = createSlab();
+    }
+    int position = slab.mWritePosition;
+    ByteBuffer buffer = slab.mBuffer.duplicate();
+    buffer.putInt(position + 4, size);
+    buffer.putLong(position + TIMESTAMP_OFFSET, timestamp);
+    buffer.putShort(position + 16, (short) idBytes.length);
+    buffer.position(position + RECORD_HEADER_SIZE);
+    buffer.put(idBytes);
+    // written last, so that a header the process did not finish writing ends the scan on reload
+    buffer.putInt(position, REMOVED_RECORD_MAGIC);
+    slab.mWritePosition = position + recordSize;
+    slab.mReservedRecords++;
+    return new SlabEntry(resourceId, slab, position, buffer.position(), size, timestamp);
+  }
+
+  /** Gives up on a reserved record, which stays flagged as removed. */
+  @GuardedBy("mLock")
+  private void abandon(SlabEntry entry) {
+    entry.mSlab.mReservedRecords--;
+  }
+
+  /** Makes a record whose payload was written visible, replacing any previous one. */
+  @GuardedBy("mLock")
+  private void publish(SlabEntry entry) {
+    Slab slab = entry.mSlab;
+    slab.mReservedRecords--;
+    if (mSlabs.get(slab.mNumber) != slab) {
+      // the storage was cleared while the payload was written
+      return;
+    }
+    slab.mBuffer.putInt(entry.mRecordOffset, RECORD_MAGIC);
+    slab.mLiveBytes += entry.getRecordSize();
+    SlabEntry previous = mIndex.put(entry.getId(), entry);
+    if (previous != null) {
+      removeFromSlab(previous);
+    }
+  }
+
+  @GuardedBy("mLock")
+  private Slab createSlab() throws IOException {
+    File versionDirectory = Preconditions.checkNotNull(mVersionDirectory);
+    if (!versionDirectory.exists()) {
+      FileUtils.mkdirs(versionDirectory);
+    }
+    int number = mNextSlabNumber++;
+    File file =
+        new File(
+            versionDirectory,
+            String.format((Locale) null, "%s%d%s", SLAB_FILE_PREFIX, number, SLAB_FILE_EXTENSION));
+    Slab slab = mapSlab(number, file);
+    mSlabs.put(number, slab);
+    mActiveSlab = slab;
+    return slab;
+  }
+
+  /** Updates the timestamp in the index, the caller writes it to the slab once unlocked. */
+  @GuardedBy("mLock")
+  private SlabEntry touchEntry(SlabEntry entry) {
+    // entries handed out by getEntries() must keep their timestamp, so replace rather than update
+    SlabEntry touched = entry.withTimestamp(mClock.now());
+    mIndex.put(entry.getId(), touched);
+    return touched;
+  }
+
+  @GuardedBy("mLock")
+  private long removeFromSlab(SlabEntry entry) {
+    entry.mSlab.mBuffer.putInt(entry.mRecordOffset, REMOVED_RECORD_MAGIC);
+    entry.mSlab.mLiveBytes -= entry.getRecordSize();
+    if (mIndex.get(entry.getId()) == entry) {
+      mIndex.remove(entry.getId());
+    }
+    return entry.mSize;
+  }
+
+  /**
+   * Moves the live records of mostly dead slabs to the active slab and deletes them. Resources
+   * already handed out keep reading from the old mapping, which outlives the deleted file.
+   */
+  @GuardedBy("mLock")
+  private void compactSlabs() throws IOException {
+    List<Slab> sparseSlabs = new ArrayList<>();
+    for (Slab slab : mSlabs.values()) {
+      if (slab != mActiveSlab
+          && slab.mReservedRecords == 0
+          && slab.mLiveBytes < mSlabSize * COMPACTION_LIVE_RATIO) {
+        sparseSlabs.add(slab);
+      }
+    }
+    for (Slab slab : sparseSlabs) {
+      List<SlabEntry> liveEntries = new ArrayList<>();
+      for (SlabEntry entry : mIndex.values()) {
+        if (entry.mSlab == slab) {
+          liveEntries.add(entry);
+        }
+      }
+      for (SlabEntry entry : liveEntries) {
+        byte[] data = entry.getResource().read();
+        removeFromSlab(entry);
+        append(entry.getId(), data, 0, data.length, entry.getTimestamp());
+      }
+      mSlabs.remove(slab.mNumber);
+      if (!slab.mFile.delete()) {
+        mCacheErrorLogger.logError(
+            CacheErrorLogger.CacheErrorCategory.DELETE_FILE,
+            TAG,
+            "compactSlabs: could not delete " + slab.mFile,
+            null);
+      }
+    }
+  }
+
+  /** A memory-mapped slab file. */
+  private static class Slab {
+    final int mNumber;
+    final File mFile;
+    final MappedByteBuffer mBuffer;
+    int mWritePosition;
+    long mLiveBytes;
+    // records whose payload is still being written
+    int mReservedRecords;
+
+    Slab(int number, File file, MappedByteBuffer buffer) {
+      mNumber = number;
+      mFile = file;
+      mBuffer = buffer;
+    }
+  }
+
+  /** An entry stored in a slab. Immutable, touching an entry replaces it in the index. */
+  @VisibleForTesting
+  static class SlabEntry implements Entry {
+    private final String mId;
+    private final Slab mSlab;
+    private final int mRecordOffset;
+    private final int mPayloadOffset;
+    private final int mSize;
+    private final long mTimestamp;
+
+    private SlabEntry(
+        String id, Slab slab, int recordOffset, int payloadOffset, int size, long timestamp) {
+      mId = id;
+      mSlab = slab;
+      mRecordOffset = recordOffset;
+      mPayloadOffset = payloadOffset;
+      mSize = size;
+      mTimestamp = timestamp;
+    }
+
+    @Override
+    public String getId() {
+      return mId;
+    }
+
+    @Override
+    public long getTimestamp() {
+      return mTimestamp;
+    }
+
+    @Override
+    public long getSize() {
+      return mSize;
+    }
+
+    @Override
+    public ByteBufferBinaryResource getResource() {
+      ByteBuffer buffer = mSlab.mBuffer.duplicate();
+      buffer.limit(mPayloadOffset + mSize);
+      buffer.position(mPayloadOffset);
+      return new ByteBufferBinaryResource(buffer);
+    }
+
+    /** Copies the payload into the space reserved for it. */
+    private void writePayload(byte[] data, int offset) {
+      ByteBuffer buffer = mSlab.mBuffer.duplicate();
+      buffer.position(mPayloadOffset);
+      buffer.put(data, offset, mSize);
+    }
+
+    private void writeTimestamp() {
+      mSlab.mBuffer.putLong(mRecordOffset + TIMESTAMP_OFFSET, mTimestamp);
+    }
+
+    private int getRecordSize() {
+      return mPayloadOffset + mSize - mRecordOffset;
+    }
+
+    private boolean isSameRecord(SlabEntry other) {
+      return mSlab == other.mSlab && mRecordOffset == other.mRecordOffset;
+    }
+
+    private SlabEntry withTimestamp(long timestamp) {
+      return new SlabEntry(mId, mSlab, mRecordOffset, mPayloadOffset, mSize, timestamp);
+    }
+  }
+
+  /**
+   * Buffers the content in memory up to the slab entry size, then either stores it in a slab or
+   * streams it to the other storage.
+   */
+  @VisibleForTesting
+  class InserterImpl implements Inserter {
+
+    private final String mResourceId;
+    private @Nullable ContentOutputStream mContent;
+    private @Nullable Inserter mLargeEntryInserter;
+
+    InserterImpl(String resourceId) {
+      mResourceId = resourceId;
+    }
+
+    @Override
+    public void writeData(WriterCallback callback, Object debugInfo) throws IOException {
+      ContentOutputStream content = new ContentOutputStream(debugInfo);
+      boolean written = false;
+      try {
+        callback.write(content);
+        content.finish();
+        written = true;
+      } finally {
+        if (!written) {
+          content.abort();
+        }
+      }
+      mContent = content;
+    }
+
+    @Override
+    public BinaryResource commit(Object debugInfo) throws IOException {
+      return commit(debugInfo, mClock.now());
+    }
+
+    @Override
+    public BinaryResource commit(Object debugInfo, long time) throws IOException {
+      Inserter largeEntryInserter = mLargeEntryInserter;
+      if (largeEntryInserter != null) {
+        synchronized (mLock) {
+          SlabEntry previous = getIndex().get(mResourceId);
+          if (previous != null) {
+            removeFromSlab(previous);
+          }
+        }
+        BinaryResource resource = largeEntryInserter.commit(debugInfo, time);
+        synchronized (mLock) {
+          mLargeEntryIds.add(mResourceId);
+        }
+        return resource;
+      }
+      ContentOutputStream content = Preconditions.checkNotNull(mContent);
+      SlabEntry entry;
+      synchronized (mLock) {
+        getIndex();
+        entry = reserve(mResourceId, content.size(), time);
+      }
+      boolean written = false;
+      try {
+        entry.writePayload(content.getBuffer(), 0);
+        written = true;
+      } finally {
+        if (!written) {
+          synchronized (mLock) {
+            abandon(entry);
+          }
+        }
+      }
+      boolean mayBeInLargeEntryStorage;
+      synchronized (mLock) {
+        publish(entry);
+        mayBeInLargeEntryStorage = !mLargeEntryIdsKnown || mLargeEntryIds.remove(mResourceId);
+      }
+      if (mayBeInLargeEntryStorage) {
+        // an older, larger version of this entry may still be in the other storage
+        mLargeEntryStorage.remove(mResourceId);
+      }
+      return entry.getResource();
+    }
+
+    @Override
+    public boolean cleanUp() {
+      mContent = null;
+      Inserter largeEntryInserter = mLargeEntryInserter;
+      return largeEntryInserter == null || largeEntryInserter.cleanUp();
+    }
+
+    /**
+     * Buffers the content until it outgrows a slab entry, then opens an inserter of the other
+     * storage, writes the buffered prefix to it and streams the rest straight through.
+     *
+     * <p>Only the temporary file of a {@link DefaultDiskStorage} can be streamed to. With other
+     * storages, the whole content is buffered and then handed to their inserter.
+     */
+    private class ContentOutputStream extends OutputStream {
+
+      private final Object mDebugInfo;
+      private byte[] mBuffer;
+      private int mSize;
+      private @Nullable DefaultDiskStorage.InserterImpl mFileInserter;
+      private @Nullable CountingOutputStream mFileStream;
+
+      ContentOutputStream(Object debugInfo) {
+        mDebugInfo = debugInfo;
+        mBuffer = new byte[Math.min(INITIAL_BUFFER_SIZE, mMaxSlabEntrySize)];
+      }
+
+      @Override
+      public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        CountingOutputStream fileStream = mFileStream;
+        if (fileStream != null) {
+          fileStream.write(b, off, len);
+          return;
+        }
+        if (mLargeEntryInserter == null && mSize + len > mMaxSlabEntrySize) {
+          spill();
+          write(b, off, len);
+          return;
+        }
+        if (mSize + len > mBuffer.length) {
+          mBuffer = Arrays.copyOf(mBuffer, Math.max(mSize + len, mBuffer.length * 2));
+        }
+        System.arraycopy(b, off, mBuffer, mSize, len);
+        mSize += len;
+      }
+
+      private void spill() throws IOException {
+        Inserter inserter = mLargeEntryStorage.insert(mResourceId, mDebugInfo);
+        mLargeEntryInserter = inserter;
+        if (inserter instanceof DefaultDiskStorage.InserterImpl) {
+          DefaultDiskStorage.InserterImpl fileInserter = (DefaultDiskStorage.InserterImpl) inserter;
+          CountingOutputStream fileStream = fileInserter.openOutputStream();
+          mFileInserter = fileInserter;
+          mFileStream = fileStream;
+          fileStream.write(mBuffer, 0, mSize);
+          mBuffer = new byte[0];
+          mSize = 0;
+        }
+      }
+
+      /** Completes the write to the other storage, if the content was too large for a slab. */
+      void finish() throws IOException {
+        CountingOutputStream fileStream = mFileStream;
+        if (fileStream != null) {
+          try {
+            fileStream.flush();
+          } finally {
+            mFileStream = null;
+            fileStream.close();
+          }
+          Preconditions.checkNotNull(mFileInserter).checkWrittenLength(fileStream.getCount());
+          return;
+        }
+        Inserter inserter = mLargeEntryInserter;
+        if (inserter != null) {
+          inserter.writeData(
+              new WriterCallback() {
+                @Override
+                public void write(OutputStream os) throws IOException {
+                  os.write(mBuffer, 0, mSize);
+                }
+              },
+              mDebugInfo);
+        }
+      }
+
+      /** Closes the file being written after a failure, the inserter deletes it on clean up. */
+      void abort() {
+        try {
+          Closeables.close(mFileStream, true);
+        } catch (IOException ioe) {
+          // swallowed by Closeables
+        }
+        mFileStream = null;
+      }
+
+      byte[] getBuffer() {
+        return mBuffer;
+      }
+
+      int size() {
+        return mSize;
+      }
+    }
+  }
+}
@@ -48,7 +48,18 @@ public class ImageFormatChecker {
     Preconditions.checkNotNull(is);
     final byte[] imageHeaderBytes = new byte[mMaxHeaderLength];
     final int headerSize = readHeaderFromStream(mMaxHeaderLength, is, imageHeaderBytes);
+    return determineImageFormat(imageHeaderBytes, headerSize);
+  }
 
+  /**
+   * Determines the format of an image from its first bytes, e.g. as they are received.
+   *
+   * @param imageHeaderBytes the first bytes of the image
+   * @param headerSize the number of bytes available, which should be {@link #getMaxHeaderLength()}
+   *     unless the image is shorter
+   * @return ImageFormat matching the header or UNKNOWN if no type is suitable
+   */
+  public ImageFormat determineImageFormat(final byte[] imageHeaderBytes, final int headerSize) {
     ImageFormat format = mDefaultFormatChecker.determineFormat(imageHeaderBytes, headerSize);
     if (format != null && format != ImageFormat.UNKNOWN) {
       return format;
@@ -65,6 +76,11 @@ public class ImageFormatChecker {
     return ImageFormat.UNKNOWN;
   }
 
+  /** Returns the number of bytes needed to determine the format of an image. */
+  public int getMaxHeaderLength() {
+    return mMaxHeaderLength;
+  }
+
   private void updateMaxHeaderLength() {
     mMaxHeaderLength = mDefaultFormatChecker.getHeaderSize();
     if (mCustomImageFormatCheckers != null) {
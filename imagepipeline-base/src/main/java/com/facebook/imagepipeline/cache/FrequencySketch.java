@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.cache;
+
+import com.facebook.infer.annotation.Nullsafe;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Count-min sketch estimating how often a key has been used recently, with 4-bit counters.
+ *
+ * <p>Each key maps to four counters, one per hash function, picked from a table of longs each
+ * holding sixteen counters. The estimate is the smallest of the four. Once the number of
+ * increments reaches ten times the table capacity all counters are halved, so that the estimates
+ * favor recent history.
+ *
+ * <p>The sketch is not thread safe, callers are expected to hold their own lock.
+ */
+@NotThreadSafe
+@Nullsafe(Nullsafe.Mode.STRICT)
+class FrequencySketch<K> {
+
+  private static final long[] SEEDS =
+      new long[] {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+      };
+  private static final long RESET_MASK = 0x7777777777777777L;
+  private static final long ONE_MASK = 0x1111111111111111L;
+  private static final int MAX_FREQUENCY = 15;
+  private static final int SAMPLE_SIZE_FACTOR = 10;
+  private static final int MAXIMUM_CAPACITY = 1 << 24;
+
+  private long[] mTable = new long[0];
+  private int mTableMask;
+  private int mSampleSize;
+  private int mSize;
+
+  /**
+   * Sizes the sketch for the given number of entries. Resizing drops all the collected counts.
+   *
+   * @param maximumSize the expected maximum number of entries in the cache
+   */
+  void ensureCapacity(int maximumSize) {
+    int capacity = ceilingPowerOfTwo(Math.min(Math.max(maximumSize, 16), MAXIMUM_CAPACITY));
+    if (mTable.length >= capacity) {
+      return;
+    }
+    mTable = new long[capacity];
+    mTableMask = capacity - 1;
+    mSampleSize = SAMPLE_SIZE_FACTOR * capacity;
+    mSize = 0;
+  }
+
+  /** Returns the estimated number of occurrences of the key, at most 15. */
+  int frequency(K key) {
+    int hash = spread(key.hashCode());
+    int start = (hash & 3) << 2;
+    int frequency = MAX_FREQUENCY;
+    for (int i = 0; i < 4; i++) {
+      int index = indexOf(hash, i);
+      int count = (int) ((mTable[index] >>> ((start + i) << 2)) & 0xfL);
+      frequency = Math.min(frequency, count);
+    }
+    return frequency;
+  }
+
+  /** Records an occurrence of the key, aging all counters if the sample size has been reached. */
+  void increment(K key) {
+    int hash = spread(key.hashCode());
+    int start = (hash & 3) << 2;
+    boolean added = false;
+    for (int i = 0; i < 4; i++) {
+      added |= incrementAt(indexOf(hash, i), start + i);
+    }
+    if (added && ++mSize == mSampleSize) {
+      reset();
+    }
+  }
+
+  private boolean incrementAt(int index, int counter) {
+    int offset = counter << 2;
+    long mask = 0xfL << offset;
+    if ((mTable[index] & mask) != mask) {
+      mTable[index] += 1L << offset;
+      return true;
+    }
+    return false;
+  }
+
+  /** Halves all the counters. */
+  private void reset() {
+    int oddCount = 0;
+    for (int i = 0; i < mTable.length; i++) {
+      oddCount += Long.bitCount(mTable[i] & ONE_MASK);
+      mTable[i] = (mTable[i] >>> 1) & RESET_MASK;
+    }
+    mSize = (mSize >>> 1) - (oddCount >>> 2);
+  }
+
+  private int indexOf(int hash, int i) {
+    long h = (hash + SEEDS[i]) * SEEDS[i];
+    h += h >>> 32;
+    return ((int) h) & mTableMask;
+  }
+
+  /** Applies a supplemental hash function to defend against poor quality hash codes. */
+  private static int spread(int x) {
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+    return (x >>> 16) ^ x;
+  }
+
+  private static int ceilingPowerOfTwo(int x) {
+    return 1 << -Integer.numberOfLeadingZeros(x - 1);
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.cache;
+
+import com.facebook.cache.common.CacheKey;
+import com.facebook.common.internal.Preconditions;
+import com.facebook.common.internal.Supplier;
+import com.facebook.common.memory.MemoryTrimmableRegistry;
+import com.facebook.imagepipeline.image.CloseableImage;
+import com.facebook.infer.annotation.Nullsafe;
+import javax.annotation.Nullable;
+
+/**
+ * Creates a {@link SegmentedCountingMemoryCache} as bitmap memory cache, for apps where cache hits
+ * on the UI thread contend with decode threads inserting results.
+ */
+@Nullsafe(Nullsafe.Mode.STRICT)
+public class SegmentedCountingBitmapMemoryCacheFactory implements BitmapMemoryCacheFactory {
+
+  private final int mSegmentCount;
+
+  public SegmentedCountingBitmapMemoryCacheFactory() {
+    this(SegmentedCountingMemoryCache.DEFAULT_SEGMENT_COUNT);
+  }
+
+  public SegmentedCountingBitmapMemoryCacheFactory(int segmentCount) {
+    Preconditions.checkArgument(segmentCount > 0, "segmentCount must be positive");
+    mSegmentCount = segmentCount;
+  }
+
+  @Override
+  public CountingMemoryCache<CacheKey, CloseableImage> create(
+      Supplier<MemoryCacheParams> bitmapMemoryCacheParamsSupplier,
+      MemoryTrimmableRegistry memoryTrimmableRegistry,
+      MemoryCache.CacheTrimStrategy trimStrategy,
+      boolean storeEntrySize,
+      boolean ignoreSizeMismatch,
+      @Nullable CountingMemoryCache.EntryStateObserver<CacheKey> observer) {
+
+    ValueDescriptor<CloseableImage> valueDescriptor =
+        new ValueDescriptor<CloseableImage>() {
+          @Override
+          public int getSizeInBytes(CloseableImage value) {
+            return value.getSizeInBytes();
+          }
+        };
+
+    CountingMemoryCache<CacheKey, CloseableImage> countingCache =
+        new SegmentedCountingMemoryCache<>(
+            valueDescriptor,
+            trimStrategy,
+            bitmapMemoryCacheParamsSupplier,
+            observer,
+            storeEntrySize,
+            ignoreSizeMismatch,
+            mSegmentCount);
+
+    memoryTrimmableRegistry.registerMemoryTrimmable(countingCache);
+
+    return countingCache;
+  }
+}
@@ -0,0 +1,724 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.cache;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import com.facebook.cache.common.HasDebugData;
+import com.facebook.common.internal.Objects;
+import com.facebook.common.internal.Preconditions;
+import com.facebook.common.internal.Predicate;
+import com.facebook.common.internal.Supplier;
+import com.facebook.common.memory.MemoryTrimType;
+import com.facebook.common.references.CloseableReference;
+import com.facebook.common.references.ResourceReleaser;
+import com.facebook.infer.annotation.Nullsafe;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Layer of memory cache stack that splits the key space into independently locked segments.
+ *
+ * <p>Behaves like {@link LruCountingMemoryCache}, but a cache hit only locks the segment owning
+ * the key, so it does not contend with insertions and releases of unrelated keys. Each segment
+ * keeps its own LRU ordering of the cached and of the exclusively owned items.
+ *
+ * <p>The size constraints are global. Every segment publishes its totals to atomic counters, and
+ * when the eviction queue is over budget the least recently used exclusively owned item of each
+ * segment is evicted in turn, so eviction is only approximately LRU across segments. Whether a new
+ * value can be cached is checked against the published totals, so concurrent insertions into
+ * different segments may briefly overshoot the in-use limits by one entry per thread.
+ *
+ * <p>Only the exclusively owned elements, i.e. the elements not referenced by any client, can be
+ * evicted.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+@ThreadSafe
+@Nullsafe(Nullsafe.Mode.STRICT)
+public class SegmentedCountingMemoryCache<K, V>
+    implements CountingMemoryCache<K, V>, MemoryCache<K, V>, HasDebugData {
+
+  public static final int DEFAULT_SEGMENT_COUNT = 8;
+
+  private final @Nullable EntryStateObserver<K> mEntryStateObserver;
+
+  private final List<Segment> mSegments;
+
+  // Totals of all the segments, updated while holding the lock of the segment that changed.
+  private final AtomicInteger mCachedCount = new AtomicInteger();
+  private final AtomicInteger mCachedSizeInBytes = new AtomicInteger();
+  private final AtomicInteger mExclusiveCount = new AtomicInteger();
+  private final AtomicInteger mExclusiveSizeInBytes = new AtomicInteger();
+
+  // Segment to evict from next.
+  private final AtomicInteger mEvictionCursor = new AtomicInteger();
+
+  private final Map<Bitmap, Object> mOtherEntries =
+      Collections.synchronizedMap(new WeakHashMap<Bitmap, Object>());
+
+  private final ValueDescriptor<V> mValueDescriptor;
+
+  private final ValueDescriptor<Entry<K, V>> mEntryValueDescriptor;
+
+  private final CacheTrimStrategy mCacheTrimStrategy;
+
+  // Cache size constraints.
+  private final Supplier<MemoryCacheParams> mMemoryCacheParamsSupplier;
+
+  protected volatile MemoryCacheParams mMemoryCacheParams;
+
+  private final AtomicLong mLastCacheParamsCheck;
+
+  private final boolean mStoreEntrySize;
+  private final boolean mIgnoreSizeMismatch;
+
+  public SegmentedCountingMemoryCache(
+      ValueDescriptor<V> valueDescriptor,
+      CacheTrimStrategy cacheTrimStrategy,
+      Supplier<MemoryCacheParams> memoryCacheParamsSupplier,
+      @Nullable EntryStateObserver<K> entryStateObserver,
+      boolean storeEntrySize,
+      boolean ignoreSizeMismatch,
+      int segmentCount) {
+    Preconditions.checkArgument(segmentCount > 0, "segmentCount must be positive");
+    mValueDescriptor = valueDescriptor;
+    mStoreEntrySize = storeEntrySize;
+    mIgnoreSizeMismatch = ignoreSizeMismatch;
+    mEntryValueDescriptor = wrapValueDescriptor(valueDescriptor);
+    mSegments = new ArrayList<>(segmentCount);
+    for (int i = 0; i < segmentCount; i++) {
+      mSegments.add(new Segment());
+    }
+    mCacheTrimStrategy = cacheTrimStrategy;
+    mMemoryCacheParamsSupplier = memoryCacheParamsSupplier;
+    mMemoryCacheParams =
+        Preconditions.checkNotNull(
+            mMemoryCacheParamsSupplier.get(), "mMemoryCacheParamsSupplier returned null");
+    mLastCacheParamsCheck = new AtomicLong(SystemClock.uptimeMillis());
+    mEntryStateObserver = entryStateObserver;
+  }
+
+  private ValueDescriptor<Entry<K, V>> wrapValueDescriptor(
+      final ValueDescriptor<V> evictableValueDescriptor) {
+    return new ValueDescriptor<Entry<K, V>>() {
+      @Override
+      public int getSizeInBytes(Entry<K, V> entry) {
+        if (mStoreEntrySize) {
+          return entry.size;
+        }
+        return evictableValueDescriptor.getSizeInBytes(entry.valueRef.get());
+      }
+    };
+  }
+
+  /** A part of the key space, guarded by its own monitor. */
+  private class Segment {
+
+    // Contains the items that are not being used by any client and are hence viable for eviction.
+    @GuardedBy("this")
+    final CountingLruMap<K, Entry<K, V>> mExclusiveEntries =
+        new CountingLruMap<>(mEntryValueDescriptor);
+
+    // Contains all the cached items of this segment including the exclusively owned ones.
+    @GuardedBy("this")
+    final CountingLruMap<K, Entry<K, V>> mCachedEntries =
+        new CountingLruMap<>(mEntryValueDescriptor);
+
+    // Values last added to the global counters.
+    @GuardedBy("this")
+    private int mPublishedCachedCount;
+
+    @GuardedBy("this")
+    private int mPublishedCachedSizeInBytes;
+
+    @GuardedBy("this")
+    private int mPublishedExclusiveCount;
+
+    @GuardedBy("this")
+    private int mPublishedExclusiveSizeInBytes;
+
+    /** Adds the changes made to this segment since the last call to the global counters. */
+    @GuardedBy("this")
+    void publishCounters() {
+      int cachedCount = mCachedEntries.getCount();
+      int cachedSizeInBytes = mCachedEntries.getSizeInBytes();
+      int exclusiveCount = mExclusiveEntries.getCount();
+      int exclusiveSizeInBytes = mExclusiveEntries.getSizeInBytes();
+      mCachedCount.addAndGet(cachedCount - mPublishedCachedCount);
+      mCachedSizeInBytes.addAndGet(cachedSizeInBytes - mPublishedCachedSizeInBytes);
+      mExclusiveCount.addAndGet(exclusiveCount - mPublishedExclusiveCount);
+      mExclusiveSizeInBytes.addAndGet(exclusiveSizeInBytes - mPublishedExclusiveSizeInBytes);
+      mPublishedCachedCount = cachedCount;
+      mPublishedCachedSizeInBytes = cachedSizeInBytes;
+      mPublishedExclusiveCount = exclusiveCount;
+      mPublishedExclusiveSizeInBytes = exclusiveSizeInBytes;
+    }
+
+    /**
+     * Removes the least recently used exclusively owned item of this segment and marks it as
+     * orphan.
+     *
+     * @return the removed entry, or null if there is no exclusively owned item
+     */
+    synchronized @Nullable Entry<K, V> evictEldestExclusive() {
+      @Nullable K key = mExclusiveEntries.getFirstKey();
+      if (key == null) {
+        if (mExclusiveEntries.getSizeInBytes() != 0) {
+          if (!mIgnoreSizeMismatch) {
+            throw new IllegalStateException(
+                String.format(
+                    "key is null, but exclusiveEntries count: %d, size: %d",
+                    mExclusiveEntries.getCount(), mExclusiveEntries.getSizeInBytes()));
+          }
+          mExclusiveEntries.resetSize();
+          publishCounters();
+        }
+        return null;
+      }
+      mExclusiveEntries.remove(key);
+      Entry<K, V> entry = Preconditions.checkNotNull(mCachedEntries.remove(key));
+      makeOrphan(entry);
+      publishCounters();
+      return entry;
+    }
+  }
+
+  private Segment segmentFor(K key) {
+    int hash = key.hashCode();
+    hash ^= (hash >>> 16);
+    return mSegments.get((hash & Integer.MAX_VALUE) % mSegments.size());
+  }
+
+  /**
+   * Caches the given key-value pair.
+   *
+   * <p>Important: the client should use the returned reference instead of the original one. It is
+   * the caller's responsibility to close the returned reference once not needed anymore.
+   *
+   * @return the new reference to be used, null if the value cannot be cached
+   */
+  public @Nullable CloseableReference<V> cache(final K key, final CloseableReference<V> valueRef) {
+    return cache(key, valueRef, mEntryStateObserver);
+  }
+
+  /**
+   * Caches the given key-value pair.
+   *
+   * <p>Important: the client should use the returned reference instead of the original one. It is
+   * the caller's responsibility to close the returned reference once not needed anymore.
+   *
+   * @return the new reference to be used, null if the value cannot be cached
+   */
+  @Override
+  public @Nullable CloseableReference<V> cache(
+      final K key,
+      final CloseableReference<V> valueRef,
+      final @Nullable EntryStateObserver<K> observer) {
+    Preconditions.checkNotNull(key);
+    Preconditions.checkNotNull(valueRef);
+
+    maybeUpdateCacheParams();
+
+    final Segment segment = segmentFor(key);
+    Entry<K, V> oldExclusive;
+    CloseableReference<V> oldRefToClose = null;
+    CloseableReference<V> clientRef = null;
+    synchronized (segment) {
+      // remove the old item (if any) as it is stale now
+      oldExclusive = segment.mExclusiveEntries.remove(key);
+      Entry<K, V> oldEntry = segment.mCachedEntries.remove(key);
+      if (oldEntry != null) {
+        makeOrphan(oldEntry);
+        oldRefToClose = referenceToClose(oldEntry);
+      }
+      segment.publishCounters();
+
+      V value = valueRef.get();
+      int size = mValueDescriptor.getSizeInBytes(value);
+      if (canCacheNewValueOfSize(size)) {
+        Entry<K, V> newEntry;
+        if (mStoreEntrySize) {
+          newEntry = Entry.of(key, valueRef, size, observer);
+        } else {
+          newEntry = Entry.of(key, valueRef, observer);
+        }
+        segment.mCachedEntries.put(key, newEntry);
+        clientRef = newClientReference(segment, newEntry);
+        segment.publishCounters();
+      }
+    }
+    CloseableReference.closeSafely(oldRefToClose);
+    maybeNotifyExclusiveEntryRemoval(oldExclusive);
+
+    maybeEvictEntries();
+    return clientRef;
+  }
+
+  /**
+   * Checks the cache constraints to determine whether the new value of given size can be cached or
+   * not.
+   */
+  private boolean canCacheNewValueOfSize(int newValueSize) {
+    MemoryCacheParams params = mMemoryCacheParams;
+    return (newValueSize <= params.maxCacheEntrySize)
+        && (getInUseCount() <= params.maxCacheEntries - 1)
+        && (getInUseSizeInBytes() <= params.maxCacheSize - newValueSize);
+  }
+
+  /**
+   * Gets the item with the given key, or null if there is no such item.
+   *
+   * <p>It is the caller's responsibility to close the returned reference once not needed anymore.
+   */
+  @Override
+  @Nullable
+  public CloseableReference<V> get(final K key) {
+    Preconditions.checkNotNull(key);
+    final Segment segment = segmentFor(key);
+    Entry<K, V> oldExclusive;
+    CloseableReference<V> clientRef = null;
+    synchronized (segment) {
+      oldExclusive = segment.mExclusiveEntries.remove(key);
+      Entry<K, V> entry = segment.mCachedEntries.get(key);
+      if (entry != null) {
+        clientRef = newClientReference(segment, entry);
+      }
+      segment.publishCounters();
+    }
+    maybeNotifyExclusiveEntryRemoval(oldExclusive);
+    maybeUpdateCacheParams();
+    maybeEvictEntries();
+    return clientRef;
+  }
+
+  @Override
+  public @Nullable V inspect(final K key) {
+    Segment segment = segmentFor(key);
+    synchronized (segment) {
+      Entry<K, V> entry = segment.mCachedEntries.get(key);
+      if (entry == null) {
+        return null;
+      }
+      return entry.valueRef.get();
+    }
+  }
+
+  /**
+   * Probes whether the object corresponding to the key is in the cache. Note that the act of
+   * probing touches the item (if present in cache), thus changing its LRU timestamp.
+   */
+  @Override
+  public void probe(final K key) {
+    Preconditions.checkNotNull(key);
+    Segment segment = segmentFor(key);
+    synchronized (segment) {
+      Entry<K, V> oldExclusive = segment.mExclusiveEntries.remove(key);
+      if (oldExclusive != null) {
+        segment.mExclusiveEntries.put(key, oldExclusive);
+      }
+    }
+  }
+
+  /**
+   * Creates a new reference for the client. Must be called while holding the lock of the segment
+   * owning the entry.
+   */
+  private CloseableReference<V> newClientReference(
+      final Segment segment, final Entry<K, V> entry) {
+    increaseClientCount(entry);
+    return CloseableReference.of(
+        entry.valueRef.get(),
+        new ResourceReleaser<V>() {
+          @Override
+          public void release(V unused) {
+            releaseClientReference(segment, entry);
+          }
+        });
+  }
+
+  /** Called when the client closes its reference. */
+  private void releaseClientReference(final Segment segment, final Entry<K, V> entry) {
+    Preconditions.checkNotNull(entry);
+    boolean isExclusiveAdded;
+    CloseableReference<V> oldRefToClose;
+    synchronized (segment) {
+      decreaseClientCount(entry);
+      isExclusiveAdded = maybeAddToExclusives(segment, entry);
+      oldRefToClose = referenceToClose(entry);
+      segment.publishCounters();
+    }
+    CloseableReference.closeSafely(oldRefToClose);
+    maybeNotifyExclusiveEntryInsertion(isExclusiveAdded ? entry : null);
+    maybeUpdateCacheParams();
+    maybeEvictEntries();
+  }
+
+  /**
+   * Adds the entry to the exclusively owned queue if it is viable for eviction. Must be called
+   * while holding the lock of the segment.
+   */
+  private boolean maybeAddToExclusives(Segment segment, Entry<K, V> entry) {
+    if (!entry.isOrphan && entry.clientCount == 0) {
+      segment.mExclusiveEntries.put(entry.key, entry);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Gets the value with the given key to be reused, or null if there is no such value.
+   *
+   * <p>The item can be reused only if it is exclusively owned by the cache.
+   */
+  @Override
+  @Nullable
+  public CloseableReference<V> reuse(K key) {
+    Preconditions.checkNotNull(key);
+    Segment segment = segmentFor(key);
+    CloseableReference<V> clientRef = null;
+    boolean removed = false;
+    Entry<K, V> oldExclusive = null;
+    synchronized (segment) {
+      oldExclusive = segment.mExclusiveEntries.remove(key);
+      if (oldExclusive != null) {
+        Entry<K, V> entry = segment.mCachedEntries.remove(key);
+        Preconditions.checkNotNull(entry);
+        Preconditions.checkState(entry.clientCount == 0);
+        // optimization: instead of cloning and then closing the original reference,
+        // we just do a move
+        clientRef = entry.valueRef;
+        removed = true;
+        segment.publishCounters();
+      }
+    }
+    if (removed) {
+      maybeNotifyExclusiveEntryRemoval(oldExclusive);
+    }
+    return clientRef;
+  }
+
+  /**
+   * Removes all the items from the cache whose key matches the specified predicate.
+   *
+   * @param predicate returns true if an item with the given key should be removed
+   * @return number of the items removed from the cache
+   */
+  @Override
+  public int removeAll(Predicate<K> predicate) {
+    ArrayList<Entry<K, V>> oldExclusives = new ArrayList<>();
+    ArrayList<Entry<K, V>> oldEntries = new ArrayList<>();
+    for (Segment segment : mSegments) {
+      synchronized (segment) {
+        oldExclusives.addAll(segment.mExclusiveEntries.removeAll(predicate));
+        ArrayList<Entry<K, V>> segmentEntries = segment.mCachedEntries.removeAll(predicate);
+        makeOrphans(segmentEntries);
+        oldEntries.addAll(segmentEntries);
+        segment.publishCounters();
+      }
+    }
+    maybeClose(oldEntries);
+    maybeNotifyExclusiveEntryRemoval(oldExclusives);
+    maybeUpdateCacheParams();
+    maybeEvictEntries();
+    return oldEntries.size();
+  }
+
+  /** Removes all the items from the cache. */
+  @Override
+  public void clear() {
+    ArrayList<Entry<K, V>> oldExclusives = new ArrayList<>();
+    ArrayList<Entry<K, V>> oldEntries = new ArrayList<>();
+    for (Segment segment : mSegments) {
+      synchronized (segment) {
+        oldExclusives.addAll(segment.mExclusiveEntries.clear());
+        ArrayList<Entry<K, V>> segmentEntries = segment.mCachedEntries.clear();
+        makeOrphans(segmentEntries);
+        oldEntries.addAll(segmentEntries);
+        segment.publishCounters();
+      }
+    }
+    maybeClose(oldEntries);
+    maybeNotifyExclusiveEntryRemoval(oldExclusives);
+    maybeUpdateCacheParams();
+  }
+
+  /**
+   * Check if any items from the cache whose key matches the specified predicate.
+   *
+   * @param predicate returns true if an item with the given key matches
+   * @return true is any items matches from the cache
+   */
+  @Override
+  public boolean contains(Predicate<K> predicate) {
+    for (Segment segment : mSegments) {
+      synchronized (segment) {
+        if (!segment.mCachedEntries.getMatchingEntries(predicate).isEmpty()) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Check if an item with the given cache key is currently in the cache.
+   *
+   * @param key returns true if an item with the given key matches
+   * @return true is any items matches from the cache
+   */
+  @Override
+  public boolean contains(K key) {
+    Segment segment = segmentFor(key);
+    synchronized (segment) {
+      return segment.mCachedEntries.contains(key);
+    }
+  }
+
+  /** Trims the cache according to the specified trimming strategy and the given trim type. */
+  @Override
+  public void trim(MemoryTrimType trimType) {
+    final double trimRatio = mCacheTrimStrategy.getTrimRatio(trimType);
+    int targetCacheSize = (int) (mCachedSizeInBytes.get() * (1 - trimRatio));
+    int targetEvictionQueueSize = Math.max(0, targetCacheSize - getInUseSizeInBytes());
+    ArrayList<Entry<K, V>> oldEntries =
+        trimExclusivelyOwnedEntries(Integer.MAX_VALUE, targetEvictionQueueSize);
+    maybeClose(oldEntries);
+    maybeNotifyExclusiveEntryRemoval(oldEntries);
+    maybeUpdateCacheParams();
+    maybeEvictEntries();
+  }
+
+  /** Updates the cache params (constraints) if enough time has passed since the last update. */
+  private void maybeUpdateCacheParams() {
+    long lastCheck = mLastCacheParamsCheck.get();
+    long now = SystemClock.uptimeMillis();
+    if (lastCheck + mMemoryCacheParams.paramsCheckIntervalMs > now
+        || !mLastCacheParamsCheck.compareAndSet(lastCheck, now)) {
+      return;
+    }
+    mMemoryCacheParams =
+        Preconditions.checkNotNull(
+            mMemoryCacheParamsSupplier.get(), "mMemoryCacheParamsSupplier returned null");
+  }
+
+  @Override
+  public MemoryCacheParams getMemoryCacheParams() {
+    return mMemoryCacheParams;
+  }
+
+  /**
+   * Returns a snapshot of the cached entries of all the segments, for debugging purposes. Changes
+   * to the returned map are not reflected in the cache.
+   */
+  @Override
+  public CountingLruMap<K, Entry<K, V>> getCachedEntries() {
+    CountingLruMap<K, Entry<K, V>> snapshot = new CountingLruMap<>(mEntryValueDescriptor);
+    for (Segment segment : mSegments) {
+      synchronized (segment) {
+        for (Entry<K, V> entry : segment.mCachedEntries.getValues()) {
+          snapshot.put(entry.key, entry);
+        }
+      }
+    }
+    return snapshot;
+  }
+
+  @Override
+  public Map<Bitmap, Object> getOtherEntries() {
+    return mOtherEntries;
+  }
+
+  /**
+   * Removes the exclusively owned items until the cache constraints are met.
+   *
+   * <p>This method invokes the external {@link CloseableReference#close} method, so it must not be
+   * called while holding a segment lock.
+   */
+  @Override
+  public void maybeEvictEntries() {
+    MemoryCacheParams params = mMemoryCacheParams;
+    int maxCount =
+        Math.min(params.maxEvictionQueueEntries, params.maxCacheEntries - getInUseCount());
+    int maxSize =
+        Math.min(params.maxEvictionQueueSize, params.maxCacheSize - getInUseSizeInBytes());
+    ArrayList<Entry<K, V>> oldEntries = trimExclusivelyOwnedEntries(maxCount, maxSize);
+    maybeClose(oldEntries);
+    maybeNotifyExclusiveEntryRemoval(oldEntries);
+  }
+
+  /**
+   * Removes the exclusively owned items, visiting the segments in turn, until there is at most
+   * <code>count</code> of them and they occupy no more than <code>size</code> bytes.
+   *
+   * <p>The removed items are marked as orphans but not closed, so it is up to the caller to close
+   * them outside of the segment locks.
+   */
+  @Nullable
+  private ArrayList<Entry<K, V>> trimExclusivelyOwnedEntries(int count, int size) {
+    count = Math.max(count, 0);
+    size = Math.max(size, 0);
+    // fast path without locking nor array allocation if no eviction is necessary
+    if (mExclusiveCount.get() <= count && mExclusiveSizeInBytes.get() <= size) {
+      return null;
+    }
+    ArrayList<Entry<K, V>> oldEntries = new ArrayList<>();
+    int segmentCount = mSegments.size();
+    // stop once a full round over the segments found nothing to evict, the counters may still be
+    // over budget for a moment while other threads are publishing
+    int emptySegmentsInARow = 0;
+    while ((mExclusiveCount.get() > count || mExclusiveSizeInBytes.get() > size)
+        && emptySegmentsInARow < segmentCount) {
+      int index = (mEvictionCursor.getAndIncrement() & Integer.MAX_VALUE) % segmentCount;
+      Entry<K, V> oldEntry = mSegments.get(index).evictEldestExclusive();
+      if (oldEntry == null) {
+        emptySegmentsInARow++;
+      } else {
+        emptySegmentsInARow = 0;
+        oldEntries.add(oldEntry);
+      }
+    }
+    return oldEntries;
+  }
+
+  /**
+   * Notifies the client that the cache no longer tracks the given items.
+   *
+   * <p>This method invokes the external {@link CloseableReference#close} method, so it must not be
+   * called while holding a segment lock.
+   */
+  private void maybeClose(@Nullable ArrayList<Entry<K, V>> oldEntries) {
+    if (oldEntries != null) {
+      for (Entry<K, V> oldEntry : oldEntries) {
+        CloseableReference<V> refToClose;
+        Segment segment = segmentFor(oldEntry.key);
+        synchronized (segment) {
+          refToClose = referenceToClose(oldEntry);
+        }
+        CloseableReference.closeSafely(refToClose);
+      }
+    }
+  }
+
+  private void maybeNotifyExclusiveEntryRemoval(@Nullable ArrayList<Entry<K, V>> entries) {
+    if (entries != null) {
+      for (Entry<K, V> entry : entries) {
+        maybeNotifyExclusiveEntryRemoval(entry);
+      }
+    }
+  }
+
+  private static <K, V> void maybeNotifyExclusiveEntryRemoval(@Nullable Entry<K, V> entry) {
+    if (entry != null && entry.observer != null) {
+      entry.observer.onExclusivityChanged(entry.key, false);
+    }
+  }
+
+  private static <K, V> void maybeNotifyExclusiveEntryInsertion(@Nullable Entry<K, V> entry) {
+    if (entry != null && entry.observer != null) {
+      entry.observer.onExclusivityChanged(entry.key, true);
+    }
+  }
+
+  // The helpers below must be called while holding the lock of the segment owning the entry.
+
+  /** Marks the given entries as orphans. */
+  private static <K, V> void makeOrphans(ArrayList<Entry<K, V>> oldEntries) {
+    for (Entry<K, V> oldEntry : oldEntries) {
+      makeOrphan(oldEntry);
+    }
+  }
+
+  /** Marks the entry as orphan. */
+  private static <K, V> void makeOrphan(Entry<K, V> entry) {
+    Preconditions.checkNotNull(entry);
+    Preconditions.checkState(!entry.isOrphan);
+    entry.isOrphan = true;
+  }
+
+  /** Increases the entry's client count. */
+  private static <K, V> void increaseClientCount(Entry<K, V> entry) {
+    Preconditions.checkNotNull(entry);
+    Preconditions.checkState(!entry.isOrphan);
+    entry.clientCount++;
+  }
+
+  /** Decreases the entry's client count. */
+  private static <K, V> void decreaseClientCount(Entry<K, V> entry) {
+    Preconditions.checkNotNull(entry);
+    Preconditions.checkState(entry.clientCount > 0);
+    entry.clientCount--;
+  }
+
+  /** Returns the value reference of the entry if it should be closed, null otherwise. */
+  @Nullable
+  private static <K, V> CloseableReference<V> referenceToClose(Entry<K, V> entry) {
+    Preconditions.checkNotNull(entry);
+    return (entry.isOrphan && entry.clientCount == 0) ? entry.valueRef : null;
+  }
+
+  /** Gets the total number of all currently cached items. */
+  @Override
+  public int getCount() {
+    return mCachedCount.get();
+  }
+
+  /** Gets the total size in bytes of all currently cached items. */
+  @Override
+  public int getSizeInBytes() {
+    return mCachedSizeInBytes.get();
+  }
+
+  /** Gets the number of the cached items that are used by at least one client. */
+  public int getInUseCount() {
+    return mCachedCount.get() - mExclusiveCount.get();
+  }
+
+  /** Gets the total size in bytes of the cached items that are used by at least one client. */
+  @Override
+  public int getInUseSizeInBytes() {
+    return mCachedSizeInBytes.get() - mExclusiveSizeInBytes.get();
+  }
+
+  /** Gets the number of the exclusively owned items. */
+  @Override
+  public int getEvictionQueueCount() {
+    return mExclusiveCount.get();
+  }
+
+  /** Gets the total size in bytes of the exclusively owned items. */
+  @Override
+  public int getEvictionQueueSizeInBytes() {
+    return mExclusiveSizeInBytes.get();
+  }
+
+  /** Gets the number of segments the key space is split into. */
+  public int getSegmentCount() {
+    return mSegments.size();
+  }
+
+  @Override
+  public @Nullable String getDebugData() {
+    return Objects.toStringHelper("CountingMemoryCache")
+        .add("segments", mSegments.size())
+        .add("cached_entries_count", mCachedCount.get())
+        .add("cached_entries_size_bytes", mCachedSizeInBytes.get())
+        .add("exclusive_entries_count", mExclusiveCount.get())
+        .add("exclusive_entries_size_bytes", mExclusiveSizeInBytes.get())
+        .toString();
+  }
+}
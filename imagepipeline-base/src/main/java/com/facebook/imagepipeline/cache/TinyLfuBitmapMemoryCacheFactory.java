@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.cache;
+
+import com.facebook.cache.common.CacheKey;
+import com.facebook.common.internal.Preconditions;
+import com.facebook.common.internal.Supplier;
+import com.facebook.common.memory.MemoryTrimmableRegistry;
+import com.facebook.imagepipeline.image.CloseableImage;
+import com.facebook.infer.annotation.Nullsafe;
+import javax.annotation.Nullable;
+
+/**
+ * Creates a {@link TinyLfuCountingMemoryCache} as bitmap memory cache, keeping frequently used
+ * images cached when many images are only seen once, e.g. while scrolling feeds.
+ */
+@Nullsafe(Nullsafe.Mode.STRICT)
+public class TinyLfuBitmapMemoryCacheFactory implements BitmapMemoryCacheFactory {
+
+  private final float mWindowRatio;
+
+  public TinyLfuBitmapMemoryCacheFactory() {
+    this(TinyLfuCountingMemoryCache.DEFAULT_WINDOW_RATIO);
+  }
+
+  /** @param windowRatio share of the eviction queue size given to the admission window */
+  public TinyLfuBitmapMemoryCacheFactory(float windowRatio) {
+    Preconditions.checkArgument(
+        windowRatio >= 0 && windowRatio < 1, "windowRatio must be in [0, 1)");
+    mWindowRatio = windowRatio;
+  }
+
+  @Override
+  public CountingMemoryCache<CacheKey, CloseableImage> create(
+      Supplier<MemoryCacheParams> bitmapMemoryCacheParamsSupplier,
+      MemoryTrimmableRegistry memoryTrimmableRegistry,
+      MemoryCache.CacheTrimStrategy trimStrategy,
+      boolean storeEntrySize,
+      boolean ignoreSizeMismatch,
+      @Nullable CountingMemoryCache.EntryStateObserver<CacheKey> observer) {
+
+    ValueDescriptor<CloseableImage> valueDescriptor =
+        new ValueDescriptor<CloseableImage>() {
+          @Override
+          public int getSizeInBytes(CloseableImage value) {
+            return value.getSizeInBytes();
+          }
+        };
+
+    CountingMemoryCache<CacheKey, CloseableImage> countingCache =
+        new TinyLfuCountingMemoryCache<>(
+            valueDescriptor,
+            trimStrategy,
+            bitmapMemoryCacheParamsSupplier,
+            observer,
+            storeEntrySize,
+            ignoreSizeMismatch,
+            mWindowRatio);
+
+    memoryTrimmableRegistry.registerMemoryTrimmable(countingCache);
+
+    return countingCache;
+  }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.core;
+
+import com.facebook.common.internal.Supplier;
+import com.facebook.imagepipeline.common.Priority;
+import com.facebook.infer.annotation.Nullsafe;
+import java.util.concurrent.Executor;
+
+/**
+ * An executor that runs higher {@link Priority} tasks first. Tasks submitted through {@link
+ * #execute(Runnable)} run at {@link Priority#MEDIUM}.
+ */
+@Nullsafe(Nullsafe.Mode.STRICT)
+public interface PriorityAwareExecutor extends Executor {
+
+  /** Executes the runnable, ahead of the queued runnables of lower priority. */
+  void execute(Runnable runnable, Priority priority);
+
+  /**
+   * Returns an executor submitting its runnables to the given one at the priority supplied at
+   * submission time, or the given executor itself if it is not priority aware.
+   */
+  static Executor withPriority(final Executor executor, final Supplier<Priority> priority) {
+    if (!(executor instanceof PriorityAwareExecutor)) {
+      return executor;
+    }
+    return new Executor() {
+      @Override
+      public void execute(Runnable runnable) {
+        ((PriorityAwareExecutor) executor).execute(runnable, priority.get());
+      }
+    };
+  }
+}
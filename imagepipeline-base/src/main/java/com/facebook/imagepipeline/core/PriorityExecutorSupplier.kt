@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.core
+
+import android.os.Process
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+
+/**
+ * [ExecutorSupplier] running the IO, decode, background and lightweight background stages on one
+ * shared [PriorityLaneScheduler].
+ *
+ * Each stage gets the concurrency [DefaultExecutorSupplier] gives it, but the threads are shared:
+ * an idle thread takes the next task of any stage, and tasks submitted with a higher
+ * [com.facebook.imagepipeline.common.Priority] run first. The pool has as many threads as the
+ * stages' concurrencies add up to, and a stage with a backlog borrows the threads of the stages
+ * that have no work, up to the whole pool. Use [laneStats] to monitor the queues.
+ */
+class PriorityExecutorSupplier(numCpuBoundThreads: Int) : ExecutorSupplier {
+
+  val scheduler: PriorityLaneScheduler =
+      PriorityLaneScheduler(
+          NUM_IO_BOUND_THREADS + 2 * numCpuBoundThreads + NUM_LIGHTWEIGHT_BACKGROUND_THREADS,
+          PriorityThreadFactory(Process.THREAD_PRIORITY_BACKGROUND, "FrescoPriorityExecutor", true))
+
+  // the thread count above is the sum of these stages' concurrencies, which are soft limits
+  private val ioBoundExecutor: PriorityAwareExecutor =
+      scheduler.newStage("io", NUM_IO_BOUND_THREADS)
+  private val decodeExecutor: PriorityAwareExecutor =
+      scheduler.newStage("decode", numCpuBoundThreads)
+  private val backgroundExecutor: PriorityAwareExecutor =
+      scheduler.newStage("background", numCpuBoundThreads)
+  private val lightWeightBackgroundExecutor: PriorityAwareExecutor =
+      scheduler.newStage("lightweight", NUM_LIGHTWEIGHT_BACKGROUND_THREADS)
+  private val backgroundScheduledExecutorService: ScheduledExecutorService =
+      Executors.newScheduledThreadPool(
+          numCpuBoundThreads,
+          PriorityThreadFactory(
+              Process.THREAD_PRIORITY_BACKGROUND, "FrescoBackgroundExecutor", true))
+
+  /** Queue depth and wait times of every stage and priority. */
+  val laneStats: List<PriorityLaneScheduler.LaneStats>
+    get() = scheduler.laneStats
+
+  override fun forLocalStorageRead(): Executor = ioBoundExecutor
+
+  override fun forLocalStorageWrite(): Executor = ioBoundExecutor
+
+  override fun forDecode(): Executor = decodeExecutor
+
+  override fun forBackgroundTasks(): Executor = backgroundExecutor
+
+  override fun scheduledExecutorServiceForBackgroundTasks(): ScheduledExecutorService? =
+      backgroundScheduledExecutorService
+
+  override fun forLightweightBackgroundTasks(): Executor = lightWeightBackgroundExecutor
+
+  override fun forThumbnailProducer(): Executor = ioBoundExecutor
+
+  companion object {
+    // Allows for simultaneous reads and writes.
+    private const val NUM_IO_BOUND_THREADS = 2
+    private const val NUM_LIGHTWEIGHT_BACKGROUND_THREADS = 1
+  }
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.core;
+
+import android.os.SystemClock;
+import com.facebook.common.internal.Preconditions;
+import com.facebook.common.logging.FLog;
+import com.facebook.imagepipeline.common.Priority;
+import com.facebook.infer.annotation.Nullsafe;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A pool of threads shared by several stages of the pipeline, each stage having one queue (lane)
+ * per {@link Priority}.
+ *
+ * <p>Stages are created with {@link #newStage(String, int)} and used as {@link
+ * PriorityAwareExecutor}s. The threads are not the stages' own: whenever a thread is free it takes
+ * the next task of any stage that is under its max concurrency. The next task is the oldest task of
+ * the highest priority lane that has one, across all stages. A visible image's disk read or decode
+ * therefore runs before any queued prefetch work, while equal priority tasks of different stages
+ * run in submission order. So that a steady flow of higher priority work cannot starve lower
+ * priority tasks, a waiting task is promoted one priority level for every max wait it spent in its
+ * lane.
+ *
+ * <p>The max concurrency of a stage is a soft limit: when no stage under its limit has a task
+ * waiting, a free thread takes the next task of a stage that is at its limit instead of staying
+ * idle. A stage whose threads are borrowed gets them back as their tasks complete.
+ *
+ * <p>Threads are started on demand, up to the thread count, and then kept. {@link #getLaneStats()}
+ * reports the depth and the time spent waiting of each lane.
+ */
+@Nullsafe(Nullsafe.Mode.STRICT)
+@ThreadSafe
+public class PriorityLaneScheduler {
+
+  private static final Class<?> TAG = PriorityLaneScheduler.class;
+
+  private static final Priority[] PRIORITIES_DESCENDING =
+      new Priority[] {Priority.HIGH, Priority.MEDIUM, Priority.LOW};
+
+  /** Default time after which a waiting task is promoted one priority level. */
+  public static final long DEFAULT_MAX_WAIT_MS = 2000;
+
+  private final int mThreadCount;
+  private final ThreadFactory mThreadFactory;
+  private final long mMaxWaitMs;
+
+  @GuardedBy("this")
+  private final List<Stage> mStages = new ArrayList<>();
+
+  @GuardedBy("this")
+  private int mStartedThreads;
+
+  @GuardedBy("this")
+  private int mIdleThreads;
+
+  /** Number of idle threads notified that have not woken up yet */
+  @GuardedBy("this")
+  private int mPendingWakeUps;
+
+  @GuardedBy("this")
+  private long mNextSequenceNumber;
+
+  /**
+   * @param threadCount the number of threads shared by all the stages
+   * @param threadFactory creates the threads
+   */
+  public PriorityLaneScheduler(int threadCount, ThreadFactory threadFactory) {
+    this(threadCount, threadFactory, DEFAULT_MAX_WAIT_MS);
+  }
+
+  /**
+   * @param threadCount the number of threads shared by all the stages
+   * @param threadFactory creates the threads
+   * @param maxWaitMs time after which a waiting task is promoted one priority level, and again
+   *     after each further max wait
+   */
+  public PriorityLaneScheduler(int threadCount, ThreadFactory threadFactory, long maxWaitMs) {
+    Preconditions.checkArgument(threadCount > 0);
+    Preconditions.checkArgument(maxWaitMs > 0);
+    mThreadCount = threadCount;
+    mThreadFactory = threadFactory;
+    mMaxWaitMs = maxWaitMs;
+  }
+
+  /**
+   * Creates a stage.
+   *
+   * @param name the name of the stage, used in the lane stats
+   * @param maxConcurrency the number of tasks of this stage running at a time beyond which it only
+   *     gets threads no other stage has work for
+   */
+  public synchronized PriorityAwareExecutor newStage(String name, int maxConcurrency) {
+    Preconditions.checkArgument(maxConcurrency > 0);
+    final Stage stage = new Stage(name, maxConcurrency);
+    mStages.add(stage);
+    return stage;
+  }
+
+  /** Returns a snapshot of the stats of every lane, grouped by stage. */
+  public synchronized List<LaneStats> getLaneStats() {
+    final List<LaneStats> stats = new ArrayList<>(mStages.size() * PRIORITIES_DESCENDING.length);
+    for (Stage stage : mStages) {
+      for (Priority priority : PRIORITIES_DESCENDING) {
+        final Lane lane = stage.mLanes[priority.ordinal()];
+        stats.add(
+            new LaneStats(
+                stage.mName,
+                priority,
+                lane.mTasks.size(),
+                lane.mStartedCount,
+                lane.mTotalWaitMs,
+                lane.mMaxWaitMs));
+      }
+    }
+    return stats;
+  }
+
+  private void enqueue(Stage stage, Runnable runnable, Priority priority) {
+    final Task task = new Task(stage, runnable);
+    final boolean startThread;
+    synchronized (this) {
+      task.mSequenceNumber = mNextSequenceNumber++;
+      task.mEnqueueTimeMs = SystemClock.uptimeMillis();
+      stage.mLanes[priority.ordinal()].mTasks.addLast(task);
+      // an idle thread means no other task is waiting, so even a stage at its limit can have it
+      if (wakeUpIdleThread()) {
+        return;
+      }
+      startThread = mStartedThreads < mThreadCount;
+      if (startThread) {
+        mStartedThreads++;
+      }
+    }
+    if (startThread) {
+      mThreadFactory
+          .newThread(
+              new Runnable() {
+                @Override
+                public void run() {
+                  runTasks();
+                }
+              })
+          .start();
+    }
+  }
+
+  private void runTasks() {
+    Task task = null;
+    while (true) {
+      synchronized (this) {
+        if (task != null) {
+          task.mStage.mRunning--;
+        }
+        task = pollTask();
+        while (task == null) {
+          mIdleThreads++;
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            // keep serving, the threads live as long as the process
+          } finally {
+            mIdleThreads--;
+            if (mPendingWakeUps > 0) {
+              mPendingWakeUps--;
+            }
+          }
+          task = pollTask();
+        }
+        // other tasks may be waiting for a thread
+        if (hasWaitingTask()) {
+          wakeUpIdleThread();
+        }
+      }
+      try {
+        task.mRunnable.run();
+      } catch (Throwable t) {
+        FLog.e(TAG, t, "Uncaught exception in %s task", task.mStage.mName);
+      }
+    }
+  }
+
+  /** Notifies an idle thread that has not been notified yet, if any */
+  @GuardedBy("this")
+  private boolean wakeUpIdleThread() {
+    if (mIdleThreads <= mPendingWakeUps) {
+      return false;
+    }
+    mPendingWakeUps++;
+    notify();
+    return true;
+  }
+
+  /**
+   * Takes the next task of the stages under their limit or, if none of them has one, of the stages
+   * at their limit.
+   */
+  @GuardedBy("this")
+  @Nullable
+  private Task pollTask() {
+    final long now = SystemClock.uptimeMillis();
+    Lane lane = findNextLane(now, false);
+    if (lane == null) {
+      lane = findNextLane(now, true);
+    }
+    return lane == null ? null : takeTask(lane, now);
+  }
+
+  /**
+   * Finds the lane whose head has the highest priority once promoted for the time it waited,
+   * preferring the oldest head on ties.
+   */
+  @GuardedBy("this")
+  @Nullable
+  private Lane findNextLane(long now, boolean includeStagesAtLimit) {
+    Lane bestLane = null;
+    int bestRank = -1;
+    long bestSequenceNumber = Long.MAX_VALUE;
+    for (int i = 0; i < mStages.size(); i++) {
+      final Stage stage = mStages.get(i);
+      if (!includeStagesAtLimit && stage.mRunning >= stage.mMaxConcurrency) {
+        continue;
+      }
+      // the lanes are FIFO, so only their heads can rank the highest
+      for (int priority = 0; priority < stage.mLanes.length; priority++) {
+        final Lane lane = stage.mLanes[priority];
+        final Task head = lane.mTasks.peekFirst();
+        if (head == null) {
+          continue;
+        }
+        final long promotions = (now - head.mEnqueueTimeMs) / mMaxWaitMs;
+        final int rank = (int) Math.min(PRIORITIES_DESCENDING.length - 1, priority + promotions);
+        if (rank > bestRank || (rank == bestRank && head.mSequenceNumber < bestSequenceNumber)) {
+          bestLane = lane;
+          bestRank = rank;
+          bestSequenceNumber = head.mSequenceNumber;
+        }
+      }
+    }
+    return bestLane;
+  }
+
+  @GuardedBy("this")
+  private Task takeTask(Lane lane, long now) {
+    final Task task = lane.mTasks.removeFirst();
+    task.mStage.mRunning++;
+    final long waitMs = now - task.mEnqueueTimeMs;
+    lane.mStartedCount++;
+    lane.mTotalWaitMs += waitMs;
+    lane.mMaxWaitMs = Math.max(lane.mMaxWaitMs, waitMs);
+    return task;
+  }
+
+  @GuardedBy("this")
+  private boolean hasWaitingTask() {
+    for (int i = 0; i < mStages.size(); i++) {
+      for (Lane lane : mStages.get(i).mLanes) {
+        if (!lane.mTasks.isEmpty()) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /** Stats of the lane of a stage for a priority */
+  public static class LaneStats {
+    public final String stageName;
+    public final Priority priority;
+    /** Number of tasks waiting in the lane */
+    public final int queueDepth;
+    /** Number of tasks taken from the lane so far */
+    public final long startedCount;
+    /** Total time the started tasks spent waiting in the lane */
+    public final long totalWaitMs;
+    /** Longest time a started task spent waiting in the lane */
+    public final long maxWaitMs;
+
+    LaneStats(
+        String stageName,
+        Priority priority,
+        int queueDepth,
+        long startedCount,
+        long totalWaitMs,
+        long maxWaitMs) {
+      this.stageName = stageName;
+      this.priority = priority;
+      this.queueDepth = queueDepth;
+      this.startedCount = startedCount;
+      this.totalWaitMs = totalWaitMs;
+      this.maxWaitMs = maxWaitMs;
+    }
+
+    @Override
+    public String toString() {
+      return stageName
+          + "/"
+          + priority
+          + ": depth="
+          + queueDepth
+          + " started="
+          + startedCount
+          + " totalWaitMs="
+          + totalWaitMs
+          + " maxWaitMs="
+          + maxWaitMs;
+    }
+  }
+
+  private class Stage implements PriorityAwareExecutor {
+    final String mName;
+    final int mMaxConcurrency;
+    final Lane[] mLanes;
+
+    @GuardedBy("PriorityLaneScheduler.this")
+    int mRunning;
+
+    Stage(String name, int maxConcurrency) {
+      mName = name;
+      mMaxConcurrency = maxConcurrency;
+      mLanes = new Lane[PRIORITIES_DESCENDING.length];
+      for (int i = 0; i < mLanes.length; i++) {
+        mLanes[i] = new Lane();
+      }
+    }
+
+    @Override
+    public void execute(Runnable runnable) {
+      enqueue(this, runnable, Priority.MEDIUM);
+    }
+
+    @Override
+    public void execute(Runnable runnable, Priority priority) {
+      enqueue(this, runnable, priority);
+    }
+  }
+
+  private static class Lane {
+    final ArrayDeque<Task> mTasks = new ArrayDeque<>();
+    long mStartedCount;
+    long mTotalWaitMs;
+    long mMaxWaitMs;
+  }
+
+  private static class Task {
+    final Stage mStage;
+    final Runnable mRunnable;
+    long mSequenceNumber;
+    long mEnqueueTimeMs;
+
+    Task(Stage stage, Runnable runnable) {
+      mStage = stage;
+      mRunnable = runnable;
+    }
+  }
+}
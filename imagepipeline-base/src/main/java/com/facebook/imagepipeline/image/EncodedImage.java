@@ -24,6 +24,7 @@ import com.facebook.imageutils.BitmapUtil;
 import com.facebook.imageutils.HeifExifUtil;
 import com.facebook.imageutils.ImageMetaData;
 import com.facebook.imageutils.JfifUtil;
+import com.facebook.imageutils.StreamingImageHeaderParser;
 import com.facebook.imageutils.WebpUtil;
 import com.facebook.infer.annotation.FalseOnNull;
 import java.io.Closeable;
@@ -56,6 +57,7 @@ public class EncodedImage implements Closeable {
   public static final int DEFAULT_SAMPLE_SIZE = 1;
 
   private static boolean sUseCachedMetadata;
+  private static boolean sUseStreamingMetaDataParser;
 
   // Only one of this will be set. The EncodedImage can either be backed by a ByteBuffer or a
   // Supplier of InputStream, but not both.
@@ -361,6 +363,9 @@ public class EncodedImage implements Closeable {
 
   /** Sets the encoded image meta data. */
   private void internalParseMetaData() {
+    if (sUseStreamingMetaDataParser && parseMetaDataFromHeader()) {
+      return;
+    }
     final ImageFormat imageFormat =
         ImageFormatChecker.getImageFormat_WrapIOException(getInputStream());
     mImageFormat = imageFormat;
@@ -387,6 +392,32 @@ public class EncodedImage implements Closeable {
     }
   }
 
+  /**
+   * Reads the meta data from the header of the image in a single pass, instead of reading the
+   * image once for each of the format, the dimensions and the orientation.
+   *
+   * @return false if the parser cannot read all of the meta data of this image
+   */
+  private boolean parseMetaDataFromHeader() {
+    final InputStream inputStream = getInputStream();
+    if (inputStream == null) {
+      return false;
+    }
+    final StreamingImageHeaderParser parser = new StreamingImageHeaderParser();
+    try {
+      parser.parseMetaData(inputStream);
+    } catch (IOException e) {
+      return false;
+    } finally {
+      try {
+        inputStream.close();
+      } catch (IOException e) {
+        // Head in the sand
+      }
+    }
+    return copyParsedMetaDataFrom(parser);
+  }
+
   /** We get the size from a WebP image */
   @Nullable
   private Pair<Integer, Integer> readWebPImageSize() {
@@ -446,6 +477,50 @@ public class EncodedImage implements Closeable {
     mHasParsedMetadata = encodedImage.hasParsedMetaData();
   }
 
+  /**
+   * Copies the format, dimensions, rotation and color space of an image holding a prefix of the
+   * same encoded bytes, if that image has all of them, so that this image does not parse its header
+   * again. The other image may already be closed.
+   *
+   * @return true if the meta data was copied
+   */
+  public boolean copyParsedMetaDataFrom(EncodedImage prefix) {
+    if (prefix.mImageFormat == ImageFormat.UNKNOWN || !isMetaDataAvailable(prefix)) {
+      return false;
+    }
+    mImageFormat = prefix.mImageFormat;
+    mWidth = prefix.mWidth;
+    mHeight = prefix.mHeight;
+    mRotationAngle = prefix.mRotationAngle;
+    mExifOrientation = prefix.mExifOrientation;
+    mColorSpace = prefix.mColorSpace;
+    mHasParsedMetadata = true;
+    return true;
+  }
+
+  /**
+   * Copies the format, dimensions, rotation and color space read by a parser from a prefix of the
+   * encoded bytes, if it has all of them, so that this image does not parse its header again. A
+   * rotation angle set on this image is kept.
+   *
+   * @return true if the meta data was copied
+   */
+  public boolean copyParsedMetaDataFrom(StreamingImageHeaderParser parser) {
+    if (!parser.isMetaDataComplete()) {
+      return false;
+    }
+    mImageFormat = parser.getImageFormat();
+    mWidth = parser.getWidth();
+    mHeight = parser.getHeight();
+    if (mRotationAngle == UNKNOWN_ROTATION_ANGLE) {
+      mExifOrientation = parser.getExifOrientation();
+      mRotationAngle = parser.getRotationAngle();
+    }
+    mColorSpace = parser.getColorSpace();
+    mHasParsedMetadata = true;
+    return true;
+  }
+
   /** Returns true if all the image information has loaded, false otherwise. */
   public static boolean isMetaDataAvailable(EncodedImage encodedImage) {
     return encodedImage.mRotationAngle >= 0
@@ -490,6 +565,19 @@ public class EncodedImage implements Closeable {
     sUseCachedMetadata = useCachedMetadata;
   }
 
+  /**
+   * Makes the meta data be read in a single pass over the header with {@link
+   * StreamingImageHeaderParser}, as the bytes are received for network fetches, for the formats it
+   * supports.
+   */
+  public static void setUseStreamingMetaDataParser(boolean useStreamingMetaDataParser) {
+    sUseStreamingMetaDataParser = useStreamingMetaDataParser;
+  }
+
+  public static boolean useStreamingMetaDataParser() {
+    return sUseStreamingMetaDataParser;
+  }
+
   protected boolean hasParsedMetaData() {
     return mHasParsedMetadata;
   }
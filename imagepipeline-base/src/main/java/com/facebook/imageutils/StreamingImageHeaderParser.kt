@@ -0,0 +1,537 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imageutils
+
+import android.graphics.ColorSpace
+import android.media.ExifInterface
+import android.os.Build
+import com.facebook.imageformat.DefaultImageFormats
+import com.facebook.imageformat.ImageFormat
+import com.facebook.imageformat.ImageFormatChecker
+import java.io.ByteArrayInputStream
+import java.io.IOException
+import java.io.InputStream
+
+/**
+ * Parses the meta data of an encoded image in a single pass over its bytes, as they are received.
+ *
+ * The bytes are passed in order to [parse], each of them once, without being buffered except for
+ * the few header segments the meta data is read from. The format is known as soon as enough bytes
+ * for [ImageFormatChecker] are received, and the dimensions, EXIF orientation and color space once
+ * [isMetaDataComplete]: at the first scan of a JPEG, at the first data chunk of a PNG, and after a
+ * few bytes for WebP and GIF. The complete scans of a progressive JPEG are then counted as they are
+ * received.
+ *
+ * The meta data of the other formats, of malformed images, and on API 26+ of the images with an
+ * embedded color profile, never completes: it has to be parsed from the whole image instead.
+ *
+ * This class is not thread safe.
+ */
+class StreamingImageHeaderParser {
+
+  /** Number of bytes of the image parsed so far, counted once its format is determined. */
+  var bytesParsed = 0
+    private set
+
+  /** The format of the image, or [ImageFormat.UNKNOWN] until enough bytes are received. */
+  var imageFormat: ImageFormat = ImageFormat.UNKNOWN
+    private set
+
+  var width = UNKNOWN_DIMENSION
+    private set
+
+  var height = UNKNOWN_DIMENSION
+    private set
+
+  /** The EXIF orientation of a JPEG, or [ExifInterface.ORIENTATION_UNDEFINED]. */
+  var exifOrientation = ExifInterface.ORIENTATION_UNDEFINED
+    private set
+
+  /** The color space of the image. It is always null if API level < 26, and for WebP. */
+  var colorSpace: ColorSpace? = null
+    private set
+
+  /** Whether the image is a progressive JPEG or an interlaced PNG. */
+  var isProgressive = false
+    private set
+
+  /** Number of complete scans of a progressive JPEG. */
+  var scanCount = 0
+    private set
+
+  /** Offset of the end of the last complete scan of a progressive JPEG, or -1. */
+  var lastScanEndOffset = -1
+    private set
+
+  /** Whether the format, dimensions, orientation and color space are all known. */
+  var isMetaDataComplete = false
+    private set
+
+  /** Whether the parser ignores the following bytes, because it has nothing left to find. */
+  var isFinished = false
+    private set
+
+  private var hasFailed = false
+  private var hasEmbeddedColorProfile = false
+
+  private val header = ByteArray(ImageFormatChecker.getInstance().maxHeaderLength)
+  private var headerLength = 0
+
+  private var state = STATE_FORMAT
+  private var buffer = ByteArray(INITIAL_BUFFER_SIZE)
+  private var bufferLength = 0
+  private var bufferedCount = 0
+  private var skipCount = 0
+  private var segmentRemaining = 0
+  private var jpegMarker = 0
+  private var hasReadApp1 = false
+  private var isAfterFirstMarkerByte = false
+
+  val rotationAngle: Int
+    get() = JfifUtil.getAutoRotateAngleFromOrientation(exifOrientation)
+
+  /** Whether [scanCount] grows with the scans of a progressive JPEG as they are received. */
+  val isCountingScans: Boolean
+    get() = imageFormat == DefaultImageFormats.JPEG && isProgressive && !hasFailed
+
+  /** Parses the next [length] bytes of the image. */
+  fun parse(data: ByteArray, offset: Int, length: Int) {
+    if (isFinished) {
+      return
+    }
+    if (state != STATE_FORMAT) {
+      parseBytes(data, offset, length)
+      return
+    }
+    val count = minOf(header.size - headerLength, length)
+    System.arraycopy(data, offset, header, headerLength, count)
+    headerLength += count
+    if (headerLength < header.size) {
+      return
+    }
+    startFormat(ImageFormatChecker.getInstance().determineImageFormat(header, headerLength))
+    parseBytes(header, 0, headerLength)
+    parseBytes(data, offset + count, length - count)
+  }
+
+  /**
+   * Parses the image from the stream until its meta data is complete, or cannot be.
+   *
+   * @return whether the meta data is complete
+   */
+  @Throws(IOException::class)
+  fun parseMetaData(inputStream: InputStream): Boolean {
+    val bytes = ByteArray(READ_SIZE)
+    while (!isMetaDataComplete && !isFinished) {
+      val count = inputStream.read(bytes)
+      if (count < 0) {
+        break
+      }
+      parse(bytes, 0, count)
+    }
+    return isMetaDataComplete
+  }
+
+  private fun startFormat(format: ImageFormat) {
+    imageFormat = format
+    when {
+      format == DefaultImageFormats.JPEG -> expect(2, STATE_JPEG_SOI)
+      format == DefaultImageFormats.PNG -> expect(PNG_SIGNATURE_LENGTH, STATE_PNG_SIGNATURE)
+      format == DefaultImageFormats.GIF -> expect(GIF_HEADER_LENGTH, STATE_GIF_HEADER)
+      DefaultImageFormats.isWebpFormat(format) -> expect(WEBP_HEADER_LENGTH, STATE_WEBP_HEADER)
+      else -> finish()
+    }
+  }
+
+  private fun parseBytes(data: ByteArray, offset: Int, length: Int) {
+    var position = offset
+    val end = offset + length
+    while (position < end && !isFinished) {
+      val count: Int
+      if (skipCount > 0) {
+        count = minOf(skipCount, end - position)
+        skipCount -= count
+      } else if (state == STATE_JPEG_SCAN) {
+        count = scanJpegEntropyData(data, position, end)
+      } else {
+        count = minOf(bufferLength - bufferedCount, end - position)
+        System.arraycopy(data, position, buffer, bufferedCount, count)
+        bufferedCount += count
+      }
+      position += count
+      bytesParsed += count
+      if (skipCount == 0 && state != STATE_JPEG_SCAN && bufferedCount == bufferLength) {
+        onBuffered()
+      }
+    }
+  }
+
+  /** Buffers the next [length] bytes, passed to [onBuffered] in the given state. */
+  private fun expect(length: Int, nextState: Int) {
+    if (length > buffer.size) {
+      buffer = ByteArray(length)
+    }
+    bufferLength = length
+    bufferedCount = 0
+    state = nextState
+  }
+
+  private fun onBuffered() {
+    when (state) {
+      STATE_JPEG_SOI -> {
+        if (readUnsignedByte(0) != JfifUtil.MARKER_FIRST_BYTE ||
+            readUnsignedByte(1) != JfifUtil.MARKER_SOI) {
+          fail()
+        } else {
+          expect(1, STATE_JPEG_MARKER_PREFIX)
+        }
+      }
+      STATE_JPEG_MARKER_PREFIX -> {
+        if (readUnsignedByte(0) != JfifUtil.MARKER_FIRST_BYTE) {
+          fail()
+        } else {
+          expect(1, STATE_JPEG_MARKER)
+        }
+      }
+      STATE_JPEG_MARKER -> onJpegMarker(readUnsignedByte(0))
+      STATE_JPEG_SEGMENT_LENGTH -> onJpegSegment(readBigEndian(0, 2) - 2)
+      STATE_JPEG_APP1 -> {
+        exifOrientation = readExifOrientation(bufferLength)
+        expect(1, STATE_JPEG_MARKER_PREFIX)
+      }
+      STATE_JPEG_APP2 -> {
+        if (String(buffer, 0, ICC_PROFILE_SIGNATURE.length, Charsets.US_ASCII) ==
+            ICC_PROFILE_SIGNATURE) {
+          hasEmbeddedColorProfile = true
+        }
+        skipCount = segmentRemaining
+        expect(1, STATE_JPEG_MARKER_PREFIX)
+      }
+      STATE_JPEG_SOF -> {
+        height = readBigEndian(1, 2)
+        width = readBigEndian(3, 2)
+        isProgressive = isProgressiveSOFn(jpegMarker)
+        skipCount = segmentRemaining
+        expect(1, STATE_JPEG_MARKER_PREFIX)
+      }
+      STATE_PNG_SIGNATURE -> expect(PNG_CHUNK_HEADER_LENGTH, STATE_PNG_CHUNK_HEADER)
+      STATE_PNG_CHUNK_HEADER -> onPngChunk(readBigEndian(0, 4), readBigEndian(4, 4))
+      STATE_PNG_IHDR -> {
+        width = readBigEndian(0, 4)
+        height = readBigEndian(4, 4)
+        isProgressive = readUnsignedByte(12) == PNG_INTERLACE_ADAM7
+        skipCount = segmentRemaining
+        expect(PNG_CHUNK_HEADER_LENGTH, STATE_PNG_CHUNK_HEADER)
+      }
+      STATE_GIF_HEADER -> {
+        width = readLittleEndian(6, 2)
+        height = readLittleEndian(8, 2)
+        complete(canHaveColorSpace = true)
+      }
+      STATE_WEBP_HEADER -> {
+        if (readBigEndian(0, 4) != RIFF || readBigEndian(8, 4) != WEBP) {
+          fail()
+        } else {
+          expect(WEBP_CHUNK_HEADER_LENGTH, STATE_WEBP_CHUNK_HEADER)
+        }
+      }
+      STATE_WEBP_CHUNK_HEADER -> onWebpChunk(readBigEndian(0, 4))
+      STATE_WEBP_VP8 -> {
+        if (readUnsignedByte(3) != 0x9D ||
+            readUnsignedByte(4) != 0x01 ||
+            readUnsignedByte(5) != 0x2A) {
+          fail()
+        } else {
+          width = readLittleEndian(6, 2) and VP8_DIMENSION_MASK
+          height = readLittleEndian(8, 2) and VP8_DIMENSION_MASK
+          complete(canHaveColorSpace = false)
+        }
+      }
+      STATE_WEBP_VP8L -> {
+        if (readUnsignedByte(0) != VP8L_SIGNATURE) {
+          fail()
+        } else {
+          val bits = readLittleEndian(1, 4)
+          width = (bits and 0x3FFF) + 1
+          height = (bits shr 14 and 0x3FFF) + 1
+          complete(canHaveColorSpace = false)
+        }
+      }
+      STATE_WEBP_VP8X -> {
+        width = readLittleEndian(4, 3) + 1
+        height = readLittleEndian(7, 3) + 1
+        complete(canHaveColorSpace = false)
+      }
+    }
+  }
+
+  private fun onJpegMarker(marker: Int) {
+    when {
+      // fill bytes before the marker
+      marker == JfifUtil.MARKER_FIRST_BYTE -> expect(1, STATE_JPEG_MARKER)
+      marker == JfifUtil.MARKER_SOI ||
+          marker == JfifUtil.MARKER_TEM ||
+          marker in JfifUtil.MARKER_RST0..JfifUtil.MARKER_RST7 ->
+          expect(1, STATE_JPEG_MARKER_PREFIX)
+      marker == JfifUtil.MARKER_EOI -> finish()
+      else -> {
+        jpegMarker = marker
+        expect(2, STATE_JPEG_SEGMENT_LENGTH)
+      }
+    }
+  }
+
+  private fun onJpegSegment(length: Int) {
+    when {
+      length < 0 -> fail()
+      jpegMarker == JfifUtil.MARKER_SOS -> {
+        if (!isMetaDataComplete) {
+          if (width < 0 || height < 0) {
+            fail()
+            return
+          }
+          complete(canHaveColorSpace = true)
+          if (!isProgressive) {
+            // the scans of baseline JPEGs are not decoded progressively
+            finish()
+            return
+          }
+        }
+        skipCount = length
+        state = STATE_JPEG_SCAN
+      }
+      // like JfifUtil, the orientation is only read from the first APP1 segment
+      jpegMarker == JfifUtil.MARKER_APP1 && !hasReadApp1 -> {
+        hasReadApp1 = true
+        expect(length, STATE_JPEG_APP1)
+        if (length == 0) {
+          onBuffered()
+        }
+      }
+      jpegMarker == MARKER_APP2 && length >= ICC_PROFILE_SIGNATURE.length -> {
+        segmentRemaining = length - ICC_PROFILE_SIGNATURE.length
+        expect(ICC_PROFILE_SIGNATURE.length, STATE_JPEG_APP2)
+      }
+      isSOFn(jpegMarker) && width < 0 -> {
+        if (length < SOF_LENGTH) {
+          fail()
+          return
+        }
+        segmentRemaining = length - SOF_LENGTH
+        expect(SOF_LENGTH, STATE_JPEG_SOF)
+      }
+      else -> {
+        skipCount = length
+        expect(1, STATE_JPEG_MARKER_PREFIX)
+      }
+    }
+  }
+
+  /**
+   * Looks for the marker ending the entropy coded data of a scan.
+   *
+   * @return the number of bytes read
+   */
+  private fun scanJpegEntropyData(data: ByteArray, offset: Int, end: Int): Int {
+    var position = offset
+    while (position < end) {
+      val value = data[position++].toInt() and 0xFF
+      if (!isAfterFirstMarkerByte) {
+        isAfterFirstMarkerByte = value == JfifUtil.MARKER_FIRST_BYTE
+        continue
+      }
+      if (value == JfifUtil.MARKER_FIRST_BYTE) {
+        continue
+      }
+      isAfterFirstMarkerByte = false
+      if (value == JfifUtil.MARKER_ESCAPE_BYTE ||
+          value in JfifUtil.MARKER_RST0..JfifUtil.MARKER_RST7) {
+        continue
+      }
+      // the scan ends before the first byte of the marker
+      scanCount++
+      lastScanEndOffset = bytesParsed + (position - offset) - 2
+      onJpegMarker(value)
+      break
+    }
+    return position - offset
+  }
+
+  private fun onPngChunk(length: Int, type: Int) {
+    when {
+      length < 0 -> fail()
+      type == PNG_IHDR -> {
+        if (length < PNG_IHDR_LENGTH) {
+          fail()
+          return
+        }
+        segmentRemaining = length - PNG_IHDR_LENGTH + PNG_CRC_LENGTH
+        expect(PNG_IHDR_LENGTH, STATE_PNG_IHDR)
+      }
+      type == PNG_IDAT -> {
+        if (width < 0 || height < 0) {
+          fail()
+        } else {
+          complete(canHaveColorSpace = true)
+        }
+      }
+      else -> {
+        if (type == PNG_ICCP || type == PNG_CHRM || type == PNG_GAMA || type == PNG_CICP) {
+          hasEmbeddedColorProfile = true
+        }
+        skipCount = length + PNG_CRC_LENGTH
+        expect(PNG_CHUNK_HEADER_LENGTH, STATE_PNG_CHUNK_HEADER)
+      }
+    }
+  }
+
+  private fun onWebpChunk(fourCC: Int) {
+    when (fourCC) {
+      VP8 -> expect(VP8_HEADER_LENGTH, STATE_WEBP_VP8)
+      VP8L -> expect(VP8L_HEADER_LENGTH, STATE_WEBP_VP8L)
+      VP8X -> expect(VP8X_HEADER_LENGTH, STATE_WEBP_VP8X)
+      else -> fail()
+    }
+  }
+
+  /**
+   * Completes the meta data once the dimensions are known.
+   *
+   * @param canHaveColorSpace false for the formats whose color space is not read, like WebP
+   */
+  private fun complete(canHaveColorSpace: Boolean) {
+    if (canHaveColorSpace && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+      if (hasEmbeddedColorProfile) {
+        // only the platform decoder reads the color space of the profile
+        if (!isCountingScans) {
+          finish()
+        }
+        return
+      }
+      colorSpace = ColorSpace.get(ColorSpace.Named.SRGB)
+    }
+    isMetaDataComplete = true
+    if (imageFormat != DefaultImageFormats.JPEG) {
+      finish()
+    }
+  }
+
+  private fun fail() {
+    hasFailed = true
+    finish()
+  }
+
+  private fun finish() {
+    isFinished = true
+  }
+
+  private fun readExifOrientation(length: Int): Int {
+    if (length <= EXIF_HEADER_LENGTH ||
+        readBigEndian(0, 4) != JfifUtil.APP1_EXIF_MAGIC ||
+        readBigEndian(4, 2) != 0) {
+      return ExifInterface.ORIENTATION_UNDEFINED
+    }
+    return try {
+      TiffUtil.readOrientationFromTIFF(
+          ByteArrayInputStream(buffer, EXIF_HEADER_LENGTH, length - EXIF_HEADER_LENGTH),
+          length - EXIF_HEADER_LENGTH)
+    } catch (e: IOException) {
+      ExifInterface.ORIENTATION_UNDEFINED
+    }
+  }
+
+  private fun readUnsignedByte(offset: Int): Int = buffer[offset].toInt() and 0xFF
+
+  private fun readBigEndian(offset: Int, length: Int): Int {
+    var value = 0
+    for (i in 0 until length) {
+      value = value shl 8 or readUnsignedByte(offset + i)
+    }
+    return value
+  }
+
+  private fun readLittleEndian(offset: Int, length: Int): Int {
+    var value = 0
+    for (i in length - 1 downTo 0) {
+      value = value shl 8 or readUnsignedByte(offset + i)
+    }
+    return value
+  }
+
+  companion object {
+    const val UNKNOWN_DIMENSION = -1
+
+    private const val READ_SIZE = 4 * 1024
+    private const val INITIAL_BUFFER_SIZE = 16
+
+    private const val STATE_FORMAT = 0
+    private const val STATE_JPEG_SOI = 1
+    private const val STATE_JPEG_MARKER_PREFIX = 2
+    private const val STATE_JPEG_MARKER = 3
+    private const val STATE_JPEG_SEGMENT_LENGTH = 4
+    private const val STATE_JPEG_APP1 = 5
+    private const val STATE_JPEG_APP2 = 6
+    private const val STATE_JPEG_SOF = 7
+    private const val STATE_JPEG_SCAN = 8
+    private const val STATE_PNG_SIGNATURE = 9
+    private const val STATE_PNG_CHUNK_HEADER = 10
+    private const val STATE_PNG_IHDR = 11
+    private const val STATE_GIF_HEADER = 12
+    private const val STATE_WEBP_HEADER = 13
+    private const val STATE_WEBP_CHUNK_HEADER = 14
+    private const val STATE_WEBP_VP8 = 15
+    private const val STATE_WEBP_VP8L = 16
+    private const val STATE_WEBP_VP8X = 17
+
+    private const val MARKER_APP2 = 0xE2
+    private const val ICC_PROFILE_SIGNATURE = "ICC_PROFILE\u0000"
+    // precision, height and width
+    private const val SOF_LENGTH = 5
+    // "Exif" and two zero bytes
+    private const val EXIF_HEADER_LENGTH = 6
+
+    private const val PNG_SIGNATURE_LENGTH = 8
+    private const val PNG_CHUNK_HEADER_LENGTH = 8
+    private const val PNG_IHDR_LENGTH = 13
+    private const val PNG_CRC_LENGTH = 4
+    private const val PNG_INTERLACE_ADAM7 = 1
+    private const val PNG_IHDR = 0x49484452
+    private const val PNG_IDAT = 0x49444154
+    private const val PNG_ICCP = 0x69434350
+    private const val PNG_CHRM = 0x6348524D
+    private const val PNG_GAMA = 0x67414D41
+    private const val PNG_CICP = 0x63494350
+
+    // signature, logical screen width and height
+    private const val GIF_HEADER_LENGTH = 10
+
+    // "RIFF", file size and "WEBP"
+    private const val WEBP_HEADER_LENGTH = 12
+    private const val WEBP_CHUNK_HEADER_LENGTH = 8
+    private const val RIFF = 0x52494646
+    private const val WEBP = 0x57454250
+    private const val VP8 = 0x56503820
+    private const val VP8L = 0x5650384C
+    private const val VP8X = 0x56503858
+    // frame tag, start code, width and height
+    private const val VP8_HEADER_LENGTH = 10
+    private const val VP8_DIMENSION_MASK = 0x3FFF
+    // signature and 4 bytes of dimensions
+    private const val VP8L_HEADER_LENGTH = 5
+    private const val VP8L_SIGNATURE = 0x2F
+    // flags, reserved, width and height
+    private const val VP8X_HEADER_LENGTH = 10
+
+    private fun isSOFn(marker: Int): Boolean =
+        // There are no SOF4, SOF8, SOF12
+        marker in 0xC0..0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC
+
+    private fun isProgressiveSOFn(marker: Int): Boolean =
+        marker == 0xC2 || marker == 0xC6 || marker == 0xCA || marker == 0xCE
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.cache.common;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/** Known answer tests of {@link Murmur3ResourceIdHasher} */
+@RunWith(RobolectricTestRunner.class)
+public class Murmur3ResourceIdHasherTest {
+
+  private static final String INPUT = "0123456789abcdefghijklmnopqrstuv";
+
+  // lengths of the prefixes of INPUT, covering every tail length with and without a full block
+  private static final int[] LENGTHS = {
+    0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 24, 31, 32
+  };
+
+  // MurmurHash3_x64_128 of the prefixes of INPUT with seed 0, h1 then h2 in little endian order
+  private static final String[] HASHES = {
+        "00000000000000000000000000000000",
+        "80a346d5bedec92a095e873ce5e98d3a",
+        "8e70c17faa4e9e64d62a0f23105194e6",
+        "db3b357c0df668ce8af16b93d54c3600",
+        "5482f3e77c75950f4bab126f9e7cc6b4",
+        "c13f7f4959e4040f13d68da22362ccec",
+        "270abe8625a9c08844827237612d0681",
+        "a6f70626b89feb134ef3de2f49efebb4",
+        "4d3587739b033682204996d8879336c3",
+        "ba38e79f51871e4cf197d599f87aa172",
+        "24ebff3eac52963f070b99f27ca12780",
+        "2986d329cdeac34b929cda97e7d9b27c",
+        "a73c9eee8c2b356658fca881b3f0eda9",
+        "1e936542dbf8b25eb70a1de653e81c80",
+        "1af759dd14a0a4073122d24c8537f4aa",
+        "5123bfc0f6d52da6f04c547c0cf5cc4f",
+        "a7d14acf946de04bda08a7635c5bc387",
+        "def945aa2d61328eee72c306c2f40008",
+        "7aad5b761bbd4b35d7152a0ef172dc2c",
+        "42056e1a0c7828b8b2e9a71391732239",
+        "f7f1edc0ce5c282f0ba5de7463d605c4",
+  };
+
+  @Test
+  public void testReferenceVectors() throws Exception {
+    byte[] input = INPUT.getBytes("UTF-8");
+    for (int i = 0; i < LENGTHS.length; i++) {
+      byte[] data = Arrays.copyOf(input, LENGTHS[i]);
+      assertEquals(
+          "length " + LENGTHS[i], HASHES[i], toHex(Murmur3ResourceIdHasher.hash128(data, 0)));
+    }
+  }
+
+  // published vectors, e.g. in Guava's Murmur3Hash128Test
+  @Test
+  public void testPublishedVectors() throws Exception {
+    assertEquals("67f8103e694299624753ebba820bdb92", hash("hell"));
+    assertEquals(
+        "6c1b07bc7bbc4be347939ac4a93c437a", hash("The quick brown fox jumps over the lazy dog"));
+  }
+
+  @Test
+  public void testResourceId() {
+    Murmur3ResourceIdHasher hasher = Murmur3ResourceIdHasher.getInstance();
+    assertEquals(
+        "bBsHvHu8S-NHk5rEqTxDeg", hasher.hash("The quick brown fox jumps over the lazy dog"));
+    // non-ASCII characters are hashed as UTF-8
+    assertEquals("f2N3LUu9OlU-_HaGnoA8AQ", hasher.hash("https://example.com/\u00e9t\u00e9.jpg"));
+  }
+
+  private static String hash(String input) throws UnsupportedEncodingException {
+    return toHex(Murmur3ResourceIdHasher.hash128(input.getBytes("UTF-8"), 0));
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder builder = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      builder.append(String.format("%02x", b));
+    }
+    return builder.toString();
+  }
+}
@@ -27,6 +27,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -523,6 +524,161 @@ public class DefaultDiskStorageTest {
     Assert.assertEquals(files.get(2), entriesAfterRemoval.get(1).getResource().getFile());
   }
 
+  @Test
+  public void testJournalRestoresEntries() throws Exception {
+    DefaultDiskStorage storage = getJournaledStorage();
+    when(mClock.now()).thenReturn(1000L);
+    writeToStorage(storage, "R1", new byte[] {0, 1, 2});
+    when(mClock.now()).thenReturn(2000L);
+    writeToStorage(storage, "R2", new byte[] {0, 1});
+    writeToStorage(storage, "R3", new byte[] {0});
+    // first listing walks the directories and writes the journal
+    Assert.assertEquals(3, storage.getEntries().size());
+    when(mClock.now()).thenReturn(3000L);
+    storage.touch("R1", null);
+    storage.remove("R3");
+
+    // a new instance should list the same entries from the journal only
+    DefaultDiskStorage restored = getJournaledStorage();
+    File journal = new File(getVersionDirectory(), DiskStorageJournal.JOURNAL_FILE_NAME);
+    Assert.assertTrue(journal.exists());
+    // a content file that is not in the journal is not listed, proving no walk happened
+    File unlisted = restored.getContentFileFor("R4");
+    Assert.assertTrue(unlisted.getParentFile().exists() || unlisted.getParentFile().mkdirs());
+    Assert.assertTrue(unlisted.createNewFile());
+    List<DiskStorage.Entry> entries = new ArrayList<>(restored.getEntries());
+    Assert.assertEquals(2, entries.size());
+    Assert.assertEquals("R1", entries.get(0).getId());
+    Assert.assertEquals(3, entries.get(0).getSize());
+    Assert.assertEquals(3000L, entries.get(0).getTimestamp());
+    Assert.assertEquals("R2", entries.get(1).getId());
+    Assert.assertEquals(2000L, entries.get(1).getTimestamp());
+  }
+
+  @Test
+  public void testCorruptJournalFallsBackToWalk() throws Exception {
+    DefaultDiskStorage storage = getJournaledStorage();
+    writeToStorage(storage, "R1", new byte[] {0, 1, 2});
+    writeToStorage(storage, "R2", new byte[] {0, 1});
+    Assert.assertEquals(2, storage.getEntries().size());
+
+    File journal = new File(getVersionDirectory(), DiskStorageJournal.JOURNAL_FILE_NAME);
+    FileOutputStream fos = new FileOutputStream(journal, true);
+    try {
+      // a truncated record
+      fos.write(new byte[] {1, 0});
+    } finally {
+      fos.close();
+    }
+
+    DefaultDiskStorage restored = getJournaledStorage();
+    Assert.assertEquals(2, restored.getEntries().size());
+    // the journal was rebuilt from the walk and is readable again
+    Assert.assertEquals(2, getJournaledStorage().getEntries().size());
+  }
+
+  @Test
+  public void testJournalSurvivesPurge() throws Exception {
+    DefaultDiskStorage storage = getJournaledStorage();
+    writeToStorage(storage, "R1", new byte[] {0, 1, 2});
+    storage.getEntries();
+    storage.purgeUnexpectedResources();
+    Assert.assertTrue(
+        new File(getVersionDirectory(), DiskStorageJournal.JOURNAL_FILE_NAME).exists());
+  }
+
+  @Test
+  public void testJournalKeepsChangesRecordedDuringRebuild() throws Exception {
+    Assert.assertTrue(getVersionDirectory().mkdirs());
+    DiskStorageJournal journal =
+        new DiskStorageJournal(getVersionDirectory(), mock(CacheErrorLogger.class));
+    Assert.assertNull(journal.getRecords());
+
+    journal.beginRebuild();
+    // changes the directory walk may have missed
+    journal.recordInsert("R3", 3, 30L);
+    journal.recordRemove("R2");
+    journal.recordTouch("R1", 40L);
+    journal.rebuild(Arrays.asList(mockEntry("R1", 1, 10L), mockEntry("R2", 2, 20L)));
+
+    List<DiskStorageJournal.Record> records =
+        new DiskStorageJournal(getVersionDirectory(), mock(CacheErrorLogger.class)).getRecords();
+    Assert.assertEquals(2, records.size());
+    Assert.assertEquals("R1", records.get(0).resourceId);
+    Assert.assertEquals(40L, records.get(0).timestamp);
+    Assert.assertEquals("R3", records.get(1).resourceId);
+    Assert.assertEquals(3, records.get(1).size);
+  }
+
+  @Test
+  public void testStorageWithoutJournalKeepsIt() throws Exception {
+    DefaultDiskStorage storage = getJournaledStorage();
+    writeToStorage(storage, "R1", new byte[] {0, 1, 2});
+    storage.getEntries();
+    File journal = new File(getVersionDirectory(), DiskStorageJournal.JOURNAL_FILE_NAME);
+    Assert.assertTrue(journal.exists());
+
+    DefaultDiskStorage storageWithoutJournal =
+        new DefaultDiskStorage(mDirectory, 1, mock(CacheErrorLogger.class));
+    Assert.assertTrue(journal.exists());
+    writeToStorage(storageWithoutJournal, "R2", new byte[] {0, 1});
+
+    // the entry written without the journal is found by the next periodic walk
+    DefaultDiskStorage restored = getJournaledStorage();
+    Assert.assertEquals(1, restored.getEntries().size());
+    when(mClock.now()).thenReturn(DefaultDiskStorage.JOURNAL_VALIDATION_INTERVAL_MS);
+    Assert.assertEquals(2, restored.getEntries().size());
+    Assert.assertEquals(2, getJournaledStorage().getEntries().size());
+  }
+
+  @Test
+  public void testJournalDropsFileDeletedBehindItsBack() throws Exception {
+    DefaultDiskStorage storage = getJournaledStorage();
+    writeToStorage(storage, "R1", new byte[] {0, 1, 2});
+    writeToStorage(storage, "R2", new byte[] {0, 1});
+    Assert.assertEquals(2, storage.getEntries().size());
+
+    Assert.assertTrue(storage.getContentFileFor("R1").delete());
+    Assert.assertNull(storage.getResource("R1", null));
+    Assert.assertEquals(1, storage.getEntries().size());
+    Assert.assertEquals(1, getJournaledStorage().getEntries().size());
+  }
+
+  @Test
+  public void testJournalBuffersTouches() throws Exception {
+    DefaultDiskStorage storage = getJournaledStorage();
+    writeToStorage(storage, "R1", new byte[] {0, 1, 2});
+    Assert.assertEquals(1, storage.getEntries().size());
+    File journal = new File(getVersionDirectory(), DiskStorageJournal.JOURNAL_FILE_NAME);
+    long journalLength = journal.length();
+
+    when(mClock.now()).thenReturn(1000L);
+    storage.touch("R1", null);
+    Assert.assertNotNull(storage.getResource("R1", null));
+    Assert.assertEquals(journalLength, journal.length());
+
+    // the periodic recount lists the entries and appends the touches
+    Assert.assertEquals(1000L, storage.getEntries().get(0).getTimestamp());
+    Assert.assertTrue(journal.length() > journalLength);
+    Assert.assertEquals(1000L, getJournaledStorage().getEntries().get(0).getTimestamp());
+  }
+
+  private DefaultDiskStorage getJournaledStorage() {
+    return new DefaultDiskStorage(mDirectory, 1, mock(CacheErrorLogger.class), true);
+  }
+
+  private static DiskStorage.Entry mockEntry(String resourceId, long size, long timestamp) {
+    DiskStorage.Entry entry = mock(DiskStorage.Entry.class);
+    when(entry.getId()).thenReturn(resourceId);
+    when(entry.getSize()).thenReturn(size);
+    when(entry.getTimestamp()).thenReturn(timestamp);
+    return entry;
+  }
+
+  private File getVersionDirectory() {
+    return new File(mDirectory, DefaultDiskStorage.getVersionSubdirectoryName(1));
+  }
+
   private static FileBinaryResource writeToStorage(
       final DefaultDiskStorage storage, final String resourceId, final byte[] value)
       throws IOException {
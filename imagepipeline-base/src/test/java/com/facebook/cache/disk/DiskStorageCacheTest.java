@@ -15,9 +15,11 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -31,6 +33,9 @@ import com.facebook.cache.common.CacheEventListener;
 import com.facebook.cache.common.CacheKey;
 import com.facebook.cache.common.CacheKeyUtil;
 import com.facebook.cache.common.MultiCacheKey;
+import com.facebook.cache.common.Murmur3ResourceIdHasher;
+import com.facebook.cache.common.ResourceIdHasher;
+import com.facebook.cache.common.Sha1ResourceIdHasher;
 import com.facebook.cache.common.SimpleCacheKey;
 import com.facebook.cache.common.WriterCallback;
 import com.facebook.cache.common.WriterCallbacks;
@@ -46,16 +51,21 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.powermock.core.classloader.annotations.PrepareOnlyThisForTest;
@@ -495,6 +505,198 @@ public class DiskStorageCacheTest {
     t2.join(1000);
   }
 
+  /** Verify that concurrent mode keeps the index and sizes consistent under parallel access. */
+  @Test
+  public void testConcurrentMode() throws Exception {
+    final DiskStorageCache cache =
+        new DiskStorageCache(
+            mStorage,
+            new DefaultEntryEvictionComparatorSupplier(),
+            new DiskStorageCache.Params(0, 10000, 10000),
+            mCacheEventListener,
+            mock(CacheErrorLogger.class),
+            null,
+            mBackgroundExecutor,
+            false,
+            true,
+            Sha1ResourceIdHasher.getInstance(),
+            null);
+    final int threadCount = 4;
+    final int keysPerThread = 10;
+    final CyclicBarrier barrier = new CyclicBarrier(threadCount);
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < threadCount; t++) {
+      final int threadIndex = t;
+      Thread thread =
+          new Thread(
+              new Runnable() {
+                @Override
+                public void run() {
+                  try {
+                    barrier.await(10, TimeUnit.SECONDS);
+                    for (int i = 0; i < keysPerThread; i++) {
+                      CacheKey key = new SimpleCacheKey("concurrent_" + threadIndex + "_" + i);
+                      cache.insert(key, WriterCallbacks.from(new byte[] {(byte) i}));
+                      assertNotNull(cache.getResource(key));
+                    }
+                  } catch (Exception e) {
+                    throw new RuntimeException(e);
+                  }
+                }
+              });
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join(10000);
+    }
+    for (int t = 0; t < threadCount; t++) {
+      for (int i = 0; i < keysPerThread; i++) {
+        CacheKey key = new SimpleCacheKey("concurrent_" + t + "_" + i);
+        assertTrue(cache.hasKeySync(key));
+        assertTrue(cache.probe(key));
+      }
+    }
+    cache.remove(new SimpleCacheKey("concurrent_0_0"));
+    assertFalse(cache.hasKeySync(new SimpleCacheKey("concurrent_0_0")));
+    assertNull(cache.getResource(new SimpleCacheKey("concurrent_0_0")));
+  }
+
+  /** Verify that in concurrent mode, commits during a recount are not lost from size or index. */
+  @Test
+  public void testConcurrentModeCommitsDuringRecount() throws Exception {
+    final int threadCount = 4;
+    final AtomicBoolean blockListing = new AtomicBoolean();
+    final CountDownLatch listed = new CountDownLatch(1);
+    final CountDownLatch writing = new CountDownLatch(threadCount);
+    final CountDownLatch committed = new CountDownLatch(threadCount);
+    DiskStorage storage = spy(mStorage);
+    doAnswer(
+            new Answer<Collection<DiskStorage.Entry>>() {
+              @Override
+              public Collection<DiskStorage.Entry> answer(InvocationOnMock invocation)
+                  throws Throwable {
+                Collection<DiskStorage.Entry> entries =
+                    (Collection<DiskStorage.Entry>) invocation.callRealMethod();
+                if (blockListing.getAndSet(false)) {
+                  listed.countDown();
+                  // gives the writers a chance to commit before the recount applies the listing
+                  committed.await(500, TimeUnit.MILLISECONDS);
+                }
+                return entries;
+              }
+            })
+        .when(storage)
+        .getEntries();
+    final DiskStorageCache cache =
+        new DiskStorageCache(
+            storage,
+            new DefaultEntryEvictionComparatorSupplier(),
+            new DiskStorageCache.Params(0, 10000, 10000),
+            mCacheEventListener,
+            mock(CacheErrorLogger.class),
+            null,
+            mBackgroundExecutor,
+            true,
+            true,
+            Sha1ResourceIdHasher.getInstance(),
+            null);
+    cache.insert(new SimpleCacheKey("before_recount"), WriterCallbacks.from(new byte[] {1}));
+
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < threadCount; t++) {
+      final CacheKey key = new SimpleCacheKey("during_recount_" + t);
+      Thread thread =
+          new Thread(
+              new Runnable() {
+                @Override
+                public void run() {
+                  try {
+                    cache.insert(
+                        key,
+                        new WriterCallback() {
+                          @Override
+                          public void write(OutputStream os) throws IOException {
+                            os.write(new byte[] {2, 3});
+                            writing.countDown();
+                            try {
+                              listed.await(10, TimeUnit.SECONDS);
+                            } catch (InterruptedException e) {
+                              throw new RuntimeException(e);
+                            }
+                          }
+                        });
+                    committed.countDown();
+                  } catch (IOException e) {
+                    throw new RuntimeException(e);
+                  }
+                }
+              });
+      thread.start();
+      threads.add(thread);
+    }
+    assertTrue(writing.await(10, TimeUnit.SECONDS));
+    // the next access recounts, as the last count is now too old
+    when(mClock.now()).thenReturn(TimeUnit.HOURS.toMillis(1));
+    blockListing.set(true);
+    cache.trimToMinimum();
+    for (Thread thread : threads) {
+      thread.join(10000);
+    }
+
+    assertEquals(threadCount + 1, cache.getCount());
+    assertEquals(threadCount * 2 + 1, cache.getSize());
+    assertTrue(cache.hasKeySync(new SimpleCacheKey("before_recount")));
+    for (int t = 0; t < threadCount; t++) {
+      assertTrue(cache.hasKeySync(new SimpleCacheKey("during_recount_" + t)));
+    }
+  }
+
+  /** Verify that entries written with the legacy hasher stay readable after switching hashers. */
+  @Test
+  public void testLegacyResourceIdHasher() throws Exception {
+    CacheKey key = new SimpleCacheKey("https://cdn.example.com/v/t1.0-9/1234_5678_n.jpg?oh=abc");
+    byte[] value = new byte[] {1, 2, 3};
+    mCache.insert(key, WriterCallbacks.from(value));
+
+    DiskStorageCache migratingCache =
+        createDiskCacheWithHasher(
+            Murmur3ResourceIdHasher.getInstance(), Sha1ResourceIdHasher.getInstance());
+    BinaryResource resource = migratingCache.getResource(key);
+    assertNotNull(resource);
+    assertArrayEquals(value, getContents(resource));
+
+    DiskStorageCache murmurOnlyCache =
+        createDiskCacheWithHasher(Murmur3ResourceIdHasher.getInstance(), null);
+    assertNull(murmurOnlyCache.getResource(key));
+
+    // new writes go to the new resource id
+    CacheKey newKey = new SimpleCacheKey("https://cdn.example.com/v/t1.0-9/9999_n.jpg");
+    migratingCache.insert(newKey, WriterCallbacks.from(value));
+    assertNotNull(murmurOnlyCache.getResource(newKey));
+    assertNull(mCache.getResource(newKey));
+
+    migratingCache.remove(key);
+    assertNull(mCache.getResource(key));
+  }
+
+  private DiskStorageCache createDiskCacheWithHasher(
+      ResourceIdHasher hasher, ResourceIdHasher legacyHasher) {
+    return new DiskStorageCache(
+        mStorage,
+        new DefaultEntryEvictionComparatorSupplier(),
+        new DiskStorageCache.Params(
+            0, FILE_CACHE_MAX_SIZE_LOW_LIMIT, FILE_CACHE_MAX_SIZE_HIGH_LIMIT),
+        mCacheEventListener,
+        mock(CacheErrorLogger.class),
+        null,
+        mBackgroundExecutor,
+        false,
+        false,
+        hasher,
+        legacyHasher);
+  }
+
   @Test
   public void testIsEnabled() throws Exception {
     DiskStorage storageMock = mock(DiskStorage.class);
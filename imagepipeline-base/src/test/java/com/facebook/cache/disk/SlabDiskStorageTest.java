@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.cache.disk;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+
+import com.facebook.binaryresource.BinaryResource;
+import com.facebook.binaryresource.ByteBufferBinaryResource;
+import com.facebook.binaryresource.FileBinaryResource;
+import com.facebook.cache.common.CacheErrorLogger;
+import com.facebook.cache.common.WriterCallback;
+import com.facebook.cache.common.WriterCallbacks;
+import com.facebook.common.file.FileTree;
+import com.facebook.common.internal.ByteStreams;
+import com.facebook.common.internal.Suppliers;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+@RunWith(RobolectricTestRunner.class)
+public class SlabDiskStorageTest {
+
+  private static final int MAX_SLAB_ENTRY_SIZE = 100;
+  private static final int SLAB_SIZE = 1024;
+
+  private File mDirectory;
+  private File mSlabDirectory;
+
+  @Before
+  public void setUp() {
+    mDirectory = new File(RuntimeEnvironment.application.getCacheDir(), "slab-disk-storage-test");
+    mSlabDirectory = new File(mDirectory, "slabs");
+    mDirectory.mkdirs();
+    FileTree.deleteContents(mDirectory);
+  }
+
+  @Test
+  public void testSmallEntriesGoToSlabs() throws Exception {
+    SlabDiskStorage storage = createStorage();
+    byte[] small = createContent(10);
+    byte[] large = createContent(MAX_SLAB_ENTRY_SIZE + 1);
+
+    BinaryResource smallResource = insert(storage, "small", small);
+    BinaryResource largeResource = insert(storage, "large", large);
+
+    assertTrue(smallResource instanceof ByteBufferBinaryResource);
+    assertTrue(largeResource instanceof FileBinaryResource);
+    assertArrayEquals(
+        small, ByteStreams.toByteArray(storage.getResource("small", null).openStream()));
+    assertArrayEquals(large, storage.getResource("large", null).read());
+    assertEquals(2, storage.getEntries().size());
+    assertTrue(storage.contains("small", null));
+    assertTrue(storage.touch("large", null));
+  }
+
+  @Test
+  public void testEntriesSurviveReload() throws Exception {
+    SlabDiskStorage storage = createStorage();
+    byte[] content1 = createContent(10);
+    byte[] content2 = createContent(20);
+    insert(storage, "id1", content1);
+    insert(storage, "id2", content2);
+    insert(storage, "id3", createContent(30));
+    assertEquals(30, storage.remove("id3"));
+
+    SlabDiskStorage reloaded = createStorage();
+    assertArrayEquals(content1, reloaded.getResource("id1", null).read());
+    assertArrayEquals(content2, reloaded.getResource("id2", null).read());
+    assertNull(reloaded.getResource("id3", null));
+    assertEquals(2, reloaded.getEntries().size());
+  }
+
+  @Test
+  public void testReplacingEntryMovesBetweenStorages() throws Exception {
+    SlabDiskStorage storage = createStorage();
+    insert(storage, "id", createContent(MAX_SLAB_ENTRY_SIZE * 2));
+    byte[] small = createContent(5);
+    insert(storage, "id", small);
+    assertEquals(1, storage.getEntries().size());
+    assertArrayEquals(small, storage.getResource("id", null).read());
+  }
+
+  @Test
+  public void testLargeEntryIsStreamedToOtherStorage() throws Exception {
+    SlabDiskStorage storage = createStorage();
+    final byte[] large = createContent(MAX_SLAB_ENTRY_SIZE * 10 + 3);
+    DiskStorage.Inserter inserter = storage.insert("large", null);
+
+    // the content is written in chunks, once only, as when copied from a stream
+    inserter.writeData(
+        new WriterCallback() {
+          @Override
+          public void write(OutputStream os) throws IOException {
+            for (int offset = 0; offset < large.length; offset += 7) {
+              os.write(large, offset, Math.min(7, large.length - offset));
+            }
+          }
+        },
+        null);
+    BinaryResource resource = inserter.commit(null);
+
+    assertTrue(resource instanceof FileBinaryResource);
+    assertArrayEquals(large, storage.getResource("large", null).read());
+  }
+
+  @Test
+  public void testSmallEntryIsOnlyRemovedFromOtherStorageWhenItMayBeThere() throws Exception {
+    DiskStorage largeEntryStorage =
+        spy(new DefaultDiskStorage(new File(mDirectory, "files"), 1, mock(CacheErrorLogger.class)));
+    SlabDiskStorage storage = createStorage(largeEntryStorage);
+
+    // until the other storage is listed, any id may be in it
+    insert(storage, "id1", createContent(10));
+    verify(largeEntryStorage).remove("id1");
+
+    storage.getEntries();
+    insert(storage, "id2", createContent(10));
+    verify(largeEntryStorage, never()).remove("id2");
+
+    insert(storage, "id3", createContent(MAX_SLAB_ENTRY_SIZE * 2));
+    insert(storage, "id3", createContent(10));
+    verify(largeEntryStorage).remove("id3");
+    assertEquals(3, storage.getEntries().size());
+  }
+
+  @Test
+  public void testLastCommittedEntryWins() throws Exception {
+    SlabDiskStorage storage = createStorage();
+    byte[] first = createContent(10);
+    byte[] second = createContent(20);
+    DiskStorage.Inserter firstInserter = storage.insert("id", null);
+    DiskStorage.Inserter secondInserter = storage.insert("id", null);
+    firstInserter.writeData(WriterCallbacks.from(first), null);
+    secondInserter.writeData(WriterCallbacks.from(second), null);
+    firstInserter.commit(null);
+    secondInserter.commit(null);
+
+    assertArrayEquals(second, storage.getResource("id", null).read());
+    assertEquals(1, storage.getEntries().size());
+    SlabDiskStorage reloaded = createStorage();
+    assertArrayEquals(second, reloaded.getResource("id", null).read());
+    assertEquals(1, reloaded.getEntries().size());
+  }
+
+  @Test
+  public void testCompactionKeepsLiveEntries() throws Exception {
+    SlabDiskStorage storage = createStorage();
+    // enough entries to fill several slabs
+    for (int i = 0; i < 40; i++) {
+      insert(storage, "id" + i, createContent(MAX_SLAB_ENTRY_SIZE));
+    }
+    int slabCount = countSlabFiles();
+    assertTrue(slabCount > 2);
+    BinaryResource handedOut = storage.getResource("id0", null);
+    for (int i = 1; i < 40; i++) {
+      storage.remove("id" + i);
+    }
+
+    storage.purgeUnexpectedResources();
+
+    assertTrue(countSlabFiles() < slabCount);
+    assertEquals(1, storage.getEntries().size());
+    assertArrayEquals(createContent(MAX_SLAB_ENTRY_SIZE), storage.getResource("id0", null).read());
+    // resources handed out before compaction stay readable
+    assertArrayEquals(createContent(MAX_SLAB_ENTRY_SIZE), handedOut.read());
+    assertArrayEquals(
+        createContent(MAX_SLAB_ENTRY_SIZE), createStorage().getResource("id0", null).read());
+  }
+
+  @Test
+  public void testClearAll() throws Exception {
+    SlabDiskStorage storage = createStorage();
+    insert(storage, "small", createContent(10));
+    insert(storage, "large", createContent(MAX_SLAB_ENTRY_SIZE * 2));
+    storage.clearAll();
+    assertTrue(storage.getEntries().isEmpty());
+    assertFalse(storage.contains("small", null));
+    assertNotNull(insert(storage, "small", createContent(10)));
+  }
+
+  private SlabDiskStorage createStorage() {
+    return createStorage(
+        new DefaultDiskStorage(new File(mDirectory, "files"), 1, mock(CacheErrorLogger.class)));
+  }
+
+  private SlabDiskStorage createStorage(DiskStorage largeEntryStorage) {
+    return new SlabDiskStorage(
+        largeEntryStorage,
+        Suppliers.of(mSlabDirectory),
+        1,
+        MAX_SLAB_ENTRY_SIZE,
+        SLAB_SIZE,
+        mock(CacheErrorLogger.class));
+  }
+
+  private int countSlabFiles() {
+    File[] files = new File(mSlabDirectory, "v1").listFiles();
+    return files == null ? 0 : files.length;
+  }
+
+  private static BinaryResource insert(SlabDiskStorage storage, String resourceId, byte[] content)
+      throws IOException {
+    DiskStorage.Inserter inserter = storage.insert(resourceId, null);
+    inserter.writeData(WriterCallbacks.from(content), null);
+    return inserter.commit(null);
+  }
+
+  private static byte[] createContent(int size) {
+    byte[] content = new byte[size];
+    for (int i = 0; i < size; i++) {
+      content[i] = (byte) (i * 31 + size);
+    }
+    return content;
+  }
+}
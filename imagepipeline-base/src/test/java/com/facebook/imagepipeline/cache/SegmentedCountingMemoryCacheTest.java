@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.facebook.common.internal.Predicate;
+import com.facebook.common.internal.Suppliers;
+import com.facebook.common.memory.MemoryTrimType;
+import com.facebook.common.references.CloseableReference;
+import com.facebook.common.references.ResourceReleaser;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class SegmentedCountingMemoryCacheTest {
+
+  private static final int CACHE_MAX_SIZE = 1200;
+  private static final int CACHE_MAX_COUNT = 8;
+  private static final int CACHE_EVICTION_QUEUE_MAX_SIZE = 1100;
+  private static final int CACHE_EVICTION_QUEUE_MAX_COUNT = 3;
+  private static final int CACHE_ENTRY_MAX_SIZE = 1000;
+  private static final int SEGMENT_COUNT = 4;
+
+  private static final String KEY = "KEY";
+
+  private final AtomicInteger mReleasedCount = new AtomicInteger();
+  private final ResourceReleaser<Integer> mReleaser =
+      new ResourceReleaser<Integer>() {
+        @Override
+        public void release(Integer value) {
+          mReleasedCount.incrementAndGet();
+        }
+      };
+
+  private MemoryCache.CacheTrimStrategy mCacheTrimStrategy;
+  private SegmentedCountingMemoryCache<String, Integer> mCache;
+
+  @Before
+  public void setUp() {
+    mCacheTrimStrategy = mock(MemoryCache.CacheTrimStrategy.class);
+    MemoryCacheParams params =
+        new MemoryCacheParams(
+            CACHE_MAX_SIZE,
+            CACHE_MAX_COUNT,
+            CACHE_EVICTION_QUEUE_MAX_SIZE,
+            CACHE_EVICTION_QUEUE_MAX_COUNT,
+            CACHE_ENTRY_MAX_SIZE,
+            TimeUnit.MINUTES.toMillis(5));
+    mCache =
+        new SegmentedCountingMemoryCache<>(
+            new ValueDescriptor<Integer>() {
+              @Override
+              public int getSizeInBytes(Integer value) {
+                return value;
+              }
+            },
+            mCacheTrimStrategy,
+            Suppliers.of(params),
+            null,
+            false,
+            false,
+            SEGMENT_COUNT);
+  }
+
+  @Test
+  public void testCacheAndRelease() {
+    CloseableReference<Integer> cachedRef = cache(KEY, 100);
+    assertNotNull(cachedRef);
+    assertEquals(1, mCache.getCount());
+    assertEquals(100, mCache.getSizeInBytes());
+    assertEquals(100, mCache.getInUseSizeInBytes());
+    assertEquals(0, mCache.getEvictionQueueCount());
+
+    cachedRef.close();
+    assertEquals(1, mCache.getEvictionQueueCount());
+    assertEquals(100, mCache.getEvictionQueueSizeInBytes());
+    assertEquals(0, mCache.getInUseCount());
+
+    CloseableReference<Integer> hit = mCache.get(KEY);
+    assertNotNull(hit);
+    assertEquals(100, (int) hit.get());
+    assertEquals(0, mCache.getEvictionQueueCount());
+    hit.close();
+    assertEquals(0, mReleasedCount.get());
+  }
+
+  @Test
+  public void testReplacingInUseEntryClosesItOnRelease() {
+    CloseableReference<Integer> oldRef = cache(KEY, 100);
+    CloseableReference<Integer> newRef = cache(KEY, 200);
+    assertEquals(1, mCache.getCount());
+    assertEquals(200, mCache.getSizeInBytes());
+    assertEquals(0, mReleasedCount.get());
+    oldRef.close();
+    assertEquals(1, mReleasedCount.get());
+    newRef.close();
+    assertEquals(1, mReleasedCount.get());
+  }
+
+  @Test
+  public void testCannotCacheBeyondLimits() {
+    assertNull(cache(KEY, CACHE_ENTRY_MAX_SIZE + 1));
+    List<CloseableReference<Integer>> refs = new ArrayList<>();
+    for (int i = 0; i < CACHE_MAX_COUNT; i++) {
+      refs.add(cache("k" + i, 10));
+    }
+    assertNull(cache(KEY, 10));
+    CloseableReference.closeSafely(refs);
+  }
+
+  @Test
+  public void testEvictionBudgetIsGlobal() {
+    for (int i = 0; i < 10; i++) {
+      CloseableReference<Integer> ref = cache("k" + i, 100);
+      assertNotNull(ref);
+      ref.close();
+    }
+    assertEquals(CACHE_EVICTION_QUEUE_MAX_COUNT, mCache.getEvictionQueueCount());
+    assertEquals(CACHE_EVICTION_QUEUE_MAX_COUNT, mCache.getCount());
+    assertEquals(10 - CACHE_EVICTION_QUEUE_MAX_COUNT, mReleasedCount.get());
+  }
+
+  @Test
+  public void testReuse() {
+    CloseableReference<Integer> cachedRef = cache(KEY, 100);
+    assertNull(mCache.reuse(KEY));
+    cachedRef.close();
+    CloseableReference<Integer> reused = mCache.reuse(KEY);
+    assertNotNull(reused);
+    assertFalse(mCache.contains(KEY));
+    assertEquals(0, mCache.getCount());
+    assertEquals(0, mCache.getEvictionQueueCount());
+    reused.close();
+    assertEquals(1, mReleasedCount.get());
+  }
+
+  @Test
+  public void testRemoveAllAndClear() {
+    for (int i = 0; i < 6; i++) {
+      cache("k" + i, 10).close();
+    }
+    CloseableReference<Integer> inUse = cache(KEY, 10);
+    int removed =
+        mCache.removeAll(
+            new Predicate<String>() {
+              @Override
+              public boolean apply(String key) {
+                return key.startsWith("k");
+              }
+            });
+    assertEquals(CACHE_EVICTION_QUEUE_MAX_COUNT, removed);
+    assertTrue(mCache.contains(KEY));
+    mCache.clear();
+    assertEquals(0, mCache.getCount());
+    assertEquals(0, mCache.getSizeInBytes());
+    assertEquals(6, mReleasedCount.get());
+    inUse.close();
+    assertEquals(7, mReleasedCount.get());
+  }
+
+  @Test
+  public void testTrim() {
+    when(mCacheTrimStrategy.getTrimRatio(any(MemoryTrimType.class))).thenReturn(1.0);
+    cache("k0", 100).close();
+    cache("k1", 100).close();
+    CloseableReference<Integer> inUse = cache("k2", 100);
+    mCache.trim(MemoryTrimType.OnSystemLowMemoryWhileAppInForeground);
+    assertEquals(1, mCache.getCount());
+    assertEquals(0, mCache.getEvictionQueueCount());
+    assertSame(inUse.get(), mCache.inspect("k2"));
+    inUse.close();
+  }
+
+  @Test
+  public void testConcurrentAccessKeepsCountersConsistent() throws Exception {
+    final int threadCount = 8;
+    final int iterations = 2000;
+    final CountDownLatch start = new CountDownLatch(1);
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < threadCount; t++) {
+      final Random random = new Random(t);
+      Thread thread =
+          new Thread() {
+            @Override
+            public void run() {
+              try {
+                start.await();
+                for (int i = 0; i < iterations; i++) {
+                  String key = "k" + random.nextInt(20);
+                  CloseableReference<Integer> ref = mCache.get(key);
+                  if (ref == null) {
+                    ref = cache(key, 10 + random.nextInt(50));
+                  }
+                  CloseableReference.closeSafely(ref);
+                }
+              } catch (Throwable th) {
+                failure.compareAndSet(null, th);
+              }
+            }
+          };
+      threads.add(thread);
+      thread.start();
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertNull(failure.get());
+
+    assertEquals(0, mCache.getInUseCount());
+    assertEquals(0, mCache.getInUseSizeInBytes());
+    CountingLruMap<String, CountingMemoryCache.Entry<String, Integer>> entries =
+        mCache.getCachedEntries();
+    assertEquals(entries.getCount(), mCache.getCount());
+    assertEquals(entries.getSizeInBytes(), mCache.getSizeInBytes());
+    assertTrue(mCache.getEvictionQueueCount() <= CACHE_EVICTION_QUEUE_MAX_COUNT);
+    mCache.clear();
+    assertEquals(0, mCache.getCount());
+  }
+
+  private CloseableReference<Integer> cache(String key, int size) {
+    CloseableReference<Integer> originalRef = CloseableReference.of(size, mReleaser);
+    try {
+      return mCache.cache(key, originalRef);
+    } finally {
+      originalRef.close();
+    }
+  }
+}
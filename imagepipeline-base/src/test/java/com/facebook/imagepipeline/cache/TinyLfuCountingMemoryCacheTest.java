@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import com.facebook.common.internal.Supplier;
+import com.facebook.common.internal.Suppliers;
+import com.facebook.common.references.CloseableReference;
+import com.facebook.common.references.ResourceReleaser;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class TinyLfuCountingMemoryCacheTest {
+
+  private static final int ENTRY_SIZE = 100;
+  private static final int CACHE_MAX_SIZE = 10 * ENTRY_SIZE;
+  private static final int CACHE_MAX_COUNT = 100;
+
+  private final AtomicInteger mReleasedCount = new AtomicInteger();
+  private final ResourceReleaser<Integer> mReleaser =
+      new ResourceReleaser<Integer>() {
+        @Override
+        public void release(Integer value) {
+          mReleasedCount.incrementAndGet();
+        }
+      };
+
+  private final ValueDescriptor<Integer> mValueDescriptor =
+      new ValueDescriptor<Integer>() {
+        @Override
+        public int getSizeInBytes(Integer value) {
+          return value;
+        }
+      };
+
+  private Supplier<MemoryCacheParams> mParamsSupplier;
+  private TinyLfuCountingMemoryCache<String, Integer> mCache;
+
+  @Before
+  public void setUp() {
+    mParamsSupplier =
+        Suppliers.of(
+            new MemoryCacheParams(
+                CACHE_MAX_SIZE,
+                CACHE_MAX_COUNT,
+                CACHE_MAX_SIZE,
+                CACHE_MAX_COUNT,
+                CACHE_MAX_SIZE,
+                TimeUnit.MINUTES.toMillis(5)));
+    mCache =
+        new TinyLfuCountingMemoryCache<>(
+            mValueDescriptor,
+            mock(MemoryCache.CacheTrimStrategy.class),
+            mParamsSupplier,
+            null,
+            false,
+            false);
+  }
+
+  @Test
+  public void testCacheAndRelease() {
+    CloseableReference<Integer> ref = cache(mCache, "k");
+    assertNotNull(ref);
+    assertEquals(TinyLfuCountingMemoryCache.Segment.WINDOW, mCache.getSegment("k"));
+    assertEquals(1, mCache.getInUseCount());
+    assertEquals(0, mCache.getEvictionQueueCount());
+    ref.close();
+    assertEquals(0, mCache.getInUseCount());
+    assertEquals(1, mCache.mWindowEntries.getCount());
+    assertEquals(ENTRY_SIZE, mCache.getEvictionQueueSizeInBytes());
+    assertEquals(0, mReleasedCount.get());
+  }
+
+  @Test
+  public void testWindowOverflowIsAdmittedWhileMainHasRoom() {
+    access("k0");
+    access("k1");
+    access("k2");
+    for (int i = 0; i < 10; i++) {
+      access("other" + i);
+    }
+    // once the cache is full, the early entries have moved on to the main space
+    assertEquals(TinyLfuCountingMemoryCache.Segment.PROBATION, mCache.getSegment("k2"));
+    assertTrue(mCache.getEvictionQueueSizeInBytes() <= CACHE_MAX_SIZE);
+  }
+
+  @Test
+  public void testHitOnProbationPromotesToProtected() {
+    for (int i = 0; i < 11; i++) {
+      access("k" + i);
+    }
+    assertEquals(TinyLfuCountingMemoryCache.Segment.PROBATION, mCache.getSegment("k5"));
+    access("k5");
+    assertEquals(TinyLfuCountingMemoryCache.Segment.PROTECTED, mCache.getSegment("k5"));
+    assertEquals(1, mCache.mProtectedEntries.getCount());
+  }
+
+  @Test
+  public void testOneHitWondersAreNotAdmitted() {
+    for (int i = 0; i < 9; i++) {
+      access("hot" + i);
+      access("hot" + i);
+    }
+    for (int i = 0; i < 5; i++) {
+      access("once" + i);
+    }
+    for (int i = 0; i < 9; i++) {
+      assertTrue(mCache.contains("hot" + i));
+    }
+    for (int i = 0; i < 4; i++) {
+      assertFalse(mCache.contains("once" + i));
+    }
+    // the last one is still in the admission window
+    assertEquals(TinyLfuCountingMemoryCache.Segment.WINDOW, mCache.getSegment("once4"));
+    assertEquals(4, mReleasedCount.get());
+  }
+
+  @Test
+  public void testInUseEntriesAreNeverEvicted() {
+    List<CloseableReference<Integer>> refs = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      refs.add(cache(mCache, "in-use" + i));
+    }
+    for (int i = 0; i < 20; i++) {
+      access("other" + i);
+    }
+    for (int i = 0; i < 5; i++) {
+      assertTrue(mCache.contains("in-use" + i));
+    }
+    CloseableReference.closeSafely(refs);
+    assertTrue(mCache.getSizeInBytes() <= CACHE_MAX_SIZE);
+    mCache.clear();
+    assertEquals(0, mCache.getCount());
+    assertEquals(0, mCache.getEvictionQueueCount());
+    assertNull(mCache.getSegment("in-use0"));
+  }
+
+  @Test
+  public void testReuseRemovesEntry() {
+    access("k");
+    CloseableReference<Integer> reused = mCache.reuse("k");
+    assertNotNull(reused);
+    assertNull(mCache.getSegment("k"));
+    assertEquals(0, mCache.getCount());
+    reused.close();
+    assertEquals(1, mReleasedCount.get());
+  }
+
+  /**
+   * Replays a trace where a few images are shown again and again between images that are only
+   * shown once, and checks that more of the reused images are served from the cache than with
+   * plain LRU.
+   */
+  @Test
+  public void testTraceReplayBeatsLruOnScans() {
+    List<String> trace = new ArrayList<>();
+    int scanKey = 0;
+    for (int round = 0; round < 200; round++) {
+      trace.add("hot" + (round % 5));
+      for (int i = 0; i < 3; i++) {
+        trace.add("scan" + scanKey++);
+      }
+    }
+    LruCountingMemoryCache<String, Integer> lruCache =
+        new LruCountingMemoryCache<>(
+            mValueDescriptor,
+            mock(MemoryCache.CacheTrimStrategy.class),
+            mParamsSupplier,
+            null,
+            false,
+            false);
+
+    int lruHits = replay(lruCache, trace);
+    int tinyLfuHits = replay(mCache, trace);
+
+    // every hot key is reused after 19 other images, more than the 10 which fit in the cache
+    assertEquals(0, lruHits);
+    assertTrue("TinyLFU hits: " + tinyLfuHits, tinyLfuHits > 150);
+  }
+
+  private int replay(CountingMemoryCache<String, Integer> cache, List<String> trace) {
+    int hits = 0;
+    for (String key : trace) {
+      CloseableReference<Integer> ref = cache.get(key);
+      if (ref != null) {
+        hits++;
+      } else {
+        ref = cache(cache, key);
+      }
+      CloseableReference.closeSafely(ref);
+    }
+    return hits;
+  }
+
+  private void access(String key) {
+    replay(mCache, Collections.singletonList(key));
+  }
+
+  private CloseableReference<Integer> cache(
+      CountingMemoryCache<String, Integer> cache, String key) {
+    CloseableReference<Integer> originalRef = CloseableReference.of(ENTRY_SIZE, mReleaser);
+    try {
+      return cache.cache(key, originalRef);
+    } finally {
+      originalRef.close();
+    }
+  }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.os.SystemClock;
+import com.facebook.imagepipeline.common.Priority;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class PriorityLaneSchedulerTest {
+
+  private static final long TIMEOUT_SECONDS = 10;
+
+  private AtomicInteger mCreatedThreads;
+  private ThreadFactory mThreadFactory;
+  private CountDownLatch mBlocker;
+
+  @Before
+  public void setUp() {
+    mCreatedThreads = new AtomicInteger();
+    mThreadFactory =
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable runnable) {
+            mCreatedThreads.incrementAndGet();
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            return thread;
+          }
+        };
+    mBlocker = new CountDownLatch(1);
+  }
+
+  @After
+  public void tearDown() {
+    mBlocker.countDown();
+  }
+
+  @Test
+  public void testRunsHigherPriorityFirst() throws Exception {
+    PriorityLaneScheduler scheduler = new PriorityLaneScheduler(1, mThreadFactory);
+    PriorityAwareExecutor stage = scheduler.newStage("decode", 1);
+    final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+    CountDownLatch done = new CountDownLatch(4);
+
+    stage.execute(block(), Priority.LOW);
+    stage.execute(record(order, "low", done), Priority.LOW);
+    stage.execute(record(order, "medium", done));
+    stage.execute(record(order, "high1", done), Priority.HIGH);
+    stage.execute(record(order, "high2", done), Priority.HIGH);
+    mBlocker.countDown();
+
+    assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("high1", "high2", "medium", "low"), order);
+  }
+
+  @Test
+  public void testHigherPriorityOfAnyStageRunsFirst() throws Exception {
+    PriorityLaneScheduler scheduler = new PriorityLaneScheduler(1, mThreadFactory);
+    PriorityAwareExecutor io = scheduler.newStage("io", 1);
+    PriorityAwareExecutor decode = scheduler.newStage("decode", 1);
+    final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+    CountDownLatch done = new CountDownLatch(4);
+
+    io.execute(block(), Priority.LOW);
+    io.execute(record(order, "io-low", done), Priority.LOW);
+    decode.execute(record(order, "decode-low", done), Priority.LOW);
+    io.execute(record(order, "io-high", done), Priority.HIGH);
+    decode.execute(record(order, "decode-high", done), Priority.HIGH);
+    mBlocker.countDown();
+
+    assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("io-high", "decode-high", "io-low", "decode-low"), order);
+  }
+
+  @Test
+  public void testWaitingTaskIsPromotedOneLevel() throws Exception {
+    PriorityLaneScheduler scheduler = new PriorityLaneScheduler(1, mThreadFactory, 100);
+    PriorityAwareExecutor stage = scheduler.newStage("decode", 1);
+    final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+    CountDownLatch done = new CountDownLatch(3);
+
+    stage.execute(block(), Priority.HIGH);
+    stage.execute(record(order, "low", done), Priority.LOW);
+    SystemClock.setCurrentTimeMillis(SystemClock.uptimeMillis() + 101);
+    stage.execute(record(order, "high", done), Priority.HIGH);
+    stage.execute(record(order, "medium", done));
+    mBlocker.countDown();
+
+    // the low priority task now competes with medium priority ones, not with high priority ones
+    assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("high", "low", "medium"), order);
+  }
+
+  @Test
+  public void testTaskWaitingTwiceTheMaxWaitIsPromotedTwoLevels() throws Exception {
+    PriorityLaneScheduler scheduler = new PriorityLaneScheduler(1, mThreadFactory, 100);
+    PriorityAwareExecutor stage = scheduler.newStage("decode", 1);
+    final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+    CountDownLatch done = new CountDownLatch(3);
+
+    stage.execute(block(), Priority.HIGH);
+    stage.execute(record(order, "low", done), Priority.LOW);
+    SystemClock.setCurrentTimeMillis(SystemClock.uptimeMillis() + 201);
+    stage.execute(record(order, "high", done), Priority.HIGH);
+    stage.execute(record(order, "medium", done));
+    mBlocker.countDown();
+
+    assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("low", "high", "medium"), order);
+  }
+
+  @Test
+  public void testStageBorrowsThreadsOtherStagesDoNotNeed() throws Exception {
+    PriorityLaneScheduler scheduler = new PriorityLaneScheduler(2, mThreadFactory);
+    PriorityAwareExecutor io = scheduler.newStage("io", 1);
+    scheduler.newStage("decode", 1);
+    CountDownLatch done = new CountDownLatch(1);
+
+    io.execute(block());
+    // the io stage is at its limit but the decode stage has no work
+    io.execute(record(new ArrayList<String>(), "io", done));
+
+    assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    assertEquals(2, mCreatedThreads.get());
+  }
+
+  @Test
+  public void testStagesUnderTheirLimitRunFirst() throws Exception {
+    PriorityLaneScheduler scheduler = new PriorityLaneScheduler(2, mThreadFactory);
+    PriorityAwareExecutor io = scheduler.newStage("io", 1);
+    PriorityAwareExecutor decode = scheduler.newStage("decode", 1);
+    final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+    CountDownLatch done = new CountDownLatch(2);
+    final CountDownLatch decodeBlocker = new CountDownLatch(1);
+
+    io.execute(block());
+    decode.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            try {
+              decodeBlocker.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+              throw new RuntimeException(e);
+            }
+          }
+        });
+    io.execute(record(order, "io", done));
+    decode.execute(record(order, "decode", done));
+    decodeBlocker.countDown();
+
+    // the io task is older, but its stage is at its limit while the decode stage is not
+    assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("decode", "io"), order);
+  }
+
+  @Test
+  public void testIdleThreadsServeOtherStages() throws Exception {
+    PriorityLaneScheduler scheduler = new PriorityLaneScheduler(2, mThreadFactory);
+    PriorityAwareExecutor io = scheduler.newStage("io", 1);
+    PriorityAwareExecutor decode = scheduler.newStage("decode", 2);
+    CountDownLatch ioDone = new CountDownLatch(1);
+    io.execute(record(new ArrayList<String>(), "io", ioDone));
+    assertTrue(ioDone.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+    // both decodes have to run at the same time to get through the barrier
+    final CyclicBarrier barrier = new CyclicBarrier(2);
+    final CountDownLatch decodeDone = new CountDownLatch(2);
+    for (int i = 0; i < 2; i++) {
+      decode.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              try {
+                barrier.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                decodeDone.countDown();
+              } catch (Exception e) {
+                throw new RuntimeException(e);
+              }
+            }
+          });
+    }
+
+    assertTrue(decodeDone.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    assertEquals(2, mCreatedThreads.get());
+  }
+
+  @Test
+  public void testLaneStats() throws Exception {
+    PriorityLaneScheduler scheduler = new PriorityLaneScheduler(1, mThreadFactory);
+    PriorityAwareExecutor stage = scheduler.newStage("decode", 1);
+    CountDownLatch done = new CountDownLatch(2);
+    List<String> order = new ArrayList<>();
+
+    stage.execute(block(), Priority.HIGH);
+    stage.execute(record(order, "a", done), Priority.LOW);
+    stage.execute(record(order, "b", done), Priority.LOW);
+
+    PriorityLaneScheduler.LaneStats low = getStats(scheduler, "decode", Priority.LOW);
+    assertEquals(2, low.queueDepth);
+    assertEquals(0, low.startedCount);
+
+    mBlocker.countDown();
+    assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    low = getStats(scheduler, "decode", Priority.LOW);
+    assertEquals(0, low.queueDepth);
+    assertEquals(2, low.startedCount);
+    assertEquals(1, getStats(scheduler, "decode", Priority.HIGH).startedCount);
+    assertEquals(0, getStats(scheduler, "decode", Priority.MEDIUM).startedCount);
+    assertEquals(3, scheduler.getLaneStats().size());
+  }
+
+  @Test
+  public void testKeepsRunningAfterTaskFailure() throws Exception {
+    PriorityLaneScheduler scheduler = new PriorityLaneScheduler(1, mThreadFactory);
+    PriorityAwareExecutor stage = scheduler.newStage("decode", 1);
+    CountDownLatch done = new CountDownLatch(1);
+
+    stage.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            throw new IllegalStateException();
+          }
+        });
+    stage.execute(record(new ArrayList<String>(), "after", done));
+
+    assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    assertEquals(1, mCreatedThreads.get());
+  }
+
+  /**
+   * A flood of prefetch decodes is queued before a visible one. With plain FIFO executors the
+   * visible decode would wait for the whole flood; here it only waits for the decodes already
+   * running.
+   */
+  @Test
+  public void testVisibleTaskOvertakesPrefetchFlood() throws Exception {
+    final int threads = 2;
+    final int prefetches = 200;
+    PriorityLaneScheduler scheduler = new PriorityLaneScheduler(threads, mThreadFactory);
+    PriorityAwareExecutor decode = scheduler.newStage("decode", threads);
+    final AtomicInteger prefetchesStarted = new AtomicInteger();
+    final AtomicInteger prefetchesStartedBeforeVisible = new AtomicInteger(-1);
+    final CountDownLatch visibleDone = new CountDownLatch(1);
+    final Runnable block = block();
+
+    for (int i = 0; i < prefetches; i++) {
+      decode.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              prefetchesStarted.incrementAndGet();
+              block.run();
+              sleep(1);
+            }
+          },
+          Priority.LOW);
+    }
+    decode.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            prefetchesStartedBeforeVisible.set(prefetchesStarted.get());
+            visibleDone.countDown();
+          }
+        },
+        Priority.HIGH);
+    mBlocker.countDown();
+
+    assertTrue(visibleDone.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    // the prefetches running when the visible decode was submitted, and at most one more per
+    // thread still finishing its prefetch when the visible decode started
+    assertTrue(prefetchesStartedBeforeVisible.get() < 2 * threads);
+  }
+
+  private Runnable block() {
+    return new Runnable() {
+      @Override
+      public void run() {
+        try {
+          mBlocker.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+  }
+
+  private static Runnable record(
+      final List<String> order, final String name, final CountDownLatch done) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        order.add(name);
+        done.countDown();
+      }
+    };
+  }
+
+  private static PriorityLaneScheduler.LaneStats getStats(
+      PriorityLaneScheduler scheduler, String stageName, Priority priority) {
+    for (PriorityLaneScheduler.LaneStats stats : scheduler.getLaneStats()) {
+      if (stats.stageName.equals(stageName) && stats.priority == priority) {
+        return stats;
+      }
+    }
+    throw new AssertionError("No lane " + stageName + "/" + priority);
+  }
+
+  private static void sleep(long ms) {
+    try {
+      Thread.sleep(ms);
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -141,6 +141,38 @@ public class EncodedImageTest {
     assertTrue(EncodedImage.isMetaDataAvailable(encodedImage2));
   }
 
+  @Test
+  public void testCopyParsedMetaDataFrom() {
+    EncodedImage prefix = new EncodedImage(mByteBufferRef);
+    prefix.setImageFormat(DefaultImageFormats.JPEG);
+    prefix.setRotationAngle(90);
+    prefix.setExifOrientation(6);
+    prefix.setWidth(10);
+    prefix.setHeight(20);
+    prefix.close();
+
+    EncodedImage encodedImage = new EncodedImage(mByteBufferRef);
+    assertTrue(encodedImage.copyParsedMetaDataFrom(prefix));
+    assertTrue(encodedImage.hasParsedMetaData());
+    assertSame(DefaultImageFormats.JPEG, encodedImage.getImageFormat());
+    assertEquals(90, encodedImage.getRotationAngle());
+    assertEquals(6, encodedImage.getExifOrientation());
+    assertEquals(10, encodedImage.getWidth());
+    assertEquals(20, encodedImage.getHeight());
+  }
+
+  @Test
+  public void testCopyParsedMetaDataFrom_incomplete() {
+    EncodedImage prefix = new EncodedImage(mByteBufferRef);
+    prefix.setImageFormat(DefaultImageFormats.JPEG);
+    prefix.setWidth(10);
+    prefix.setHeight(20);
+
+    EncodedImage encodedImage = new EncodedImage(mByteBufferRef);
+    assertFalse(encodedImage.copyParsedMetaDataFrom(prefix));
+    assertFalse(encodedImage.hasParsedMetaData());
+  }
+
   @Test
   public void testCloseSafely() {
     EncodedImage encodedImage = new EncodedImage(mByteBufferRef);
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imageutils;
+
+import static com.facebook.imageutils.JfifTestUtils.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.common.internal.ByteStreams;
+import com.facebook.imageformat.DefaultImageFormats;
+import com.facebook.imageformat.ImageFormat;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/** Tests {@link StreamingImageHeaderParser} */
+@RunWith(RobolectricTestRunner.class)
+public class StreamingImageHeaderParserTest {
+
+  // SOF2 of a 200 x 100 progressive JPEG with 3 components
+  private static final String SOF2 = "FFC2 0011 08 0064 00C8 03 012200 021100 031100";
+  private static final String SCAN_1 = "1234 FF00 5678 FFD0 9ABC";
+  private static final String SCAN_2 = "DEF0 FFFF 00";
+
+  @Test
+  public void testJpeg() throws IOException {
+    checkImage("jpegs/1.jpeg", DefaultImageFormats.JPEG, 240, 181);
+    checkImage("jpegs/2.jpeg", DefaultImageFormats.JPEG, 240, 93);
+    checkImage("jpegs/3.jpeg", DefaultImageFormats.JPEG, 240, 240);
+    checkImage("jpegs/1cut.jpeg", DefaultImageFormats.JPEG, 240, 181);
+  }
+
+  @Test
+  public void testPng() throws IOException {
+    checkImage("pngs/1.png", DefaultImageFormats.PNG, 240, 181);
+    checkImage("pngs/2.png", DefaultImageFormats.PNG, 240, 246);
+  }
+
+  @Test
+  public void testGif() throws IOException {
+    checkImage("gifs/1.gif", DefaultImageFormats.GIF, 240, 181);
+    checkImage("animatedgifs/2.gif", DefaultImageFormats.GIF, 550, 400);
+  }
+
+  @Test
+  public void testWebp() throws IOException {
+    checkImage("webps/1_webp_plain.webp", DefaultImageFormats.WEBP_SIMPLE, 320, 214);
+    checkImage("webps/1_webp_ll.webp", DefaultImageFormats.WEBP_LOSSLESS, 400, 301);
+    checkImage("webps/2_webp_ll.webp", DefaultImageFormats.WEBP_LOSSLESS, 386, 395);
+    checkImage("webps/1_webp_ea.webp", DefaultImageFormats.WEBP_EXTENDED_WITH_ALPHA, 400, 301);
+    checkImage("webps/1_webp_e.webp", DefaultImageFormats.WEBP_EXTENDED, 480, 320);
+    checkImage("webps/1_webp_anim.webp", DefaultImageFormats.WEBP_ANIMATED, 322, 477);
+  }
+
+  @Test
+  public void testUnsupportedFormat() throws IOException {
+    StreamingImageHeaderParser parser = new StreamingImageHeaderParser();
+    assertFalse(parser.parseMetaData(getResourceStream("bmps/1.bmp")));
+    assertSame(DefaultImageFormats.BMP, parser.getImageFormat());
+    assertTrue(parser.isFinished());
+  }
+
+  @Test
+  public void testMetaDataIsCompleteAtFirstScan() {
+    String ifd = makeIfd(new String[] {makeOrientationEntry(6, false)}, 0, false);
+    String header = SOI + APP0 + makeAPP1_EXIF(makeTiff(ifd, false)) + DQT + SOF2 + DHT;
+    byte[] image = hexStringToByteArray(header + SOS + SCAN_1 + DHT + SOS + SCAN_2 + EOI);
+    StreamingImageHeaderParser parser = new StreamingImageHeaderParser();
+
+    parser.parse(image, 0, numBytes(header));
+    assertFalse(parser.isMetaDataComplete());
+    assertSame(DefaultImageFormats.JPEG, parser.getImageFormat());
+
+    parser.parse(image, numBytes(header), numBytes(SOS));
+    assertTrue(parser.isMetaDataComplete());
+    assertEquals(200, parser.getWidth());
+    assertEquals(100, parser.getHeight());
+    assertEquals(6, parser.getExifOrientation());
+    assertEquals(90, parser.getRotationAngle());
+    assertTrue(parser.isProgressive());
+    assertTrue(parser.isCountingScans());
+    assertEquals(0, parser.getScanCount());
+  }
+
+  @Test
+  public void testProgressiveJpegScansAreCountedAsTheyAreReceived() {
+    String firstScan = SOI + APP0 + DQT + SOF2 + DHT + SOS + SCAN_1;
+    String secondScan = DHT + SOS + SCAN_2;
+    byte[] image = hexStringToByteArray(firstScan + secondScan + EOI);
+    StreamingImageHeaderParser parser = new StreamingImageHeaderParser();
+
+    for (int i = 0; i < image.length; i++) {
+      parser.parse(image, i, 1);
+      if (i < numBytes(firstScan)) {
+        assertEquals(0, parser.getScanCount());
+      } else if (i > numBytes(firstScan) && i < numBytes(firstScan + secondScan)) {
+        assertEquals(1, parser.getScanCount());
+        assertEquals(numBytes(firstScan), parser.getLastScanEndOffset());
+      }
+    }
+    assertEquals(2, parser.getScanCount());
+    assertEquals(numBytes(firstScan + secondScan), parser.getLastScanEndOffset());
+    assertTrue(parser.isFinished());
+  }
+
+  @Test
+  public void testBaselineJpegIsNotScanned() {
+    byte[] image =
+        hexStringToByteArray(SOI + APP0 + DQT + makeSOFSection(17, 8, 200, 100) + DHT + SOS + EOI);
+    StreamingImageHeaderParser parser = new StreamingImageHeaderParser();
+
+    parser.parse(image, 0, image.length);
+    assertTrue(parser.isMetaDataComplete());
+    assertEquals(0, parser.getExifOrientation());
+    assertEquals(0, parser.getRotationAngle());
+    assertFalse(parser.isProgressive());
+    assertFalse(parser.isCountingScans());
+    assertTrue(parser.isFinished());
+  }
+
+  @Test
+  public void testMalformedJpeg() {
+    byte[] image = hexStringToByteArray(SOI + APP0 + "0000 0000" + DQT + SOF2 + SOS + EOI);
+    StreamingImageHeaderParser parser = new StreamingImageHeaderParser();
+
+    parser.parse(image, 0, image.length);
+    assertFalse(parser.isMetaDataComplete());
+    assertTrue(parser.isFinished());
+  }
+
+  private InputStream getResourceStream(String name) {
+    InputStream is = StreamingImageHeaderParserTest.class.getResourceAsStream(name);
+    assertNotNull("failed to read resource: " + name, is);
+    return is;
+  }
+
+  /** Checks the image is parsed the same whether it is received at once or byte by byte. */
+  private void checkImage(String imagePath, ImageFormat format, int width, int height)
+      throws IOException {
+    byte[] image = ByteStreams.toByteArray(getResourceStream(imagePath));
+    StreamingImageHeaderParser parser = new StreamingImageHeaderParser();
+    assertTrue(imagePath, parser.parseMetaData(new ByteArrayInputStream(image)));
+    checkMetaData(imagePath, parser, format, width, height);
+
+    parser = new StreamingImageHeaderParser();
+    for (int i = 0; i < image.length && !parser.isMetaDataComplete(); i++) {
+      parser.parse(image, i, 1);
+    }
+    checkMetaData(imagePath, parser, format, width, height);
+  }
+
+  private static void checkMetaData(
+      String imagePath,
+      StreamingImageHeaderParser parser,
+      ImageFormat format,
+      int width,
+      int height) {
+    assertTrue(imagePath, parser.isMetaDataComplete());
+    assertSame(imagePath, format, parser.getImageFormat());
+    assertEquals(imagePath, width, parser.getWidth());
+    assertEquals(imagePath, height, parser.getHeight());
+  }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.atlas
+
+import android.graphics.Canvas
+import android.graphics.ColorFilter
+import android.graphics.Paint
+import android.graphics.PixelFormat
+import android.graphics.drawable.Drawable
+
+/** Draws the region of its atlas bitmap that holds a [CloseableAtlasBitmap]. */
+class AtlasBitmapDrawable(private val image: CloseableAtlasBitmap) : Drawable() {
+
+  private val paint = Paint(Paint.FILTER_BITMAP_FLAG or Paint.DITHER_FLAG)
+  private val region = image.getRegion()
+
+  override fun getIntrinsicWidth(): Int = region.width()
+
+  override fun getIntrinsicHeight(): Int = region.height()
+
+  override fun draw(canvas: Canvas) {
+    val atlasBitmap = image.getPublishedAtlasBitmap() ?: return
+    canvas.drawBitmap(atlasBitmap, region, bounds, paint)
+  }
+
+  override fun setAlpha(alpha: Int) {
+    paint.alpha = alpha
+    invalidateSelf()
+  }
+
+  override fun setColorFilter(colorFilter: ColorFilter?) {
+    paint.colorFilter = colorFilter
+    invalidateSelf()
+  }
+
+  override fun getOpacity(): Int = PixelFormat.TRANSLUCENT
+}
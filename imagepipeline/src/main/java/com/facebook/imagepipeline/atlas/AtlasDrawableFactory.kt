@@ -0,0 +1,26 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.atlas
+
+import android.graphics.drawable.Drawable
+import com.facebook.imagepipeline.drawable.DrawableFactory
+import com.facebook.imagepipeline.image.CloseableImage
+
+/**
+ * Creates an [AtlasBitmapDrawable] for the thumbnails decoded by [AtlasImageDecoder].
+ *
+ * Set it as the custom drawable factory of a Drawee controller, or wrap it in a
+ * `DrawableFactoryWrapper` as the custom drawable factory of Vito image options.
+ */
+class AtlasDrawableFactory : DrawableFactory {
+
+  override fun supportsImageType(image: CloseableImage): Boolean = image is CloseableAtlasBitmap
+
+  override fun createDrawable(image: CloseableImage): Drawable? =
+      (image as? CloseableAtlasBitmap)?.let { AtlasBitmapDrawable(it) }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.atlas
+
+import android.graphics.Bitmap
+import android.graphics.Matrix
+import android.graphics.Paint
+import android.graphics.PorterDuff
+import android.graphics.PorterDuffXfermode
+import android.graphics.RectF
+import android.media.ExifInterface
+import com.facebook.imageformat.DefaultImageFormats
+import com.facebook.imagepipeline.common.ImageDecodeOptions
+import com.facebook.imagepipeline.decoder.ImageDecoder
+import com.facebook.imagepipeline.image.CloseableImage
+import com.facebook.imagepipeline.image.EncodedImage
+import com.facebook.imagepipeline.image.QualityInfo
+import com.facebook.imagepipeline.platform.PlatformDecoder
+import kotlin.math.roundToInt
+
+/**
+ * Decodes thumbnails into cells of shared atlas bitmaps instead of one bitmap each.
+ *
+ * The thumbnails are downsampled while decoded, scaled to fit [cellSize] and rotated while copied
+ * into their cell, so that a grid of them takes a few bitmaps rather than one per cell. Set it as
+ * the [ImageDecodeOptions.customImageDecoder] of the requests of the grid, the requests of one
+ * [atlasTag] and [cellSize] sharing atlases, and draw them with an [AtlasDrawableFactory].
+ *
+ * Partial, animated and mirrored images are decoded by [fallbackDecoder].
+ */
+class AtlasImageDecoder(
+    private val atlasManager: BitmapAtlasManager,
+    private val platformDecoder: PlatformDecoder,
+    private val fallbackDecoder: ImageDecoder,
+    private val atlasTag: String,
+    private val cellSize: Int
+) : ImageDecoder {
+
+  private val copyPaint =
+      Paint(Paint.FILTER_BITMAP_FLAG).apply {
+        // the cell may hold a previous thumbnail
+        xfermode = PorterDuffXfermode(PorterDuff.Mode.SRC)
+      }
+
+  override fun decode(
+      encodedImage: EncodedImage,
+      length: Int,
+      qualityInfo: QualityInfo,
+      options: ImageDecodeOptions
+  ): CloseableImage? {
+    if (!canDecodeToAtlas(encodedImage, qualityInfo)) {
+      return fallbackDecoder.decode(encodedImage, length, qualityInfo, options)
+    }
+    val bitmapReference =
+        EncodedImage.cloneOrNull(encodedImage)?.use {
+          it.sampleSize = maxOf(encodedImage.sampleSize, getSampleSize(encodedImage))
+          platformDecoder.decodeFromEncodedImageWithColorSpace(
+              it, options.bitmapConfig, null, options.colorSpace)
+        } ?: return fallbackDecoder.decode(encodedImage, length, qualityInfo, options)
+    return bitmapReference.use {
+      copyToAtlas(it.get(), maxOf(encodedImage.rotationAngle, 0), options.bitmapConfig)
+    }
+  }
+
+  private fun canDecodeToAtlas(encodedImage: EncodedImage, qualityInfo: QualityInfo): Boolean {
+    val imageFormat = encodedImage.imageFormat
+    return qualityInfo.isOfFullQuality &&
+        encodedImage.width > 0 &&
+        encodedImage.height > 0 &&
+        (imageFormat == DefaultImageFormats.JPEG ||
+            imageFormat == DefaultImageFormats.PNG ||
+            imageFormat == DefaultImageFormats.BMP ||
+            DefaultImageFormats.isStaticWebpFormat(imageFormat)) &&
+        encodedImage.exifOrientation !in MIRRORED_ORIENTATIONS
+  }
+
+  /** Returns the largest power of two that does not downsample the image below the cell size. */
+  private fun getSampleSize(encodedImage: EncodedImage): Int {
+    val longestSide = maxOf(encodedImage.width, encodedImage.height)
+    var sampleSize = 1
+    while (longestSide / (sampleSize * 2) >= cellSize) {
+      sampleSize *= 2
+    }
+    return sampleSize
+  }
+
+  private fun copyToAtlas(
+      bitmap: Bitmap,
+      rotationAngle: Int,
+      bitmapConfig: Bitmap.Config
+  ): CloseableAtlasBitmap {
+    val isRotatedSideways = rotationAngle % 180 != 0
+    val rotatedWidth = if (isRotatedSideways) bitmap.height else bitmap.width
+    val rotatedHeight = if (isRotatedSideways) bitmap.width else bitmap.height
+    val scale = minOf(1f, cellSize.toFloat() / maxOf(rotatedWidth, rotatedHeight))
+    val width = maxOf((rotatedWidth * scale).roundToInt(), 1).coerceAtMost(cellSize)
+    val height = maxOf((rotatedHeight * scale).roundToInt(), 1).coerceAtMost(cellSize)
+    while (true) {
+      val image = atlasManager.allocate(atlasTag, cellSize, bitmapConfig, width, height)
+      val region = image.getRegion()
+      val matrix = Matrix()
+      matrix.setScale(scale, scale)
+      matrix.postRotate(rotationAngle.toFloat())
+      val mappedRect = RectF(0f, 0f, bitmap.width.toFloat(), bitmap.height.toFloat())
+      matrix.mapRect(mappedRect)
+      matrix.postTranslate(region.left - mappedRect.left, region.top - mappedRect.top)
+      if (image.writeCell { it.drawBitmap(bitmap, matrix, copyPaint) }) {
+        return image
+      }
+      // the atlas was drawn since the cell was allocated, the next cell is in another one
+      image.close()
+    }
+  }
+
+  companion object {
+    private val MIRRORED_ORIENTATIONS =
+        setOf(
+            ExifInterface.ORIENTATION_FLIP_HORIZONTAL,
+            ExifInterface.ORIENTATION_FLIP_VERTICAL,
+            ExifInterface.ORIENTATION_TRANSPOSE,
+            ExifInterface.ORIENTATION_TRANSVERSE)
+  }
+}
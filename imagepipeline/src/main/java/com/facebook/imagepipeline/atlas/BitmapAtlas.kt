@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.atlas
+
+import android.graphics.Bitmap
+import android.graphics.Rect
+import com.facebook.common.references.CloseableReference
+import java.util.BitSet
+
+/**
+ * One pooled bitmap divided in a grid of square cells, each holding one thumbnail.
+ *
+ * The cells are allocated and released by the [BitmapAtlasManager] that created the atlas, under
+ * its lock. The bitmap is shared by the [CloseableAtlasBitmap]s of the cells, each holding a clone
+ * of [bitmapReference], and goes back to the pool once the atlas is retired and they are all
+ * closed.
+ *
+ * The thumbnails are written into the bitmap, one at a time under the lock of the atlas, until the
+ * atlas is sealed before it is first drawn. From then on its pixels do not change: the bitmap is
+ * uploaded to a texture once, and never written while the UI thread draws it.
+ */
+internal class BitmapAtlas(val bitmapReference: CloseableReference<Bitmap>, val cellSize: Int) {
+
+  val columnCount: Int = bitmapReference.get().width / cellSize
+
+  val cellCount: Int = columnCount * (bitmapReference.get().height / cellSize)
+
+  private val usedCells = BitSet(cellCount)
+
+  var usedCellCount = 0
+    private set
+
+  val isFull: Boolean
+    get() = usedCellCount == cellCount
+
+  val isEmpty: Boolean
+    get() = usedCellCount == 0
+
+  /** Whether the bitmap can no longer be written, its free cells are not allocated any more. */
+  @Volatile
+  var isSealed = false
+    private set
+
+  /** Returns a free cell, now used, or -1 if the atlas is full. */
+  fun allocateCell(): Int {
+    val cell = usedCells.nextClearBit(0)
+    if (cell >= cellCount) {
+      return -1
+    }
+    usedCells.set(cell)
+    usedCellCount++
+    return cell
+  }
+
+  fun releaseCell(cell: Int) {
+    if (usedCells[cell]) {
+      usedCells.clear(cell)
+      usedCellCount--
+    }
+  }
+
+  /**
+   * Runs [write] on the bitmap unless the atlas is sealed.
+   *
+   * @return false if the atlas is sealed and the bitmap was not written
+   */
+  @Synchronized
+  fun write(write: (Bitmap) -> Unit): Boolean {
+    if (isSealed) {
+      return false
+    }
+    write(bitmapReference.get())
+    return true
+  }
+
+  /** Seals the atlas, once the thumbnail being written, if any, is in the bitmap. */
+  fun seal() {
+    if (!isSealed) {
+      synchronized(this) { isSealed = true }
+    }
+  }
+
+  /** Sets [outRect] to the top left [width] x [height] pixels of the cell. */
+  fun getCellRegion(cell: Int, width: Int, height: Int, outRect: Rect) {
+    val left = cell % columnCount * cellSize
+    val top = cell / columnCount * cellSize
+    outRect.set(left, top, left + width, top + height)
+  }
+}
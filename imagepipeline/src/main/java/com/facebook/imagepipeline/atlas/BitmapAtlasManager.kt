@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.atlas
+
+import android.graphics.Bitmap
+import com.facebook.common.references.CloseableReference
+import com.facebook.imagepipeline.memory.BitmapPool
+import com.facebook.imageutils.BitmapUtil
+import javax.annotation.concurrent.GuardedBy
+
+/**
+ * Allocates thumbnails in shared [BitmapAtlas]es.
+ *
+ * The thumbnails of one atlas tag, cell size and bitmap config share atlases of [cellsPerSide] x
+ * [cellsPerSide] cells: a thumbnail takes a free cell of an atlas of its group that is not sealed
+ * yet, or of a new atlas taken from [bitmapPool] when they are all full or sealed. An atlas is
+ * sealed when one of its thumbnails is first drawn, so that the thumbnails decoded together share
+ * an atlas that is filled before it is drawn. An atlas whose thumbnails are all closed is retired
+ * and its bitmap goes back to the pool.
+ */
+class BitmapAtlasManager
+@JvmOverloads
+constructor(
+    private val bitmapPool: BitmapPool,
+    private val cellsPerSide: Int = DEFAULT_CELLS_PER_SIDE
+) {
+
+  private data class AtlasGroup(
+      val atlasTag: String,
+      val cellSize: Int,
+      val bitmapConfig: Bitmap.Config
+  )
+
+  @GuardedBy("this")
+  private val atlases: MutableMap<AtlasGroup, MutableList<BitmapAtlas>> = HashMap()
+
+  /** Number of atlases, i.e. of bitmaps, currently holding thumbnails. */
+  @get:Synchronized
+  var atlasCount = 0
+    private set
+
+  /** Total size of the atlas bitmaps currently holding thumbnails. */
+  @get:Synchronized
+  var atlasSizeInBytes = 0L
+    private set
+
+  /** Number of thumbnails currently allocated. */
+  @get:Synchronized
+  var thumbnailCount = 0
+    private set
+
+  /**
+   * Allocates a [width] x [height] thumbnail in a cell of an atlas of the group. The caller writes
+   * the thumbnail into its cell with [CloseableAtlasBitmap.writeCell].
+   *
+   * @param cellSize the size of the cells, at least the size of the thumbnail
+   */
+  fun allocate(
+      atlasTag: String,
+      cellSize: Int,
+      bitmapConfig: Bitmap.Config,
+      width: Int,
+      height: Int
+  ): CloseableAtlasBitmap {
+    require(width in 1..cellSize && height in 1..cellSize) {
+      "The $width x $height thumbnail does not fit in a cell of $cellSize"
+    }
+    val group = AtlasGroup(atlasTag, cellSize, bitmapConfig)
+    synchronized(this) {
+      val groupAtlases = atlases.getOrPut(group) { ArrayList() }
+      val atlas =
+          groupAtlases.firstOrNull { !it.isFull && !it.isSealed }
+              ?: createAtlas(cellSize, bitmapConfig).also {
+                groupAtlases.add(it)
+                atlasCount++
+                atlasSizeInBytes += BitmapUtil.getSizeInBytes(it.bitmapReference.get())
+              }
+      val cell = atlas.allocateCell()
+      thumbnailCount++
+      return CloseableAtlasBitmap(
+          this, atlas, cell, atlas.bitmapReference.clone(), bitmapConfig, width, height)
+    }
+  }
+
+  /** Releases the cell of a closed thumbnail, and retires its atlas if it was the last one. */
+  internal fun release(atlas: BitmapAtlas, cell: Int) {
+    synchronized(this) {
+      atlas.releaseCell(cell)
+      thumbnailCount--
+      if (!atlas.isEmpty) {
+        return
+      }
+      atlases.values.forEach { it.remove(atlas) }
+      atlasCount--
+      atlasSizeInBytes -= BitmapUtil.getSizeInBytes(atlas.bitmapReference.get())
+    }
+    atlas.bitmapReference.close()
+  }
+
+  private fun createAtlas(cellSize: Int, bitmapConfig: Bitmap.Config): BitmapAtlas {
+    val size = cellSize * cellsPerSide
+    val bitmap = bitmapPool.get(BitmapUtil.getSizeInByteForBitmap(size, size, bitmapConfig))
+    try {
+      bitmap.reconfigure(size, size, bitmapConfig)
+    } catch (e: RuntimeException) {
+      bitmapPool.release(bitmap)
+      throw e
+    }
+    return BitmapAtlas(CloseableReference.of(bitmap, bitmapPool), cellSize)
+  }
+
+  companion object {
+    const val DEFAULT_CELLS_PER_SIDE = 8
+  }
+}
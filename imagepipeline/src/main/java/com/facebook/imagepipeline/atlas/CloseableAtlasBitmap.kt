@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.atlas
+
+import android.graphics.Bitmap
+import android.graphics.Canvas
+import android.graphics.Rect
+import com.facebook.common.references.CloseableReference
+import com.facebook.imagepipeline.image.DefaultCloseableImage
+import com.facebook.imageutils.BitmapUtil
+import javax.annotation.concurrent.GuardedBy
+
+/**
+ * Thumbnail held in a cell of a shared atlas bitmap, see [BitmapAtlasManager].
+ *
+ * It is not a [com.facebook.imagepipeline.image.CloseableStaticBitmap]: its bitmap is the whole
+ * atlas and only [getRegion] of it is the thumbnail, so it is drawn by an [AtlasBitmapDrawable].
+ */
+class CloseableAtlasBitmap
+internal constructor(
+    private val atlasManager: BitmapAtlasManager,
+    private val atlas: BitmapAtlas,
+    private val cell: Int,
+    bitmapReference: CloseableReference<Bitmap>,
+    bitmapConfig: Bitmap.Config,
+    width: Int,
+    height: Int
+) : DefaultCloseableImage() {
+
+  @GuardedBy("this") private var atlasBitmapReference: CloseableReference<Bitmap>? = bitmapReference
+
+  private val region = Rect().also { atlas.getCellRegion(cell, width, height, it) }
+
+  /** The image accounts for its whole cell of the atlas. */
+  private val sizeInBytes =
+      BitmapUtil.getSizeInByteForBitmap(atlas.cellSize, atlas.cellSize, bitmapConfig)
+
+  /**
+   * Returns the atlas bitmap, or null once the thumbnail is closed. To draw it, use
+   * [getPublishedAtlasBitmap].
+   */
+  @Synchronized fun getAtlasBitmap(): Bitmap? = atlasBitmapReference?.get()
+
+  /**
+   * Returns the atlas bitmap to draw the thumbnail, or null once the thumbnail is closed. The atlas
+   * is sealed first, its pixels no longer change.
+   */
+  fun getPublishedAtlasBitmap(): Bitmap? {
+    val bitmap = getAtlasBitmap() ?: return null
+    atlas.seal()
+    return bitmap
+  }
+
+  /**
+   * Writes the thumbnail into its cell with [write], on a canvas of the atlas bitmap clipped to
+   * [getRegion].
+   *
+   * @return false if the atlas was sealed before, the thumbnail should then be closed and allocated
+   *   again
+   */
+  fun writeCell(write: (Canvas) -> Unit): Boolean =
+      atlas.write { bitmap ->
+        val canvas = Canvas(bitmap)
+        canvas.clipRect(region)
+        write(canvas)
+      }
+
+  /** Returns the pixels of the atlas bitmap that hold the thumbnail. */
+  fun getRegion(): Rect = Rect(region)
+
+  override fun getSizeInBytes(): Int = sizeInBytes
+
+  override fun getWidth(): Int = region.width()
+
+  override fun getHeight(): Int = region.height()
+
+  override fun close() {
+    val reference: CloseableReference<Bitmap>?
+    synchronized(this) {
+      reference = atlasBitmapReference
+      atlasBitmapReference = null
+    }
+    if (reference != null) {
+      reference.close()
+      atlasManager.release(atlas, cell)
+    }
+  }
+
+  @Synchronized override fun isClosed(): Boolean = atlasBitmapReference == null
+}
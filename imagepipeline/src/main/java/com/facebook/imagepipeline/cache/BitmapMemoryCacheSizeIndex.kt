@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.cache
+
+import com.facebook.cache.common.CacheKey
+import com.facebook.common.references.CloseableReference
+import com.facebook.imagepipeline.bitmaps.PlatformBitmapFactory
+import com.facebook.imagepipeline.image.CloseableImage
+import com.facebook.imagepipeline.image.CloseableStaticBitmap
+import com.facebook.imagepipeline.image.ImmutableQualityInfo
+import javax.annotation.concurrent.GuardedBy
+import kotlin.math.roundToInt
+
+/**
+ * Index of the decodes of every size of a source that are resident in the bitmap memory cache.
+ *
+ * A [BitmapMemoryCacheKey] includes the [com.facebook.imagepipeline.common.ResizeOptions] of its
+ * request, so a request misses the cache even when a larger decode of the same source is resident.
+ * The index lists the resident decodes by their key without resize options, and serves a request
+ * that misses from the smallest resident decode that is at least as large, instead of decoding it
+ * again.
+ *
+ * Without [platformBitmapFactory], the larger bitmap is served as is and drawn scaled. With it, off
+ * the UI thread, the larger bitmap is downscaled into a pooled bitmap which is cached under the key
+ * of the request.
+ *
+ * The index is not notified of evictions: keys that are not in the cache anymore are dropped when
+ * looked up.
+ */
+class BitmapMemoryCacheSizeIndex
+@JvmOverloads
+constructor(
+    private val imageCacheStatsTracker: ImageCacheStatsTracker,
+    private val platformBitmapFactory: PlatformBitmapFactory? = null,
+    private val maxSourceCount: Int = DEFAULT_MAX_SOURCE_COUNT
+) {
+
+  /** Resident keys by key without resize options, least recently used source first. */
+  @GuardedBy("this")
+  private val residentKeys: MutableMap<BitmapMemoryCacheKey, MutableSet<BitmapMemoryCacheKey>> =
+      LinkedHashMap(16, 0.75f, true)
+
+  /** Number of requests served from a larger resident decode instead of a decode. */
+  @get:Synchronized
+  var servedFromLargerCount = 0
+    private set
+
+  /** Number of those requests whose larger bitmap was downscaled into a new bitmap. */
+  @get:Synchronized
+  var downscaledCount = 0
+    private set
+
+  /** Estimated size of the bitmaps that were not allocated for the requests served as is. */
+  @get:Synchronized
+  var savedBitmapBytes = 0L
+    private set
+
+  /** Records that the bitmap memory cache holds a full quality decode under the key. */
+  fun onCached(cacheKey: CacheKey) {
+    if (cacheKey !is BitmapMemoryCacheKey) {
+      return
+    }
+    synchronized(this) {
+      val keys = residentKeys.getOrPut(getSourceKey(cacheKey)) { LinkedHashSet() }
+      keys.remove(cacheKey)
+      keys.add(cacheKey)
+      if (keys.size > MAX_SIZES_PER_SOURCE) {
+        keys.remove(keys.first())
+      }
+      if (residentKeys.size > maxSourceCount) {
+        residentKeys.remove(residentKeys.keys.first())
+      }
+    }
+  }
+
+  /**
+   * Returns a decode for a request that missed the bitmap memory cache, made from a larger resident
+   * decode of its source, or null if there is none.
+   *
+   * @param canDownscale whether the caller can afford to downscale the larger bitmap, i.e. is off
+   *   the UI thread. When it cannot and the index downscales, null is returned so that a later
+   *   producer does it.
+   */
+  fun getFromLarger(
+      memoryCache: MemoryCache<CacheKey, CloseableImage>,
+      cacheKey: CacheKey,
+      canDownscale: Boolean
+  ): CloseableReference<CloseableImage>? {
+    if (cacheKey !is BitmapMemoryCacheKey) {
+      return null
+    }
+    val resizeOptions = cacheKey.resizeOptions ?: return null
+    if (platformBitmapFactory != null && !canDownscale) {
+      return null
+    }
+    val candidateKeys =
+        synchronized(this) { residentKeys[getSourceKey(cacheKey)]?.toList() } ?: return null
+
+    var largerKey: BitmapMemoryCacheKey? = null
+    var largerSize = Int.MAX_VALUE
+    for (candidateKey in candidateKeys) {
+      if (candidateKey == cacheKey) {
+        continue
+      }
+      val candidate = memoryCache.inspect(candidateKey)
+      if (candidate == null) {
+        synchronized(this) { residentKeys[getSourceKey(cacheKey)]?.remove(candidateKey) }
+        continue
+      }
+      val candidateResizeOptions = candidateKey.resizeOptions
+      val isLarger =
+          candidateResizeOptions == null ||
+              (candidateResizeOptions.width >= resizeOptions.width &&
+                  candidateResizeOptions.height >= resizeOptions.height)
+      if (isLarger &&
+          candidate is CloseableStaticBitmap &&
+          candidate.qualityInfo.isOfFullQuality &&
+          candidate.sizeInBytes < largerSize) {
+        largerKey = candidateKey
+        largerSize = candidate.sizeInBytes
+      }
+    }
+    val residentKey = largerKey ?: return null
+    val largerReference = memoryCache[residentKey] ?: return null
+    val larger = largerReference.get() as CloseableStaticBitmap
+    val scale =
+        minOf(
+            1f,
+            maxOf(
+                resizeOptions.width.toFloat() / larger.width,
+                resizeOptions.height.toFloat() / larger.height))
+
+    if (platformBitmapFactory == null || scale >= 1f) {
+      val savedBytes = (larger.sizeInBytes * scale * scale).toInt()
+      synchronized(this) {
+        servedFromLargerCount++
+        savedBitmapBytes += savedBytes
+      }
+      imageCacheStatsTracker.onBitmapCacheHitFromLarger(cacheKey, residentKey, savedBytes)
+      return largerReference
+    }
+    try {
+      val downscaled = downscale(larger, scale)
+      val cachedReference = memoryCache.cache(cacheKey, downscaled)
+      if (cachedReference != null) {
+        onCached(cacheKey)
+        downscaled.close()
+      }
+      synchronized(this) {
+        servedFromLargerCount++
+        downscaledCount++
+      }
+      imageCacheStatsTracker.onBitmapCacheHitFromLarger(cacheKey, residentKey, 0)
+      return cachedReference ?: downscaled
+    } finally {
+      largerReference.close()
+    }
+  }
+
+  private fun downscale(
+      larger: CloseableStaticBitmap,
+      scale: Float
+  ): CloseableReference<CloseableImage> {
+    val bitmap = larger.underlyingBitmap
+    val bitmapReference =
+        checkNotNull(platformBitmapFactory)
+            .createScaledBitmap(
+                bitmap,
+                maxOf((bitmap.width * scale).roundToInt(), 1),
+                maxOf((bitmap.height * scale).roundToInt(), 1),
+                true)
+    try {
+      return CloseableReference.of<CloseableImage>(
+          CloseableStaticBitmap.of(
+              bitmapReference,
+              ImmutableQualityInfo.FULL_QUALITY,
+              larger.rotationAngle,
+              larger.exifOrientation))
+    } finally {
+      bitmapReference.close()
+    }
+  }
+
+  private fun getSourceKey(cacheKey: BitmapMemoryCacheKey): BitmapMemoryCacheKey =
+      cacheKey.copy(resizeOptions = null)
+
+  companion object {
+    const val DEFAULT_MAX_SOURCE_COUNT = 256
+    private const val MAX_SIZES_PER_SOURCE = 8
+  }
+}
@@ -8,6 +8,9 @@
 package com.facebook.imagepipeline.cache
 
 import bolts.Task
+import com.facebook.binaryresource.BinaryResource
+import com.facebook.binaryresource.ByteBufferBinaryResource
+import com.facebook.binaryresource.FileBinaryResource
 import com.facebook.cache.common.CacheKey
 import com.facebook.cache.disk.FileCache
 import com.facebook.common.logging.FLog
@@ -15,9 +18,13 @@ import com.facebook.common.memory.PooledByteBuffer
 import com.facebook.common.memory.PooledByteBufferFactory
 import com.facebook.common.memory.PooledByteStreams
 import com.facebook.common.references.CloseableReference
+import com.facebook.imagepipeline.common.Priority
+import com.facebook.imagepipeline.core.PriorityAwareExecutor
 import com.facebook.imagepipeline.image.EncodedImage
 import com.facebook.imagepipeline.instrumentation.FrescoInstrumenter
+import com.facebook.imagepipeline.memory.MemoryPooledByteBufferFactory
 import com.facebook.imagepipeline.systrace.FrescoSystrace
+import java.io.FileInputStream
 import java.io.IOException
 import java.util.concurrent.Callable
 import java.util.concurrent.CancellationException
@@ -108,16 +115,22 @@ class BufferedDiskCache(
    * i.e. the returned task resolves to null.
    *
    * @param key
+   * @param priority the priority of the read if the read executor is a [PriorityAwareExecutor]
    * @return Task that resolves to cached element or null if one cannot be retrieved; returned task
    *   never rethrows any exception
    */
-  operator fun get(key: CacheKey, isCancelled: AtomicBoolean): Task<EncodedImage> =
+  @JvmOverloads
+  operator fun get(
+      key: CacheKey,
+      isCancelled: AtomicBoolean,
+      priority: Priority = Priority.MEDIUM
+  ): Task<EncodedImage> =
       try {
         if (FrescoSystrace.isTracing()) {
           FrescoSystrace.beginSection("BufferedDiskCache#get")
         }
         val pinnedImage = stagingArea[key]
-        pinnedImage?.let { foundPinnedImage(key, it) } ?: getAsync(key, isCancelled)
+        pinnedImage?.let { foundPinnedImage(key, it) } ?: getAsync(key, isCancelled, priority)
       } finally {
         if (FrescoSystrace.isTracing()) {
           FrescoSystrace.endSection()
@@ -180,7 +193,11 @@ class BufferedDiskCache(
     }
   }
 
-  private fun getAsync(key: CacheKey, isCancelled: AtomicBoolean): Task<EncodedImage> {
+  private fun getAsync(
+      key: CacheKey,
+      isCancelled: AtomicBoolean,
+      priority: Priority
+  ): Task<EncodedImage> {
     return try {
       val token = FrescoInstrumenter.onBeforeSubmitWork("BufferedDiskCache_getAsync")
       Task.call(
@@ -224,7 +241,7 @@ class BufferedDiskCache(
               FrescoInstrumenter.onEndWork(currentToken)
             }
           },
-          readExecutor)
+          PriorityAwareExecutor.withPriority(readExecutor) { priority })
     } catch (exception: Exception) {
       // Log failure
       // TODO: 3697790
@@ -359,14 +376,24 @@ class BufferedDiskCache(
         FLog.v(TAG, "Found entry in disk cache for %s", key.uriString)
         imageCacheStatsTracker.onDiskCacheHit(key)
       }
-      val `is` = diskCacheResource.openStream()
-      val byteBuffer =
-          try {
-            pooledByteBufferFactory.newByteBuffer(`is`, diskCacheResource.size().toInt())
-          } finally {
-            `is`.close()
-          }
+      val directBuffer = readDirectly(diskCacheResource)
+      val byteBuffer: PooledByteBuffer
+      val bytesCopied: Int
+      if (directBuffer != null) {
+        byteBuffer = directBuffer
+        bytesCopied = 0
+      } else {
+        val `is` = diskCacheResource.openStream()
+        byteBuffer =
+            try {
+              pooledByteBufferFactory.newByteBuffer(`is`, diskCacheResource.size().toInt())
+            } finally {
+              `is`.close()
+            }
+        bytesCopied = byteBuffer.size()
+      }
       FLog.v(TAG, "Successful read from disk cache for %s", key.uriString)
+      imageCacheStatsTracker.onDiskCacheRead(key, byteBuffer.size(), bytesCopied)
       byteBuffer
     } catch (ioe: IOException) {
       // TODO: 3697790 log failures
@@ -378,6 +405,23 @@ class BufferedDiskCache(
     }
   }
 
+  /**
+   * Reads [resource] straight into pooled memory when the pool hands out chunks backed by a
+   * [java.nio.ByteBuffer], avoiding the copy through a pooled byte array.
+   *
+   * @return the buffer, or null if the resource or the pool does not support direct reads
+   */
+  @Throws(IOException::class)
+  private fun readDirectly(resource: BinaryResource): PooledByteBuffer? {
+    val factory = pooledByteBufferFactory as? MemoryPooledByteBufferFactory ?: return null
+    return when (resource) {
+      is FileBinaryResource ->
+          FileInputStream(resource.file).use { factory.newByteBuffer(it.channel) }
+      is ByteBufferBinaryResource -> factory.newByteBuffer(resource.byteBuffer)
+      else -> null
+    }
+  }
+
   /**
    * Writes to disk cache
    *
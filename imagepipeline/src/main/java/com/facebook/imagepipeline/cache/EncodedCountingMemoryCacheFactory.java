@@ -20,6 +20,19 @@ public class EncodedCountingMemoryCacheFactory {
       Supplier<MemoryCacheParams> encodedMemoryCacheParamsSupplier,
       MemoryTrimmableRegistry memoryTrimmableRegistry,
       MemoryCache.CacheTrimStrategy cacheTrimStrategy) {
+    return get(
+        encodedMemoryCacheParamsSupplier, memoryTrimmableRegistry, cacheTrimStrategy, false);
+  }
+
+  /**
+   * @param useTinyLfu whether to use the W-TinyLFU policy ({@link TinyLfuCountingMemoryCache})
+   *     instead of plain LRU
+   */
+  public static CountingMemoryCache<CacheKey, PooledByteBuffer> get(
+      Supplier<MemoryCacheParams> encodedMemoryCacheParamsSupplier,
+      MemoryTrimmableRegistry memoryTrimmableRegistry,
+      MemoryCache.CacheTrimStrategy cacheTrimStrategy,
+      boolean useTinyLfu) {
 
     ValueDescriptor<PooledByteBuffer> valueDescriptor =
         new ValueDescriptor<PooledByteBuffer>() {
@@ -30,13 +43,21 @@ public class EncodedCountingMemoryCacheFactory {
         };
 
     CountingMemoryCache<CacheKey, PooledByteBuffer> countingCache =
-        new LruCountingMemoryCache<>(
-            valueDescriptor,
-            cacheTrimStrategy,
-            encodedMemoryCacheParamsSupplier,
-            null,
-            false,
-            false);
+        useTinyLfu
+            ? new TinyLfuCountingMemoryCache<CacheKey, PooledByteBuffer>(
+                valueDescriptor,
+                cacheTrimStrategy,
+                encodedMemoryCacheParamsSupplier,
+                null,
+                false,
+                false)
+            : new LruCountingMemoryCache<CacheKey, PooledByteBuffer>(
+                valueDescriptor,
+                cacheTrimStrategy,
+                encodedMemoryCacheParamsSupplier,
+                null,
+                false,
+                false);
 
     memoryTrimmableRegistry.registerMemoryTrimmable(countingCache);
 
@@ -15,6 +15,9 @@ import com.facebook.cache.common.CacheKey
  * An implementation of this interface, passed to
  * [com.facebook.imagepipeline.core.ImagePipelineConfig], will be notified for each of the following
  * cache events. Use this to keep cache stats for your app.
+ *
+ * The events added after the others have default implementations that ignore them, so that
+ * existing trackers, including Java ones, keep compiling.
  */
 interface ImageCacheStatsTracker {
 
@@ -27,6 +30,20 @@ interface ImageCacheStatsTracker {
   /** Called on a bitmap cache miss. */
   fun onBitmapCacheMiss(cacheKey: CacheKey)
 
+  /**
+   * Called when a bitmap cache miss is served from a larger decode of the same source, see
+   * [BitmapMemoryCacheSizeIndex]. The lookup of the larger decode is also reported as a hit.
+   *
+   * @param largerCacheKey the key of the larger decode
+   * @param savedBitmapBytes estimated size of the bitmap the decode would have allocated, 0 when
+   *   the larger bitmap was downscaled into a new one
+   */
+  fun onBitmapCacheHitFromLarger(
+      cacheKey: CacheKey,
+      largerCacheKey: CacheKey,
+      savedBitmapBytes: Int
+  ) = Unit
+
   /** Called whenever encoded images are put into the encoded memory cache. */
   fun onMemoryCachePut(cacheKey: CacheKey)
 
@@ -53,6 +70,15 @@ interface ImageCacheStatsTracker {
   /** Called on a disk cache miss. */
   fun onDiskCacheMiss(cacheKey: CacheKey)
 
+  /**
+   * Called after a disk cache hit has been read into memory.
+   *
+   * @param byteCount number of bytes read
+   * @param bytesCopied number of those bytes that went through an intermediate heap buffer, 0 when
+   *   the entry was read straight into pooled memory
+   */
+  fun onDiskCacheRead(cacheKey: CacheKey, byteCount: Int, bytesCopied: Int) = Unit
+
   /** Called if an exception is thrown on a disk cache read. */
   fun onDiskCacheGetFail(cacheKey: CacheKey)
 
@@ -34,6 +34,10 @@ public class NoOpImageCacheStatsTracker implements ImageCacheStatsTracker {
   @Override
   public void onBitmapCacheMiss(CacheKey cacheKey) {}
 
+  @Override
+  public void onBitmapCacheHitFromLarger(
+      CacheKey cacheKey, CacheKey largerCacheKey, int savedBitmapBytes) {}
+
   @Override
   public void onMemoryCachePut(CacheKey cacheKey) {}
 
@@ -55,6 +59,9 @@ public class NoOpImageCacheStatsTracker implements ImageCacheStatsTracker {
   @Override
   public void onDiskCacheMiss(CacheKey cacheKey) {}
 
+  @Override
+  public void onDiskCacheRead(CacheKey cacheKey, int byteCount, int bytesCopied) {}
+
   @Override
   public void onDiskCacheGetFail(CacheKey cacheKey) {}
 
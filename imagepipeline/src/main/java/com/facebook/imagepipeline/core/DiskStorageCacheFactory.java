@@ -48,7 +48,10 @@ public class DiskStorageCacheFactory implements FileCacheFactory {
         diskCacheConfig.getCacheErrorLogger(),
         diskCacheConfig.getDiskTrimmableRegistry(),
         executorForBackgroundInit,
-        diskCacheConfig.getIndexPopulateAtStartupEnabled());
+        diskCacheConfig.getIndexPopulateAtStartupEnabled(),
+        diskCacheConfig.getConcurrentModeEnabled(),
+        diskCacheConfig.getResourceIdHasher(),
+        diskCacheConfig.getLegacyResourceIdHasher());
   }
 
   @Override
@@ -10,18 +10,44 @@ package com.facebook.imagepipeline.core;
 import com.facebook.cache.disk.DiskCacheConfig;
 import com.facebook.cache.disk.DiskStorage;
 import com.facebook.cache.disk.DynamicDefaultDiskStorage;
+import com.facebook.cache.disk.SlabDiskStorage;
+import com.facebook.common.internal.Supplier;
 import com.facebook.infer.annotation.Nullsafe;
+import java.io.File;
 
-/** Factory for the default implementation of the DiskStorage. */
+/**
+ * Factory for the default implementation of the DiskStorage. Small entries are packed into slab
+ * files if {@link DiskCacheConfig#getMaxSlabEntrySize()} is set.
+ */
 @Nullsafe(Nullsafe.Mode.LOCAL)
 public class DynamicDefaultDiskStorageFactory implements DiskStorageFactory {
 
+  private static final String SLAB_DIRECTORY_SUFFIX = "_slabs";
+
   @Override
-  public DiskStorage get(DiskCacheConfig diskCacheConfig) {
-    return new DynamicDefaultDiskStorage(
+  public DiskStorage get(final DiskCacheConfig diskCacheConfig) {
+    DiskStorage storage =
+        new DynamicDefaultDiskStorage(
+            diskCacheConfig.getVersion(),
+            diskCacheConfig.getBaseDirectoryPathSupplier(),
+            diskCacheConfig.getBaseDirectoryName(),
+            diskCacheConfig.getCacheErrorLogger(),
+            diskCacheConfig.getJournalEnabled());
+    if (diskCacheConfig.getMaxSlabEntrySize() <= 0) {
+      return storage;
+    }
+    return new SlabDiskStorage(
+        storage,
+        new Supplier<File>() {
+          @Override
+          public File get() {
+            return new File(
+                diskCacheConfig.getBaseDirectoryPathSupplier().get(),
+                diskCacheConfig.getBaseDirectoryName() + SLAB_DIRECTORY_SUFFIX);
+          }
+        },
         diskCacheConfig.getVersion(),
-        diskCacheConfig.getBaseDirectoryPathSupplier(),
-        diskCacheConfig.getBaseDirectoryName(),
+        diskCacheConfig.getMaxSlabEntrySize(),
         diskCacheConfig.getCacheErrorLogger());
   }
 }
@@ -56,6 +56,7 @@ class ImagePipelineExperiments private constructor(builder: Builder) {
   val downscaleFrameToDrawableDimensions: Boolean
   val suppressBitmapPrefetchingSupplier: Supplier<Boolean>
   val isExperimentalThreadHandoffQueueEnabled: Boolean
+  val isBatchingThreadHandoffQueueEnabled: Boolean
   val memoryType: Long
   val keepCancelledFetchAsLowPriority: Boolean
   val downsampleIfLargeBitmap: Boolean
@@ -74,6 +75,11 @@ class ImagePipelineExperiments private constructor(builder: Builder) {
   val animationRenderFpsLimit: Int
   val prefetchShortcutEnabled: Boolean
   val platformDecoderOptions: PlatformDecoderOptions
+  val isTinyLfuEncodedMemoryCacheEnabled: Boolean
+  val partialDownloadStoreMaxSizeBytes: Int
+  val decodeBudgetMsPerSecond: Int
+  val isBitmapCacheMissFromLargerEnabled: Boolean
+  val downscaleLargerBitmapForCacheMiss: Boolean
 
   class Builder(private val configBuilder: ImagePipelineConfig.Builder) {
     @JvmField var shouldUseDecodingBufferHelper = false
@@ -102,6 +108,7 @@ class ImagePipelineExperiments private constructor(builder: Builder) {
     @JvmField var suppressBitmapPrefetchingSupplier = Suppliers.of(false)
 
     @JvmField var experimentalThreadHandoffQueueEnabled = false
+    @JvmField var batchingThreadHandoffQueueEnabled = false
 
     @JvmField var memoryType: Long = 0
     @JvmField var keepCancelledFetchAsLowPriority = false
@@ -126,6 +133,15 @@ class ImagePipelineExperiments private constructor(builder: Builder) {
 
     @JvmField var platformDecoderOptions = PlatformDecoderOptions()
 
+    @JvmField var tinyLfuEncodedMemoryCacheEnabled = false
+
+    @JvmField var partialDownloadStoreMaxSizeBytes = 0
+
+    @JvmField var decodeBudgetMsPerSecond = 0
+
+    @JvmField var bitmapCacheMissFromLargerEnabled = false
+    @JvmField var downscaleLargerBitmapForCacheMiss = false
+
     private fun asBuilder(block: () -> Unit): Builder {
       block()
       return this
@@ -265,6 +281,19 @@ class ImagePipelineExperiments private constructor(builder: Builder) {
           this.experimentalThreadHandoffQueueEnabled = experimentalThreadHandoffQueueEnabled
         }
 
+    /**
+     * Hands the requests made on the main thread off to the background thread in one batch per main
+     * thread message. See
+     * [com.facebook.imagepipeline.producers.BatchingThreadHandoffProducerQueueImpl].
+     *
+     * Has no effect when [setExperimentalThreadHandoffQueueEnabled] is also set, as that queue is
+     * used then.
+     */
+    fun setBatchingThreadHandoffQueueEnabled(batchingThreadHandoffQueueEnabled: Boolean) =
+        asBuilder {
+          this.batchingThreadHandoffQueueEnabled = batchingThreadHandoffQueueEnabled
+        }
+
     fun setExperimentalMemoryType(MemoryType: Long) = asBuilder { this.memoryType = MemoryType }
 
     fun setKeepCancelledFetchAsLowPriority(keepCancelledFetchAsLowPriority: Boolean) = asBuilder {
@@ -314,6 +343,51 @@ class ImagePipelineExperiments private constructor(builder: Builder) {
       this.platformDecoderOptions = platformDecoderOptions
     }
 
+    /**
+     * Uses the W-TinyLFU policy instead of LRU for the encoded memory cache. For the bitmap memory
+     * cache, see [com.facebook.imagepipeline.cache.TinyLfuBitmapMemoryCacheFactory].
+     */
+    fun setTinyLfuEncodedMemoryCacheEnabled(tinyLfuEncodedMemoryCacheEnabled: Boolean) =
+        asBuilder {
+          this.tinyLfuEncodedMemoryCacheEnabled = tinyLfuEncodedMemoryCacheEnabled
+        }
+
+    /**
+     * Keeps up to this many bytes of network downloads that were cancelled or failed, so that the
+     * next fetch of the same image, or a retry of the fetcher, resumes them with a range request.
+     * 0 disables it. See [com.facebook.imagepipeline.producers.NetworkFetchProducer] for the
+     * network fetchers this works with.
+     */
+    fun setPartialDownloadStoreMaxSizeBytes(partialDownloadStoreMaxSizeBytes: Int) = asBuilder {
+      this.partialDownloadStoreMaxSizeBytes = partialDownloadStoreMaxSizeBytes
+    }
+
+    /**
+     * Shares this many ms of decode CPU time per second between the intermediate decodes of all
+     * progressive images, instead of throttling each image by its minimum decode interval. 0
+     * disables it. See [com.facebook.imagepipeline.producers.DecodeBudgetScheduler].
+     */
+    fun setDecodeBudgetMsPerSecond(decodeBudgetMsPerSecond: Int) = asBuilder {
+      this.decodeBudgetMsPerSecond = decodeBudgetMsPerSecond
+    }
+
+    /**
+     * Serves a bitmap memory cache miss from a resident decode of the same source with larger
+     * resize options, instead of decoding the image again. See
+     * [com.facebook.imagepipeline.cache.BitmapMemoryCacheSizeIndex].
+     *
+     * @param downscale whether the larger bitmap is downscaled into a new one off the UI thread,
+     *   rather than served as is and drawn scaled
+     */
+    @JvmOverloads
+    fun setBitmapCacheMissFromLargerEnabled(
+        bitmapCacheMissFromLargerEnabled: Boolean,
+        downscale: Boolean = false
+    ) = asBuilder {
+      this.bitmapCacheMissFromLargerEnabled = bitmapCacheMissFromLargerEnabled
+      this.downscaleLargerBitmapForCacheMiss = downscale
+    }
+
     fun build(): ImagePipelineExperiments = ImagePipelineExperiments(this)
   }
 
@@ -416,6 +490,7 @@ class ImagePipelineExperiments private constructor(builder: Builder) {
     downscaleFrameToDrawableDimensions = builder.downscaleFrameToDrawableDimensions
     suppressBitmapPrefetchingSupplier = builder.suppressBitmapPrefetchingSupplier
     isExperimentalThreadHandoffQueueEnabled = builder.experimentalThreadHandoffQueueEnabled
+    isBatchingThreadHandoffQueueEnabled = builder.batchingThreadHandoffQueueEnabled
     memoryType = builder.memoryType
     keepCancelledFetchAsLowPriority = builder.keepCancelledFetchAsLowPriority
     downsampleIfLargeBitmap = builder.downsampleIfLargeBitmap
@@ -434,6 +509,11 @@ class ImagePipelineExperiments private constructor(builder: Builder) {
     cancelDecodeOnCacheMiss = builder.cancelDecodeOnCacheMiss
     prefetchShortcutEnabled = builder.prefetchShortcutEnabled
     platformDecoderOptions = builder.platformDecoderOptions
+    isTinyLfuEncodedMemoryCacheEnabled = builder.tinyLfuEncodedMemoryCacheEnabled
+    partialDownloadStoreMaxSizeBytes = builder.partialDownloadStoreMaxSizeBytes
+    decodeBudgetMsPerSecond = builder.decodeBudgetMsPerSecond
+    isBitmapCacheMissFromLargerEnabled = builder.bitmapCacheMissFromLargerEnabled
+    downscaleLargerBitmapForCacheMiss = builder.downscaleLargerBitmapForCacheMiss
   }
 
   companion object {
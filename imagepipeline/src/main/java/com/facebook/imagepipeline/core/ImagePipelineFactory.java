@@ -22,6 +22,7 @@ import com.facebook.imagepipeline.animated.factory.AnimatedFactory;
 import com.facebook.imagepipeline.animated.factory.AnimatedFactoryProvider;
 import com.facebook.imagepipeline.bitmaps.PlatformBitmapFactory;
 import com.facebook.imagepipeline.bitmaps.PlatformBitmapFactoryProvider;
+import com.facebook.imagepipeline.cache.BitmapMemoryCacheSizeIndex;
 import com.facebook.imagepipeline.cache.BufferedDiskCache;
 import com.facebook.imagepipeline.cache.CountingMemoryCache;
 import com.facebook.imagepipeline.cache.EncodedCountingMemoryCacheFactory;
@@ -35,7 +36,10 @@ import com.facebook.imagepipeline.drawable.DrawableFactory;
 import com.facebook.imagepipeline.image.CloseableImage;
 import com.facebook.imagepipeline.platform.PlatformDecoder;
 import com.facebook.imagepipeline.platform.PlatformDecoderFactory;
+import com.facebook.imagepipeline.producers.BatchingThreadHandoffProducerQueueImpl;
+import com.facebook.imagepipeline.producers.DecodeBudgetScheduler;
 import com.facebook.imagepipeline.producers.ExperimentalThreadHandoffProducerQueueImpl;
+import com.facebook.imagepipeline.producers.PartialDownloadStore;
 import com.facebook.imagepipeline.producers.ThreadHandoffProducerQueue;
 import com.facebook.imagepipeline.producers.ThreadHandoffProducerQueueImpl;
 import com.facebook.imagepipeline.systrace.FrescoSystrace;
@@ -144,17 +148,29 @@ public class ImagePipelineFactory {
 
   @Nullable private AnimatedFactory mAnimatedFactory;
 
+  @Nullable private DecodeBudgetScheduler mDecodeBudgetScheduler;
+
+  @Nullable private BitmapMemoryCacheSizeIndex mBitmapMemoryCacheSizeIndex;
+
   public ImagePipelineFactory(ImagePipelineConfigInterface config) {
     if (FrescoSystrace.isTracing()) {
       FrescoSystrace.beginSection("ImagePipelineConfig()");
     }
     mConfig = Preconditions.checkNotNull(config);
-    mThreadHandoffProducerQueue =
-        mConfig.getExperiments().isExperimentalThreadHandoffQueueEnabled()
-            ? new ExperimentalThreadHandoffProducerQueueImpl(
-                config.getExecutorSupplier().forLightweightBackgroundTasks())
-            : new ThreadHandoffProducerQueueImpl(
-                config.getExecutorSupplier().forLightweightBackgroundTasks());
+    // the experimental queue takes precedence when both experiments are enabled
+    if (mConfig.getExperiments().isExperimentalThreadHandoffQueueEnabled()) {
+      mThreadHandoffProducerQueue =
+          new ExperimentalThreadHandoffProducerQueueImpl(
+              config.getExecutorSupplier().forLightweightBackgroundTasks());
+    } else if (mConfig.getExperiments().isBatchingThreadHandoffQueueEnabled()) {
+      mThreadHandoffProducerQueue =
+          new BatchingThreadHandoffProducerQueueImpl(
+              config.getExecutorSupplier().forLightweightBackgroundTasks());
+    } else {
+      mThreadHandoffProducerQueue =
+          new ThreadHandoffProducerQueueImpl(
+              config.getExecutorSupplier().forLightweightBackgroundTasks());
+    }
     mCloseableReferenceFactory =
         new CloseableReferenceFactory(config.getCloseableReferenceLeakTracker());
     if (FrescoSystrace.isTracing()) {
@@ -216,7 +232,8 @@ public class ImagePipelineFactory {
           EncodedCountingMemoryCacheFactory.get(
               mConfig.getEncodedMemoryCacheParamsSupplier(),
               mConfig.getMemoryTrimmableRegistry(),
-              mConfig.getEncodedMemoryCacheTrimStrategy());
+              mConfig.getEncodedMemoryCacheTrimStrategy(),
+              mConfig.getExperiments().isTinyLfuEncodedMemoryCacheEnabled());
     }
     return mEncodedCountingMemoryCache;
   }
@@ -369,6 +386,44 @@ public class ImagePipelineFactory {
     return mProducerFactory;
   }
 
+  @Nullable
+  private PartialDownloadStore getPartialDownloadStore() {
+    final int maxSizeBytes = mConfig.getExperiments().getPartialDownloadStoreMaxSizeBytes();
+    return maxSizeBytes > 0 ? new PartialDownloadStore(maxSizeBytes) : null;
+  }
+
+  /**
+   * Returns the scheduler the intermediate decodes share, and the decode CPU time it saved, or null
+   * if {@link ImagePipelineExperiments#getDecodeBudgetMsPerSecond()} is not set.
+   */
+  @Nullable
+  public DecodeBudgetScheduler getDecodeBudgetScheduler() {
+    final int budgetMsPerSecond = mConfig.getExperiments().getDecodeBudgetMsPerSecond();
+    if (mDecodeBudgetScheduler == null && budgetMsPerSecond > 0) {
+      mDecodeBudgetScheduler = new DecodeBudgetScheduler(budgetMsPerSecond);
+    }
+    return mDecodeBudgetScheduler;
+  }
+
+  /**
+   * Returns the index that serves bitmap memory cache misses from larger decodes, and the decodes
+   * it saved, or null if {@link ImagePipelineExperiments#isBitmapCacheMissFromLargerEnabled()} is
+   * not set.
+   */
+  @Nullable
+  public BitmapMemoryCacheSizeIndex getBitmapMemoryCacheSizeIndex() {
+    if (mBitmapMemoryCacheSizeIndex == null
+        && mConfig.getExperiments().isBitmapCacheMissFromLargerEnabled()) {
+      mBitmapMemoryCacheSizeIndex =
+          new BitmapMemoryCacheSizeIndex(
+              mConfig.getImageCacheStatsTracker(),
+              mConfig.getExperiments().getDownscaleLargerBitmapForCacheMiss()
+                  ? getPlatformBitmapFactory()
+                  : null);
+    }
+    return mBitmapMemoryCacheSizeIndex;
+  }
+
   private ProducerSequenceFactory getProducerSequenceFactory() {
     // before Android N the Bitmap#prepareToDraw method is no-op so do not need this
     final boolean useBitmapPrepareToDraw =
@@ -392,7 +447,10 @@ public class ImagePipelineFactory {
               mConfig.getExperiments().isEncodedMemoryCacheProbingEnabled(),
               mConfig.getExperiments().isDiskCacheProbingEnabled(),
               mConfig.getExperiments().getAllowDelay(),
-              mConfig.getCustomProducerSequenceFactories());
+              mConfig.getCustomProducerSequenceFactories(),
+              getPartialDownloadStore(),
+              getDecodeBudgetScheduler(),
+              getBitmapMemoryCacheSizeIndex());
     }
     return mProducerSequenceFactory;
   }
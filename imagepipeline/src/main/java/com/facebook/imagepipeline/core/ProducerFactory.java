@@ -20,6 +20,7 @@ import com.facebook.common.memory.PooledByteBuffer;
 import com.facebook.common.memory.PooledByteBufferFactory;
 import com.facebook.common.references.CloseableReference;
 import com.facebook.imagepipeline.bitmaps.PlatformBitmapFactory;
+import com.facebook.imagepipeline.cache.BitmapMemoryCacheSizeIndex;
 import com.facebook.imagepipeline.cache.BoundedLinkedHashSet;
 import com.facebook.imagepipeline.cache.BufferedDiskCache;
 import com.facebook.imagepipeline.cache.CacheKeyFactory;
@@ -36,6 +37,7 @@ import com.facebook.imagepipeline.producers.BitmapPrepareProducer;
 import com.facebook.imagepipeline.producers.BitmapProbeProducer;
 import com.facebook.imagepipeline.producers.BranchOnSeparateImagesProducer;
 import com.facebook.imagepipeline.producers.DataFetchProducer;
+import com.facebook.imagepipeline.producers.DecodeBudgetScheduler;
 import com.facebook.imagepipeline.producers.DecodeProducer;
 import com.facebook.imagepipeline.producers.DelayProducer;
 import com.facebook.imagepipeline.producers.DiskCacheReadProducer;
@@ -54,6 +56,7 @@ import com.facebook.imagepipeline.producers.LocalVideoThumbnailProducer;
 import com.facebook.imagepipeline.producers.NetworkFetchProducer;
 import com.facebook.imagepipeline.producers.NetworkFetcher;
 import com.facebook.imagepipeline.producers.PartialDiskCacheProducer;
+import com.facebook.imagepipeline.producers.PartialDownloadStore;
 import com.facebook.imagepipeline.producers.PostprocessedBitmapMemoryCacheProducer;
 import com.facebook.imagepipeline.producers.PostprocessorProducer;
 import com.facebook.imagepipeline.producers.Producer;
@@ -68,6 +71,7 @@ import com.facebook.imagepipeline.producers.ThumbnailProducer;
 import com.facebook.imagepipeline.producers.WebpTranscodeProducer;
 import com.facebook.imagepipeline.transcoder.ImageTranscoderFactory;
 import com.facebook.infer.annotation.Nullsafe;
+import javax.annotation.Nullable;
 
 @Nullsafe(Nullsafe.Mode.LOCAL)
 public class ProducerFactory {
@@ -181,6 +185,13 @@ public class ProducerFactory {
     return new BitmapMemoryCacheGetProducer(mBitmapMemoryCache, mCacheKeyFactory, inputProducer);
   }
 
+  public BitmapMemoryCacheGetProducer newBitmapMemoryCacheGetProducer(
+      Producer<CloseableReference<CloseableImage>> inputProducer,
+      @Nullable BitmapMemoryCacheSizeIndex sizeIndex) {
+    return new BitmapMemoryCacheGetProducer(
+        mBitmapMemoryCache, mCacheKeyFactory, inputProducer, sizeIndex);
+  }
+
   public BitmapMemoryCacheKeyMultiplexProducer newBitmapMemoryCacheKeyMultiplexProducer(
       Producer<CloseableReference<CloseableImage>> inputProducer) {
     return new BitmapMemoryCacheKeyMultiplexProducer(mCacheKeyFactory, inputProducer);
@@ -191,6 +202,13 @@ public class ProducerFactory {
     return new BitmapMemoryCacheProducer(mBitmapMemoryCache, mCacheKeyFactory, inputProducer);
   }
 
+  public BitmapMemoryCacheProducer newBitmapMemoryCacheProducer(
+      Producer<CloseableReference<CloseableImage>> inputProducer,
+      @Nullable BitmapMemoryCacheSizeIndex sizeIndex) {
+    return new BitmapMemoryCacheProducer(
+        mBitmapMemoryCache, mCacheKeyFactory, inputProducer, sizeIndex);
+  }
+
   public static BranchOnSeparateImagesProducer newBranchOnSeparateImagesProducer(
       Producer<EncodedImage> inputProducer1, Producer<EncodedImage> inputProducer2) {
     return new BranchOnSeparateImagesProducer(inputProducer1, inputProducer2);
@@ -201,6 +219,12 @@ public class ProducerFactory {
   }
 
   public DecodeProducer newDecodeProducer(Producer<EncodedImage> inputProducer) {
+    return newDecodeProducer(inputProducer, null);
+  }
+
+  public DecodeProducer newDecodeProducer(
+      Producer<EncodedImage> inputProducer,
+      @Nullable DecodeBudgetScheduler decodeBudgetScheduler) {
     return new DecodeProducer(
         mByteArrayPool,
         mExecutorSupplier.forDecode(),
@@ -213,7 +237,8 @@ public class ProducerFactory {
         mMaxBitmapSize,
         mCloseableReferenceFactory,
         null,
-        Suppliers.BOOLEAN_FALSE);
+        Suppliers.BOOLEAN_FALSE,
+        decodeBudgetScheduler);
   }
 
   public DiskCacheReadProducer newDiskCacheReadProducer(Producer<EncodedImage> inputProducer) {
@@ -318,6 +343,12 @@ public class ProducerFactory {
     return new NetworkFetchProducer(mPooledByteBufferFactory, mByteArrayPool, networkFetcher);
   }
 
+  public Producer<EncodedImage> newNetworkFetchProducer(
+      NetworkFetcher networkFetcher, @Nullable PartialDownloadStore partialDownloadStore) {
+    return new NetworkFetchProducer(
+        mPooledByteBufferFactory, mByteArrayPool, networkFetcher, partialDownloadStore);
+  }
+
   public PostprocessedBitmapMemoryCacheProducer newPostprocessorBitmapMemoryCacheProducer(
       Producer<CloseableReference<CloseableImage>> inputProducer) {
     return new PostprocessedBitmapMemoryCacheProducer(
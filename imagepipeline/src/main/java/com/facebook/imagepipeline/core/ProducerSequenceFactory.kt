@@ -17,11 +17,14 @@ import com.facebook.common.media.MediaUtils.isVideo
 import com.facebook.common.memory.PooledByteBuffer
 import com.facebook.common.references.CloseableReference
 import com.facebook.common.webp.WebpSupportStatus
+import com.facebook.imagepipeline.cache.BitmapMemoryCacheSizeIndex
 import com.facebook.imagepipeline.common.SourceUriType
 import com.facebook.imagepipeline.image.CloseableImage
 import com.facebook.imagepipeline.image.EncodedImage
 import com.facebook.imagepipeline.producers.CustomProducerSequenceFactory
+import com.facebook.imagepipeline.producers.DecodeBudgetScheduler
 import com.facebook.imagepipeline.producers.NetworkFetcher
+import com.facebook.imagepipeline.producers.PartialDownloadStore
 import com.facebook.imagepipeline.producers.Producer
 import com.facebook.imagepipeline.producers.RemoveImageTransformMetaDataProducer
 import com.facebook.imagepipeline.producers.ThreadHandoffProducerQueue
@@ -30,7 +33,9 @@ import com.facebook.imagepipeline.request.ImageRequest
 import com.facebook.imagepipeline.systrace.FrescoSystrace.traceSection
 import com.facebook.imagepipeline.transcoder.ImageTranscoderFactory
 
-class ProducerSequenceFactory(
+class ProducerSequenceFactory
+@JvmOverloads
+constructor(
     private val contentResolver: ContentResolver,
     private val producerFactory: ProducerFactory,
     private val networkFetcher: NetworkFetcher<*>,
@@ -45,7 +50,10 @@ class ProducerSequenceFactory(
     private val isEncodedMemoryCacheProbingEnabled: Boolean,
     private val isDiskCacheProbingEnabled: Boolean,
     private val allowDelay: Boolean,
-    private val customProducerSequenceFactories: Set<CustomProducerSequenceFactory>?
+    private val customProducerSequenceFactories: Set<CustomProducerSequenceFactory>?,
+    private val partialDownloadStore: PartialDownloadStore? = null,
+    private val decodeBudgetScheduler: DecodeBudgetScheduler? = null,
+    private val bitmapMemoryCacheSizeIndex: BitmapMemoryCacheSizeIndex? = null
 ) {
 
   @VisibleForTesting
@@ -270,7 +278,7 @@ class ProducerSequenceFactory(
       traceSection("ProducerSequenceFactory#createCommonNetworkFetchToEncodedMemorySequence") {
         val inputProducer: Producer<EncodedImage> =
             newEncodedCacheMultiplexToTranscodeSequence(
-                producerFactory.newNetworkFetchProducer(networkFetcher))
+                producerFactory.newNetworkFetchProducer(networkFetcher, partialDownloadStore))
         var networkFetchToEncodedMemorySequence: Producer<EncodedImage?> =
             ProducerFactory.newAddImageTransformMetaDataProducer(inputProducer)
         networkFetchToEncodedMemorySequence =
@@ -457,7 +465,12 @@ class ProducerSequenceFactory(
       inputProducer: Producer<EncodedImage>
   ): Producer<CloseableReference<CloseableImage>> {
     traceSection("ProducerSequenceFactory#newBitmapCacheGetToDecodeSequence") {
-      val decodeProducer = producerFactory.newDecodeProducer(inputProducer)
+      val decodeProducer =
+          if (decodeBudgetScheduler != null) {
+            producerFactory.newDecodeProducer(inputProducer, decodeBudgetScheduler)
+          } else {
+            producerFactory.newDecodeProducer(inputProducer)
+          }
       return newBitmapCacheGetToBitmapCacheSequence(decodeProducer)
     }
   }
@@ -509,18 +522,28 @@ class ProducerSequenceFactory(
   private fun newBitmapCacheGetToBitmapCacheSequence(
       inputProducer: Producer<CloseableReference<CloseableImage>>
   ): Producer<CloseableReference<CloseableImage>> {
-    val bitmapMemoryCacheProducer = producerFactory.newBitmapMemoryCacheProducer(inputProducer)
+    val bitmapMemoryCacheProducer =
+        if (bitmapMemoryCacheSizeIndex != null) {
+          producerFactory.newBitmapMemoryCacheProducer(inputProducer, bitmapMemoryCacheSizeIndex)
+        } else {
+          producerFactory.newBitmapMemoryCacheProducer(inputProducer)
+        }
     val bitmapKeyMultiplexProducer =
         producerFactory.newBitmapMemoryCacheKeyMultiplexProducer(bitmapMemoryCacheProducer)
     val threadHandoffProducer =
         producerFactory.newBackgroundThreadHandoffProducer(
             bitmapKeyMultiplexProducer, threadHandoffProducerQueue)
-    if (isEncodedMemoryCacheProbingEnabled || isDiskCacheProbingEnabled) {
-      val bitmapMemoryCacheGetProducer =
+    val bitmapMemoryCacheGetProducer =
+        if (bitmapMemoryCacheSizeIndex != null) {
+          producerFactory.newBitmapMemoryCacheGetProducer(
+              threadHandoffProducer, bitmapMemoryCacheSizeIndex)
+        } else {
           producerFactory.newBitmapMemoryCacheGetProducer(threadHandoffProducer)
+        }
+    if (isEncodedMemoryCacheProbingEnabled || isDiskCacheProbingEnabled) {
       return producerFactory.newBitmapProbeProducer(bitmapMemoryCacheGetProducer)
     }
-    return producerFactory.newBitmapMemoryCacheGetProducer(threadHandoffProducer)
+    return bitmapMemoryCacheGetProducer
   }
 
   /**
@@ -12,6 +12,8 @@ import com.facebook.common.internal.Preconditions;
 import com.facebook.common.internal.Throwables;
 import com.facebook.common.memory.ByteArrayPool;
 import com.facebook.common.memory.PooledByteArrayBufferedInputStream;
+import com.facebook.common.memory.PooledByteBuffer;
+import com.facebook.common.references.CloseableReference;
 import com.facebook.common.util.StreamUtil;
 import com.facebook.imagepipeline.image.EncodedImage;
 import com.facebook.imageutils.JfifUtil;
@@ -117,6 +119,15 @@ public class ProgressiveJpegParser {
       return false;
     }
 
+    final CloseableReference<PooledByteBuffer> bufferRef = encodedImage.getByteBufferRef();
+    if (bufferRef != null) {
+      try {
+        return doParseMoreData(bufferRef.get(), dataBufferSize);
+      } finally {
+        CloseableReference.closeSafely(bufferRef);
+      }
+    }
+
     final InputStream bufferedDataStream =
         new PooledByteArrayBufferedInputStream(
             encodedImage.getInputStreamOrThrow(), mByteArrayPool.get(BUFFER_SIZE), mByteArrayPool);
@@ -132,6 +143,36 @@ public class ProgressiveJpegParser {
     }
   }
 
+  /**
+   * Parses more data straight from the buffer, starting at the first byte not parsed yet. Segments
+   * are skipped without reading them.
+   *
+   * @param buffer the buffer holding all the data received so far
+   * @param size the number of bytes in the buffer
+   */
+  private boolean doParseMoreData(final PooledByteBuffer buffer, final int size) {
+    final int oldBestScanNumber = mBestScanNumber;
+    final byte[] chunk = mByteArrayPool.get(BUFFER_SIZE);
+    try {
+      while (mParserState != NOT_A_JPEG && mBytesParsed < size) {
+        final int chunkOffset = mBytesParsed;
+        final int count =
+            buffer.read(chunkOffset, chunk, 0, Math.min(chunk.length, size - chunkOffset));
+        // stop at the end of the chunk, or when a segment is skipped
+        for (int i = 0;
+            i < count && mParserState != NOT_A_JPEG && mBytesParsed == chunkOffset + i;
+            i++) {
+          if (!parseByte(chunk[i] & 0xFF)) {
+            return false;
+          }
+        }
+      }
+    } finally {
+      mByteArrayPool.release(chunk);
+    }
+    return mParserState != NOT_A_JPEG && mBestScanNumber != oldBestScanNumber;
+  }
+
   /**
    * Parses more data from inputStream.
    *
@@ -142,83 +183,17 @@ public class ProgressiveJpegParser {
     try {
       int nextByte;
       while (mParserState != NOT_A_JPEG && (nextByte = inputStream.read()) != -1) {
-        mBytesParsed++;
-        if (mEndMarkerRead) {
-          // There should be no more data after the EOI marker, just in case there is lets
-          // bail out instead of trying to parse the unknown data
-          mParserState = NOT_A_JPEG;
-          mEndMarkerRead = false;
+        final int bytesParsed = mBytesParsed;
+        if (!parseByte(nextByte)) {
           return false;
         }
-        switch (mParserState) {
-          case READ_FIRST_JPEG_BYTE:
-            if (nextByte == JfifUtil.MARKER_FIRST_BYTE) {
-              mParserState = READ_SECOND_JPEG_BYTE;
-            } else {
-              mParserState = NOT_A_JPEG;
-            }
-            break;
-
-          case READ_SECOND_JPEG_BYTE:
-            if (nextByte == JfifUtil.MARKER_SOI) {
-              mParserState = READ_MARKER_FIRST_BYTE_OR_ENTROPY_DATA;
-            } else {
-              mParserState = NOT_A_JPEG;
-            }
-            break;
-
-          case READ_MARKER_FIRST_BYTE_OR_ENTROPY_DATA:
-            if (nextByte == JfifUtil.MARKER_FIRST_BYTE) {
-              mParserState = READ_MARKER_SECOND_BYTE;
-            }
-            break;
-
-          case READ_MARKER_SECOND_BYTE:
-            if (nextByte == JfifUtil.MARKER_FIRST_BYTE) {
-              mParserState = READ_MARKER_SECOND_BYTE;
-            } else if (nextByte == JfifUtil.MARKER_ESCAPE_BYTE) {
-              mParserState = READ_MARKER_FIRST_BYTE_OR_ENTROPY_DATA;
-            } else if (nextByte == JfifUtil.MARKER_EOI) {
-              mEndMarkerRead = true;
-              newScanOrImageEndFound(mBytesParsed - 2);
-              // There should be no data after the EOI marker, but in case there is, let's process
-              // the next byte as a first marker byte.
-              mParserState = READ_MARKER_FIRST_BYTE_OR_ENTROPY_DATA;
-            } else {
-              if (nextByte == JfifUtil.MARKER_SOS) {
-                newScanOrImageEndFound(mBytesParsed - 2);
-              }
-
-              if (doesMarkerStartSegment(nextByte)) {
-                mParserState = READ_SIZE_FIRST_BYTE;
-              } else {
-                mParserState = READ_MARKER_FIRST_BYTE_OR_ENTROPY_DATA;
-              }
-            }
-            break;
-
-          case READ_SIZE_FIRST_BYTE:
-            mParserState = READ_SIZE_SECOND_BYTE;
-            break;
-
-          case READ_SIZE_SECOND_BYTE:
-            final int size = (mLastByteRead << 8) + nextByte;
-            // We need to jump after the end of the segment - skip size-2 next bytes.
-            // We might want to skip more data than is available to read, in which case we will
-            // consume entire data in inputStream and exit this function before entering another
-            // iteration of the loop.
-            final int bytesToSkip = size - 2;
-            StreamUtil.skip(inputStream, bytesToSkip);
-            mBytesParsed += bytesToSkip;
-            mParserState = READ_MARKER_FIRST_BYTE_OR_ENTROPY_DATA;
-            break;
-
-          case NOT_A_JPEG:
-          default:
-            Preconditions.checkState(false);
+        final int bytesToSkip = mBytesParsed - bytesParsed - 1;
+        if (bytesToSkip > 0) {
+          // We might want to skip more data than is available to read, in which case we will
+          // consume entire data in inputStream and exit this function before entering another
+          // iteration of the loop.
+          StreamUtil.skip(inputStream, bytesToSkip);
         }
-
-        mLastByteRead = nextByte;
       }
     } catch (IOException ioe) {
       // does not happen, input stream returned by pooled byte buffer does not throw IOExceptions
@@ -227,6 +202,90 @@ public class ProgressiveJpegParser {
     return mParserState != NOT_A_JPEG && mBestScanNumber != oldBestScanNumber;
   }
 
+  /**
+   * Advances the state machine by one byte. When the byte ends the header of a segment, the rest of
+   * the segment is counted as parsed too, and the caller should skip it.
+   *
+   * @return false if there is data after the EOI marker, in which case parsing stops
+   */
+  private boolean parseByte(final int nextByte) {
+    mBytesParsed++;
+    if (mEndMarkerRead) {
+      // There should be no more data after the EOI marker, just in case there is lets
+      // bail out instead of trying to parse the unknown data
+      mParserState = NOT_A_JPEG;
+      mEndMarkerRead = false;
+      return false;
+    }
+    switch (mParserState) {
+      case READ_FIRST_JPEG_BYTE:
+        if (nextByte == JfifUtil.MARKER_FIRST_BYTE) {
+          mParserState = READ_SECOND_JPEG_BYTE;
+        } else {
+          mParserState = NOT_A_JPEG;
+        }
+        break;
+
+      case READ_SECOND_JPEG_BYTE:
+        if (nextByte == JfifUtil.MARKER_SOI) {
+          mParserState = READ_MARKER_FIRST_BYTE_OR_ENTROPY_DATA;
+        } else {
+          mParserState = NOT_A_JPEG;
+        }
+        break;
+
+      case READ_MARKER_FIRST_BYTE_OR_ENTROPY_DATA:
+        if (nextByte == JfifUtil.MARKER_FIRST_BYTE) {
+          mParserState = READ_MARKER_SECOND_BYTE;
+        }
+        break;
+
+      case READ_MARKER_SECOND_BYTE:
+        if (nextByte == JfifUtil.MARKER_FIRST_BYTE) {
+          mParserState = READ_MARKER_SECOND_BYTE;
+        } else if (nextByte == JfifUtil.MARKER_ESCAPE_BYTE) {
+          mParserState = READ_MARKER_FIRST_BYTE_OR_ENTROPY_DATA;
+        } else if (nextByte == JfifUtil.MARKER_EOI) {
+          mEndMarkerRead = true;
+          newScanOrImageEndFound(mBytesParsed - 2);
+          // There should be no data after the EOI marker, but in case there is, let's process
+          // the next byte as a first marker byte.
+          mParserState = READ_MARKER_FIRST_BYTE_OR_ENTROPY_DATA;
+        } else {
+          if (nextByte == JfifUtil.MARKER_SOS) {
+            newScanOrImageEndFound(mBytesParsed - 2);
+          }
+
+          if (doesMarkerStartSegment(nextByte)) {
+            mParserState = READ_SIZE_FIRST_BYTE;
+          } else {
+            mParserState = READ_MARKER_FIRST_BYTE_OR_ENTROPY_DATA;
+          }
+        }
+        break;
+
+      case READ_SIZE_FIRST_BYTE:
+        mParserState = READ_SIZE_SECOND_BYTE;
+        break;
+
+      case READ_SIZE_SECOND_BYTE:
+        final int size = (mLastByteRead << 8) + nextByte;
+        // We need to jump after the end of the segment - skip size-2 next bytes.
+        final int bytesToSkip = size - 2;
+        Preconditions.checkArgument(bytesToSkip >= 0);
+        mBytesParsed += bytesToSkip;
+        mParserState = READ_MARKER_FIRST_BYTE_OR_ENTROPY_DATA;
+        break;
+
+      case NOT_A_JPEG:
+      default:
+        Preconditions.checkState(false);
+    }
+
+    mLastByteRead = nextByte;
+    return true;
+  }
+
   /** Not every marker is followed by associated segment */
   private static boolean doesMarkerStartSegment(int markerSecondByte) {
     if (markerSecondByte == JfifUtil.MARKER_TEM) {
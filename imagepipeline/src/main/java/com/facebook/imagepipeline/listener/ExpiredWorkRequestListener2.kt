@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.listener
+
+import com.facebook.imagepipeline.producers.BaseProducerContext
+import com.facebook.imagepipeline.producers.ProducerContext
+import javax.annotation.concurrent.GuardedBy
+
+/**
+ * Counts, per producer, the stages that were not run because the deadline or the staleness budget
+ * of their request ran out, see [BaseProducerContext.EXPIRED_WORK_AVOIDED_EVENT].
+ */
+class ExpiredWorkRequestListener2 : RequestListener2 {
+
+  @GuardedBy("this") private val avoidedWorkCounts: MutableMap<String, Int> = HashMap()
+
+  /** Returns the number of stages of the producer that were not run. */
+  @Synchronized
+  fun getAvoidedWorkCount(producerName: String): Int = avoidedWorkCounts[producerName] ?: 0
+
+  /** Returns the number of stages that were not run, by producer name. */
+  @Synchronized fun getAvoidedWorkCounts(): Map<String, Int> = HashMap(avoidedWorkCounts)
+
+  @Synchronized
+  override fun onProducerEvent(
+      producerContext: ProducerContext,
+      producerName: String,
+      eventName: String
+  ) {
+    if (eventName == BaseProducerContext.EXPIRED_WORK_AVOIDED_EVENT) {
+      avoidedWorkCounts[producerName] = getAvoidedWorkCount(producerName) + 1
+    }
+  }
+
+  override fun onRequestStart(producerContext: ProducerContext) = Unit
+
+  override fun onRequestSuccess(producerContext: ProducerContext) = Unit
+
+  override fun onRequestFailure(producerContext: ProducerContext, throwable: Throwable?) = Unit
+
+  override fun onRequestCancellation(producerContext: ProducerContext) = Unit
+
+  override fun onProducerStart(producerContext: ProducerContext, producerName: String) = Unit
+
+  override fun onProducerFinishWithSuccess(
+      producerContext: ProducerContext,
+      producerName: String,
+      extraMap: Map<String, String>?
+  ) = Unit
+
+  override fun onProducerFinishWithFailure(
+      producerContext: ProducerContext,
+      producerName: String,
+      t: Throwable?,
+      extraMap: Map<String, String>?
+  ) = Unit
+
+  override fun onProducerFinishWithCancellation(
+      producerContext: ProducerContext,
+      producerName: String,
+      extraMap: Map<String, String>?
+  ) = Unit
+
+  override fun onUltimateProducerReached(
+      producerContext: ProducerContext,
+      producerName: String,
+      successful: Boolean
+  ) = Unit
+
+  override fun requiresExtraMap(producerContext: ProducerContext, producerName: String): Boolean =
+      false
+}
@@ -27,6 +27,7 @@ import java.util.Set;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
 
 /**
  * A base pool class that manages a pool of values (of type V).
@@ -105,6 +106,10 @@ import javax.annotation.concurrent.NotThreadSafe;
  *       above, the maxLength here is a soft cap, in that it will not cause an exception on get; it
  *       simply controls the release path. If the BucketSizes parameter is null, then the pool will
  *       dynamically create buckets on demand.
+ *   <li>{@link PoolParams#lockFreeBuckets} Values are reused and released without taking the pool
+ *       lock. The buckets are then {@link LockFreeBucket}s, the in-use values are kept in striped
+ *       sets and the used and free space in {@link StripedCounter}s. The lock is only taken to
+ *       create buckets and, when the pool might be close to its soft cap, to allocate new values.
  * </ul>
  */
 @Nullsafe(Nullsafe.Mode.STRICT)
@@ -123,6 +128,9 @@ public abstract class BasePool<V> implements Pool<V> {
   /** An Identity hash-set to keep track of values by reference equality */
   @VisibleForTesting final Set<V> mInUseValues;
 
+  /** State used instead of the buckets array, in-use values and counters, when lock-free */
+  @Nullable private final LockFreeState<V> mLockFreeState;
+
   /** Determines if new buckets can be created */
   private boolean mAllowNewBuckets;
 
@@ -153,6 +161,8 @@ public abstract class BasePool<V> implements Pool<V> {
     mMemoryTrimmableRegistry = Preconditions.checkNotNull(memoryTrimmableRegistry);
     mPoolParams = Preconditions.checkNotNull(poolParams);
     mPoolStatsTracker = Preconditions.checkNotNull(poolStatsTracker);
+    mLockFreeState =
+        mPoolParams.lockFreeBuckets ? new LockFreeState<V>(mPoolParams.maxSizeSoftCap) : null;
 
     // initialize the buckets
     mBuckets = new SparseArray<Bucket<V>>();
@@ -161,6 +171,9 @@ public abstract class BasePool<V> implements Pool<V> {
     } else {
       legacyInitBuckets(new SparseIntArray(0));
     }
+    if (mLockFreeState != null) {
+      mLockFreeState.publishBuckets(mBuckets);
+    }
 
     mInUseValues = Sets.newIdentityHashSet();
 
@@ -183,8 +196,9 @@ public abstract class BasePool<V> implements Pool<V> {
     mPoolStatsTracker.setBasePool(this);
   }
 
+  /** Takes a value from the bucket. Called with the pool lock held, unless the pool is lock-free */
   @Nullable
-  protected synchronized V getValue(Bucket<V> bucket) {
+  protected V getValue(Bucket<V> bucket) {
     //noinspection deprecation
     return bucket.get();
   }
@@ -201,6 +215,10 @@ public abstract class BasePool<V> implements Pool<V> {
    * @throws InvalidSizeException
    */
   public V get(int size) {
+    final LockFreeState<V> lockFreeState = mLockFreeState;
+    if (lockFreeState != null) {
+      return getLockFree(lockFreeState, size);
+    }
     ensurePoolSizeInvariant();
 
     int bucketedSize = this.getBucketedSize(size);
@@ -291,6 +309,100 @@ public abstract class BasePool<V> implements Pool<V> {
     return value;
   }
 
+  /**
+   * {@link #get(int)} for lock-free pools. A value is reused without taking the pool lock. The lock
+   * is only taken before allocating a new value if the pool might be close to its soft cap, to
+   * enforce the hard cap and trim the free portion of the pool.
+   */
+  private V getLockFree(LockFreeState<V> state, int size) {
+    int bucketedSize = this.getBucketedSize(size);
+    final Bucket<V> bucket = getLockFreeBucket(state, bucketedSize);
+
+    if (bucket != null) {
+      // find an existing value that we can reuse
+      V value = this.getValue(bucket);
+      if (value != null) {
+        Preconditions.checkState(state.addInUse(value));
+
+        // It is possible that we got a 'larger' value than we asked for.
+        // lets recompute size in bytes here
+        bucketedSize = getBucketedSizeForValue(value);
+        final int sizeInBytes = this.getSizeInBytes(bucketedSize);
+        state.mUsed.increment(sizeInBytes);
+        state.mFree.decrement(sizeInBytes);
+        mPoolStatsTracker.onValueReuse(sizeInBytes);
+        if (FLog.isLoggable(FLog.VERBOSE)) {
+          FLog.v(
+              TAG,
+              "get (reuse) (object, size) = (%x, %s)",
+              System.identityHashCode(value),
+              bucketedSize);
+        }
+        return value;
+      }
+    }
+
+    final int sizeInBytes = this.getSizeInBytes(bucketedSize);
+    if (state.isAbove(mPoolParams.maxSizeSoftCap - sizeInBytes)) {
+      synchronized (this) {
+        if (!canAllocate(sizeInBytes)) {
+          throw new PoolSizeViolationException(
+              mPoolParams.maxSizeHardCap,
+              state.mUsed.getNumBytes(),
+              state.mFree.getNumBytes(),
+              sizeInBytes);
+        }
+      }
+    }
+    // Optimistically assume that allocation succeeds - if it fails, we need to undo those changes
+    state.mUsed.increment(sizeInBytes);
+    if (bucket != null) {
+      bucket.incrementInUseCount();
+    }
+
+    V value = null;
+    try {
+      value = alloc(bucketedSize);
+    } catch (Throwable e) {
+      state.mUsed.decrement(sizeInBytes);
+      if (bucket != null) {
+        bucket.decrementInUseCount();
+      }
+      Throwables.propagateIfPossible(e);
+    }
+    value = Preconditions.checkNotNull(value);
+
+    // As in get(), concurrent allocations may take the pool over its caps, the trim below should
+    // bring it back
+    Preconditions.checkState(state.addInUse(value));
+    if (isMaxSizeSoftCapExceeded(state)) {
+      trimToSoftCap();
+    }
+    mPoolStatsTracker.onAlloc(sizeInBytes);
+    if (FLog.isLoggable(FLog.VERBOSE)) {
+      FLog.v(
+          TAG,
+          "get (alloc) (object, size) = (%x, %s)",
+          System.identityHashCode(value),
+          bucketedSize);
+    }
+    return value;
+  }
+
+  /** Gets the bucket for the given size, creating it (with the pool lock held) if needed */
+  @Nullable
+  private Bucket<V> getLockFreeBucket(LockFreeState<V> state, int bucketedSize) {
+    final Bucket<V> bucket = state.getBucket(bucketedSize);
+    if (bucket != null || !mAllowNewBuckets) {
+      return bucket;
+    }
+    synchronized (this) {
+      final Bucket<V> newBucket = getBucket(bucketedSize);
+      state.publishBuckets(mBuckets);
+      return newBucket;
+    }
+  }
+
   /**
    * Releases the given value to the pool. In a few cases, the value is 'freed' instead of being
    * released to the pool. If - the pool currently exceeds its max size OR - if the value does not
@@ -303,6 +415,11 @@ public abstract class BasePool<V> implements Pool<V> {
   @Override
   public void release(V value) {
     Preconditions.checkNotNull(value);
+    final LockFreeState<V> lockFreeState = mLockFreeState;
+    if (lockFreeState != null) {
+      releaseLockFree(lockFreeState, value);
+      return;
+    }
 
     final int bucketedSize = getBucketedSizeForValue(value);
     final int sizeInBytes = this.getSizeInBytes(bucketedSize);
@@ -364,6 +481,52 @@ public abstract class BasePool<V> implements Pool<V> {
     }
   }
 
+  /** {@link #release(Object)} for lock-free pools, it never takes the pool lock. */
+  private void releaseLockFree(LockFreeState<V> state, V value) {
+    final int bucketedSize = getBucketedSizeForValue(value);
+    final int sizeInBytes = this.getSizeInBytes(bucketedSize);
+    final Bucket<V> bucket = state.getBucket(bucketedSize);
+    if (!state.removeInUse(value)) {
+      FLog.e(
+          TAG,
+          "release (free, value unrecognized) (object, size) = (%x, %s)",
+          System.identityHashCode(value),
+          bucketedSize);
+      free(value);
+      mPoolStatsTracker.onFree(sizeInBytes);
+    } else if (bucket == null
+        || bucket.isMaxLengthExceeded()
+        || isMaxSizeSoftCapExceeded(state)
+        || !isReusable(value)) {
+      if (bucket != null) {
+        bucket.decrementInUseCount();
+      }
+      if (FLog.isLoggable(FLog.VERBOSE)) {
+        FLog.v(
+            TAG,
+            "release (free) (object, size) = (%x, %s)",
+            System.identityHashCode(value),
+            bucketedSize);
+      }
+      free(value);
+      state.mUsed.decrement(sizeInBytes);
+      mPoolStatsTracker.onFree(sizeInBytes);
+    } else {
+      // count the value as free before another thread can take it from the bucket
+      state.mFree.increment(sizeInBytes);
+      state.mUsed.decrement(sizeInBytes);
+      bucket.release(value);
+      mPoolStatsTracker.onValueRelease(sizeInBytes);
+      if (FLog.isLoggable(FLog.VERBOSE)) {
+        FLog.v(
+            TAG,
+            "release (reuse) (object, size) = (%x, %s)",
+            System.identityHashCode(value),
+            bucketedSize);
+      }
+    }
+  }
+
   /**
    * Trims the pool in response to low-memory states (invoked from MemoryManager) For now, we'll do
    * the simplest thing, and simply clear out the entire pool. We may consider more sophisticated
@@ -464,13 +627,7 @@ public abstract class BasePool<V> implements Pool<V> {
         final int bucketSize = bucketSizes.keyAt(i);
         final int maxLength = bucketSizes.valueAt(i);
         int bucketInUseCount = inUseCounts.get(bucketSize, 0);
-        mBuckets.put(
-            bucketSize,
-            new Bucket<V>(
-                getSizeInBytes(bucketSize),
-                maxLength,
-                bucketInUseCount,
-                mPoolParams.fixBucketsReinitialization));
+        mBuckets.put(bucketSize, createBucket(bucketSize, maxLength, bucketInUseCount));
       }
       mAllowNewBuckets = false;
     } else {
@@ -504,13 +661,18 @@ public abstract class BasePool<V> implements Pool<V> {
     for (int i = 0; i < bucketSizes.size(); ++i) {
       final int bucketSize = bucketSizes.keyAt(i);
       final int maxLength = bucketSizes.valueAt(i);
-      mBuckets.put(
-          bucketSize,
-          new Bucket<V>(
-              getSizeInBytes(bucketSize), maxLength, 0, mPoolParams.fixBucketsReinitialization));
+      mBuckets.put(bucketSize, createBucket(bucketSize, maxLength, 0));
     }
   }
 
+  private Bucket<V> createBucket(int bucketSize, int maxLength, int inUseCount) {
+    if (mLockFreeState != null) {
+      return new LockFreeBucket<V>(getSizeInBytes(bucketSize), maxLength, inUseCount);
+    }
+    return new Bucket<V>(
+        getSizeInBytes(bucketSize), maxLength, inUseCount, mPoolParams.fixBucketsReinitialization);
+  }
+
   /** Clears and fills {@code mBuckets} with buckets */
   private List<Bucket<V>> refillBuckets() {
     List<Bucket<V>> bucketsToTrim = new ArrayList<>(mBuckets.size());
@@ -543,6 +705,11 @@ public abstract class BasePool<V> implements Pool<V> {
    */
   @VisibleForTesting
   void trimToNothing() {
+    final LockFreeState<V> lockFreeState = mLockFreeState;
+    if (lockFreeState != null) {
+      trimToNothingLockFree(lockFreeState);
+      return;
+    }
     final List<Bucket<V>> bucketsToTrim;
 
     synchronized (this) {
@@ -589,6 +756,26 @@ public abstract class BasePool<V> implements Pool<V> {
     }
   }
 
+  /**
+   * {@link #trimToNothing()} for lock-free pools. The buckets are kept and emptied one value at a
+   * time, as values may be concurrently released to and reused from them.
+   */
+  private void trimToNothingLockFree(LockFreeState<V> state) {
+    final SparseArray<Bucket<V>> buckets = state.mBuckets;
+    for (int i = 0; i < buckets.size(); ++i) {
+      final Bucket<V> bucket = Preconditions.checkNotNull(buckets.valueAt(i));
+      while (true) {
+        V item = bucket.pop();
+        if (item == null) {
+          break;
+        }
+        state.mFree.decrement(bucket.mItemSize);
+        free(item);
+      }
+    }
+    onParamsChanged();
+  }
+
   /**
    * Trim the (free portion of the) pool so that the pool size is at or below the soft cap. This
    * will try to free up values in the free portion of the pool, until (a) the pool size is now
@@ -617,7 +804,7 @@ public abstract class BasePool<V> implements Pool<V> {
   @VisibleForTesting
   synchronized void trimToSize(int targetSize) {
     // find how much we need to free
-    int bytesToFree = Math.min(mUsed.mNumBytes + mFree.mNumBytes - targetSize, mFree.mNumBytes);
+    int bytesToFree = Math.min(getUsedBytes() + getFreeBytes() - targetSize, getFreeBytes());
     if (bytesToFree <= 0) {
       return;
     }
@@ -626,7 +813,7 @@ public abstract class BasePool<V> implements Pool<V> {
           TAG,
           "trimToSize: TargetSize = %d; Initial Size = %d; Bytes to free = %d",
           targetSize,
-          mUsed.mNumBytes + mFree.mNumBytes,
+          getUsedBytes() + getFreeBytes(),
           bytesToFree);
     }
     logStats();
@@ -645,7 +832,11 @@ public abstract class BasePool<V> implements Pool<V> {
         }
         free(value);
         bytesToFree -= bucket.mItemSize;
-        mFree.decrement(bucket.mItemSize);
+        if (mLockFreeState != null) {
+          mLockFreeState.mFree.decrement(bucket.mItemSize);
+        } else {
+          mFree.decrement(bucket.mItemSize);
+        }
       }
     }
 
@@ -656,7 +847,7 @@ public abstract class BasePool<V> implements Pool<V> {
           TAG,
           "trimToSize: TargetSize = %d; Final Size = %d",
           targetSize,
-          mUsed.mNumBytes + mFree.mNumBytes);
+          getUsedBytes() + getFreeBytes());
     }
   }
 
@@ -695,11 +886,7 @@ public abstract class BasePool<V> implements Pool<V> {
   }
 
   Bucket<V> newBucket(int bucketedSize) {
-    return new Bucket<V>(
-        /*itemSize*/ getSizeInBytes(bucketedSize),
-        /*maxLength*/ Integer.MAX_VALUE,
-        /*inUseLength*/ 0,
-        mPoolParams.fixBucketsReinitialization);
+    return createBucket(bucketedSize, /*maxLength*/ Integer.MAX_VALUE, /*inUseCount*/ 0);
   }
 
   /**
@@ -708,6 +895,9 @@ public abstract class BasePool<V> implements Pool<V> {
    */
   @VisibleForTesting
   synchronized boolean isMaxSizeSoftCapExceeded() {
+    if (mLockFreeState != null) {
+      return isMaxSizeSoftCapExceeded(mLockFreeState);
+    }
     final boolean isMaxSizeSoftCapExceeded =
         (mUsed.mNumBytes + mFree.mNumBytes) > mPoolParams.maxSizeSoftCap;
     if (isMaxSizeSoftCapExceeded) {
@@ -716,6 +906,14 @@ public abstract class BasePool<V> implements Pool<V> {
     return isMaxSizeSoftCapExceeded;
   }
 
+  private boolean isMaxSizeSoftCapExceeded(LockFreeState<V> state) {
+    final boolean isMaxSizeSoftCapExceeded = state.isAbove(mPoolParams.maxSizeSoftCap);
+    if (isMaxSizeSoftCapExceeded) {
+      mPoolStatsTracker.onSoftCapReached();
+    }
+    return isMaxSizeSoftCapExceeded;
+  }
+
   /**
    * Can we allocate a value of size 'sizeInBytes' without exceeding the hard cap on the pool size?
    * If allocating this value will take the pool over the hard cap, we will first trim the pool down
@@ -735,19 +933,19 @@ public abstract class BasePool<V> implements Pool<V> {
 
     // even with our best effort we cannot ensure hard cap limit.
     // Return immediately - no point in trimming any space
-    if (sizeInBytes > hardCap - mUsed.mNumBytes) {
+    if (sizeInBytes > hardCap - getUsedBytes()) {
       mPoolStatsTracker.onHardCapReached();
       return false;
     }
 
     // trim if we need to
     int softCap = mPoolParams.maxSizeSoftCap;
-    if (sizeInBytes > softCap - (mUsed.mNumBytes + mFree.mNumBytes)) {
+    if (sizeInBytes > softCap - (getUsedBytes() + getFreeBytes())) {
       trimToSize(softCap - sizeInBytes);
     }
 
     // check again to see if we're below the hard cap
-    if (sizeInBytes > hardCap - (mUsed.mNumBytes + mFree.mNumBytes)) {
+    if (sizeInBytes > hardCap - (getUsedBytes() + getFreeBytes())) {
       mPoolStatsTracker.onHardCapReached();
       return false;
     }
@@ -762,13 +960,37 @@ public abstract class BasePool<V> implements Pool<V> {
       FLog.v(
           TAG,
           "Used = (%d, %d); Free = (%d, %d)",
-          mUsed.mCount,
-          mUsed.mNumBytes,
-          mFree.mCount,
-          mFree.mNumBytes);
+          getUsedCount(),
+          getUsedBytes(),
+          getFreeCount(),
+          getFreeBytes());
     }
   }
 
+  /** WARNING: The caller is responsible for synchronization, unless the pool is lock-free */
+  @SuppressLint("InvalidAccessToGuardedField")
+  private int getUsedCount() {
+    return mLockFreeState != null ? mLockFreeState.mUsed.getCount() : mUsed.mCount;
+  }
+
+  /** WARNING: The caller is responsible for synchronization, unless the pool is lock-free */
+  @SuppressLint("InvalidAccessToGuardedField")
+  private int getUsedBytes() {
+    return mLockFreeState != null ? mLockFreeState.mUsed.getNumBytes() : mUsed.mNumBytes;
+  }
+
+  /** WARNING: The caller is responsible for synchronization, unless the pool is lock-free */
+  @SuppressLint("InvalidAccessToGuardedField")
+  private int getFreeCount() {
+    return mLockFreeState != null ? mLockFreeState.mFree.getCount() : mFree.mCount;
+  }
+
+  /** WARNING: The caller is responsible for synchronization, unless the pool is lock-free */
+  @SuppressLint("InvalidAccessToGuardedField")
+  private int getFreeBytes() {
+    return mLockFreeState != null ? mLockFreeState.mFree.getNumBytes() : mFree.mNumBytes;
+  }
+
   /** Export memory stats regarding buckets used, memory caps, reused values. */
   public synchronized Map<String, Integer> getStats() {
     Map<String, Integer> stats = new HashMap<String, Integer>();
@@ -782,10 +1004,10 @@ public abstract class BasePool<V> implements Pool<V> {
 
     stats.put(PoolStatsTracker.SOFT_CAP, mPoolParams.maxSizeSoftCap);
     stats.put(PoolStatsTracker.HARD_CAP, mPoolParams.maxSizeHardCap);
-    stats.put(PoolStatsTracker.USED_COUNT, mUsed.mCount);
-    stats.put(PoolStatsTracker.USED_BYTES, mUsed.mNumBytes);
-    stats.put(PoolStatsTracker.FREE_COUNT, mFree.mCount);
-    stats.put(PoolStatsTracker.FREE_BYTES, mFree.mNumBytes);
+    stats.put(PoolStatsTracker.USED_COUNT, getUsedCount());
+    stats.put(PoolStatsTracker.USED_BYTES, getUsedBytes());
+    stats.put(PoolStatsTracker.FREE_COUNT, getFreeCount());
+    stats.put(PoolStatsTracker.FREE_BYTES, getFreeBytes());
 
     return stats;
   }
@@ -839,6 +1061,81 @@ public abstract class BasePool<V> implements Pool<V> {
     }
   }
 
+  /** The bookkeeping of a pool created with {@link PoolParams#lockFreeBuckets} */
+  @ThreadSafe
+  private static class LockFreeState<V> {
+    private static final int MAX_STRIPES = 16;
+
+    /** tracks 'used space' - space allocated via the pool */
+    final StripedCounter mUsed;
+
+    /** tracks 'free space' in the pool */
+    final StripedCounter mFree;
+
+    /** Identity hash-sets of the values in use, picked by identity hash code */
+    private final Set<V>[] mInUseValues;
+
+    /** Copy of the pool's buckets, replaced whenever a bucket is added */
+    volatile SparseArray<Bucket<V>> mBuckets = new SparseArray<>();
+
+    @SuppressWarnings("unchecked")
+    LockFreeState(int maxSizeSoftCap) {
+      final int processors = Math.min(Runtime.getRuntime().availableProcessors(), MAX_STRIPES);
+      final int stripes = Integer.highestOneBit(Math.max(processors - 1, 1)) << 1;
+      // keeps the error of the batched pool size within 1/8th of the soft cap
+      final int batchSize = Math.max(maxSizeSoftCap / (16 * stripes), 1);
+      mUsed = new StripedCounter(stripes, batchSize);
+      mFree = new StripedCounter(stripes, batchSize);
+      mInUseValues = new Set[stripes];
+      for (int i = 0; i < stripes; i++) {
+        mInUseValues[i] = Sets.newIdentityHashSet();
+      }
+    }
+
+    void publishBuckets(SparseArray<Bucket<V>> buckets) {
+      mBuckets = buckets.clone();
+    }
+
+    @Nullable
+    Bucket<V> getBucket(int bucketedSize) {
+      return mBuckets.get(bucketedSize);
+    }
+
+    boolean addInUse(V value) {
+      final Set<V> inUseValues = getInUseValues(value);
+      synchronized (inUseValues) {
+        return inUseValues.add(value);
+      }
+    }
+
+    boolean removeInUse(V value) {
+      final Set<V> inUseValues = getInUseValues(value);
+      synchronized (inUseValues) {
+        return inUseValues.remove(value);
+      }
+    }
+
+    private Set<V> getInUseValues(V value) {
+      return mInUseValues[System.identityHashCode(value) & (mInUseValues.length - 1)];
+    }
+
+    /**
+     * Returns true if the pool size (sum of the used and the free portions) exceeds the limit. The
+     * batched sizes are enough unless the pool size is close to the limit.
+     */
+    boolean isAbove(int limit) {
+      final long batchedSize = (long) mUsed.getBatchedNumBytes() + mFree.getBatchedNumBytes();
+      final long maxError = (long) mUsed.getMaxBatchError() + mFree.getMaxBatchError();
+      if (batchedSize - maxError > limit) {
+        return true;
+      }
+      if (batchedSize + maxError <= limit) {
+        return false;
+      }
+      return (long) mUsed.getNumBytes() + mFree.getNumBytes() > limit;
+    }
+  }
+
   /** An exception to indicate if the 'value' is invalid. */
   public static class InvalidValueException extends RuntimeException {
     public InvalidValueException(Object value) {
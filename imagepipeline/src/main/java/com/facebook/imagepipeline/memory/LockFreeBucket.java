@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.memory;
+
+import com.facebook.common.internal.Preconditions;
+import com.facebook.infer.annotation.Nullsafe;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A Bucket whose free list is a lock-free (Treiber) stack, used by {@link BasePool} when {@link
+ * PoolParams#lockFreeBuckets} is set.
+ *
+ * <p>The free list size and the in-use count are kept in atomics, so that the pool can reuse and
+ * release values of this bucket without holding its lock. The two counts are not updated together,
+ * so {@link #isMaxLengthExceeded()} may be off by the number of concurrent operations; as the max
+ * length is a soft cap this is acceptable.
+ *
+ * @param <V> type of values to be 'stored' in the bucket
+ */
+@ThreadSafe
+@Nullsafe(Nullsafe.Mode.STRICT)
+class LockFreeBucket<V> extends Bucket<V> {
+
+  private final AtomicReference<Node<V>> mHead = new AtomicReference<>();
+  private final AtomicInteger mFreeListSize = new AtomicInteger();
+  private final AtomicInteger mInUseCount;
+
+  public LockFreeBucket(int itemSize, int maxLength, int inUseLength) {
+    super(itemSize, maxLength, inUseLength, true);
+    mInUseCount = new AtomicInteger(inUseLength);
+  }
+
+  @Override
+  public boolean isMaxLengthExceeded() {
+    return mInUseCount.get() + mFreeListSize.get() > mMaxLength;
+  }
+
+  @Override
+  int getFreeListSize() {
+    return mFreeListSize.get();
+  }
+
+  /** @deprecated use {@link BasePool#getValue(Bucket)} */
+  @Deprecated
+  @Override
+  @Nullable
+  public V get() {
+    V value = pop();
+    if (value != null) {
+      mInUseCount.incrementAndGet();
+    }
+    return value;
+  }
+
+  @Override
+  @Nullable
+  public V pop() {
+    while (true) {
+      Node<V> head = mHead.get();
+      if (head == null) {
+        return null;
+      }
+      if (mHead.compareAndSet(head, head.mNext)) {
+        mFreeListSize.decrementAndGet();
+        return head.mValue;
+      }
+    }
+  }
+
+  @Override
+  public void incrementInUseCount() {
+    mInUseCount.incrementAndGet();
+  }
+
+  @Override
+  public void release(V value) {
+    Preconditions.checkNotNull(value);
+    decrementInUseCount();
+    addToFreeList(value);
+  }
+
+  @Override
+  void addToFreeList(V value) {
+    Node<V> node = new Node<>(value);
+    mFreeListSize.incrementAndGet();
+    while (true) {
+      Node<V> head = mHead.get();
+      node.mNext = head;
+      if (mHead.compareAndSet(head, node)) {
+        return;
+      }
+    }
+  }
+
+  @Override
+  public void decrementInUseCount() {
+    Preconditions.checkState(mInUseCount.getAndDecrement() > 0);
+  }
+
+  @Override
+  public int getInUseCount() {
+    return mInUseCount.get();
+  }
+
+  private static class Node<V> {
+    final V mValue;
+    @Nullable Node<V> mNext;
+
+    Node(V value) {
+      mValue = value;
+    }
+  }
+}
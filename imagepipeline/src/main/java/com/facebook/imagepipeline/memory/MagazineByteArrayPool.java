@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.memory;
+
+import android.util.SparseIntArray;
+import androidx.annotation.VisibleForTesting;
+import com.facebook.common.internal.Preconditions;
+import com.facebook.common.memory.ByteArrayPool;
+import com.facebook.common.memory.MemoryTrimType;
+import com.facebook.common.memory.MemoryTrimmableRegistry;
+import com.facebook.infer.annotation.Nullsafe;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A {@link ByteArrayPool} keeping a few byte arrays per bucket size and per thread in front of a
+ * shared {@link GenericByteArrayPool}.
+ *
+ * <p>Each thread has a magazine for each of the pool's bucket sizes. {@link #get(int)} takes the
+ * most recently released array from the calling thread's magazine, and only goes to the shared pool
+ * when the magazine is empty. {@link #release(byte[])} puts the array in the magazine, and when the
+ * magazine is full returns its older half to the shared pool in one go. A thread that keeps getting
+ * and releasing buffers of the same size therefore never takes the shared pool's lock.
+ *
+ * <p>Arrays in the magazines are still in use as far as the shared pool is concerned, so they count
+ * towards its caps and its {@link PoolStatsTracker} only sees the exchanges with the magazines.
+ * When the shared pool hits its hard cap, all the magazines are emptied into it before trying again.
+ * The pool takes over the shared pool's registration with the {@link MemoryTrimmableRegistry}: on
+ * {@link #trim(MemoryTrimType)} all the magazines are emptied into the shared pool, which is then
+ * trimmed. The magazines of threads that have died are emptied when a new thread starts using the
+ * pool.
+ */
+@Nullsafe(Nullsafe.Mode.LOCAL)
+@ThreadSafe
+public class MagazineByteArrayPool implements ByteArrayPool {
+
+  private final GenericByteArrayPool mPool;
+
+  /** Sorted bucket sizes of the shared pool, one magazine per size */
+  private final int[] mBucketSizes;
+
+  private final int mMagazineSize;
+
+  private final ThreadLocal<Magazines> mThreadMagazines = new ThreadLocal<>();
+
+  @GuardedBy("mAllMagazines")
+  private final List<Magazines> mAllMagazines = new ArrayList<>();
+
+  /**
+   * @param memoryTrimmableRegistry the memory manager to register with
+   * @param pool the shared pool
+   * @param poolParams the params the shared pool was created with
+   * @param magazineSize the number of arrays a thread keeps per bucket size
+   */
+  public MagazineByteArrayPool(
+      MemoryTrimmableRegistry memoryTrimmableRegistry,
+      GenericByteArrayPool pool,
+      PoolParams poolParams,
+      int magazineSize) {
+    Preconditions.checkArgument(magazineSize > 0);
+    mPool = Preconditions.checkNotNull(pool);
+    mMagazineSize = magazineSize;
+    final SparseIntArray bucketSizes = poolParams.bucketSizes;
+    mBucketSizes = new int[bucketSizes == null ? 0 : bucketSizes.size()];
+    for (int i = 0; i < mBucketSizes.length; i++) {
+      mBucketSizes[i] = bucketSizes.keyAt(i);
+    }
+    // trimming the shared pool on its own would leave the magazines full
+    memoryTrimmableRegistry.unregisterMemoryTrimmable(pool);
+    memoryTrimmableRegistry.registerMemoryTrimmable(this);
+  }
+
+  @Override
+  public byte[] get(int size) {
+    final int index = getMagazineIndex(mPool.getBucketedSize(size));
+    if (index >= 0) {
+      final Magazines magazines = getThreadMagazines();
+      final byte[] value;
+      synchronized (magazines) {
+        value = magazines.pop(index);
+      }
+      if (value != null) {
+        return value;
+      }
+    }
+    try {
+      return mPool.get(size);
+    } catch (BasePool.PoolSizeViolationException e) {
+      // the arrays in the magazines count as in use, hand them back before giving up
+      if (!emptyMagazines()) {
+        throw e;
+      }
+      return mPool.get(size);
+    }
+  }
+
+  @Override
+  public void release(byte[] value) {
+    Preconditions.checkNotNull(value);
+    final int index = getMagazineIndex(value.length);
+    if (index < 0) {
+      mPool.release(value);
+      return;
+    }
+    final Magazines magazines = getThreadMagazines();
+    final List<byte[]> overflow;
+    synchronized (magazines) {
+      if (magazines.push(index, value)) {
+        return;
+      }
+      overflow = new ArrayList<>((mMagazineSize + 1) / 2);
+      magazines.removeOldest(index, (mMagazineSize + 1) / 2, overflow);
+      magazines.push(index, value);
+    }
+    releaseToPool(overflow);
+  }
+
+  /** Empties all the magazines into the shared pool, then trims the shared pool */
+  @Override
+  public void trim(MemoryTrimType trimType) {
+    emptyMagazines();
+    mPool.trim(trimType);
+  }
+
+  /**
+   * Empties the magazines of all threads into the shared pool
+   *
+   * @return true if any array was returned to the shared pool
+   */
+  private boolean emptyMagazines() {
+    final List<byte[]> values = new ArrayList<>();
+    synchronized (mAllMagazines) {
+      for (Magazines magazines : mAllMagazines) {
+        synchronized (magazines) {
+          magazines.removeAll(values);
+        }
+      }
+    }
+    releaseToPool(values);
+    return !values.isEmpty();
+  }
+
+  private Magazines getThreadMagazines() {
+    Magazines magazines = mThreadMagazines.get();
+    if (magazines != null) {
+      return magazines;
+    }
+    magazines = new Magazines(Thread.currentThread(), mBucketSizes.length, mMagazineSize);
+    mThreadMagazines.set(magazines);
+    final List<byte[]> orphans = new ArrayList<>();
+    synchronized (mAllMagazines) {
+      for (Iterator<Magazines> iterator = mAllMagazines.iterator(); iterator.hasNext(); ) {
+        final Magazines other = iterator.next();
+        final Thread owner = other.mOwner.get();
+        if (owner == null || !owner.isAlive()) {
+          iterator.remove();
+          synchronized (other) {
+            other.removeAll(orphans);
+          }
+        }
+      }
+      mAllMagazines.add(magazines);
+    }
+    releaseToPool(orphans);
+    return magazines;
+  }
+
+  private void releaseToPool(List<byte[]> values) {
+    for (int i = 0; i < values.size(); i++) {
+      mPool.release(values.get(i));
+    }
+  }
+
+  private int getMagazineIndex(int bucketedSize) {
+    for (int i = 0; i < mBucketSizes.length; i++) {
+      if (mBucketSizes[i] == bucketedSize) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  @VisibleForTesting
+  int getThreadMagazineCount(int bucketedSize) {
+    final Magazines magazines = getThreadMagazines();
+    synchronized (magazines) {
+      return magazines.mCounts[getMagazineIndex(bucketedSize)];
+    }
+  }
+
+  /**
+   * The magazines of one thread, used as stacks. Only the owner thread uses them, except when they
+   * are emptied, so their lock is almost never contended.
+   */
+  private static class Magazines {
+    final WeakReference<Thread> mOwner;
+    final byte[][][] mArrays;
+    final int[] mCounts;
+
+    Magazines(Thread owner, int magazineCount, int magazineSize) {
+      mOwner = new WeakReference<>(owner);
+      mArrays = new byte[magazineCount][magazineSize][];
+      mCounts = new int[magazineCount];
+    }
+
+    @Nullable
+    byte[] pop(int index) {
+      if (mCounts[index] == 0) {
+        return null;
+      }
+      final int top = --mCounts[index];
+      final byte[] value = mArrays[index][top];
+      mArrays[index][top] = null;
+      return value;
+    }
+
+    boolean push(int index, byte[] value) {
+      if (mCounts[index] == mArrays[index].length) {
+        return false;
+      }
+      mArrays[index][mCounts[index]++] = value;
+      return true;
+    }
+
+    /** Moves the count least recently released arrays of the magazine to the list */
+    void removeOldest(int index, int count, List<byte[]> out) {
+      final byte[][] magazine = mArrays[index];
+      count = Math.min(count, mCounts[index]);
+      for (int i = 0; i < count; i++) {
+        out.add(magazine[i]);
+      }
+      System.arraycopy(magazine, count, magazine, 0, mCounts[index] - count);
+      for (int i = mCounts[index] - count; i < mCounts[index]; i++) {
+        magazine[i] = null;
+      }
+      mCounts[index] -= count;
+    }
+
+    void removeAll(List<byte[]> out) {
+      for (int index = 0; index < mArrays.length; index++) {
+        removeOldest(index, mCounts[index], out);
+      }
+    }
+  }
+}
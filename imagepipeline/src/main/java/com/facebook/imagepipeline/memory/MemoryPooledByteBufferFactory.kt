@@ -10,20 +10,33 @@ package com.facebook.imagepipeline.memory
 import androidx.annotation.VisibleForTesting
 import com.facebook.common.internal.Throwables
 import com.facebook.common.memory.PooledByteBufferFactory
+import com.facebook.common.memory.PooledByteBufferOutputStream
 import com.facebook.common.memory.PooledByteStreams
 import com.facebook.common.references.CloseableReference
 import java.io.IOException
 import java.io.InputStream
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
 import javax.annotation.concurrent.ThreadSafe
 
 /**
  * A factory to provide instances of [MemoryPooledByteBuffer] and
  * [MemoryPooledByteBufferOutputStream]
+ *
+ * If [segmentSize] is positive, output streams created without an initial capacity are
+ * [SegmentedPooledByteBufferOutputStream]s writing into chunks of that size.
  */
 @ThreadSafe
-class MemoryPooledByteBufferFactory( // memory pool
-private val pool: MemoryChunkPool, private val pooledByteStreams: PooledByteStreams) :
-    PooledByteBufferFactory {
+class MemoryPooledByteBufferFactory
+@JvmOverloads
+constructor( // memory pool
+    private val pool: MemoryChunkPool,
+    private val pooledByteStreams: PooledByteStreams,
+    private val segmentSize: Int = 0
+) : PooledByteBufferFactory {
+
+  /** Set once the chunks of [pool] turned out not to expose a [ByteBuffer]. */
+  @Volatile private var directReadsUnsupported = false
 
   override fun newByteBuffer(size: Int): MemoryPooledByteBuffer {
     check(size > 0)
@@ -70,6 +83,65 @@ private val pool: MemoryChunkPool, private val pooledByteStreams: PooledByteStre
     }
   }
 
+  /**
+   * Reads the whole content of [channel] straight into the [ByteBuffer] of a pooled chunk, skipping
+   * the intermediate byte array used when copying from an [InputStream].
+   *
+   * @return the new buffer, or null if the chunks of this pool do not expose a [ByteBuffer] or the
+   *   channel is empty. Callers should then fall back to the stream based variants.
+   */
+  @Throws(IOException::class)
+  fun newByteBuffer(channel: FileChannel): MemoryPooledByteBuffer? {
+    val size = channel.size()
+    if (size <= 0 || size > Int.MAX_VALUE) {
+      return null
+    }
+    return newDirectByteBuffer(size.toInt()) { target ->
+      while (target.hasRemaining() && channel.read(target) >= 0) {
+        // keep reading until the chunk is full or the end of the file is reached
+      }
+    }
+  }
+
+  /**
+   * Copies the remaining content of [source] straight into the [ByteBuffer] of a pooled chunk. The
+   * position of [source] is left untouched.
+   *
+   * @return the new buffer, or null if the chunks of this pool do not expose a [ByteBuffer] or
+   *   [source] is empty
+   */
+  fun newByteBuffer(source: ByteBuffer): MemoryPooledByteBuffer? {
+    if (!source.hasRemaining()) {
+      return null
+    }
+    return newDirectByteBuffer(source.remaining()) { target -> target.put(source.duplicate()) }
+  }
+
+  private inline fun newDirectByteBuffer(
+      size: Int,
+      fill: (ByteBuffer) -> Unit
+  ): MemoryPooledByteBuffer? {
+    if (directReadsUnsupported) {
+      return null
+    }
+    val chunkRef = CloseableReference.of(pool[size], pool)
+    return try {
+      val chunkBuffer = chunkRef.get().byteBuffer
+      if (chunkBuffer == null) {
+        directReadsUnsupported = true
+        return null
+      }
+      // a duplicate keeps the position of the chunk's own buffer untouched
+      val target = chunkBuffer.duplicate()
+      target.position(0)
+      target.limit(size)
+      fill(target)
+      MemoryPooledByteBuffer(chunkRef, target.position())
+    } finally {
+      chunkRef.close()
+    }
+  }
+
   /**
    * Reads all bytes from inputStream and writes them to outputStream. When all bytes are read
    * outputStream.toByteBuffer is called and obtained MemoryPooledByteBuffer is returned
@@ -90,8 +162,12 @@ private val pool: MemoryChunkPool, private val pooledByteStreams: PooledByteStre
     return outputStream.toByteBuffer()
   }
 
-  override fun newOutputStream(): MemoryPooledByteBufferOutputStream =
-      MemoryPooledByteBufferOutputStream(pool)
+  override fun newOutputStream(): PooledByteBufferOutputStream =
+      if (segmentSize > 0) {
+        SegmentedPooledByteBufferOutputStream(pool, segmentSize)
+      } else {
+        MemoryPooledByteBufferOutputStream(pool)
+      }
 
   override fun newOutputStream(initialCapacity: Int): MemoryPooledByteBufferOutputStream =
       MemoryPooledByteBufferOutputStream(pool, initialCapacity)
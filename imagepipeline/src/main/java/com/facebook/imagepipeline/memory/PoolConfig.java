@@ -34,6 +34,8 @@ public class PoolConfig {
   private final PoolStatsTracker mMemoryChunkPoolStatsTracker;
   private final PoolParams mSmallByteArrayPoolParams;
   private final PoolStatsTracker mSmallByteArrayPoolStatsTracker;
+  private final int mSmallByteArrayPoolMagazineSize;
+  private final int mPooledByteBufferSegmentSize;
   private final String mBitmapPoolType;
   private final int mBitmapPoolMaxPoolSize;
   private final int mBitmapPoolMaxBitmapSize;
@@ -76,6 +78,8 @@ public class PoolConfig {
         builder.mSmallByteArrayPoolStatsTracker == null
             ? NoOpPoolStatsTracker.getInstance()
             : builder.mSmallByteArrayPoolStatsTracker;
+    mSmallByteArrayPoolMagazineSize = builder.mSmallByteArrayPoolMagazineSize;
+    mPooledByteBufferSegmentSize = builder.mPooledByteBufferSegmentSize;
 
     mBitmapPoolType =
         builder.mBitmapPoolType == null ? BitmapPoolType.DEFAULT : builder.mBitmapPoolType;
@@ -123,6 +127,22 @@ public class PoolConfig {
     return mSmallByteArrayPoolStatsTracker;
   }
 
+  /**
+   * Number of byte arrays each thread keeps per bucket size in front of the small byte array pool,
+   * see {@link MagazineByteArrayPool}. 0 if threads go to the pool directly.
+   */
+  public int getSmallByteArrayPoolMagazineSize() {
+    return mSmallByteArrayPoolMagazineSize;
+  }
+
+  /**
+   * Size of the memory chunks written by output streams of unknown length, see {@link
+   * SegmentedPooledByteBufferOutputStream}. 0 if those streams use one contiguous chunk.
+   */
+  public int getPooledByteBufferSegmentSize() {
+    return mPooledByteBufferSegmentSize;
+  }
+
   public String getBitmapPoolType() {
     return mBitmapPoolType;
   }
@@ -157,6 +177,8 @@ public class PoolConfig {
     private @Nullable PoolStatsTracker mMemoryChunkPoolStatsTracker;
     private @Nullable PoolParams mSmallByteArrayPoolParams;
     private @Nullable PoolStatsTracker mSmallByteArrayPoolStatsTracker;
+    private int mSmallByteArrayPoolMagazineSize;
+    private int mPooledByteBufferSegmentSize;
     private @Nullable String mBitmapPoolType;
     private int mBitmapPoolMaxPoolSize;
     private int mBitmapPoolMaxBitmapSize;
@@ -208,6 +230,18 @@ public class PoolConfig {
       return this;
     }
 
+    public Builder setSmallByteArrayPoolMagazineSize(int smallByteArrayPoolMagazineSize) {
+      Preconditions.checkArgument(smallByteArrayPoolMagazineSize >= 0);
+      this.mSmallByteArrayPoolMagazineSize = smallByteArrayPoolMagazineSize;
+      return this;
+    }
+
+    public Builder setPooledByteBufferSegmentSize(int pooledByteBufferSegmentSize) {
+      Preconditions.checkArgument(pooledByteBufferSegmentSize >= 0);
+      this.mPooledByteBufferSegmentSize = pooledByteBufferSegmentSize;
+      return this;
+    }
+
     public PoolConfig build() {
       return new PoolConfig(this);
     }
@@ -209,7 +209,8 @@ public class PoolFactory {
       Preconditions.checkNotNull(
           memoryChunkPool, "failed to get pool for chunk type: " + memoryChunkType);
       mPooledByteBufferFactory =
-          new MemoryPooledByteBufferFactory(memoryChunkPool, getPooledByteStreams());
+          new MemoryPooledByteBufferFactory(
+              memoryChunkPool, getPooledByteStreams(), mConfig.getPooledByteBufferSegmentSize());
     }
     return mPooledByteBufferFactory;
   }
@@ -232,11 +233,19 @@ public class PoolFactory {
 
   public ByteArrayPool getSmallByteArrayPool() {
     if (mSmallByteArrayPool == null) {
-      mSmallByteArrayPool =
+      GenericByteArrayPool pool =
           new GenericByteArrayPool(
               mConfig.getMemoryTrimmableRegistry(),
               mConfig.getSmallByteArrayPoolParams(),
               mConfig.getSmallByteArrayPoolStatsTracker());
+      mSmallByteArrayPool =
+          mConfig.getSmallByteArrayPoolMagazineSize() > 0
+              ? new MagazineByteArrayPool(
+                  mConfig.getMemoryTrimmableRegistry(),
+                  pool,
+                  mConfig.getSmallByteArrayPoolParams(),
+                  mConfig.getSmallByteArrayPoolMagazineSize())
+              : pool;
     }
     return mSmallByteArrayPool;
   }
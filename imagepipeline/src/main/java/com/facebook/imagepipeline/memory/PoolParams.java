@@ -52,6 +52,12 @@ public class PoolParams {
 
   public boolean fixBucketsReinitialization;
 
+  /**
+   * Whether the pool should reuse and release values without taking its lock, see {@link
+   * LockFreeBucket}. Must be set before the pool is created.
+   */
+  public boolean lockFreeBuckets;
+
   /**
    * The maximum number of threads that may be accessing this pool.
    *
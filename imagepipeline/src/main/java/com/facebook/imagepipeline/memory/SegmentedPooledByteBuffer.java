@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.memory;
+
+import androidx.annotation.VisibleForTesting;
+import com.facebook.common.internal.Preconditions;
+import com.facebook.common.memory.PooledByteBuffer;
+import com.facebook.common.references.CloseableReference;
+import com.facebook.infer.annotation.Nullsafe;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * An implementation of {@link PooledByteBuffer} backed by a list of {@link MemoryChunk}s of the
+ * same size (segments), as written by {@link SegmentedPooledByteBufferOutputStream}.
+ *
+ * <p>Byte {@code i} is at offset {@code i % segmentSize} of segment {@code i / segmentSize}. Reads
+ * spanning several segments are gathered into the destination array in one call, so this buffer
+ * can be read through {@link com.facebook.common.memory.PooledByteBufferInputStream} like any
+ * other.
+ *
+ * <p>The content is not contiguous when there is more than one segment: {@link #getNativePtr()}
+ * then throws, and {@link #getByteBuffer()} returns a copy of the content, made on the first call
+ * and kept until the buffer is closed, for the few decoders that need contiguous memory.
+ */
+@ThreadSafe
+@Nullsafe(Nullsafe.Mode.LOCAL)
+public class SegmentedPooledByteBuffer implements PooledByteBuffer {
+
+  private final int mSegmentSize;
+  private final int mSize;
+
+  @GuardedBy("this")
+  @VisibleForTesting
+  @Nullable
+  List<CloseableReference<MemoryChunk>> mSegments;
+
+  @GuardedBy("this")
+  @Nullable
+  private ByteBuffer mContiguousCopy;
+
+  /**
+   * @param segments the segments, each at least segmentSize large; they are cloned
+   * @param segmentSize the number of bytes used in each segment
+   * @param size the number of bytes of the buffer
+   */
+  public SegmentedPooledByteBuffer(
+      List<CloseableReference<MemoryChunk>> segments, int segmentSize, int size) {
+    Preconditions.checkArgument(segmentSize > 0);
+    Preconditions.checkArgument(size >= 0 && size <= (long) segments.size() * segmentSize);
+    final int segmentCount = (size + segmentSize - 1) / segmentSize;
+    final List<CloseableReference<MemoryChunk>> clones = new ArrayList<>(segmentCount);
+    for (int i = 0; i < segmentCount; i++) {
+      final CloseableReference<MemoryChunk> segment = segments.get(i);
+      Preconditions.checkArgument(segment.get().getSize() >= segmentSize);
+      clones.add(segment.clone());
+    }
+    mSegments = clones;
+    mSegmentSize = segmentSize;
+    mSize = size;
+  }
+
+  @Override
+  public synchronized int size() {
+    ensureValid();
+    return mSize;
+  }
+
+  /** Gets the number of segments holding the content of this buffer. */
+  public synchronized int getSegmentCount() {
+    ensureValid();
+    return Preconditions.checkNotNull(mSegments).size();
+  }
+
+  @Override
+  public synchronized byte read(int offset) {
+    ensureValid();
+    Preconditions.checkArgument(offset >= 0);
+    Preconditions.checkArgument(offset < mSize);
+    final List<CloseableReference<MemoryChunk>> segments = Preconditions.checkNotNull(mSegments);
+    return segments.get(offset / mSegmentSize).get().read(offset % mSegmentSize);
+  }
+
+  @Override
+  public synchronized int read(int offset, byte[] buffer, int bufferOffset, int length) {
+    ensureValid();
+    Preconditions.checkArgument(offset >= 0 && bufferOffset >= 0 && length >= 0);
+    Preconditions.checkArgument(offset + length <= mSize);
+    Preconditions.checkArgument(bufferOffset + length <= buffer.length);
+    final List<CloseableReference<MemoryChunk>> segments = Preconditions.checkNotNull(mSegments);
+    int copied = 0;
+    while (copied < length) {
+      final int position = offset + copied;
+      final int segmentOffset = position % mSegmentSize;
+      final int count = Math.min(length - copied, mSegmentSize - segmentOffset);
+      segments
+          .get(position / mSegmentSize)
+          .get()
+          .read(segmentOffset, buffer, bufferOffset + copied, count);
+      copied += count;
+    }
+    return copied;
+  }
+
+  /**
+   * Gets the pointer to the native memory of the only segment.
+   *
+   * @throws UnsupportedOperationException if there are several segments or the segment has no
+   *     pointer to native memory
+   */
+  @Override
+  public synchronized long getNativePtr() throws UnsupportedOperationException {
+    ensureValid();
+    final List<CloseableReference<MemoryChunk>> segments = Preconditions.checkNotNull(mSegments);
+    if (segments.size() != 1) {
+      throw new UnsupportedOperationException("Content of " + segments.size() + " segments");
+    }
+    return segments.get(0).get().getNativePtr();
+  }
+
+  /**
+   * Gets the ByteBuffer of the only segment if there is one, else a direct copy of the content of
+   * all the segments.
+   */
+  @Override
+  @Nullable
+  public synchronized ByteBuffer getByteBuffer() {
+    ensureValid();
+    final List<CloseableReference<MemoryChunk>> segments = Preconditions.checkNotNull(mSegments);
+    if (segments.size() == 1) {
+      return segments.get(0).get().getByteBuffer();
+    }
+    if (mContiguousCopy == null) {
+      final ByteBuffer copy = ByteBuffer.allocateDirect(mSize);
+      @Nullable byte[] scratch = null;
+      for (int i = 0; i < segments.size(); i++) {
+        final MemoryChunk segment = segments.get(i).get();
+        final int count = Math.min(mSegmentSize, mSize - i * mSegmentSize);
+        final ByteBuffer segmentBuffer = segment.getByteBuffer();
+        if (segmentBuffer != null) {
+          final ByteBuffer source = segmentBuffer.duplicate();
+          source.clear();
+          source.limit(count);
+          copy.put(source);
+        } else {
+          // native segments have no ByteBuffer; copy them through one segment-sized array
+          if (scratch == null) {
+            scratch = new byte[mSegmentSize];
+          }
+          segment.read(0, scratch, 0, count);
+          copy.put(scratch, 0, count);
+        }
+      }
+      copy.flip();
+      mContiguousCopy = copy;
+    }
+    return mContiguousCopy;
+  }
+
+  @Override
+  public synchronized boolean isClosed() {
+    return mSegments == null;
+  }
+
+  /**
+   * Closes this instance, and releases the segments to the pool once no other buffer or stream
+   * shares them. It is not an error to close an already closed buffer.
+   */
+  @Override
+  public synchronized void close() {
+    CloseableReference.closeSafely(mSegments);
+    mSegments = null;
+    mContiguousCopy = null;
+  }
+
+  synchronized void ensureValid() {
+    if (isClosed()) {
+      throw new ClosedException();
+    }
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.memory
+
+import com.facebook.common.memory.PooledByteBufferOutputStream
+import com.facebook.common.references.CloseableReference
+import java.io.IOException
+import javax.annotation.concurrent.NotThreadSafe
+
+/**
+ * An implementation of [PooledByteBufferOutputStream] that produces a [SegmentedPooledByteBuffer].
+ *
+ * Bytes are written into chunks of [segmentSize] bytes taken from the pool one at a time as the
+ * stream grows. Unlike [MemoryPooledByteBufferOutputStream] it never reallocates nor copies what
+ * was written so far, which suits contents of unknown length such as network responses.
+ * [toByteBuffer] shares the segments written so far with the returned buffer instead of copying
+ * them, so it can be called repeatedly for intermediate results.
+ */
+@NotThreadSafe
+class SegmentedPooledByteBufferOutputStream(
+    private val pool: MemoryChunkPool,
+    private val segmentSize: Int
+) : PooledByteBufferOutputStream() {
+
+  private var segments: MutableList<CloseableReference<MemoryChunk>>? = ArrayList()
+  private var count = 0
+
+  init {
+    check(segmentSize > 0)
+  }
+
+  /**
+   * Gets a PooledByteBuffer sharing the segments written so far. If the stream has already been
+   * closed, then an InvalidStreamException is thrown.
+   *
+   * @throws MemoryPooledByteBufferOutputStream.InvalidStreamException if the stream is invalid
+   */
+  override fun toByteBuffer(): SegmentedPooledByteBuffer =
+      SegmentedPooledByteBuffer(ensureValid(), segmentSize, count)
+
+  override fun size(): Int = count
+
+  @Throws(IOException::class)
+  override fun write(oneByte: Int) {
+    val buf = ByteArray(1)
+    buf[0] = oneByte.toByte()
+    this.write(buf)
+  }
+
+  /**
+   * Writes `count` bytes from the byte array `buffer` starting at position `offset` to this stream,
+   * taking new segments from the pool as needed.
+   *
+   * @throws IndexOutOfBoundsException if `offset < 0` or `count < 0`, or if `offset + count` is
+   *   bigger than the length of `buffer`.
+   * @throws MemoryPooledByteBufferOutputStream.InvalidStreamException if the stream is invalid
+   * @throws BasePool.SizeTooLargeException if the allocation from the pool fails
+   */
+  @Throws(IOException::class)
+  override fun write(buffer: ByteArray, offset: Int, count: Int) {
+    if (offset < 0 || count < 0 || offset + count > buffer.size) {
+      throw ArrayIndexOutOfBoundsException(
+          "length=${buffer.size}; regionStart=${offset}; regionLength=${count}")
+    }
+    val segments = ensureValid()
+    var written = 0
+    while (written < count) {
+      val segmentOffset = this.count % segmentSize
+      if (segmentOffset == 0 && this.count / segmentSize == segments.size) {
+        segments.add(CloseableReference.of(pool[segmentSize], pool))
+      }
+      val length = minOf(count - written, segmentSize - segmentOffset)
+      segments[this.count / segmentSize]
+          .get()
+          .write(segmentOffset, buffer, offset + written, length)
+      written += length
+      this.count += length
+    }
+  }
+
+  /**
+   * Closes the stream. The segments are released back to the pool once no buffer shares them any
+   * more. It is not allowed to call toByteBuffer after call to this method.
+   */
+  override fun close() {
+    CloseableReference.closeSafely(segments)
+    segments = null
+    count = -1
+    super.close()
+  }
+
+  private fun ensureValid(): MutableList<CloseableReference<MemoryChunk>> =
+      segments ?: throw MemoryPooledByteBufferOutputStream.InvalidStreamException()
+}
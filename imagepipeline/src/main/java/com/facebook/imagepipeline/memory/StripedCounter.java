@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.memory;
+
+import com.facebook.common.internal.Preconditions;
+import com.facebook.infer.annotation.Nullsafe;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Thread safe counterpart of {@link BasePool.Counter}, counting items and their size in bytes.
+ *
+ * <p>Updates go to one of several cells picked by the calling thread, so that threads updating the
+ * counter at the same time rarely touch the same cache line. Reading the exact values sums up all
+ * the cells.
+ *
+ * <p>Each cell also accumulates the bytes it has not yet published, and adds them to a shared
+ * total once they reach the batch size. {@link #getBatchedNumBytes()} reads that total, which is
+ * off by about {@link #getMaxBatchError()} bytes at most, without touching the cells.
+ */
+@ThreadSafe
+@Nullsafe(Nullsafe.Mode.STRICT)
+class StripedCounter {
+
+  /** Longs per cell, so that each cell sits on its own 64 byte cache line */
+  private static final int CELL_SIZE = 8;
+
+  private static final int COUNT = 0;
+  private static final int NUM_BYTES = 1;
+  private static final int UNPUBLISHED_BYTES = 2;
+
+  private final AtomicLongArray mCells;
+  private final int mStripeMask;
+  private final int mBatchSize;
+  private final AtomicLong mBatchedNumBytes = new AtomicLong();
+
+  /**
+   * @param stripes number of cells, must be a power of two
+   * @param batchSize number of bytes a cell accumulates before publishing them to the shared total
+   */
+  StripedCounter(int stripes, int batchSize) {
+    Preconditions.checkArgument(stripes > 0 && (stripes & (stripes - 1)) == 0);
+    Preconditions.checkArgument(batchSize > 0);
+    mCells = new AtomicLongArray(stripes * CELL_SIZE);
+    mStripeMask = stripes - 1;
+    mBatchSize = batchSize;
+  }
+
+  /**
+   * Add a new item to the counter
+   *
+   * @param numBytes size of the item in bytes
+   */
+  public void increment(int numBytes) {
+    add(1, numBytes);
+  }
+
+  /**
+   * 'Decrement' an item from the counter. Concurrent updates may leave the counter briefly
+   * negative, this is not an error.
+   *
+   * @param numBytes size of the item in bytes
+   */
+  public void decrement(int numBytes) {
+    add(-1, -numBytes);
+  }
+
+  private void add(int count, int numBytes) {
+    final int cell = stripe() * CELL_SIZE;
+    mCells.addAndGet(cell + COUNT, count);
+    mCells.addAndGet(cell + NUM_BYTES, numBytes);
+    final long unpublished = mCells.addAndGet(cell + UNPUBLISHED_BYTES, numBytes);
+    if ((unpublished >= mBatchSize || unpublished <= -mBatchSize)
+        && mCells.compareAndSet(cell + UNPUBLISHED_BYTES, unpublished, 0)) {
+      mBatchedNumBytes.addAndGet(unpublished);
+    }
+  }
+
+  /** Returns the number of items */
+  public int getCount() {
+    return (int) sum(COUNT);
+  }
+
+  /** Returns the size in bytes of all the items */
+  public int getNumBytes() {
+    return (int) sum(NUM_BYTES);
+  }
+
+  /**
+   * Returns the size in bytes of all the items published so far, which may be off by up to {@link
+   * #getMaxBatchError()}
+   */
+  public int getBatchedNumBytes() {
+    return (int) mBatchedNumBytes.get();
+  }
+
+  /** Returns the usual largest difference between {@link #getBatchedNumBytes()} and the size */
+  public int getMaxBatchError() {
+    return (mStripeMask + 1) * mBatchSize;
+  }
+
+  private long sum(int offset) {
+    long sum = 0;
+    for (int cell = offset; cell < mCells.length(); cell += CELL_SIZE) {
+      sum += mCells.get(cell);
+    }
+    return sum;
+  }
+
+  private int stripe() {
+    final long id = Thread.currentThread().getId();
+    return (int) (id ^ (id >>> 32)) & mStripeMask;
+  }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+import com.facebook.infer.annotation.Nullsafe;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Adjusts the number of network fetches a {@link PriorityNetworkFetcher} runs at once from the
+ * fetches it sees complete.
+ *
+ * <p>The samples are grouped in windows of as many fetches as the limit. At the end of each window:
+ *
+ * <ul>
+ *   <li>If the recent time to first byte is much longer than its long-term average, the server or
+ *       the link is queueing requests, and the limit is decreased multiplicatively.
+ *   <li>Otherwise the limit goes up while the bytes/sec of the fetches grow with it, and down
+ *       once they no longer do, i.e. once the link is saturated. On a slow link the limit settles
+ *       at the fewest fetches that use all of the bandwidth, so each image arrives as early as
+ *       possible. On a fast link it grows until more fetches no longer bring more bytes/sec.
+ *   <li>Windows where fewer fetches than the limit were in flight say nothing about the link, and
+ *       leave the limit unchanged.
+ * </ul>
+ */
+@ThreadSafe
+@Nullsafe(Nullsafe.Mode.LOCAL)
+public class AdaptiveConcurrencyLimiter {
+
+  private static final float SHORT_TTFB_SMOOTHING = 0.3f;
+  private static final float LONG_TTFB_SMOOTHING = 0.05f;
+
+  private static final float DEFAULT_TTFB_TOLERANCE = 2f;
+  private static final float DEFAULT_BACKOFF_RATIO = 0.75f;
+  private static final float DEFAULT_MIN_SCALING = 0.5f;
+
+  private final int mMinLimit;
+  private final int mMaxLimit;
+  private final float mTtfbTolerance;
+  private final float mBackoffRatio;
+  private final float mMinScaling;
+
+  @GuardedBy("this")
+  private int mLimit;
+
+  @GuardedBy("this")
+  private float mShortTtfbMs = -1;
+
+  @GuardedBy("this")
+  private float mLongTtfbMs = -1;
+
+  @GuardedBy("this")
+  private long mWindowStartMs = -1;
+
+  @GuardedBy("this")
+  private long mWindowBytes;
+
+  @GuardedBy("this")
+  private int mWindowSamples;
+
+  @GuardedBy("this")
+  private int mWindowMaxInFlight;
+
+  @GuardedBy("this")
+  private float mThroughput = -1;
+
+  /** The limit of the last window that measured the link, or -1 if none did since the last idle. */
+  @GuardedBy("this")
+  private int mPreviousLimit = -1;
+
+  @GuardedBy("this")
+  private int mIncreaseCount;
+
+  @GuardedBy("this")
+  private int mDecreaseCount;
+
+  public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+    this(
+        initialLimit,
+        minLimit,
+        maxLimit,
+        DEFAULT_TTFB_TOLERANCE,
+        DEFAULT_BACKOFF_RATIO,
+        DEFAULT_MIN_SCALING);
+  }
+
+  /**
+   * @param ttfbTolerance the limit is decreased when the recent time to first byte is more than
+   *     this many times its long-term average
+   * @param backoffRatio the ratio the limit is multiplied by when it is decreased for that reason
+   * @param minScaling the link is considered saturated when a change of the limit changes the
+   *     bytes/sec by less than this fraction of the change they would see if they were
+   *     proportional to the limit
+   */
+  public AdaptiveConcurrencyLimiter(
+      int initialLimit,
+      int minLimit,
+      int maxLimit,
+      float ttfbTolerance,
+      float backoffRatio,
+      float minScaling) {
+    if (minLimit < 1 || minLimit > maxLimit) {
+      throw new IllegalArgumentException("minLimit should be >= 1 and <= maxLimit");
+    }
+    if (initialLimit < minLimit || initialLimit > maxLimit) {
+      throw new IllegalArgumentException("initialLimit should be within [minLimit, maxLimit]");
+    }
+    if (backoffRatio <= 0 || backoffRatio >= 1) {
+      throw new IllegalArgumentException("backoffRatio should be within (0, 1)");
+    }
+    mLimit = initialLimit;
+    mMinLimit = minLimit;
+    mMaxLimit = maxLimit;
+    mTtfbTolerance = ttfbTolerance;
+    mBackoffRatio = backoffRatio;
+    mMinScaling = minScaling;
+  }
+
+  /** Returns the number of fetches that may be in flight at once. */
+  public synchronized int getLimit() {
+    return mLimit;
+  }
+
+  /** Returns the recent time to first byte, or -1 before the first sample. */
+  public synchronized float getShortTtfbMs() {
+    return mShortTtfbMs;
+  }
+
+  /** Returns the long-term average time to first byte, or -1 before the first sample. */
+  public synchronized float getLongTtfbMs() {
+    return mLongTtfbMs;
+  }
+
+  /** Returns the bytes/sec of fetches measured by the last window, or -1 before the first one. */
+  public synchronized float getThroughputBytesPerSecond() {
+    return mThroughput;
+  }
+
+  /** Returns the number of times the limit was increased. */
+  public synchronized int getIncreaseCount() {
+    return mIncreaseCount;
+  }
+
+  /** Returns the number of times the limit was decreased. */
+  public synchronized int getDecreaseCount() {
+    return mDecreaseCount;
+  }
+
+  /**
+   * Records a fetch that completed.
+   *
+   * @param ttfbMs the time between the start of the fetch and its response
+   * @param byteSize the size of the response
+   * @param nowMs the time the fetch completed
+   * @param inFlight the number of fetches in flight when it completed, itself included
+   */
+  public synchronized void onFetchCompletion(long ttfbMs, int byteSize, long nowMs, int inFlight) {
+    if (mLongTtfbMs < 0) {
+      mShortTtfbMs = ttfbMs;
+      mLongTtfbMs = ttfbMs;
+    } else {
+      mShortTtfbMs += SHORT_TTFB_SMOOTHING * (ttfbMs - mShortTtfbMs);
+      mLongTtfbMs += LONG_TTFB_SMOOTHING * (ttfbMs - mLongTtfbMs);
+      // the average keeps up with a link that got faster for good
+      if (mLongTtfbMs > 2 * mShortTtfbMs) {
+        mLongTtfbMs = 2 * mShortTtfbMs;
+      }
+    }
+    if (mWindowStartMs < 0) {
+      mWindowStartMs = nowMs;
+      return;
+    }
+    mWindowBytes += byteSize;
+    mWindowSamples++;
+    mWindowMaxInFlight = Math.max(mWindowMaxInFlight, inFlight);
+    if (mWindowSamples >= mLimit) {
+      updateLimit(Math.max(1, nowMs - mWindowStartMs));
+      mWindowStartMs = nowMs;
+      mWindowBytes = 0;
+      mWindowSamples = 0;
+      mWindowMaxInFlight = 0;
+    }
+  }
+
+  @GuardedBy("this")
+  private void updateLimit(long windowDurationMs) {
+    final float throughput = mWindowBytes * 1000f / windowDurationMs;
+    final int newLimit;
+    if (mShortTtfbMs > mTtfbTolerance * mLongTtfbMs) {
+      newLimit = (int) (mLimit * mBackoffRatio);
+    } else if (mWindowMaxInFlight < mLimit) {
+      // the fetches did not use the limit, so the bytes/sec do not tell what it is worth
+      mThroughput = throughput;
+      mPreviousLimit = -1;
+      return;
+    } else if (mPreviousLimit < 0 || mLimit == mPreviousLimit) {
+      newLimit = mLimit + 1;
+    } else {
+      // compares the change of bytes/sec with the one if they were proportional to the limit
+      final float proportionalGain = (float) (mLimit - mPreviousLimit) / mPreviousLimit;
+      final float gain = mThroughput > 0 ? throughput / mThroughput - 1 : 1;
+      final boolean isSaturated =
+          mLimit > mPreviousLimit
+              ? gain < mMinScaling * proportionalGain
+              : gain >= mMinScaling * proportionalGain;
+      newLimit = isSaturated ? mLimit - 1 : mLimit + 1;
+    }
+    mThroughput = throughput;
+    mPreviousLimit = mLimit;
+    final int clampedLimit = Math.max(mMinLimit, Math.min(mMaxLimit, newLimit));
+    if (clampedLimit > mLimit) {
+      mIncreaseCount++;
+    } else if (clampedLimit < mLimit) {
+      mDecreaseCount++;
+    }
+    mLimit = clampedLimit;
+  }
+}
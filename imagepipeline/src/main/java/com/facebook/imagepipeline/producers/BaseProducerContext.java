@@ -7,6 +7,7 @@
 
 package com.facebook.imagepipeline.producers;
 
+import android.os.SystemClock;
 import com.facebook.common.internal.ImmutableSet;
 import com.facebook.fresco.middleware.HasExtraData;
 import com.facebook.imagepipeline.common.Priority;
@@ -34,6 +35,12 @@ public class BaseProducerContext implements ProducerContext {
       ImmutableSet.of(HasExtraData.KEY_ID, HasExtraData.KEY_URI_SOURCE);
   private static final Object CALLER_CONTEXT_UNSET = new Object();
 
+  /**
+   * Producer event reported when a producer abandons the work of a request because its deadline
+   * passed or its staleness budget ran out. {@see #checkExpiredWork}
+   */
+  public static final String EXPIRED_WORK_AVOIDED_EVENT = "expired_work_avoided";
+
   private final ImageRequest mImageRequest;
   private final String mId;
   private final @Nullable String mUiComponentId;
@@ -41,6 +48,8 @@ public class BaseProducerContext implements ProducerContext {
   private final Object mCallerContext;
   private final ImageRequest.RequestLevel mLowestPermittedRequestLevel;
   private final Map<String, Object> mExtras;
+  private final long mDeadlineMs;
+  private final int mStalenessBudgetMs;
 
   @GuardedBy("this")
   private boolean mIsPrefetch;
@@ -54,6 +63,10 @@ public class BaseProducerContext implements ProducerContext {
   @GuardedBy("this")
   private boolean mIsCancelled;
 
+  /** Time since which the request is stale, or -1 if it is not. */
+  @GuardedBy("this")
+  private long mStaleSinceMs = -1;
+
   @GuardedBy("this")
   private final List<ProducerContextCallbacks> mCallbacks;
 
@@ -118,6 +131,12 @@ public class BaseProducerContext implements ProducerContext {
     mCallbacks = new ArrayList<>();
 
     mImagePipelineConfig = imagePipelineConfig;
+
+    mDeadlineMs = imageRequest == null ? 0 : imageRequest.getDeadlineMs();
+    mStalenessBudgetMs = imageRequest == null ? 0 : imageRequest.getStalenessBudgetMs();
+    synchronized (this) {
+      updateStaleSince();
+    }
   }
 
   @Override
@@ -189,6 +208,33 @@ public class BaseProducerContext implements ProducerContext {
     return mImagePipelineConfig;
   }
 
+  /**
+   * Returns whether the work of the request is no longer worth doing, because its deadline passed
+   * or because it has been stale, i.e. cancelled or not of {@link Priority#HIGH} priority, for
+   * longer than its staleness budget.
+   *
+   * @param nowMs the current time, in {@link SystemClock#uptimeMillis()}
+   */
+  public synchronized boolean isExpired(long nowMs) {
+    if (mDeadlineMs > 0 && nowMs >= mDeadlineMs) {
+      return true;
+    }
+    return mStaleSinceMs >= 0 && nowMs - mStaleSinceMs >= mStalenessBudgetMs;
+  }
+
+  @GuardedBy("this")
+  private void updateStaleSince() {
+    if (mStalenessBudgetMs <= 0) {
+      return;
+    }
+    final boolean isStale = mIsCancelled || mPriority != Priority.HIGH;
+    if (!isStale) {
+      mStaleSinceMs = -1;
+    } else if (mStaleSinceMs < 0) {
+      mStaleSinceMs = SystemClock.uptimeMillis();
+    }
+  }
+
   /** Cancels the request processing and calls appropriate callbacks. */
   public void cancel() {
     BaseProducerContext.callOnCancellationRequested(cancelNoCallbacks());
@@ -227,6 +273,7 @@ public class BaseProducerContext implements ProducerContext {
       return null;
     }
     this.mPriority = priority;
+    updateStaleSince();
     return new ArrayList<>(mCallbacks);
   }
 
@@ -264,6 +311,7 @@ public class BaseProducerContext implements ProducerContext {
       return null;
     }
     mIsCancelled = true;
+    updateStaleSince();
     return new ArrayList<>(mCallbacks);
   }
 
@@ -304,6 +352,48 @@ public class BaseProducerContext implements ProducerContext {
     }
   }
 
+  /**
+   * Returns whether the work of the request of the context expired. {@see #isExpired}
+   *
+   * <p>Contexts that are not {@link BaseProducerContext}s only expire with the deadline of their
+   * request.
+   */
+  public static boolean isWorkExpired(ProducerContext producerContext) {
+    return isWorkExpired(producerContext, SystemClock.uptimeMillis());
+  }
+
+  static boolean isWorkExpired(ProducerContext producerContext, long nowMs) {
+    if (producerContext instanceof BaseProducerContext) {
+      return ((BaseProducerContext) producerContext).isExpired(nowMs);
+    }
+    final long deadlineMs = producerContext.getImageRequest().getDeadlineMs();
+    return deadlineMs > 0 && nowMs >= deadlineMs;
+  }
+
+  /**
+   * Checks, at the start of a stage of a producer, whether the work of the request expired.
+   *
+   * <p>If it did, the stage is reported as started and failed, with an {@link
+   * #EXPIRED_WORK_AVOIDED_EVENT} in between, and the producer should fail its consumer with the
+   * returned exception instead of doing the work. The consumer is not cancelled, as the data source
+   * of the request only expects a cancellation once it is closed.
+   *
+   * @return the failure to pass to the consumer if the producer should abandon the work, null
+   *     otherwise
+   */
+  public static @Nullable ExpiredRequestException checkExpiredWork(
+      ProducerContext producerContext, String producerName) {
+    if (!isWorkExpired(producerContext)) {
+      return null;
+    }
+    final ExpiredRequestException exception = new ExpiredRequestException();
+    final ProducerListener2 listener = producerContext.getProducerListener();
+    listener.onProducerStart(producerContext, producerName);
+    listener.onProducerEvent(producerContext, producerName, EXPIRED_WORK_AVOIDED_EVENT);
+    listener.onProducerFinishWithFailure(producerContext, producerName, exception, null);
+    return exception;
+  }
+
   /** Calls {@code onPriorityChanged} on each element of the list. Does nothing if list == null */
   public static void callOnPriorityChanged(@Nullable List<ProducerContextCallbacks> callbacks) {
     if (callbacks == null) {
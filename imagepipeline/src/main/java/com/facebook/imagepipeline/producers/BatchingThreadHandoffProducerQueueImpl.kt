@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers
+
+import android.os.Handler
+import android.os.Looper
+import com.facebook.common.time.MonotonicClock
+import com.facebook.common.time.RealtimeSinceBootClock
+import com.facebook.imagepipeline.instrumentation.FrescoInstrumenter
+import java.util.concurrent.Executor
+
+/**
+ * [ThreadHandoffProducerQueue] that hands the requests made on the main thread off in batches.
+ *
+ * The requests made while the main thread handles one message, e.g. the cells a RecyclerView binds
+ * in one frame, are collected and handed off to [executor] as one task once the main thread is done
+ * with the message, instead of taking one executor submission and context switch each. The requests
+ * of a batch then run one after the other on the same background thread, each as it would have run
+ * on its own: the queue only sees opaque runnables, so the cache keys and memory cache probes of a
+ * batch are still computed request by request, by the producers after the handoff. Requests made on
+ * other threads are handed off one by one, and the requests queued while [isQueueing] are handed
+ * off as one batch by [stopQueuing].
+ *
+ * The main thread time spent in [addToQueueOrExecute] and the time requests wait until they run on
+ * the background thread are measured, to compare with [ThreadHandoffProducerQueueImpl].
+ *
+ * @param flushExecutor executor that flushes the batch after the current main thread message
+ */
+class BatchingThreadHandoffProducerQueueImpl
+@JvmOverloads
+constructor(
+    private val executor: Executor,
+    private val flushExecutor: Executor = MainThreadPostExecutor(),
+    private val clock: MonotonicClock = RealtimeSinceBootClock.get()
+) : ThreadHandoffProducerQueue {
+
+  private class PendingRunnable(val runnable: Runnable, val handoffTimeMs: Long)
+
+  private var queueing = false
+  private var pendingRunnables: MutableList<PendingRunnable> = ArrayList()
+  private var isFlushPosted = false
+  private val flushRunnable = Runnable { flush() }
+
+  /** Number of requests handed off. */
+  @get:Synchronized
+  var handoffCount = 0
+    private set
+
+  /** Number of executor tasks, one per batch and one per request made off the main thread. */
+  @get:Synchronized
+  var executorSubmissionCount = 0
+    private set
+
+  /** Total time between the handoff of the requests and the start of their run. */
+  @get:Synchronized
+  var totalHandoffLatencyMs = 0L
+    private set
+
+  /** Number of requests made on the main thread. */
+  @get:Synchronized
+  var mainThreadHandoffCount = 0
+    private set
+
+  /** Total main thread time spent handing requests off. */
+  @get:Synchronized
+  var totalMainThreadTimeNs = 0L
+    private set
+
+  override fun addToQueueOrExecute(runnable: Runnable) {
+    val isMainThread = Looper.getMainLooper().thread === Thread.currentThread()
+    val startNs = clock.nowNanos()
+    var shouldExecute = false
+    var shouldPostFlush = false
+    synchronized(this) {
+      if (queueing || isMainThread) {
+        pendingRunnables.add(PendingRunnable(runnable, clock.now()))
+        if (!queueing && !isFlushPosted) {
+          isFlushPosted = true
+          shouldPostFlush = true
+        }
+      } else {
+        shouldExecute = true
+      }
+    }
+    if (shouldExecute) {
+      handOff(listOf(PendingRunnable(runnable, clock.now())))
+    } else if (shouldPostFlush) {
+      flushExecutor.execute(flushRunnable)
+    }
+    if (isMainThread) {
+      val elapsedNs = clock.nowNanos() - startNs
+      synchronized(this) {
+        mainThreadHandoffCount++
+        totalMainThreadTimeNs += elapsedNs
+      }
+    }
+  }
+
+  @Synchronized
+  override fun startQueueing() {
+    queueing = true
+  }
+
+  override fun stopQueuing() {
+    synchronized(this) {
+      queueing = false
+    }
+    flush()
+  }
+
+  @Synchronized
+  override fun remove(runnable: Runnable) {
+    pendingRunnables.removeAll { it.runnable === runnable }
+  }
+
+  @Synchronized override fun isQueueing(): Boolean = queueing
+
+  private fun flush() {
+    val batch: List<PendingRunnable>
+    synchronized(this) {
+      isFlushPosted = false
+      // the requests are handed off by stopQueuing
+      if (queueing || pendingRunnables.isEmpty()) {
+        return
+      }
+      batch = pendingRunnables
+      pendingRunnables = ArrayList()
+    }
+    handOff(batch)
+  }
+
+  private fun handOff(batch: List<PendingRunnable>) {
+    synchronized(this) {
+      handoffCount += batch.size
+      executorSubmissionCount++
+    }
+    executor.execute(
+        FrescoInstrumenter.decorateRunnable(
+            Runnable { runBatch(batch) }, "BatchingThreadHandoffProducerQueue_handOff"))
+  }
+
+  private fun runBatch(batch: List<PendingRunnable>) {
+    val nowMs = clock.now()
+    synchronized(this) { batch.forEach { totalHandoffLatencyMs += nowMs - it.handoffTimeMs } }
+    var exception: RuntimeException? = null
+    for (pendingRunnable in batch) {
+      // one failing request does not prevent the others of the batch from running
+      try {
+        pendingRunnable.runnable.run()
+      } catch (e: RuntimeException) {
+        exception = exception ?: e
+      }
+    }
+    exception?.let { throw it }
+  }
+
+  private class MainThreadPostExecutor : Executor {
+    private val handler = Handler(Looper.getMainLooper())
+
+    override fun execute(command: Runnable) {
+      handler.post(command)
+    }
+  }
+}
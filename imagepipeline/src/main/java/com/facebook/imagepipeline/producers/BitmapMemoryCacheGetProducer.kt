@@ -9,16 +9,20 @@ package com.facebook.imagepipeline.producers
 
 import com.facebook.cache.common.CacheKey
 import com.facebook.common.references.CloseableReference
+import com.facebook.imagepipeline.cache.BitmapMemoryCacheSizeIndex
 import com.facebook.imagepipeline.cache.CacheKeyFactory
 import com.facebook.imagepipeline.cache.MemoryCache
 import com.facebook.imagepipeline.image.CloseableImage
 
 /** Bitmap memory cache producer that is read-only. */
-class BitmapMemoryCacheGetProducer(
+class BitmapMemoryCacheGetProducer
+@JvmOverloads
+constructor(
     memoryCache: MemoryCache<CacheKey, CloseableImage>,
     cacheKeyFactory: CacheKeyFactory,
-    inputProducer: Producer<CloseableReference<CloseableImage>>
-) : BitmapMemoryCacheProducer(memoryCache, cacheKeyFactory, inputProducer) {
+    inputProducer: Producer<CloseableReference<CloseableImage>>,
+    sizeIndex: BitmapMemoryCacheSizeIndex? = null
+) : BitmapMemoryCacheProducer(memoryCache, cacheKeyFactory, inputProducer, sizeIndex) {
 
   override fun wrapConsumer(
       consumer: Consumer<CloseableReference<CloseableImage>>,
@@ -30,6 +34,9 @@ class BitmapMemoryCacheGetProducer(
 
   override fun getProducerName(): String = PRODUCER_NAME
 
+  // this producer usually runs on the UI thread, the downscale is left to the next one
+  override fun canDownscale(): Boolean = false
+
   override fun getOriginSubcategory(): String = ORIGIN_SUBCATEGORY
 
   companion object {
@@ -10,6 +10,7 @@ package com.facebook.imagepipeline.producers;
 import com.facebook.cache.common.CacheKey;
 import com.facebook.common.internal.ImmutableMap;
 import com.facebook.common.references.CloseableReference;
+import com.facebook.imagepipeline.cache.BitmapMemoryCacheSizeIndex;
 import com.facebook.imagepipeline.cache.CacheKeyFactory;
 import com.facebook.imagepipeline.cache.MemoryCache;
 import com.facebook.imagepipeline.image.CloseableImage;
@@ -33,14 +34,28 @@ public class BitmapMemoryCacheProducer implements Producer<CloseableReference<Cl
   private final MemoryCache<CacheKey, CloseableImage> mMemoryCache;
   private final CacheKeyFactory mCacheKeyFactory;
   private final Producer<CloseableReference<CloseableImage>> mInputProducer;
+  private final @Nullable BitmapMemoryCacheSizeIndex mSizeIndex;
 
   public BitmapMemoryCacheProducer(
       MemoryCache<CacheKey, CloseableImage> memoryCache,
       CacheKeyFactory cacheKeyFactory,
       Producer<CloseableReference<CloseableImage>> inputProducer) {
+    this(memoryCache, cacheKeyFactory, inputProducer, null);
+  }
+
+  /**
+   * @param sizeIndex index of the resident decodes of every size, to serve a miss from a larger
+   *     decode of the same source, or null
+   */
+  public BitmapMemoryCacheProducer(
+      MemoryCache<CacheKey, CloseableImage> memoryCache,
+      CacheKeyFactory cacheKeyFactory,
+      Producer<CloseableReference<CloseableImage>> inputProducer,
+      @Nullable BitmapMemoryCacheSizeIndex sizeIndex) {
     mMemoryCache = memoryCache;
     mCacheKeyFactory = cacheKeyFactory;
     mInputProducer = inputProducer;
+    mSizeIndex = sizeIndex;
   }
 
   @Override
@@ -63,6 +78,9 @@ public class BitmapMemoryCacheProducer implements Producer<CloseableReference<Cl
 
       CloseableReference<CloseableImage> cachedReference =
           isBitmapCacheEnabledForRead ? mMemoryCache.get(cacheKey) : null;
+      if (cachedReference == null && isBitmapCacheEnabledForRead && mSizeIndex != null) {
+        cachedReference = mSizeIndex.getFromLarger(mMemoryCache, cacheKey, canDownscale());
+      }
 
       if (cachedReference != null) {
         maybeSetExtrasFromCloseableImage(cachedReference.get(), producerContext);
@@ -175,6 +193,12 @@ public class BitmapMemoryCacheProducer implements Producer<CloseableReference<Cl
           if (isBitmapCacheEnabledForWrite) {
             newCachedResult = mMemoryCache.cache(cacheKey, newResult);
           }
+          if (isLast
+              && newCachedResult != null
+              && mSizeIndex != null
+              && newResult.get().getQualityInfo().isOfFullQuality()) {
+            mSizeIndex.onCached(cacheKey);
+          }
           try {
             if (isLast) {
               getConsumer().onProgressUpdate(1f);
@@ -197,6 +221,11 @@ public class BitmapMemoryCacheProducer implements Producer<CloseableReference<Cl
     return PRODUCER_NAME;
   }
 
+  /** Whether a miss can be served by downscaling a larger decode, which takes a bitmap copy. */
+  protected boolean canDownscale() {
+    return true;
+  }
+
   private static void maybeSetExtrasFromCloseableImage(
       HasImageMetadata imageWithMeta, ProducerContext producerContext) {
     producerContext.putExtras(imageWithMeta.getExtras());
@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+import androidx.annotation.VisibleForTesting;
+import com.facebook.common.time.MonotonicClock;
+import com.facebook.common.time.RealtimeSinceBootClock;
+import com.facebook.imagepipeline.common.Priority;
+import com.facebook.imagepipeline.instrumentation.FrescoInstrumenter;
+import com.facebook.infer.annotation.Nullsafe;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Shares a decode CPU-time budget between the intermediate decodes of all progressive images.
+ *
+ * <p>Without it, each {@link JobScheduler} decodes the scans of its image at most once per minimum
+ * interval, regardless of how many other images are being decoded. With it, the intermediate
+ * decodes of all images wait here until the budget of {@code budgetMsPerSecond} of decode CPU time
+ * per second allows them to run, and the minimum interval is not used:
+ *
+ * <ul>
+ *   <li>Final decodes and placeholders do not wait. Their CPU time is charged to the budget, so that
+ *       intermediate decodes yield to them.
+ *   <li>Waiting intermediate decodes start in the order of the priority of their requests, so the
+ *       ones of visible images go first.
+ *   <li>An intermediate decode that is still waiting when a newer scan or the final image of its
+ *       request arrives, or when its request finishes, never runs. The CPU time saved this way is
+ *       estimated from the average cost of the intermediate decodes that did run.
+ * </ul>
+ */
+@ThreadSafe
+@Nullsafe(Nullsafe.Mode.LOCAL)
+public class DecodeBudgetScheduler {
+
+  private static final float COST_SMOOTHING = 0.2f;
+  private static final float INITIAL_INTERMEDIATE_COST_MS = 10f;
+  private static final int DEFAULT_BURST_DIVIDER = 4;
+
+  private final float mBudgetMsPerSecond;
+  private final int mMaxBurstMs;
+  private final MonotonicClock mClock;
+  private final @Nullable ScheduledExecutorService mTimer;
+  private final Runnable mDrainRunnable;
+
+  @GuardedBy("this")
+  private final List<JobScheduler> mWaitingJobs = new ArrayList<>();
+
+  @GuardedBy("this")
+  private float mAvailableMs;
+
+  @GuardedBy("this")
+  private long mLastRefillMs;
+
+  @GuardedBy("this")
+  private int mRunningJobCount;
+
+  @GuardedBy("this")
+  private boolean mIsDrainScheduled;
+
+  @GuardedBy("this")
+  private float mIntermediateCostMs = INITIAL_INTERMEDIATE_COST_MS;
+
+  // session stats
+
+  @GuardedBy("this")
+  private int mIntermediateDecodeCount;
+
+  @GuardedBy("this")
+  private int mFinalDecodeCount;
+
+  @GuardedBy("this")
+  private long mDecodeCpuMs;
+
+  @GuardedBy("this")
+  private int mSkippedDecodeCount;
+
+  @GuardedBy("this")
+  private float mSavedDecodeCpuMs;
+
+  public DecodeBudgetScheduler(int budgetMsPerSecond) {
+    this(
+        budgetMsPerSecond,
+        Math.max(1, budgetMsPerSecond / DEFAULT_BURST_DIVIDER),
+        RealtimeSinceBootClock.get(),
+        null);
+  }
+
+  /**
+   * @param budgetMsPerSecond the decode CPU time per second shared by the intermediate decodes
+   * @param maxBurstMs the most unused budget that is kept for later
+   * @param clock clock the budget is refilled by
+   * @param timer executor that starts the waiting decodes once the budget refills, the one of
+   *     {@link JobScheduler} if null
+   */
+  @VisibleForTesting
+  DecodeBudgetScheduler(
+      int budgetMsPerSecond,
+      int maxBurstMs,
+      MonotonicClock clock,
+      @Nullable ScheduledExecutorService timer) {
+    if (budgetMsPerSecond <= 0 || maxBurstMs <= 0) {
+      throw new IllegalArgumentException("budgetMsPerSecond and maxBurstMs should be > 0");
+    }
+    mBudgetMsPerSecond = budgetMsPerSecond;
+    mMaxBurstMs = maxBurstMs;
+    mClock = clock;
+    mTimer = timer;
+    mAvailableMs = maxBurstMs;
+    mLastRefillMs = clock.now();
+    mDrainRunnable =
+        new Runnable() {
+          @Override
+          public void run() {
+            synchronized (DecodeBudgetScheduler.this) {
+              mIsDrainScheduled = false;
+            }
+            drain();
+          }
+        };
+  }
+
+  /**
+   * Adds an intermediate job to the waiting ones.
+   *
+   * <p>Called by the job with its own lock held, the job is started by the next {@link #drain}.
+   */
+  synchronized void enqueue(JobScheduler job) {
+    mWaitingJobs.add(job);
+  }
+
+  /** Removes a job from the waiting ones, returns false if it is not waiting (anymore). */
+  synchronized boolean remove(JobScheduler job) {
+    return mWaitingJobs.remove(job);
+  }
+
+  /** Returns whether a job is waiting, false once {@link #drain} took it to start it. */
+  synchronized boolean isWaiting(JobScheduler job) {
+    return mWaitingJobs.contains(job);
+  }
+
+  /** Starts the waiting jobs the budget allows, highest priority first. */
+  void drain() {
+    List<JobScheduler> jobsToStart = null;
+    long drainDelayMs = -1;
+    synchronized (this) {
+      refill();
+      // the cost of the running intermediate decodes is not charged until they finish
+      while (!mWaitingJobs.isEmpty()
+          && mAvailableMs - mRunningJobCount * mIntermediateCostMs > 0) {
+        if (jobsToStart == null) {
+          jobsToStart = new ArrayList<>();
+        }
+        jobsToStart.add(takeNextJob());
+        mRunningJobCount++;
+      }
+      // a running decode drains when it finishes
+      if (!mWaitingJobs.isEmpty() && mRunningJobCount == 0 && !mIsDrainScheduled) {
+        mIsDrainScheduled = true;
+        drainDelayMs = 1 + (long) (-mAvailableMs * 1000 / mBudgetMsPerSecond);
+      }
+    }
+    if (drainDelayMs >= 0) {
+      getTimer()
+          .schedule(
+              FrescoInstrumenter.decorateRunnable(mDrainRunnable, "DecodeBudgetScheduler_drain"),
+              drainDelayMs,
+              TimeUnit.MILLISECONDS);
+    }
+    if (jobsToStart != null) {
+      for (JobScheduler job : jobsToStart) {
+        job.startBudgetedJob();
+      }
+    }
+  }
+
+  /**
+   * Charges a decode to the budget.
+   *
+   * @param cpuMs the CPU time of the decode
+   * @param isIntermediate whether the decode was of an intermediate result
+   */
+  synchronized void onDecodeFinished(long cpuMs, boolean isIntermediate) {
+    refill();
+    mAvailableMs -= cpuMs;
+    mDecodeCpuMs += cpuMs;
+    if (isIntermediate) {
+      mIntermediateDecodeCount++;
+      mIntermediateCostMs += COST_SMOOTHING * (cpuMs - mIntermediateCostMs);
+    } else {
+      mFinalDecodeCount++;
+    }
+  }
+
+  /** Called once a job started by {@link #drain} finished, whether it decoded or not. */
+  void onBudgetedJobFinished() {
+    synchronized (this) {
+      mRunningJobCount--;
+    }
+    drain();
+  }
+
+  /** Called when a waiting intermediate job is replaced by a newer one, or cleared. */
+  synchronized void onJobSkipped() {
+    mSkippedDecodeCount++;
+    mSavedDecodeCpuMs += mIntermediateCostMs;
+  }
+
+  /** Returns the number of intermediate jobs waiting for the budget. */
+  public synchronized int getWaitingJobCount() {
+    return mWaitingJobs.size();
+  }
+
+  /** Returns the number of intermediate decodes that ran. */
+  public synchronized int getIntermediateDecodeCount() {
+    return mIntermediateDecodeCount;
+  }
+
+  /** Returns the number of final decodes that ran. */
+  public synchronized int getFinalDecodeCount() {
+    return mFinalDecodeCount;
+  }
+
+  /** Returns the CPU time of all the decodes that ran. */
+  public synchronized long getDecodeCpuMs() {
+    return mDecodeCpuMs;
+  }
+
+  /** Returns the number of intermediate decodes that were skipped. */
+  public synchronized int getSkippedDecodeCount() {
+    return mSkippedDecodeCount;
+  }
+
+  /** Returns the estimated CPU time the skipped intermediate decodes would have taken. */
+  public synchronized long getSavedDecodeCpuMs() {
+    return Math.round(mSavedDecodeCpuMs);
+  }
+
+  @GuardedBy("this")
+  private void refill() {
+    final long now = mClock.now();
+    mAvailableMs =
+        Math.min(mMaxBurstMs, mAvailableMs + (now - mLastRefillMs) * mBudgetMsPerSecond / 1000);
+    mLastRefillMs = now;
+  }
+
+  /** Takes the first waiting job of the highest priority, priorities may change while waiting. */
+  @GuardedBy("this")
+  private JobScheduler takeNextJob() {
+    int nextIndex = 0;
+    Priority nextPriority = mWaitingJobs.get(0).getPriority();
+    for (int i = 1; i < mWaitingJobs.size(); i++) {
+      final Priority priority = mWaitingJobs.get(i).getPriority();
+      if (priority.ordinal() > nextPriority.ordinal()) {
+        nextIndex = i;
+        nextPriority = priority;
+      }
+    }
+    return mWaitingJobs.remove(nextIndex);
+  }
+
+  private ScheduledExecutorService getTimer() {
+    return mTimer != null ? mTimer : JobScheduler.JobStartExecutorSupplier.get();
+  }
+}
@@ -19,6 +19,7 @@ import com.facebook.fresco.middleware.HasExtraData
 import com.facebook.imageformat.DefaultImageFormats
 import com.facebook.imagepipeline.common.ImageDecodeOptions
 import com.facebook.imagepipeline.core.CloseableReferenceFactory
+import com.facebook.imagepipeline.core.PriorityAwareExecutor
 import com.facebook.imagepipeline.decoder.DecodeException
 import com.facebook.imagepipeline.decoder.ImageDecoder
 import com.facebook.imagepipeline.decoder.ProgressiveJpegConfig
@@ -42,9 +43,12 @@ import javax.annotation.concurrent.GuardedBy
 /**
  * Decodes images.
  *
- * Progressive JPEGs are decoded progressively as new data arrives.
+ * Progressive JPEGs are decoded progressively as new data arrives. If a [DecodeBudgetScheduler] is
+ * given, the intermediate decodes of all images share its budget.
  */
-class DecodeProducer(
+class DecodeProducer
+@JvmOverloads
+constructor(
     val byteArrayPool: ByteArrayPool,
     val executor: Executor,
     val imageDecoder: ImageDecoder,
@@ -56,7 +60,8 @@ class DecodeProducer(
     val maxBitmapSize: Int,
     val closeableReferenceFactory: CloseableReferenceFactory,
     val reclaimMemoryRunnable: Runnable?,
-    val recoverFromDecoderOOM: Supplier<Boolean>
+    val recoverFromDecoderOOM: Supplier<Boolean>,
+    val decodeBudgetScheduler: DecodeBudgetScheduler? = null
 ) : Producer<CloseableReference<CloseableImage>> {
 
   override fun produceResults(
@@ -386,7 +391,13 @@ class DecodeProducer(
     init {
 
       val job = JobRunnable { encodedImage, status ->
-        if (encodedImage != null) {
+        val expiredException =
+            encodedImage?.let {
+              BaseProducerContext.checkExpiredWork(producerContext, PRODUCER_NAME)
+            }
+        if (expiredException != null) {
+          handleError(expiredException)
+        } else if (encodedImage != null) {
           val request = producerContext.imageRequest
           producerContext.putExtra(HasExtraData.KEY_IMAGE_FORMAT, encodedImage.imageFormat.name)
           encodedImage.source = request.sourceUri?.toString()
@@ -404,7 +415,13 @@ class DecodeProducer(
           doDecode(encodedImage, status, lastScheduledScanNumber)
         }
       }
-      jobScheduler = JobScheduler(executor, job, imageDecodeOptions.minDecodeIntervalMs)
+      jobScheduler =
+          JobScheduler(
+              PriorityAwareExecutor.withPriority(executor, Supplier { producerContext.priority }),
+              job,
+              imageDecodeOptions.minDecodeIntervalMs,
+              decodeBudgetScheduler,
+              Supplier { producerContext.priority })
       producerContext.addCallbacks(
           object : BaseProducerContextCallbacks() {
             override fun onIsIntermediateResultExpectedChanged() {
@@ -71,6 +71,12 @@ public class DiskCacheReadProducer implements Producer<EncodedImage> {
       maybeStartInputProducer(consumer, producerContext);
       return;
     }
+    final ExpiredRequestException expiredException =
+        BaseProducerContext.checkExpiredWork(producerContext, PRODUCER_NAME);
+    if (expiredException != null) {
+      consumer.onFailure(expiredException);
+      return;
+    }
 
     producerContext.getProducerListener().onProducerStart(producerContext, PRODUCER_NAME);
 
@@ -80,7 +86,8 @@ public class DiskCacheReadProducer implements Producer<EncodedImage> {
     final BufferedDiskCache preferredCache =
         isSmallRequest ? mSmallImageBufferedDiskCache : mDefaultBufferedDiskCache;
     final AtomicBoolean isCancelled = new AtomicBoolean(false);
-    final Task<EncodedImage> diskLookupTask = preferredCache.get(cacheKey, isCancelled);
+    final Task<EncodedImage> diskLookupTask =
+        preferredCache.get(cacheKey, isCancelled, producerContext.getPriority());
     final Continuation<EncodedImage, Void> continuation =
         onFinishDiskReads(consumer, producerContext);
     diskLookupTask.continueWith(continuation);
@@ -97,6 +104,15 @@ public class DiskCacheReadProducer implements Producer<EncodedImage> {
         if (isTaskCancelled(task)) {
           listener.onProducerFinishWithCancellation(producerContext, PRODUCER_NAME, null);
           consumer.onCancellation();
+        } else if ((task.isFaulted() || task.getResult() == null)
+            && BaseProducerContext.isWorkExpired(producerContext)) {
+          // the request expired while the disk cache was read, do not fetch it from the network
+          final ExpiredRequestException expiredException = new ExpiredRequestException();
+          listener.onProducerEvent(
+              producerContext, PRODUCER_NAME, BaseProducerContext.EXPIRED_WORK_AVOIDED_EVENT);
+          listener.onProducerFinishWithFailure(
+              producerContext, PRODUCER_NAME, expiredException, null);
+          consumer.onFailure(expiredException);
         } else if (task.isFaulted()) {
           listener.onProducerFinishWithFailure(
               producerContext, PRODUCER_NAME, task.getError(), null);
@@ -0,0 +1,14 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers
+
+/**
+ * Failure of a request whose work was abandoned because its deadline passed or its staleness budget
+ * ran out, see [BaseProducerContext.checkExpiredWork].
+ */
+class ExpiredRequestException : RuntimeException("Deadline or staleness budget of request expired")
@@ -10,9 +10,11 @@ package com.facebook.imagepipeline.producers;
 import android.net.Uri;
 import com.facebook.imagepipeline.common.BytesRange;
 import com.facebook.imagepipeline.image.EncodedImage;
+import com.facebook.imageutils.StreamingImageHeaderParser;
 import com.facebook.infer.annotation.Nullsafe;
 import com.facebook.infer.annotation.OkToExtend;
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 
 /**
  * Used by {@link NetworkFetcher} to encapsulate the state of one network fetch.
@@ -28,6 +30,19 @@ public class FetchState {
   private long mLastIntermediateResultTimeMs;
   private int mOnNewResultStatusFlags;
   private @Nullable BytesRange mResponseBytesRange;
+  private @Nullable EncodedImage mParsedMetaDataSource;
+  private @Nullable StreamingImageHeaderParser mHeaderParser;
+  private int mLastIntermediateResultScanCount;
+  private @Nullable BytesRange mRequestBytesRange;
+  private @Nullable String mRequestIfRange;
+  private @Nullable String mResponseETag;
+  private @Nullable String mResponseLastModified;
+
+  @GuardedBy("this")
+  private @Nullable PartialDownload mPartialDownload;
+
+  @GuardedBy("this")
+  private boolean mIsPartialDownloadReleased;
 
   public FetchState(Consumer<EncodedImage> consumer, ProducerContext context) {
     mConsumer = consumer;
@@ -88,4 +103,131 @@ public class FetchState {
   public void setResponseBytesRange(@Nullable BytesRange bytesRange) {
     mResponseBytesRange = bytesRange;
   }
+
+  /**
+   * Returns the last result passed to the consumer whose meta data was fully parsed, if any. It may
+   * be closed, only its meta data should be used.
+   */
+  @Nullable
+  public EncodedImage getParsedMetaDataSource() {
+    return mParsedMetaDataSource;
+  }
+
+  public void setParsedMetaDataSource(@Nullable EncodedImage parsedMetaDataSource) {
+    mParsedMetaDataSource = parsedMetaDataSource;
+  }
+
+  /**
+   * Returns the parser the bytes of the response are passed to as they are received, if the meta
+   * data is parsed while downloading.
+   */
+  @Nullable
+  public StreamingImageHeaderParser getHeaderParser() {
+    return mHeaderParser;
+  }
+
+  public void setHeaderParser(@Nullable StreamingImageHeaderParser headerParser) {
+    mHeaderParser = headerParser;
+  }
+
+  /** Returns the number of complete progressive JPEG scans of the last intermediate result. */
+  public int getLastIntermediateResultScanCount() {
+    return mLastIntermediateResultScanCount;
+  }
+
+  public void setLastIntermediateResultScanCount(int lastIntermediateResultScanCount) {
+    mLastIntermediateResultScanCount = lastIntermediateResultScanCount;
+  }
+
+  /**
+   * Returns the range of bytes the fetcher should request instead of the one of the image request,
+   * if any. It is set to resume a download the fetch received part of before.
+   */
+  @Nullable
+  public BytesRange getRequestBytesRange() {
+    return mRequestBytesRange;
+  }
+
+  public void setRequestBytesRange(@Nullable BytesRange requestBytesRange) {
+    mRequestBytesRange = requestBytesRange;
+  }
+
+  /**
+   * Returns the value of the If-Range header the fetcher should send with {@link
+   * #getRequestBytesRange()}, so that the server sends the whole image if it changed.
+   */
+  @Nullable
+  public String getRequestIfRange() {
+    return mRequestIfRange;
+  }
+
+  public void setRequestIfRange(@Nullable String requestIfRange) {
+    mRequestIfRange = requestIfRange;
+  }
+
+  @Nullable
+  public String getResponseETag() {
+    return mResponseETag;
+  }
+
+  /**
+   * Allows the fetcher to pass the ETag header of the response, to resume the download if the fetch
+   * is cancelled or fails.
+   */
+  public void setResponseETag(@Nullable String responseETag) {
+    mResponseETag = responseETag;
+  }
+
+  @Nullable
+  public String getResponseLastModified() {
+    return mResponseLastModified;
+  }
+
+  /**
+   * Allows the fetcher to pass the Last-Modified header of the response, to resume the download if
+   * the fetch is cancelled or fails.
+   */
+  public void setResponseLastModified(@Nullable String responseLastModified) {
+    mResponseLastModified = responseLastModified;
+  }
+
+  /**
+   * Returns a copy of the bytes received by earlier attempts of this fetch, if any. The caller has
+   * to close it.
+   */
+  @Nullable
+  synchronized PartialDownload clonePartialDownload() {
+    return mPartialDownload != null ? mPartialDownload.clone() : null;
+  }
+
+  /**
+   * Replaces the bytes received by earlier attempts of this fetch, and closes the previous ones.
+   * Once the partial download was released, the new one is closed instead.
+   */
+  void setPartialDownload(@Nullable PartialDownload partialDownload) {
+    final PartialDownload toClose;
+    synchronized (this) {
+      if (mIsPartialDownloadReleased) {
+        toClose = partialDownload;
+      } else {
+        toClose = mPartialDownload;
+        mPartialDownload = partialDownload;
+      }
+    }
+    if (toClose != null) {
+      toClose.close();
+    }
+  }
+
+  /**
+   * Returns the bytes received by earlier attempts of this fetch, if any, and passes their ownership
+   * to the caller. Called once the fetch is over, later partial downloads are closed right away.
+   */
+  @Nullable
+  synchronized PartialDownload releasePartialDownload() {
+    mIsPartialDownloadReleased = true;
+    final PartialDownload partialDownload = mPartialDownload;
+    mPartialDownload = null;
+    return partialDownload;
+  }
 }
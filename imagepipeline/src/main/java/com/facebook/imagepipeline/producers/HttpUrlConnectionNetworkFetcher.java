@@ -13,6 +13,7 @@ import com.facebook.common.internal.Objects;
 import com.facebook.common.time.MonotonicClock;
 import com.facebook.common.time.RealtimeSinceBootClock;
 import com.facebook.common.util.UriUtil;
+import com.facebook.imagepipeline.common.BytesRange;
 import com.facebook.imagepipeline.image.EncodedImage;
 import com.facebook.infer.annotation.Nullsafe;
 import java.io.IOException;
@@ -135,10 +136,20 @@ public class HttpUrlConnectionNetworkFetcher
     HttpURLConnection connection = null;
     InputStream is = null;
     try {
-      connection = downloadFrom(fetchState.getUri(), MAX_REDIRECTS);
+      connection = downloadFrom(fetchState, fetchState.getUri(), MAX_REDIRECTS);
       fetchState.responseTime = mMonotonicClock.now();
 
       if (connection != null) {
+        fetchState.setResponseETag(connection.getHeaderField("ETag"));
+        fetchState.setResponseLastModified(connection.getHeaderField("Last-Modified"));
+        final BytesRange responseRange =
+            BytesRange.fromContentRangeHeader(connection.getHeaderField("Content-Range"));
+        if (responseRange != null
+            && !(responseRange.from == 0 && responseRange.to == BytesRange.TO_END_OF_CONTENT)) {
+          // Only treat as a partial image if the range is not all of the content
+          fetchState.setResponseBytesRange(responseRange);
+          fetchState.setOnNewResultStatusFlags(Consumer.IS_PARTIAL_RESULT);
+        }
         is = connection.getInputStream();
         callback.onResponse(is, -1);
       }
@@ -158,7 +169,8 @@ public class HttpUrlConnectionNetworkFetcher
     }
   }
 
-  private HttpURLConnection downloadFrom(Uri uri, int maxRedirects) throws IOException {
+  private HttpURLConnection downloadFrom(FetchState fetchState, Uri uri, int maxRedirects)
+      throws IOException {
     HttpURLConnection connection = openConnectionTo(uri);
     if (mUserAgent != null) {
       connection.setRequestProperty("User-Agent", mUserAgent);
@@ -168,6 +180,14 @@ public class HttpUrlConnectionNetworkFetcher
         connection.setRequestProperty(entry.getKey(), entry.getValue());
       }
     }
+    final BytesRange requestBytesRange = fetchState.getRequestBytesRange();
+    if (requestBytesRange != null) {
+      connection.setRequestProperty("Range", requestBytesRange.toHttpRangeHeaderValue());
+      final String requestIfRange = fetchState.getRequestIfRange();
+      if (requestIfRange != null) {
+        connection.setRequestProperty("If-Range", requestIfRange);
+      }
+    }
     connection.setConnectTimeout(mHttpConnectionTimeout);
     int responseCode = connection.getResponseCode();
 
@@ -184,7 +204,7 @@ public class HttpUrlConnectionNetworkFetcher
       if (maxRedirects > 0
           && nextUri != null
           && !Objects.equal(nextUri.getScheme(), originalScheme)) {
-        return downloadFrom(nextUri, maxRedirects - 1);
+        return downloadFrom(fetchState, nextUri, maxRedirects - 1);
       } else {
         String message =
             maxRedirects == 0
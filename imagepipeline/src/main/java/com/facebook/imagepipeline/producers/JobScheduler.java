@@ -9,6 +9,8 @@ package com.facebook.imagepipeline.producers;
 
 import android.os.SystemClock;
 import androidx.annotation.VisibleForTesting;
+import com.facebook.common.internal.Supplier;
+import com.facebook.imagepipeline.common.Priority;
 import com.facebook.imagepipeline.image.EncodedImage;
 import com.facebook.imagepipeline.instrumentation.FrescoInstrumenter;
 import com.facebook.infer.annotation.FalseOnNull;
@@ -23,6 +25,9 @@ import javax.annotation.concurrent.GuardedBy;
 /**
  * Manages jobs so that only one can be executed at a time and no more often than once in <code>
  * mMinimumJobIntervalMs</code> milliseconds.
+ *
+ * <p>If a {@link DecodeBudgetScheduler} is given, it throttles the intermediate jobs instead of the
+ * minimum interval, and the final jobs are executed as soon as possible.
  */
 @Nullsafe(Nullsafe.Mode.LOCAL)
 public class JobScheduler {
@@ -51,6 +56,8 @@ public class JobScheduler {
   private final Runnable mDoJobRunnable;
   private final Runnable mSubmitJobRunnable;
   private final int mMinimumJobIntervalMs;
+  private final @Nullable DecodeBudgetScheduler mBudgetScheduler;
+  private final @Nullable Supplier<Priority> mPrioritySupplier;
 
   @VisibleForTesting
   enum JobState {
@@ -86,10 +93,31 @@ public class JobScheduler {
   @VisibleForTesting
   long mJobStartTime;
 
+  /** Whether the job waits for the budget scheduler, or was started by it and did not run yet. */
+  @GuardedBy("this")
+  @VisibleForTesting
+  boolean mIsBudgeted;
+
   public JobScheduler(Executor executor, JobRunnable jobRunnable, int minimumJobIntervalMs) {
+    this(executor, jobRunnable, minimumJobIntervalMs, null, null);
+  }
+
+  /**
+   * @param budgetScheduler the scheduler the intermediate jobs wait for, the minimum interval is
+   *     used if null
+   * @param prioritySupplier the priority of the jobs in the budget scheduler
+   */
+  public JobScheduler(
+      Executor executor,
+      JobRunnable jobRunnable,
+      int minimumJobIntervalMs,
+      @Nullable DecodeBudgetScheduler budgetScheduler,
+      @Nullable Supplier<Priority> prioritySupplier) {
     mExecutor = executor;
     mJobRunnable = jobRunnable;
     mMinimumJobIntervalMs = minimumJobIntervalMs;
+    mBudgetScheduler = budgetScheduler;
+    mPrioritySupplier = prioritySupplier;
     mDoJobRunnable =
         new Runnable() {
           @Override
@@ -109,6 +137,7 @@ public class JobScheduler {
     mJobState = JobState.IDLE;
     mJobSubmitTime = 0;
     mJobStartTime = 0;
+    mIsBudgeted = false;
   }
 
   /**
@@ -119,12 +148,21 @@ public class JobScheduler {
    */
   public void clearJob() {
     EncodedImage oldEncodedImage;
+    boolean isSkipped;
     synchronized (this) {
       oldEncodedImage = mEncodedImage;
+      isSkipped = isBudgetedJobSkipped();
+      if (mIsBudgeted && mBudgetScheduler != null && mBudgetScheduler.remove(this)) {
+        mIsBudgeted = false;
+        mJobState = JobState.IDLE;
+      }
       mEncodedImage = null;
       mStatus = 0;
     }
     EncodedImage.closeSafely(oldEncodedImage);
+    if (isSkipped && mBudgetScheduler != null) {
+      mBudgetScheduler.onJobSkipped();
+    }
   }
 
   /**
@@ -141,12 +179,17 @@ public class JobScheduler {
       return false;
     }
     EncodedImage oldEncodedImage;
+    boolean isSkipped;
     synchronized (this) {
       oldEncodedImage = mEncodedImage;
+      isSkipped = isBudgetedJobSkipped();
       this.mEncodedImage = EncodedImage.cloneOrNull(encodedImage);
       this.mStatus = status;
     }
     EncodedImage.closeSafely(oldEncodedImage);
+    if (isSkipped && mBudgetScheduler != null) {
+      mBudgetScheduler.onJobSkipped();
+    }
     return true;
   }
 
@@ -158,7 +201,7 @@ public class JobScheduler {
    * job was cleared first.
    *
    * <p>The job will be scheduled no sooner than <code>minimumJobIntervalMs</code> milliseconds
-   * since the last job started.
+   * since the last job started, or once the budget scheduler allows it if there is one.
    *
    * @return true if the job was scheduled, false if there was no valid job to be scheduled
    */
@@ -166,19 +209,27 @@ public class JobScheduler {
     long now = SystemClock.uptimeMillis();
     long when = 0;
     boolean shouldEnqueue = false;
+    boolean shouldDrain = false;
     synchronized (this) {
       if (!shouldProcess(mEncodedImage, mStatus)) {
         return false;
       }
       switch (mJobState) {
         case IDLE:
-          when = Math.max(mJobStartTime + mMinimumJobIntervalMs, now);
-          shouldEnqueue = true;
-          mJobSubmitTime = now;
-          mJobState = JobState.QUEUED;
+          when = queueJob(now);
+          shouldEnqueue = when >= 0;
+          shouldDrain = !shouldEnqueue;
           break;
         case QUEUED:
-          // do nothing, the job is already queued
+          // the job is already queued, but a final job does not wait for the budget
+          if (mIsBudgeted
+              && !isIntermediate(mStatus)
+              && mBudgetScheduler != null
+              && mBudgetScheduler.remove(this)) {
+            mIsBudgeted = false;
+            when = now;
+            shouldEnqueue = true;
+          }
           break;
         case RUNNING:
           mJobState = JobState.RUNNING_AND_PENDING;
@@ -190,10 +241,43 @@ public class JobScheduler {
     }
     if (shouldEnqueue) {
       enqueueJob(when - now);
+    } else if (shouldDrain && mBudgetScheduler != null) {
+      mBudgetScheduler.drain();
     }
     return true;
   }
 
+  /**
+   * Moves the job to the queued state.
+   *
+   * @return the time to submit the job at, or -1 if it waits for the budget scheduler instead
+   */
+  @GuardedBy("this")
+  private long queueJob(long now) {
+    mJobSubmitTime = now;
+    mJobState = JobState.QUEUED;
+    final DecodeBudgetScheduler budgetScheduler = mBudgetScheduler;
+    if (budgetScheduler == null) {
+      return Math.max(mJobStartTime + mMinimumJobIntervalMs, now);
+    }
+    if (!isIntermediate(mStatus)) {
+      return now;
+    }
+    mIsBudgeted = true;
+    budgetScheduler.enqueue(this);
+    return -1;
+  }
+
+  /** Starts the job, called by the budget scheduler once the budget allows it. */
+  void startBudgetedJob() {
+    submitJob();
+  }
+
+  /** Returns the priority of the job in the budget scheduler. */
+  Priority getPriority() {
+    return mPrioritySupplier != null ? mPrioritySupplier.get() : Priority.MEDIUM;
+  }
+
   private void enqueueJob(long delay) {
     // If we make mExecutor be a {@link ScheduledexecutorService}, we could just have
     // `mExecutor.schedule(mDoJobRunnable, delay)` and avoid mSubmitJobRunnable and
@@ -216,22 +300,39 @@ public class JobScheduler {
     long now = SystemClock.uptimeMillis();
     EncodedImage input;
     int status;
+    boolean isBudgeted;
     synchronized (this) {
       input = mEncodedImage;
       status = mStatus;
+      isBudgeted = mIsBudgeted;
       mEncodedImage = null;
       this.mStatus = 0;
+      mIsBudgeted = false;
       mJobState = JobState.RUNNING;
       mJobStartTime = now;
     }
 
+    final DecodeBudgetScheduler budgetScheduler = mBudgetScheduler;
     try {
       // we need to do a check in case the job got cleared in the meantime
       if (shouldProcess(input, status)) {
-        mJobRunnable.run(input, status);
+        if (budgetScheduler == null) {
+          mJobRunnable.run(input, status);
+        } else {
+          final long startCpuMs = SystemClock.currentThreadTimeMillis();
+          try {
+            mJobRunnable.run(input, status);
+          } finally {
+            budgetScheduler.onDecodeFinished(
+                SystemClock.currentThreadTimeMillis() - startCpuMs, isIntermediate(status));
+          }
+        }
       }
     } finally {
       EncodedImage.closeSafely(input);
+      if (isBudgeted && budgetScheduler != null) {
+        budgetScheduler.onBudgetedJobFinished();
+      }
       onJobFinished();
     }
   }
@@ -240,21 +341,40 @@ public class JobScheduler {
     long now = SystemClock.uptimeMillis();
     long when = 0;
     boolean shouldEnqueue = false;
+    boolean shouldDrain = false;
     synchronized (this) {
       if (mJobState == JobState.RUNNING_AND_PENDING) {
-        when = Math.max(mJobStartTime + mMinimumJobIntervalMs, now);
-        shouldEnqueue = true;
-        mJobSubmitTime = now;
-        mJobState = JobState.QUEUED;
+        when = queueJob(now);
+        shouldEnqueue = when >= 0;
+        shouldDrain = !shouldEnqueue;
       } else {
         mJobState = JobState.IDLE;
       }
     }
     if (shouldEnqueue) {
       enqueueJob(when - now);
+    } else if (shouldDrain && mBudgetScheduler != null) {
+      mBudgetScheduler.drain();
     }
   }
 
+  /** Whether the current job waits for the budget scheduler and would decode if it ran. */
+  @GuardedBy("this")
+  private boolean isBudgetedJobSkipped() {
+    // once started by the budget scheduler, the job runs with whatever image it is given by then
+    return mIsBudgeted
+        && mJobState == JobState.QUEUED
+        && isIntermediate(mStatus)
+        && EncodedImage.isValid(mEncodedImage)
+        && mBudgetScheduler != null
+        && mBudgetScheduler.isWaiting(this);
+  }
+
+  private static boolean isIntermediate(@Consumer.Status int status) {
+    return BaseConsumer.isNotLast(status)
+        && !BaseConsumer.statusHasFlag(status, Consumer.IS_PLACEHOLDER);
+  }
+
   @FalseOnNull
   private static boolean shouldProcess(
       @Nullable EncodedImage encodedImage, @Consumer.Status int status) {
@@ -7,21 +7,19 @@
 
 package com.facebook.imagepipeline.producers;
 
-import android.util.Pair;
 import androidx.annotation.VisibleForTesting;
 import com.facebook.common.internal.Preconditions;
-import com.facebook.common.internal.Sets;
 import com.facebook.common.util.TriState;
 import com.facebook.imagepipeline.common.Priority;
 import com.facebook.imagepipeline.systrace.FrescoSystrace;
 import com.facebook.infer.annotation.Nullsafe;
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CopyOnWriteArraySet;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
@@ -142,6 +140,30 @@ public abstract class MultiplexProducer<K, T extends Closeable> implements Produ
 
   protected abstract @Nullable T cloneOrNull(@Nullable T object);
 
+  /**
+   * A consumer participating in multiplexing, with its context.
+   *
+   * <p>It is also an entry of the linked list of its {@link Multiplexer}, and records the state of
+   * its context the Multiplexer last counted, so that attaching, detaching or updating it is O(1).
+   */
+  private class ConsumerContextPair {
+    final Consumer<T> consumer;
+    final ProducerContext context;
+
+    // guarded by the lock of the Multiplexer
+    boolean isAttached;
+    @Nullable ConsumerContextPair previous;
+    @Nullable ConsumerContextPair next;
+    boolean isPrefetch;
+    boolean isIntermediateResultExpected;
+    Priority priority = Priority.LOW;
+
+    ConsumerContextPair(Consumer<T> consumer, ProducerContext context) {
+      this.consumer = consumer;
+      this.context = context;
+    }
+  }
+
   /**
    * Multiplexes same requests - passes the same result to multiple consumers, manages cancellation
    * and maintains last intermediate result.
@@ -162,22 +184,49 @@ public abstract class MultiplexProducer<K, T extends Closeable> implements Produ
     private final K mKey;
 
     /**
-     * Set of consumer-context pairs participating in multiplexing. Cancelled pairs are removed from
-     * the set.
+     * Linked list of consumer-context pairs participating in multiplexing, in the order they were
+     * added. Cancelled pairs are removed from the list.
      *
-     * <p>Following invariant is maintained: if mConsumerContextPairs is not empty, then this
-     * instance of Multiplexer is present in mMultiplexers map. This way all ongoing multiplexed
-     * requests might be attached to by other requests
+     * <p>Following invariant is maintained: if the list is not empty, then this instance of
+     * Multiplexer is present in mMultiplexers map. This way all ongoing multiplexed requests might
+     * be attached to by other requests
      *
      * <p>A Multiplexer is removed from the map only if
      *
      * <ul>
      *   <li>final result is received
      *   <li>error is received
-     *   <li>cancellation notification is received and mConsumerContextPairs is empty
+     *   <li>cancellation notification is received and the list is empty
      * </ul>
      */
-    private final CopyOnWriteArraySet<Pair<Consumer<T>, ProducerContext>> mConsumerContextPairs;
+    @GuardedBy("Multiplexer.this")
+    @Nullable
+    private ConsumerContextPair mFirstPair;
+
+    @GuardedBy("Multiplexer.this")
+    @Nullable
+    private ConsumerContextPair mLastPair;
+
+    @GuardedBy("Multiplexer.this")
+    private int mPairCount;
+
+    /**
+     * Copy of the list results are passed to outside of the lock, made again only once pairs were
+     * added or removed.
+     */
+    @GuardedBy("Multiplexer.this")
+    @Nullable
+    private List<ConsumerContextPair> mPairsSnapshot;
+
+    /** Counts of the pairs by the state of their context, to aggregate it in O(1). */
+    @GuardedBy("Multiplexer.this")
+    private int mNonPrefetchCount;
+
+    @GuardedBy("Multiplexer.this")
+    private int mIntermediateResultExpectedCount;
+
+    @GuardedBy("Multiplexer.this")
+    private final int[] mPriorityCounts = new int[Priority.values().length];
 
     @GuardedBy("Multiplexer.this")
     @Nullable
@@ -214,7 +263,6 @@ public abstract class MultiplexProducer<K, T extends Closeable> implements Produ
     private ForwardingConsumer mForwardingConsumer;
 
     public Multiplexer(K key) {
-      mConsumerContextPairs = Sets.newCopyOnWriteArraySet();
       mKey = key;
     }
 
@@ -229,8 +277,8 @@ public abstract class MultiplexProducer<K, T extends Closeable> implements Produ
      */
     public boolean addNewConsumer(
         final Consumer<T> consumer, final ProducerContext producerContext) {
-      final Pair<Consumer<T>, ProducerContext> consumerContextPair =
-          Pair.create(consumer, producerContext);
+      final ConsumerContextPair consumerContextPair =
+          new ConsumerContextPair(consumer, producerContext);
       T lastIntermediateResult;
       final List<ProducerContextCallbacks> prefetchCallbacks;
       final List<ProducerContextCallbacks> priorityCallbacks;
@@ -245,7 +293,7 @@ public abstract class MultiplexProducer<K, T extends Closeable> implements Produ
         if (getExistingMultiplexer(mKey) != this) {
           return false;
         }
-        mConsumerContextPairs.add(consumerContextPair);
+        attach(consumerContextPair);
         prefetchCallbacks = updateIsPrefetch();
         priorityCallbacks = updatePriority();
         intermediateResultsCallbacks = updateIsIntermediateResultExpected();
@@ -286,8 +334,7 @@ public abstract class MultiplexProducer<K, T extends Closeable> implements Produ
      * prefetch status of the consumer changes.
      */
     private void addCallbacks(
-        final Pair<Consumer<T>, ProducerContext> consumerContextPair,
-        final ProducerContext producerContext) {
+        final ConsumerContextPair consumerContextPair, final ProducerContext producerContext) {
       producerContext.addCallbacks(
           new BaseProducerContextCallbacks() {
             @Override
@@ -299,9 +346,9 @@ public abstract class MultiplexProducer<K, T extends Closeable> implements Produ
               final boolean pairWasRemoved;
 
               synchronized (Multiplexer.this) {
-                pairWasRemoved = mConsumerContextPairs.remove(consumerContextPair);
+                pairWasRemoved = detach(consumerContextPair);
                 if (pairWasRemoved) {
-                  if (mConsumerContextPairs.isEmpty()) {
+                  if (mPairCount == 0) {
                     contextToCancel = mMultiplexProducerContext;
                   } else {
                     isPrefetchCallbacks = updateIsPrefetch();
@@ -326,23 +373,26 @@ public abstract class MultiplexProducer<K, T extends Closeable> implements Produ
                 }
               }
               if (pairWasRemoved) {
-                consumerContextPair.first.onCancellation();
+                consumerContextPair.consumer.onCancellation();
               }
             }
 
             @Override
             public void onIsPrefetchChanged() {
+              recount(consumerContextPair);
               BaseProducerContext.callOnIsPrefetchChanged(updateIsPrefetch());
             }
 
             @Override
             public void onIsIntermediateResultExpectedChanged() {
+              recount(consumerContextPair);
               BaseProducerContext.callOnIsIntermediateResultExpectedChanged(
                   updateIsIntermediateResultExpected());
             }
 
             @Override
             public void onPriorityChanged() {
+              recount(consumerContextPair);
               BaseProducerContext.callOnPriorityChanged(updatePriority());
             }
           });
@@ -361,12 +411,13 @@ public abstract class MultiplexProducer<K, T extends Closeable> implements Produ
         Preconditions.checkArgument(mForwardingConsumer == null);
 
         // Cleanup if all consumers have been cancelled before this method was called
-        if (mConsumerContextPairs.isEmpty()) {
+        final ConsumerContextPair firstPair = mFirstPair;
+        if (firstPair == null) {
           removeMultiplexer(mKey, this);
           return;
         }
 
-        ProducerContext producerContext = mConsumerContextPairs.iterator().next().second;
+        ProducerContext producerContext = firstPair.context;
         mMultiplexProducerContext =
             new BaseProducerContext(
                 producerContext.getImageRequest(),
@@ -377,7 +428,18 @@ public abstract class MultiplexProducer<K, T extends Closeable> implements Produ
                 computeIsPrefetch(),
                 computeIsIntermediateResultExpected(),
                 computePriority(),
-                producerContext.getImagePipelineConfig());
+                producerContext.getImagePipelineConfig()) {
+              @Override
+              public boolean isExpired(long nowMs) {
+                synchronized (Multiplexer.this) {
+                  if (mFirstPair != null) {
+                    return isExpiredForAllConsumers(nowMs);
+                  }
+                }
+                // a fetch kept after all its consumers were cancelled expires as its first request
+                return super.isExpired(nowMs);
+              }
+            };
         mMultiplexProducerContext.putExtras(producerContext.getExtras());
         if (startedAsPrefetch.isSet()) {
           mMultiplexProducerContext.putExtra(
@@ -391,6 +453,17 @@ public abstract class MultiplexProducer<K, T extends Closeable> implements Produ
       mInputProducer.produceResults(forwardingConsumer, multiplexProducerContext);
     }
 
+    /** The shared work is only abandoned once none of the consumers needs it anymore. */
+    @GuardedBy("Multiplexer.this")
+    private boolean isExpiredForAllConsumers(long nowMs) {
+      for (ConsumerContextPair pair = mFirstPair; pair != null; pair = pair.next) {
+        if (!BaseProducerContext.isWorkExpired(pair.context, nowMs)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
     @Nullable
     private synchronized List<ProducerContextCallbacks> updateIsPrefetch() {
       if (mMultiplexProducerContext == null) {
@@ -400,12 +473,7 @@ public abstract class MultiplexProducer<K, T extends Closeable> implements Produ
     }
 
     private synchronized boolean computeIsPrefetch() {
-      for (Pair<Consumer<T>, ProducerContext> pair : mConsumerContextPairs) {
-        if (!pair.second.isPrefetch()) {
-          return false;
-        }
-      }
-      return true;
+      return mNonPrefetchCount == 0;
     }
 
     @Nullable
@@ -418,12 +486,7 @@ public abstract class MultiplexProducer<K, T extends Closeable> implements Produ
     }
 
     private synchronized boolean computeIsIntermediateResultExpected() {
-      for (Pair<Consumer<T>, ProducerContext> pair : mConsumerContextPairs) {
-        if (pair.second.isIntermediateResultExpected()) {
-          return true;
-        }
-      }
-      return false;
+      return mIntermediateResultExpectedCount > 0;
     }
 
     @Nullable
@@ -435,36 +498,139 @@ public abstract class MultiplexProducer<K, T extends Closeable> implements Produ
     }
 
     private synchronized Priority computePriority() {
-      Priority priority = Priority.LOW;
-      for (Pair<Consumer<T>, ProducerContext> pair : mConsumerContextPairs) {
-        priority = Priority.getHigherPriority(priority, pair.second.getPriority());
+      final Priority[] priorities = Priority.values();
+      for (int i = priorities.length - 1; i > 0; i--) {
+        if (mPriorityCounts[i] > 0) {
+          return priorities[i];
+        }
+      }
+      return Priority.LOW;
+    }
+
+    /** Adds a pair at the end of the list and counts the state of its context. */
+    @GuardedBy("Multiplexer.this")
+    private void attach(ConsumerContextPair pair) {
+      pair.isAttached = true;
+      pair.previous = mLastPair;
+      if (mLastPair != null) {
+        mLastPair.next = pair;
+      } else {
+        mFirstPair = pair;
       }
-      return priority;
+      mLastPair = pair;
+      mPairCount++;
+      mPairsSnapshot = null;
+      count(pair, 1);
+    }
+
+    /** Removes a pair from the list, returns false if it was not in it. */
+    @GuardedBy("Multiplexer.this")
+    private boolean detach(ConsumerContextPair pair) {
+      if (!pair.isAttached) {
+        return false;
+      }
+      pair.isAttached = false;
+      if (pair.previous != null) {
+        pair.previous.next = pair.next;
+      } else {
+        mFirstPair = pair.next;
+      }
+      if (pair.next != null) {
+        pair.next.previous = pair.previous;
+      } else {
+        mLastPair = pair.previous;
+      }
+      pair.previous = null;
+      pair.next = null;
+      mPairCount--;
+      mPairsSnapshot = null;
+      count(pair, -1);
+      return true;
+    }
+
+    /** Removes all the pairs and returns them. */
+    @GuardedBy("Multiplexer.this")
+    private List<ConsumerContextPair> detachAll() {
+      final List<ConsumerContextPair> pairs = getPairsSnapshot();
+      for (ConsumerContextPair pair : pairs) {
+        pair.isAttached = false;
+        pair.previous = null;
+        pair.next = null;
+      }
+      mFirstPair = null;
+      mLastPair = null;
+      mPairCount = 0;
+      mPairsSnapshot = null;
+      mNonPrefetchCount = 0;
+      mIntermediateResultExpectedCount = 0;
+      for (int i = 0; i < mPriorityCounts.length; i++) {
+        mPriorityCounts[i] = 0;
+      }
+      return pairs;
+    }
+
+    @GuardedBy("Multiplexer.this")
+    private List<ConsumerContextPair> getPairsSnapshot() {
+      List<ConsumerContextPair> pairs = mPairsSnapshot;
+      if (pairs == null) {
+        final ArrayList<ConsumerContextPair> copy = new ArrayList<>(mPairCount);
+        for (ConsumerContextPair pair = mFirstPair; pair != null; pair = pair.next) {
+          copy.add(pair);
+        }
+        pairs = Collections.unmodifiableList(copy);
+        mPairsSnapshot = pairs;
+      }
+      return pairs;
+    }
+
+    /** Updates the counts after the state of the context of a pair changed. */
+    private synchronized void recount(ConsumerContextPair pair) {
+      if (pair.isAttached) {
+        count(pair, -1);
+        count(pair, 1);
+      }
+    }
+
+    /**
+     * Adds (delta 1) the state of the context of a pair to the counts, or removes (delta -1) the
+     * state that was last added.
+     */
+    @GuardedBy("Multiplexer.this")
+    private void count(ConsumerContextPair pair, int delta) {
+      if (delta > 0) {
+        pair.isPrefetch = pair.context.isPrefetch();
+        pair.isIntermediateResultExpected = pair.context.isIntermediateResultExpected();
+        pair.priority = pair.context.getPriority();
+      }
+      if (!pair.isPrefetch) {
+        mNonPrefetchCount += delta;
+      }
+      if (pair.isIntermediateResultExpected) {
+        mIntermediateResultExpectedCount += delta;
+      }
+      mPriorityCounts[pair.priority.ordinal()] += delta;
     }
 
     public void onFailure(final ForwardingConsumer consumer, final Throwable t) {
-      Iterator<Pair<Consumer<T>, ProducerContext>> iterator;
+      final List<ConsumerContextPair> pairs;
       synchronized (Multiplexer.this) {
         // check for late callbacks
         if (mForwardingConsumer != consumer) {
           return;
         }
 
-        iterator = mConsumerContextPairs.iterator();
-
-        mConsumerContextPairs.clear();
+        pairs = detachAll();
         removeMultiplexer(mKey, this);
         closeSafely(mLastIntermediateResult);
         mLastIntermediateResult = null;
       }
 
-      while (iterator.hasNext()) {
-        Pair<Consumer<T>, ProducerContext> pair = iterator.next();
+      for (ConsumerContextPair pair : pairs) {
         synchronized (pair) {
-          pair.second
+          pair.context
               .getProducerListener()
-              .onProducerFinishWithFailure(pair.second, mProducerName, t, null);
-          pair.first.onFailure(t);
+              .onProducerFinishWithFailure(pair.context, mProducerName, t, null);
+          pair.consumer.onFailure(t);
         }
       }
     }
@@ -473,7 +639,7 @@ public abstract class MultiplexProducer<K, T extends Closeable> implements Produ
         final ForwardingConsumer consumer,
         final @Nullable T closeableObject,
         @Consumer.Status final int status) {
-      Iterator<Pair<Consumer<T>, ProducerContext>> iterator;
+      final List<ConsumerContextPair> pairs;
       final int size;
       synchronized (Multiplexer.this) {
         // check for late callbacks
@@ -484,30 +650,29 @@ public abstract class MultiplexProducer<K, T extends Closeable> implements Produ
         closeSafely(mLastIntermediateResult);
         mLastIntermediateResult = null;
 
-        iterator = mConsumerContextPairs.iterator();
-        size = mConsumerContextPairs.size();
+        size = mPairCount;
         if (BaseConsumer.isNotLast(status)) {
+          pairs = getPairsSnapshot();
           mLastIntermediateResult = cloneOrNull(closeableObject);
           mLastStatus = status;
         } else {
-          mConsumerContextPairs.clear();
+          pairs = detachAll();
           removeMultiplexer(mKey, this);
         }
       }
 
-      while (iterator.hasNext()) {
-        Pair<Consumer<T>, ProducerContext> pair = iterator.next();
+      for (ConsumerContextPair pair : pairs) {
         synchronized (pair) {
           if (BaseConsumer.isLast(status)) {
-            pair.second
+            pair.context
                 .getProducerListener()
-                .onProducerFinishWithSuccess(pair.second, mProducerName, null);
+                .onProducerFinishWithSuccess(pair.context, mProducerName, null);
             if (mMultiplexProducerContext != null) {
-              pair.second.putExtras(mMultiplexProducerContext.getExtras());
+              pair.context.putExtras(mMultiplexProducerContext.getExtras());
             }
-            pair.second.putExtra(mDedupedRequestsCountKey, size);
+            pair.context.putExtra(mDedupedRequestsCountKey, size);
           }
-          pair.first.onNewResult(closeableObject, status);
+          pair.consumer.onNewResult(closeableObject, status);
         }
       }
     }
@@ -529,7 +694,7 @@ public abstract class MultiplexProducer<K, T extends Closeable> implements Produ
     }
 
     public void onProgressUpdate(ForwardingConsumer forwardingConsumer, float progress) {
-      Iterator<Pair<Consumer<T>, ProducerContext>> iterator;
+      final List<ConsumerContextPair> pairs;
       synchronized (Multiplexer.this) {
         // check for late callbacks
         if (mForwardingConsumer != forwardingConsumer) {
@@ -537,13 +702,12 @@ public abstract class MultiplexProducer<K, T extends Closeable> implements Produ
         }
 
         mLastProgress = progress;
-        iterator = mConsumerContextPairs.iterator();
+        pairs = getPairsSnapshot();
       }
 
-      while (iterator.hasNext()) {
-        Pair<Consumer<T>, ProducerContext> pair = iterator.next();
+      for (ConsumerContextPair pair : pairs) {
         synchronized (pair) {
-          pair.first.onProgressUpdate(progress);
+          pair.consumer.onProgressUpdate(progress);
         }
       }
     }
@@ -9,18 +9,22 @@ package com.facebook.imagepipeline.producers;
 
 import android.os.SystemClock;
 import androidx.annotation.VisibleForTesting;
+import com.facebook.common.internal.Preconditions;
 import com.facebook.common.memory.ByteArrayPool;
 import com.facebook.common.memory.PooledByteBuffer;
 import com.facebook.common.memory.PooledByteBufferFactory;
 import com.facebook.common.memory.PooledByteBufferOutputStream;
 import com.facebook.common.references.CloseableReference;
+import com.facebook.fresco.middleware.HasExtraData;
 import com.facebook.imagepipeline.common.BytesRange;
 import com.facebook.imagepipeline.decoder.ProgressiveJpegConfig;
 import com.facebook.imagepipeline.image.EncodedImage;
 import com.facebook.imagepipeline.systrace.FrescoSystrace;
+import com.facebook.imageutils.StreamingImageHeaderParser;
 import com.facebook.infer.annotation.Nullsafe;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Map;
 import javax.annotation.Nullable;
 
@@ -32,6 +36,17 @@ import javax.annotation.Nullable;
  *
  * <p>Clients should provide an instance of {@link NetworkFetcher} to make use of their networking
  * stack. Use {@link HttpUrlConnectionNetworkFetcher} as a model.
+ *
+ * <p>If a {@link PartialDownloadStore} is given, the bytes received by fetches that are cancelled or
+ * fail are kept, and resumed by the next fetch of the same image, or by the retries of the fetcher:
+ * the fetch state then asks for the remaining bytes with {@link FetchState#getRequestBytesRange()}
+ * and {@link FetchState#getRequestIfRange()}. Only fetchers that honor these, and pass the
+ * validators of the response, resume downloads.
+ *
+ * <p>If {@link EncodedImage#useStreamingMetaDataParser()}, the meta data of the image is parsed
+ * from the bytes as they are received, and the results reuse it instead of parsing the header
+ * again. The intermediate results of progressive JPEGs are then only passed once a new scan is
+ * complete.
  */
 @Nullsafe(Nullsafe.Mode.LOCAL)
 public class NetworkFetchProducer implements Producer<EncodedImage> {
@@ -50,20 +65,38 @@ public class NetworkFetchProducer implements Producer<EncodedImage> {
   protected final PooledByteBufferFactory mPooledByteBufferFactory;
   private final ByteArrayPool mByteArrayPool;
   private final NetworkFetcher mNetworkFetcher;
+  private final @Nullable PartialDownloadStore mPartialDownloadStore;
 
   public NetworkFetchProducer(
       PooledByteBufferFactory pooledByteBufferFactory,
       ByteArrayPool byteArrayPool,
       NetworkFetcher networkFetcher) {
+    this(pooledByteBufferFactory, byteArrayPool, networkFetcher, null);
+  }
+
+  public NetworkFetchProducer(
+      PooledByteBufferFactory pooledByteBufferFactory,
+      ByteArrayPool byteArrayPool,
+      NetworkFetcher networkFetcher,
+      @Nullable PartialDownloadStore partialDownloadStore) {
     mPooledByteBufferFactory = pooledByteBufferFactory;
     mByteArrayPool = byteArrayPool;
     mNetworkFetcher = networkFetcher;
+    mPartialDownloadStore = partialDownloadStore;
   }
 
   @Override
   public void produceResults(Consumer<EncodedImage> consumer, ProducerContext context) {
     context.getProducerListener().onProducerStart(context, PRODUCER_NAME);
     final FetchState fetchState = mNetworkFetcher.createFetchState(consumer, context);
+    if (isResumable(fetchState)) {
+      final PartialDownload partialDownload =
+          Preconditions.checkNotNull(mPartialDownloadStore)
+              .remove(getPartialDownloadKey(fetchState));
+      if (partialDownload != null) {
+        resumeFrom(fetchState, partialDownload);
+      }
+    }
     mNetworkFetcher.fetch(
         fetchState,
         new NetworkFetcher.Callback() {
@@ -93,28 +126,161 @@ public class NetworkFetchProducer implements Producer<EncodedImage> {
   protected void onResponse(
       FetchState fetchState, InputStream responseData, int responseContentLength)
       throws IOException {
+    final PartialDownload partialDownload = fetchState.clonePartialDownload();
+    final int resumedBytes = getResumedBytes(fetchState, partialDownload);
+    if (resumedBytes == 0) {
+      restartFromFirstByte(fetchState);
+    }
+    final int totalLength = responseContentLength > 0 ? resumedBytes + responseContentLength : 0;
     final PooledByteBufferOutputStream pooledOutputStream;
-    if (responseContentLength > 0) {
-      pooledOutputStream = mPooledByteBufferFactory.newOutputStream(responseContentLength);
+    if (totalLength > 0) {
+      pooledOutputStream = mPooledByteBufferFactory.newOutputStream(totalLength);
     } else {
       pooledOutputStream = mPooledByteBufferFactory.newOutputStream();
     }
+    final StreamingImageHeaderParser headerParser =
+        EncodedImage.useStreamingMetaDataParser() ? new StreamingImageHeaderParser() : null;
+    fetchState.setHeaderParser(headerParser);
+    fetchState.setLastIntermediateResultScanCount(0);
     final byte[] ioArray = mByteArrayPool.get(READ_SIZE);
     try {
+      if (partialDownload != null && resumedBytes > 0) {
+        writePartialDownload(
+            partialDownload, resumedBytes, pooledOutputStream, ioArray, headerParser);
+        // the result is the whole image again
+        fetchState.setResponseBytesRange(null);
+        fetchState.setOnNewResultStatusFlags(
+            fetchState.getOnNewResultStatusFlags() & ~Consumer.IS_PARTIAL_RESULT);
+        if (fetchState.getResponseETag() == null && fetchState.getResponseLastModified() == null) {
+          fetchState.setResponseETag(partialDownload.getETag());
+          fetchState.setResponseLastModified(partialDownload.getLastModified());
+        }
+        fetchState.getContext().putExtra(HasExtraData.KEY_RESUMED_BYTES, resumedBytes);
+      }
       int length;
       while ((length = responseData.read(ioArray)) >= 0) {
         if (length > 0) {
           pooledOutputStream.write(ioArray, 0, length);
+          if (headerParser != null) {
+            headerParser.parse(ioArray, 0, length);
+          }
           maybeHandleIntermediateResult(pooledOutputStream, fetchState);
-          float progress = calculateProgress(pooledOutputStream.size(), responseContentLength);
+          float progress = calculateProgress(pooledOutputStream.size(), totalLength);
           fetchState.getConsumer().onProgressUpdate(progress);
         }
       }
       mNetworkFetcher.onFetchCompletion(fetchState, pooledOutputStream.size());
       handleFinalResult(pooledOutputStream, fetchState);
+      fetchState.setPartialDownload(null);
+    } catch (IOException e) {
+      maybeKeepPartialDownload(fetchState, pooledOutputStream);
+      throw e;
     } finally {
       mByteArrayPool.release(ioArray);
       pooledOutputStream.close();
+      if (partialDownload != null) {
+        partialDownload.close();
+      }
+    }
+  }
+
+  private boolean isResumable(FetchState fetchState) {
+    return mPartialDownloadStore != null
+        && fetchState.getContext().getImageRequest().getBytesRange() == null;
+  }
+
+  private static String getPartialDownloadKey(FetchState fetchState) {
+    return fetchState.getUri().toString();
+  }
+
+  /** Makes the fetch ask for the bytes following the partial download. */
+  private static void resumeFrom(FetchState fetchState, PartialDownload partialDownload) {
+    fetchState.setRequestBytesRange(BytesRange.from(partialDownload.getSize()));
+    fetchState.setRequestIfRange(partialDownload.getValidator());
+    fetchState.setPartialDownload(partialDownload);
+  }
+
+  /**
+   * Forgets what earlier attempts of the fetch received, as the response starts over from the first
+   * byte, possibly of an image that changed since.
+   */
+  private static void restartFromFirstByte(FetchState fetchState) {
+    fetchState.setParsedMetaDataSource(null);
+    fetchState.setPartialDownload(null);
+    fetchState.setRequestBytesRange(null);
+    fetchState.setRequestIfRange(null);
+  }
+
+  /**
+   * Returns the number of bytes of the partial download the response continues, or 0 if the
+   * response does not continue it, e.g. if the image changed and the server sent all of it.
+   */
+  private static int getResumedBytes(
+      FetchState fetchState, @Nullable PartialDownload partialDownload) {
+    final BytesRange responseBytesRange = fetchState.getResponseBytesRange();
+    if (partialDownload == null
+        || responseBytesRange == null
+        || responseBytesRange.from > partialDownload.getSize()) {
+      return 0;
+    }
+    return responseBytesRange.from;
+  }
+
+  private static void writePartialDownload(
+      PartialDownload partialDownload,
+      int length,
+      OutputStream outputStream,
+      byte[] ioArray,
+      @Nullable StreamingImageHeaderParser headerParser)
+      throws IOException {
+    final PooledByteBuffer bytes = partialDownload.getBytes();
+    int offset = 0;
+    while (offset < length) {
+      final int count = bytes.read(offset, ioArray, 0, Math.min(ioArray.length, length - offset));
+      outputStream.write(ioArray, 0, count);
+      if (headerParser != null) {
+        headerParser.parse(ioArray, 0, count);
+      }
+      offset += count;
+    }
+  }
+
+  /**
+   * Keeps the bytes received so far for retries of the fetch, if they start at the first byte of
+   * the image and the server can tell whether the image changed when resuming.
+   */
+  private void maybeKeepPartialDownload(
+      FetchState fetchState, PooledByteBufferOutputStream pooledOutputStream) {
+    final String validator =
+        PartialDownload.getValidator(
+            fetchState.getResponseETag(), fetchState.getResponseLastModified());
+    if (!isResumable(fetchState)
+        || fetchState.getResponseBytesRange() != null
+        || validator == null
+        || pooledOutputStream.size() == 0) {
+      return;
+    }
+    final CloseableReference<PooledByteBuffer> bytesRef =
+        CloseableReference.of(pooledOutputStream.toByteBuffer());
+    try {
+      resumeFrom(
+          fetchState,
+          new PartialDownload(
+              bytesRef, fetchState.getResponseETag(), fetchState.getResponseLastModified()));
+    } finally {
+      CloseableReference.closeSafely(bytesRef);
+    }
+  }
+
+  /** Passes the bytes kept for retries of a fetch that is over to the store. */
+  private void storePartialDownload(FetchState fetchState) {
+    final PartialDownload partialDownload = fetchState.releasePartialDownload();
+    if (partialDownload != null) {
+      if (mPartialDownloadStore != null) {
+        mPartialDownloadStore.put(getPartialDownloadKey(fetchState), partialDownload);
+      } else {
+        partialDownload.close();
+      }
     }
   }
 
@@ -141,22 +307,33 @@ public class NetworkFetchProducer implements Producer<EncodedImage> {
       PooledByteBufferOutputStream pooledOutputStream, FetchState fetchState) {
     final long nowMs;
     if (shouldPropagateIntermediateResults(fetchState, fetchState.getContext())
+        && hasNewScan(fetchState)
         && (nowMs = getSystemUptime()) - fetchState.getLastIntermediateResultTimeMs()
             >= TIME_BETWEEN_PARTIAL_RESULTS_MS) {
       fetchState.setLastIntermediateResultTimeMs(nowMs);
+      final StreamingImageHeaderParser headerParser = fetchState.getHeaderParser();
+      if (headerParser != null) {
+        fetchState.setLastIntermediateResultScanCount(headerParser.getScanCount());
+      }
       fetchState
           .getListener()
           .onProducerEvent(
               fetchState.getContext(), PRODUCER_NAME, INTERMEDIATE_RESULT_PRODUCER_EVENT);
-      notifyConsumer(
-          pooledOutputStream,
-          fetchState.getOnNewResultStatusFlags(),
-          fetchState.getResponseBytesRange(),
-          fetchState.getConsumer(),
-          fetchState.getContext());
+      notifyConsumer(pooledOutputStream, fetchState.getOnNewResultStatusFlags(), fetchState);
     }
   }
 
+  /**
+   * Returns false if the bytes received so far are known to hold no complete scan of a progressive
+   * JPEG the last intermediate result did not hold, in which case there is nothing new to decode.
+   */
+  private static boolean hasNewScan(FetchState fetchState) {
+    final StreamingImageHeaderParser headerParser = fetchState.getHeaderParser();
+    return headerParser == null
+        || !headerParser.isCountingScans()
+        || headerParser.getScanCount() > fetchState.getLastIntermediateResultScanCount();
+  }
+
   protected void handleFinalResult(
       PooledByteBufferOutputStream pooledOutputStream, FetchState fetchState) {
     Map<String, String> extraMap = this.getExtraMap(fetchState, pooledOutputStream.size());
@@ -165,26 +342,63 @@ public class NetworkFetchProducer implements Producer<EncodedImage> {
     listener.onUltimateProducerReached(fetchState.getContext(), PRODUCER_NAME, true);
     fetchState.getContext().putOriginExtra("network");
     notifyConsumer(
+        pooledOutputStream, Consumer.IS_LAST | fetchState.getOnNewResultStatusFlags(), fetchState);
+  }
+
+  protected static void notifyConsumer(
+      PooledByteBufferOutputStream pooledOutputStream,
+      @Consumer.Status int status,
+      @Nullable BytesRange responseBytesRange,
+      Consumer<EncodedImage> consumer,
+      ProducerContext context) {
+    doNotifyConsumer(pooledOutputStream, status, responseBytesRange, consumer, null);
+  }
+
+  private static void notifyConsumer(
+      PooledByteBufferOutputStream pooledOutputStream,
+      @Consumer.Status int status,
+      FetchState fetchState) {
+    doNotifyConsumer(
         pooledOutputStream,
-        Consumer.IS_LAST | fetchState.getOnNewResultStatusFlags(),
+        status,
         fetchState.getResponseBytesRange(),
         fetchState.getConsumer(),
-        fetchState.getContext());
+        fetchState);
   }
 
-  protected static void notifyConsumer(
+  /**
+   * Passes the bytes received so far to the consumer. Once the meta data of a result of the fetch
+   * has been fully parsed, or read by the header parser of the fetch, the following results reuse
+   * it instead of parsing the header again.
+   */
+  private static void doNotifyConsumer(
       PooledByteBufferOutputStream pooledOutputStream,
       @Consumer.Status int status,
       @Nullable BytesRange responseBytesRange,
       Consumer<EncodedImage> consumer,
-      ProducerContext context) {
+      @Nullable FetchState fetchState) {
     CloseableReference<PooledByteBuffer> result =
         CloseableReference.of(pooledOutputStream.toByteBuffer());
     EncodedImage encodedImage = null;
     try {
       encodedImage = new EncodedImage(result);
       encodedImage.setBytesRange(responseBytesRange);
-      encodedImage.parseMetaData();
+      final StreamingImageHeaderParser headerParser =
+          fetchState != null ? fetchState.getHeaderParser() : null;
+      final EncodedImage metaDataSource =
+          fetchState != null ? fetchState.getParsedMetaDataSource() : null;
+      if ((headerParser == null || !encodedImage.copyParsedMetaDataFrom(headerParser))
+          && (metaDataSource == null || !encodedImage.copyParsedMetaDataFrom(metaDataSource))) {
+        encodedImage.parseMetaData();
+        if (fetchState != null) {
+          // a closed copy, the consumer may change the meta data of the image it receives
+          final EncodedImage snapshot = new EncodedImage(result);
+          snapshot.close();
+          if (snapshot.copyParsedMetaDataFrom(encodedImage)) {
+            fetchState.setParsedMetaDataSource(snapshot);
+          }
+        }
+      }
       consumer.onNewResult(encodedImage, status);
     } finally {
       EncodedImage.closeSafely(encodedImage);
@@ -193,6 +407,7 @@ public class NetworkFetchProducer implements Producer<EncodedImage> {
   }
 
   private void onFailure(FetchState fetchState, Throwable e) {
+    storePartialDownload(fetchState);
     fetchState
         .getListener()
         .onProducerFinishWithFailure(fetchState.getContext(), PRODUCER_NAME, e, null);
@@ -204,6 +419,7 @@ public class NetworkFetchProducer implements Producer<EncodedImage> {
   }
 
   private void onCancellation(FetchState fetchState) {
+    storePartialDownload(fetchState);
     fetchState
         .getListener()
         .onProducerFinishWithCancellation(fetchState.getContext(), PRODUCER_NAME, null);
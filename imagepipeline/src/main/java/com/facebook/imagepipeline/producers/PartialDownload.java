@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+import com.facebook.common.memory.PooledByteBuffer;
+import com.facebook.common.references.CloseableReference;
+import com.facebook.infer.annotation.Nullsafe;
+import java.io.Closeable;
+import javax.annotation.Nullable;
+
+/**
+ * The first bytes of an image received by a network fetch that was cancelled or failed, with the
+ * validators of the response they came from, so that the download can be resumed with a range
+ * request.
+ */
+@Nullsafe(Nullsafe.Mode.LOCAL)
+public class PartialDownload implements Closeable {
+
+  private final CloseableReference<PooledByteBuffer> mBytesRef;
+  private final @Nullable String mETag;
+  private final @Nullable String mLastModified;
+
+  /**
+   * @param bytesRef the bytes received, from the first byte of the image; the reference is cloned
+   * @param eTag the ETag header of the response
+   * @param lastModified the Last-Modified header of the response
+   */
+  public PartialDownload(
+      CloseableReference<PooledByteBuffer> bytesRef,
+      @Nullable String eTag,
+      @Nullable String lastModified) {
+    mBytesRef = bytesRef.clone();
+    mETag = eTag;
+    mLastModified = lastModified;
+  }
+
+  public PooledByteBuffer getBytes() {
+    return mBytesRef.get();
+  }
+
+  public int getSize() {
+    return mBytesRef.get().size();
+  }
+
+  @Nullable
+  public String getETag() {
+    return mETag;
+  }
+
+  @Nullable
+  public String getLastModified() {
+    return mLastModified;
+  }
+
+  /**
+   * Returns the value of the If-Range header of a request resuming this download: the ETag if it is
+   * a strong one, else the Last-Modified date. Returns null if the download cannot be resumed
+   * safely, as the server could not tell whether the image changed.
+   */
+  @Nullable
+  public String getValidator() {
+    return getValidator(mETag, mLastModified);
+  }
+
+  /** Returns a new instance sharing the same bytes. */
+  @Override
+  public PartialDownload clone() {
+    return new PartialDownload(mBytesRef, mETag, mLastModified);
+  }
+
+  @Override
+  public void close() {
+    mBytesRef.close();
+  }
+
+  @Nullable
+  static String getValidator(@Nullable String eTag, @Nullable String lastModified) {
+    // weak ETags cannot be used with If-Range
+    if (eTag != null && !eTag.startsWith("W/")) {
+      return eTag;
+    }
+    return lastModified;
+  }
+}
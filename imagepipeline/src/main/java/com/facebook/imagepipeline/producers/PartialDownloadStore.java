@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+import com.facebook.infer.annotation.Nullsafe;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Keeps the {@link PartialDownload}s of cancelled and failed network fetches in memory, so that a
+ * later fetch of the same image resumes them instead of downloading the image from scratch.
+ *
+ * <p>The total size of the downloads is bounded, the oldest downloads are evicted first.
+ */
+@ThreadSafe
+@Nullsafe(Nullsafe.Mode.LOCAL)
+public class PartialDownloadStore {
+
+  private final int mMaxSizeBytes;
+
+  @GuardedBy("this")
+  private final LinkedHashMap<String, PartialDownload> mDownloads = new LinkedHashMap<>();
+
+  @GuardedBy("this")
+  private int mSizeBytes;
+
+  /** @param maxSizeBytes the maximum total size of the downloads kept */
+  public PartialDownloadStore(int maxSizeBytes) {
+    mMaxSizeBytes = maxSizeBytes;
+  }
+
+  /**
+   * Keeps a download, replacing the one with the same key if any. The store takes ownership of the
+   * download, and closes it right away if it is larger than the store.
+   */
+  public void put(String key, PartialDownload download) {
+    final List<PartialDownload> evicted = new ArrayList<>();
+    synchronized (this) {
+      final PartialDownload previous = mDownloads.remove(key);
+      if (previous != null) {
+        mSizeBytes -= previous.getSize();
+        evicted.add(previous);
+      }
+      if (download.getSize() > mMaxSizeBytes) {
+        evicted.add(download);
+      } else {
+        mDownloads.put(key, download);
+        mSizeBytes += download.getSize();
+        final Iterator<Map.Entry<String, PartialDownload>> iterator =
+            mDownloads.entrySet().iterator();
+        while (mSizeBytes > mMaxSizeBytes) {
+          final PartialDownload eldest = iterator.next().getValue();
+          iterator.remove();
+          mSizeBytes -= eldest.getSize();
+          evicted.add(eldest);
+        }
+      }
+    }
+    for (PartialDownload partialDownload : evicted) {
+      partialDownload.close();
+    }
+  }
+
+  /** Removes the download with the given key and returns it, the caller has to close it. */
+  @Nullable
+  public synchronized PartialDownload remove(String key) {
+    final PartialDownload download = mDownloads.remove(key);
+    if (download != null) {
+      mSizeBytes -= download.getSize();
+    }
+    return download;
+  }
+
+  public synchronized int getCount() {
+    return mDownloads.size();
+  }
+
+  public synchronized int getSizeBytes() {
+    return mSizeBytes;
+  }
+}
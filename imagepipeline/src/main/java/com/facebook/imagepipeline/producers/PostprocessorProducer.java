@@ -211,6 +211,12 @@ public class PostprocessorProducer implements Producer<CloseableReference<Closea
         maybeNotifyOnNewResult(sourceImageRef, status);
         return;
       }
+      final ExpiredRequestException expiredException =
+          BaseProducerContext.checkExpiredWork(mProducerContext, NAME);
+      if (expiredException != null) {
+        maybeNotifyOnFailure(expiredException);
+        return;
+      }
       mListener.onProducerStart(mProducerContext, NAME);
       CloseableReference<CloseableImage> destImageRef = null;
       try {
@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+import com.facebook.common.internal.Preconditions;
+import com.facebook.imagepipeline.producers.PriorityNetworkFetcher.PriorityFetchState;
+import com.facebook.infer.annotation.Nullsafe;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Queue of the requests waiting in a {@link PriorityNetworkFetcher}.
+ *
+ * <p>The queue is intrusive: its links are kept in the {@link PriorityFetchState}s themselves, so a
+ * request is in at most one queue at a time, and removing it or checking whether it is queued does
+ * not scan the queue. Requests are kept in a doubly linked list, so every operation is O(1).
+ *
+ * <p>A priority-ordered queue is a binary heap instead, keyed on the priority of a request when it
+ * was added and then on the position it was added at. Requests of the same priority keep the FIFO
+ * or LIFO order given by {@link #addLast} and {@link #addFirst}, and the operations are O(log n).
+ */
+@NotThreadSafe
+@Nullsafe(Nullsafe.Mode.LOCAL)
+class PriorityFetchQueue<FETCH_STATE extends FetchState> {
+
+  private final boolean mIsPriorityOrdered;
+
+  private @Nullable PriorityFetchState<FETCH_STATE> mHead;
+  private @Nullable PriorityFetchState<FETCH_STATE> mTail;
+  private final ArrayList<PriorityFetchState<FETCH_STATE>> mHeap = new ArrayList<>();
+  private int mSize;
+
+  /** Positions given to the requests added last and first, they only grow apart. */
+  private long mLastSequence;
+
+  private long mFirstSequence;
+
+  PriorityFetchQueue(boolean isPriorityOrdered) {
+    mIsPriorityOrdered = isPriorityOrdered;
+  }
+
+  public int size() {
+    return mSize;
+  }
+
+  public boolean isEmpty() {
+    return mSize == 0;
+  }
+
+  public boolean contains(PriorityFetchState<FETCH_STATE> fetchState) {
+    return fetchState.queue == this;
+  }
+
+  /** Adds a request behind the requests of the same priority. */
+  public void addLast(PriorityFetchState<FETCH_STATE> fetchState) {
+    add(fetchState, ++mLastSequence);
+  }
+
+  /** Adds a request in front of the requests of the same priority. */
+  public void addFirst(PriorityFetchState<FETCH_STATE> fetchState) {
+    add(fetchState, mFirstSequence--);
+  }
+
+  /** Removes and returns the first request, or null if the queue is empty. */
+  @Nullable
+  public PriorityFetchState<FETCH_STATE> pollFirst() {
+    final PriorityFetchState<FETCH_STATE> first = mIsPriorityOrdered ? peekHeap() : mHead;
+    if (first != null) {
+      remove(first);
+    }
+    return first;
+  }
+
+  /**
+   * Removes a request from this queue.
+   *
+   * @return false if the request was not in this queue
+   */
+  public boolean remove(PriorityFetchState<FETCH_STATE> fetchState) {
+    if (!contains(fetchState)) {
+      return false;
+    }
+    if (mIsPriorityOrdered) {
+      removeFromHeap(fetchState);
+    } else {
+      unlink(fetchState);
+    }
+    fetchState.queue = null;
+    mSize--;
+    return true;
+  }
+
+  /**
+   * Moves a request according to the current priority of its context, keeping its position among
+   * the requests of the same priority. Only priority-ordered queues reorder requests.
+   *
+   * @return false if the request was not in this queue
+   */
+  public boolean updatePriority(PriorityFetchState<FETCH_STATE> fetchState) {
+    if (!contains(fetchState)) {
+      return false;
+    }
+    if (mIsPriorityOrdered
+        && fetchState.queuePriority != fetchState.getContext().getPriority()) {
+      removeFromHeap(fetchState);
+      fetchState.queuePriority = fetchState.getContext().getPriority();
+      addToHeap(fetchState);
+    }
+    return true;
+  }
+
+  /** Returns the requests in the order they would be polled. */
+  public List<PriorityFetchState<FETCH_STATE>> toList() {
+    final ArrayList<PriorityFetchState<FETCH_STATE>> list = new ArrayList<>(mSize);
+    if (mIsPriorityOrdered) {
+      list.addAll(mHeap);
+      Collections.sort(list, HEAP_ORDER);
+    } else {
+      for (PriorityFetchState<FETCH_STATE> entry = mHead; entry != null; entry = entry.queueNext) {
+        list.add(entry);
+      }
+    }
+    return list;
+  }
+
+  private void add(PriorityFetchState<FETCH_STATE> fetchState, long sequence) {
+    Preconditions.checkState(fetchState.queue == null, "fetch state is already queued");
+    fetchState.queue = this;
+    fetchState.queueSequence = sequence;
+    fetchState.queuePriority = fetchState.getContext().getPriority();
+    if (mIsPriorityOrdered) {
+      addToHeap(fetchState);
+    } else if (sequence > 0) {
+      link(fetchState, mTail, null);
+    } else {
+      link(fetchState, null, mHead);
+    }
+    mSize++;
+  }
+
+  private void link(
+      PriorityFetchState<FETCH_STATE> fetchState,
+      @Nullable PriorityFetchState<FETCH_STATE> previous,
+      @Nullable PriorityFetchState<FETCH_STATE> next) {
+    fetchState.queuePrevious = previous;
+    fetchState.queueNext = next;
+    if (previous != null) {
+      previous.queueNext = fetchState;
+    } else {
+      mHead = fetchState;
+    }
+    if (next != null) {
+      next.queuePrevious = fetchState;
+    } else {
+      mTail = fetchState;
+    }
+  }
+
+  private void unlink(PriorityFetchState<FETCH_STATE> fetchState) {
+    final PriorityFetchState<FETCH_STATE> previous = fetchState.queuePrevious;
+    final PriorityFetchState<FETCH_STATE> next = fetchState.queueNext;
+    if (previous != null) {
+      previous.queueNext = next;
+    } else {
+      mHead = next;
+    }
+    if (next != null) {
+      next.queuePrevious = previous;
+    } else {
+      mTail = previous;
+    }
+    fetchState.queuePrevious = null;
+    fetchState.queueNext = null;
+  }
+
+  @Nullable
+  private PriorityFetchState<FETCH_STATE> peekHeap() {
+    return mHeap.isEmpty() ? null : mHeap.get(0);
+  }
+
+  private void addToHeap(PriorityFetchState<FETCH_STATE> fetchState) {
+    mHeap.add(fetchState);
+    fetchState.queueHeapIndex = mHeap.size() - 1;
+    siftUp(fetchState.queueHeapIndex);
+  }
+
+  private void removeFromHeap(PriorityFetchState<FETCH_STATE> fetchState) {
+    final int index = fetchState.queueHeapIndex;
+    final PriorityFetchState<FETCH_STATE> last = mHeap.remove(mHeap.size() - 1);
+    fetchState.queueHeapIndex = -1;
+    if (last != fetchState) {
+      set(index, last);
+      siftDown(index);
+      siftUp(last.queueHeapIndex);
+    }
+  }
+
+  private void siftUp(int index) {
+    final PriorityFetchState<FETCH_STATE> entry = mHeap.get(index);
+    while (index > 0) {
+      final int parentIndex = (index - 1) / 2;
+      final PriorityFetchState<FETCH_STATE> parent = mHeap.get(parentIndex);
+      if (HEAP_ORDER.compare(parent, entry) <= 0) {
+        break;
+      }
+      set(index, parent);
+      index = parentIndex;
+    }
+    set(index, entry);
+  }
+
+  private void siftDown(int index) {
+    final PriorityFetchState<FETCH_STATE> entry = mHeap.get(index);
+    final int size = mHeap.size();
+    while (2 * index + 1 < size) {
+      int childIndex = 2 * index + 1;
+      if (childIndex + 1 < size
+          && HEAP_ORDER.compare(mHeap.get(childIndex + 1), mHeap.get(childIndex)) < 0) {
+        childIndex++;
+      }
+      final PriorityFetchState<FETCH_STATE> child = mHeap.get(childIndex);
+      if (HEAP_ORDER.compare(entry, child) <= 0) {
+        break;
+      }
+      set(index, child);
+      index = childIndex;
+    }
+    set(index, entry);
+  }
+
+  private void set(int index, PriorityFetchState<FETCH_STATE> fetchState) {
+    mHeap.set(index, fetchState);
+    fetchState.queueHeapIndex = index;
+  }
+
+  /** Higher priority first, then lower position first. */
+  private static final Comparator<PriorityFetchState<?>> HEAP_ORDER =
+      new Comparator<PriorityFetchState<?>>() {
+        @Override
+        public int compare(PriorityFetchState<?> lhs, PriorityFetchState<?> rhs) {
+          final int byPriority = rhs.queuePriority.compareTo(lhs.queuePriority);
+          return byPriority != 0 ? byPriority : Long.compare(lhs.queueSequence, rhs.queueSequence);
+        }
+      };
+}
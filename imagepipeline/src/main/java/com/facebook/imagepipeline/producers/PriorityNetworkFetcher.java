@@ -25,7 +25,6 @@ import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import javax.annotation.Nullable;
@@ -48,7 +47,19 @@ import javax.annotation.Nullable;
  *       </ul>
  *   <li>When a request's priority changes, it is taken out of the queue and re-enqueued according
  *       to the rules above.
+ *   <li>If the queues are priority-ordered, requests of higher {@link Priority} are dequeued first
+ *       within each queue, e.g. medium before low priority prefetches.
  * </ul>
+ *
+ * <p>Requests keep their position in their queue, so cancelling or re-prioritizing one does not
+ * scan the queues. See {@link PriorityFetchQueue}.
+ *
+ * <p>The number of requests fetched at once can be adjusted to the link by an {@link
+ * AdaptiveConcurrencyLimiter}, instead of 'maxOutstandingHiPri' and 'maxOutstandingLowPri'.
+ *
+ * <p>Retries and re-queued requests ask for the range of bytes set in {@link
+ * FetchState#getRequestBytesRange()}, so that a download that failed mid-stream is resumed when
+ * {@link NetworkFetchProducer} keeps partial downloads.
  */
 @Nullsafe(Nullsafe.Mode.LOCAL)
 public class PriorityNetworkFetcher<FETCH_STATE extends FetchState>
@@ -61,16 +72,14 @@ public class PriorityNetworkFetcher<FETCH_STATE extends FetchState>
   private final int mMaxOutstandingHiPri;
   private final int mMaxOutstandingLowPri;
   private final MonotonicClock mClock;
+  private final @Nullable AdaptiveConcurrencyLimiter mConcurrencyLimiter;
 
   private final Object mLock = new Object();
-  private final LinkedList<PriorityNetworkFetcher.PriorityFetchState<FETCH_STATE>> mHiPriQueue =
-      new LinkedList<>();
-  private final LinkedList<PriorityNetworkFetcher.PriorityFetchState<FETCH_STATE>> mLowPriQueue =
-      new LinkedList<>();
+  private final PriorityFetchQueue<FETCH_STATE> mHiPriQueue;
+  private final PriorityFetchQueue<FETCH_STATE> mLowPriQueue;
   private final HashSet<PriorityNetworkFetcher.PriorityFetchState<FETCH_STATE>> mCurrentlyFetching =
       new HashSet<>();
-  private final LinkedList<PriorityNetworkFetcher.PriorityFetchState<FETCH_STATE>> mDelayedQueue =
-      new LinkedList<>();
+  private final PriorityFetchQueue<FETCH_STATE> mDelayedQueue = new PriorityFetchQueue<>(false);
 
   private volatile boolean isRunning = true;
 
@@ -131,6 +140,48 @@ public class PriorityNetworkFetcher<FETCH_STATE extends FetchState>
       boolean retryLowPriAll,
       boolean retryLowPriUnknownHostException,
       boolean retryLowPriConnectionException) {
+    this(
+        delegate,
+        isHiPriFifo,
+        maxOutstandingHiPri,
+        maxOutstandingLowPri,
+        inflightFetchesCanBeCancelled,
+        maxNumberOfRequeue,
+        doNotCancelRequests,
+        immediateRequeueCount,
+        requeueDelayTimeInMillis,
+        multipleDequeue,
+        nonRecoverableExceptionPreventsRequeue,
+        maxConnectAttemptCount,
+        maxAttemptCount,
+        retryLowPriAll,
+        retryLowPriUnknownHostException,
+        retryLowPriConnectionException,
+        false);
+  }
+
+  /**
+   * @param isPriorityOrdered if true, requests of higher priority are dequeued first within each
+   *     queue. Requests of the same priority keep the order they would have otherwise.
+   */
+  public PriorityNetworkFetcher(
+      NetworkFetcher<FETCH_STATE> delegate,
+      boolean isHiPriFifo,
+      int maxOutstandingHiPri,
+      int maxOutstandingLowPri,
+      boolean inflightFetchesCanBeCancelled,
+      int maxNumberOfRequeue,
+      boolean doNotCancelRequests,
+      int immediateRequeueCount,
+      int requeueDelayTimeInMillis,
+      boolean multipleDequeue,
+      boolean nonRecoverableExceptionPreventsRequeue,
+      int maxConnectAttemptCount,
+      int maxAttemptCount,
+      boolean retryLowPriAll,
+      boolean retryLowPriUnknownHostException,
+      boolean retryLowPriConnectionException,
+      boolean isPriorityOrdered) {
 
     this(
         delegate,
@@ -149,6 +200,7 @@ public class PriorityNetworkFetcher<FETCH_STATE extends FetchState>
         retryLowPriAll,
         retryLowPriUnknownHostException,
         retryLowPriConnectionException,
+        isPriorityOrdered,
         RealtimeSinceBootClock.get());
   }
 
@@ -171,8 +223,140 @@ public class PriorityNetworkFetcher<FETCH_STATE extends FetchState>
       boolean retryLowPriUnknownHostException,
       boolean retryLowPriConnectionException,
       MonotonicClock clock) {
+    this(
+        delegate,
+        isHiPriFifo,
+        maxOutstandingHiPri,
+        maxOutstandingLowPri,
+        inflightFetchesCanBeCancelled,
+        maxNumberOfRequeue,
+        doNotCancelRequests,
+        immediateRequeueCount,
+        requeueDelayTimeInMillis,
+        multipleDequeue,
+        nonRecoverableExceptionPreventsRequeue,
+        maxConnectAttemptCount,
+        maxAttemptCount,
+        retryLowPriAll,
+        retryLowPriUnknownHostException,
+        retryLowPriConnectionException,
+        false,
+        clock);
+  }
+
+  @VisibleForTesting
+  public PriorityNetworkFetcher(
+      NetworkFetcher<FETCH_STATE> delegate,
+      boolean isHiPriFifo,
+      int maxOutstandingHiPri,
+      int maxOutstandingLowPri,
+      boolean inflightFetchesCanBeCancelled,
+      int maxNumberOfRequeue,
+      boolean doNotCancelRequests,
+      int immediateRequeueCount,
+      int requeueDelayTimeInMillis,
+      boolean multipleDequeue,
+      boolean nonRecoverableExceptionPreventsRequeue,
+      int maxConnectAttemptCount,
+      int maxAttemptCount,
+      boolean retryLowPriAll,
+      boolean retryLowPriUnknownHostException,
+      boolean retryLowPriConnectionException,
+      boolean isPriorityOrdered,
+      MonotonicClock clock) {
+    this(
+        delegate,
+        isHiPriFifo,
+        maxOutstandingHiPri,
+        maxOutstandingLowPri,
+        inflightFetchesCanBeCancelled,
+        maxNumberOfRequeue,
+        doNotCancelRequests,
+        immediateRequeueCount,
+        requeueDelayTimeInMillis,
+        multipleDequeue,
+        nonRecoverableExceptionPreventsRequeue,
+        maxConnectAttemptCount,
+        maxAttemptCount,
+        retryLowPriAll,
+        retryLowPriUnknownHostException,
+        retryLowPriConnectionException,
+        isPriorityOrdered,
+        null,
+        clock);
+  }
+
+  /**
+   * @param concurrencyLimiter if not null, it sets the number of hi-pri requests fetched at once
+   *     instead of maxOutstandingHiPri. Low-pri requests keep the same share of it as
+   *     maxOutstandingLowPri of maxOutstandingHiPri.
+   */
+  public PriorityNetworkFetcher(
+      NetworkFetcher<FETCH_STATE> delegate,
+      boolean isHiPriFifo,
+      int maxOutstandingHiPri,
+      int maxOutstandingLowPri,
+      boolean inflightFetchesCanBeCancelled,
+      int maxNumberOfRequeue,
+      boolean doNotCancelRequests,
+      int immediateRequeueCount,
+      int requeueDelayTimeInMillis,
+      boolean multipleDequeue,
+      boolean nonRecoverableExceptionPreventsRequeue,
+      int maxConnectAttemptCount,
+      int maxAttemptCount,
+      boolean retryLowPriAll,
+      boolean retryLowPriUnknownHostException,
+      boolean retryLowPriConnectionException,
+      boolean isPriorityOrdered,
+      @Nullable AdaptiveConcurrencyLimiter concurrencyLimiter) {
+    this(
+        delegate,
+        isHiPriFifo,
+        maxOutstandingHiPri,
+        maxOutstandingLowPri,
+        inflightFetchesCanBeCancelled,
+        maxNumberOfRequeue,
+        doNotCancelRequests,
+        immediateRequeueCount,
+        requeueDelayTimeInMillis,
+        multipleDequeue,
+        nonRecoverableExceptionPreventsRequeue,
+        maxConnectAttemptCount,
+        maxAttemptCount,
+        retryLowPriAll,
+        retryLowPriUnknownHostException,
+        retryLowPriConnectionException,
+        isPriorityOrdered,
+        concurrencyLimiter,
+        RealtimeSinceBootClock.get());
+  }
+
+  @VisibleForTesting
+  public PriorityNetworkFetcher(
+      NetworkFetcher<FETCH_STATE> delegate,
+      boolean isHiPriFifo,
+      int maxOutstandingHiPri,
+      int maxOutstandingLowPri,
+      boolean inflightFetchesCanBeCancelled,
+      int maxNumberOfRequeue,
+      boolean doNotCancelRequests,
+      int immediateRequeueCount,
+      int requeueDelayTimeInMillis,
+      boolean multipleDequeue,
+      boolean nonRecoverableExceptionPreventsRequeue,
+      int maxConnectAttemptCount,
+      int maxAttemptCount,
+      boolean retryLowPriAll,
+      boolean retryLowPriUnknownHostException,
+      boolean retryLowPriConnectionException,
+      boolean isPriorityOrdered,
+      @Nullable AdaptiveConcurrencyLimiter concurrencyLimiter,
+      MonotonicClock clock) {
     mDelegate = delegate;
     mIsHiPriFifo = isHiPriFifo;
+    mHiPriQueue = new PriorityFetchQueue<>(isPriorityOrdered);
+    mLowPriQueue = new PriorityFetchQueue<>(isPriorityOrdered);
 
     this.mMaxOutstandingHiPri = maxOutstandingHiPri;
     this.mMaxOutstandingLowPri = maxOutstandingLowPri;
@@ -192,6 +376,7 @@ public class PriorityNetworkFetcher<FETCH_STATE extends FetchState>
     this.retryLowPriUnknownHostException = retryLowPriUnknownHostException;
     this.retryLowPriConnectionException = retryLowPriConnectionException;
     this.mClock = clock;
+    this.mConcurrencyLimiter = concurrencyLimiter;
   }
 
   /** Stop dequeuing requests until {@link #resume()} is called. */
@@ -237,7 +422,7 @@ public class PriorityNetworkFetcher<FETCH_STATE extends FetchState>
             });
 
     synchronized (mLock) {
-      if (mCurrentlyFetching.contains(fetchState)) {
+      if (mCurrentlyFetching.contains(fetchState) || fetchState.queue != null) {
         FLog.e(TAG, "fetch state was enqueued twice: " + fetchState);
         return;
       }
@@ -253,18 +438,41 @@ public class PriorityNetworkFetcher<FETCH_STATE extends FetchState>
   @Override
   public void onFetchCompletion(
       PriorityNetworkFetcher.PriorityFetchState<FETCH_STATE> fetchState, int byteSize) {
+    if (mConcurrencyLimiter != null) {
+      final int inFlight;
+      synchronized (mLock) {
+        inFlight = mCurrentlyFetching.size();
+      }
+      mConcurrencyLimiter.onFetchCompletion(
+          fetchState.responseTimestamp - fetchState.dequeuedTimestamp,
+          byteSize,
+          mClock.now(),
+          inFlight);
+    }
     removeFromQueue(fetchState, "SUCCESS");
     mDelegate.onFetchCompletion(fetchState.delegatedState, byteSize);
   }
 
+  private int getMaxOutstandingHiPri() {
+    return mConcurrencyLimiter != null ? mConcurrencyLimiter.getLimit() : mMaxOutstandingHiPri;
+  }
+
+  private int getMaxOutstandingLowPri() {
+    if (mConcurrencyLimiter == null) {
+      return mMaxOutstandingLowPri;
+    }
+    // at the low limits of slow links the scaled value rounds down to 0, which would stall the
+    // low-pri queue for good when no hi-pri fetch is running to move the limit
+    int scaledLimit = mConcurrencyLimiter.getLimit() * mMaxOutstandingLowPri / mMaxOutstandingHiPri;
+    return Math.min(mMaxOutstandingLowPri, Math.max(1, scaledLimit));
+  }
+
   private void removeFromQueue(
       PriorityNetworkFetcher.PriorityFetchState<FETCH_STATE> fetchState, String reasonForLogging) {
     synchronized (mLock) {
       FLog.v(TAG, "remove: %s %s", reasonForLogging, fetchState.getUri());
       mCurrentlyFetching.remove(fetchState);
-      if (!mHiPriQueue.remove(fetchState)) {
-        mLowPriQueue.remove(fetchState);
-      }
+      removeFromPriorityQueues(fetchState);
     }
     dequeueIfAvailableSlots();
   }
@@ -274,10 +482,10 @@ public class PriorityNetworkFetcher<FETCH_STATE extends FetchState>
         || mClock.now() - firstDelayedRequestEnqueuedTimeStamp <= requeueDelayTimeInMillis) {
       return;
     }
-    for (PriorityNetworkFetcher.PriorityFetchState<FETCH_STATE> fetchState : mDelayedQueue) {
+    PriorityNetworkFetcher.PriorityFetchState<FETCH_STATE> fetchState;
+    while ((fetchState = mDelayedQueue.pollFirst()) != null) {
       putInQueue(fetchState, fetchState.getContext().getPriority() == HIGH);
     }
-    mDelayedQueue.clear();
   }
 
   private void putInDelayedQueue(
@@ -296,9 +504,7 @@ public class PriorityNetworkFetcher<FETCH_STATE extends FetchState>
           mDelegate.createFetchState(fetchState.getConsumer(), fetchState.getContext());
 
       mCurrentlyFetching.remove(fetchState);
-      if (!mHiPriQueue.remove(fetchState)) {
-        mLowPriQueue.remove(fetchState);
-      }
+      removeFromPriorityQueues(fetchState);
       mHiPriQueue.addFirst(fetchState);
     }
     dequeueIfAvailableSlots();
@@ -313,9 +519,7 @@ public class PriorityNetworkFetcher<FETCH_STATE extends FetchState>
           mDelegate.createFetchState(fetchState.getConsumer(), fetchState.getContext());
 
       mCurrentlyFetching.remove(fetchState);
-      if (!mHiPriQueue.remove(fetchState)) {
-        mLowPriQueue.remove(fetchState);
-      }
+      removeFromPriorityQueues(fetchState);
 
       if (immediateRequeueCount != NO_DELAYED_REQUESTS
           && fetchState.requeueCount > immediateRequeueCount) {
@@ -337,11 +541,11 @@ public class PriorityNetworkFetcher<FETCH_STATE extends FetchState>
       moveDelayedRequestsToPriorityQueues();
       int outstandingRequests = mCurrentlyFetching.size();
 
-      if (outstandingRequests < mMaxOutstandingHiPri) {
+      if (outstandingRequests < getMaxOutstandingHiPri()) {
         toFetch = mHiPriQueue.pollFirst();
       }
 
-      if (toFetch == null && outstandingRequests < mMaxOutstandingLowPri) {
+      if (toFetch == null && outstandingRequests < getMaxOutstandingLowPri()) {
         toFetch = mLowPriQueue.pollFirst();
       }
       if (toFetch == null) {
@@ -373,8 +577,10 @@ public class PriorityNetworkFetcher<FETCH_STATE extends FetchState>
           new NetworkFetcher.Callback() {
             @Override
             public void onResponse(InputStream response, int responseLength) throws IOException {
+              fetchState.responseTimestamp = mClock.now();
               final Callback callback = fetchState.callback;
               if (callback != null) {
+                copyResponseState(fetchState.delegatedState, fetchState);
                 callback.onResponse(response, responseLength);
               }
             }
@@ -420,12 +626,23 @@ public class PriorityNetworkFetcher<FETCH_STATE extends FetchState>
             }
           };
       fetchState.attemptCount++;
+      // retries resume the bytes NetworkFetchProducer received from the previous attempts
+      fetchState.delegatedState.setRequestBytesRange(fetchState.getRequestBytesRange());
+      fetchState.delegatedState.setRequestIfRange(fetchState.getRequestIfRange());
       mDelegate.fetch(fetchState.delegatedState, callbackWrapper);
     } catch (Exception e) {
       removeFromQueue(fetchState, "FAIL");
     }
   }
 
+  /** Passes what the delegate learnt from the response to the state NetworkFetchProducer reads. */
+  private static void copyResponseState(FetchState from, FetchState to) {
+    to.setResponseBytesRange(from.getResponseBytesRange());
+    to.setOnNewResultStatusFlags(from.getOnNewResultStatusFlags());
+    to.setResponseETag(from.getResponseETag());
+    to.setResponseLastModified(from.getResponseLastModified());
+  }
+
   private void changePriorityInDelayedQueue(
       PriorityNetworkFetcher.PriorityFetchState<FETCH_STATE> fetchState) {
     final boolean existed = mDelayedQueue.remove(fetchState);
@@ -443,7 +660,14 @@ public class PriorityNetworkFetcher<FETCH_STATE extends FetchState>
       final boolean existed =
           isNewHiPri ? mLowPriQueue.remove(fetchState) : mHiPriQueue.remove(fetchState);
       if (!existed) {
-        changePriorityInDelayedQueue(fetchState);
+        // the priority may have changed within the queue, e.g. from low to medium
+        final boolean isQueued =
+            isNewHiPri
+                ? mHiPriQueue.updatePriority(fetchState)
+                : mLowPriQueue.updatePriority(fetchState);
+        if (!isQueued) {
+          changePriorityInDelayedQueue(fetchState);
+        }
         return;
       }
 
@@ -455,6 +679,13 @@ public class PriorityNetworkFetcher<FETCH_STATE extends FetchState>
     dequeueIfAvailableSlots();
   }
 
+  private void removeFromPriorityQueues(
+      PriorityNetworkFetcher.PriorityFetchState<FETCH_STATE> fetchState) {
+    if (!mHiPriQueue.remove(fetchState)) {
+      mLowPriQueue.remove(fetchState);
+    }
+  }
+
   private void putInQueue(
       PriorityNetworkFetcher.PriorityFetchState<FETCH_STATE> entry, boolean isHiPri) {
     if (isHiPri) {
@@ -470,17 +701,17 @@ public class PriorityNetworkFetcher<FETCH_STATE extends FetchState>
 
   @VisibleForTesting
   List<PriorityNetworkFetcher.PriorityFetchState<FETCH_STATE>> getHiPriQueue() {
-    return mHiPriQueue;
+    return mHiPriQueue.toList();
   }
 
   @VisibleForTesting
   List<PriorityNetworkFetcher.PriorityFetchState<FETCH_STATE>> getLowPriQueue() {
-    return mLowPriQueue;
+    return mLowPriQueue.toList();
   }
 
   @VisibleForTesting
   List<PriorityNetworkFetcher.PriorityFetchState<FETCH_STATE>> getDelayedQeueue() {
-    return mDelayedQueue;
+    return mDelayedQueue.toList();
   }
 
   @VisibleForTesting
@@ -503,6 +734,7 @@ public class PriorityNetworkFetcher<FETCH_STATE extends FetchState>
 
     @Nullable NetworkFetcher.Callback callback;
     long dequeuedTimestamp;
+    long responseTimestamp;
     int requeueCount = 0;
     int attemptCount = 0;
 
@@ -515,6 +747,15 @@ public class PriorityNetworkFetcher<FETCH_STATE extends FetchState>
     /** True if image request priority was high when it was started */
     final boolean isInitialPriorityHigh;
 
+    /** The queue this request is waiting in, and its position there; see PriorityFetchQueue */
+    @Nullable PriorityFetchQueue<FETCH_STATE> queue;
+
+    @Nullable PriorityFetchState<FETCH_STATE> queuePrevious;
+    @Nullable PriorityFetchState<FETCH_STATE> queueNext;
+    int queueHeapIndex = -1;
+    long queueSequence;
+    Priority queuePriority = Priority.LOW;
+
     private PriorityFetchState(
         Consumer<EncodedImage> consumer,
         ProducerContext producerContext,
@@ -597,6 +838,13 @@ public class PriorityNetworkFetcher<FETCH_STATE extends FetchState>
     extras.put("request_initial_priority_is_high", "" + fetchState.isInitialPriorityHigh);
     extras.put("currently_fetching_size", "" + fetchState.currentlyFetchingCountWhenCreated);
     extras.put("delay_count", "" + fetchState.delayCount);
+    if (mConcurrencyLimiter != null) {
+      extras.put("concurrency_limit", "" + mConcurrencyLimiter.getLimit());
+      extras.put(
+          "concurrency_limit_throughput",
+          "" + (long) mConcurrencyLimiter.getThroughputBytesPerSecond());
+      extras.put("concurrency_limit_ttfb", "" + (long) mConcurrencyLimiter.getShortTtfbMs());
+    }
 
     return extras;
   }
@@ -111,7 +111,15 @@ public class ResizeAndRotateProducer implements Producer<EncodedImage> {
           new JobScheduler.JobRunnable() {
             @Override
             public void run(@Nullable EncodedImage encodedImage, @Status int status) {
-              if (encodedImage != null) {
+              final ExpiredRequestException expiredException =
+                  encodedImage != null
+                      ? BaseProducerContext.checkExpiredWork(mProducerContext, PRODUCER_NAME)
+                      : null;
+              if (expiredException != null) {
+                // the later results of the input producer are ignored
+                mIsCancelled = true;
+                getConsumer().onFailure(expiredException);
+              } else if (encodedImage != null) {
                 doTransform(
                     encodedImage,
                     status,
@@ -123,6 +123,12 @@ public class ImageRequest {
 
   private final int mDelayMs;
 
+  /** Uptime after which the image is not needed. */
+  private final long mDeadlineMs;
+
+  /** How long the request may keep running while no visible consumer needs it. */
+  private final int mStalenessBudgetMs;
+
   public static @Nullable ImageRequest fromFile(@Nullable File file) {
     return (file == null) ? null : ImageRequest.fromUri(UriUtil.getUriForFile(file));
   }
@@ -175,6 +181,9 @@ public class ImageRequest {
     mResizingAllowedOverride = builder.getResizingAllowedOverride();
 
     mDelayMs = builder.getDelayMs();
+
+    mDeadlineMs = builder.getDeadlineMs();
+    mStalenessBudgetMs = builder.getStalenessBudgetMs();
   }
 
   public CacheChoice getCacheChoice() {
@@ -269,6 +278,25 @@ public class ImageRequest {
     return mDelayMs;
   }
 
+  /**
+   * Returns the time, in {@link android.os.SystemClock#uptimeMillis()}, after which the image is
+   * no longer needed, or 0 if there is no deadline.
+   *
+   * <p>Producers check it between their stages and abandon the work of expired requests. Like the
+   * staleness budget, it does not change the image and is not part of {@link #equals}.
+   */
+  public long getDeadlineMs() {
+    return mDeadlineMs;
+  }
+
+  /**
+   * Returns how long the request may keep running while it is stale, i.e. cancelled or not of
+   * {@link Priority#HIGH} priority, or 0 if there is no staleness budget.
+   */
+  public int getStalenessBudgetMs() {
+    return mStalenessBudgetMs;
+  }
+
   public synchronized File getSourceFile() {
     if (mSourceFile == null) {
       Preconditions.checkNotNull(mSourceUri.getPath());
@@ -438,6 +466,8 @@ public class ImageRequest {
         .add("isMemoryCacheEnabled", mIsMemoryCacheEnabled)
         .add("decodePrefetches", mDecodePrefetches)
         .add("delayMs", mDelayMs)
+        .add("deadlineMs", mDeadlineMs)
+        .add("stalenessBudgetMs", mStalenessBudgetMs)
         .toString();
   }
 
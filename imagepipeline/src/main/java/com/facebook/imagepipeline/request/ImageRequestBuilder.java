@@ -48,6 +48,8 @@ public class ImageRequestBuilder {
   private @Nullable BytesRange mBytesRange = null;
   private @Nullable Boolean mResizingAllowedOverride = null;
   private int mDelayMs;
+  private long mDeadlineMs;
+  private int mStalenessBudgetMs;
 
   /**
    * Creates a new request builder instance. The setting will be done according to the source type.
@@ -102,7 +104,9 @@ public class ImageRequestBuilder {
         .setRequestListener(imageRequest.getRequestListener())
         .setRotationOptions(imageRequest.getRotationOptions())
         .setShouldDecodePrefetches(imageRequest.shouldDecodePrefetches())
-        .setDelayMs(imageRequest.getDelayMs());
+        .setDelayMs(imageRequest.getDelayMs())
+        .setDeadlineMs(imageRequest.getDeadlineMs())
+        .setStalenessBudgetMs(imageRequest.getStalenessBudgetMs());
   }
 
   public static void addCustomUriNetworkScheme(String scheme) {
@@ -438,6 +442,34 @@ public class ImageRequestBuilder {
     return this;
   }
 
+  public long getDeadlineMs() {
+    return mDeadlineMs;
+  }
+
+  /**
+   * Sets the time, in {@link android.os.SystemClock#uptimeMillis()}, after which the image is no
+   * longer needed. The producers abandon the work of the request at their next stage once it is
+   * passed. 0 means no deadline.
+   */
+  public ImageRequestBuilder setDeadlineMs(long deadlineMs) {
+    this.mDeadlineMs = deadlineMs;
+    return this;
+  }
+
+  public int getStalenessBudgetMs() {
+    return mStalenessBudgetMs;
+  }
+
+  /**
+   * Sets how long the request may keep running while it is stale, i.e. cancelled or not of {@link
+   * Priority#HIGH} priority, as for a view that scrolled off-screen. The producers abandon the work
+   * of the request at their next stage once it is exceeded. 0 means no staleness budget.
+   */
+  public ImageRequestBuilder setStalenessBudgetMs(int stalenessBudgetMs) {
+    this.mStalenessBudgetMs = stalenessBudgetMs;
+    return this;
+  }
+
   /** An exception class for builder methods. */
   public static class BuilderException extends RuntimeException {
     public BuilderException(String message) {
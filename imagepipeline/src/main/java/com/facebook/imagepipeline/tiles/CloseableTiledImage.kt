@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.tiles
+
+import android.graphics.Bitmap
+import android.graphics.Rect
+import com.facebook.common.references.CloseableReference
+import com.facebook.imagepipeline.image.DefaultCloseableImage
+import com.facebook.imageutils.BitmapUtil
+import javax.annotation.concurrent.GuardedBy
+
+/**
+ * Image too large to be decoded at full resolution, decoded tile by tile instead.
+ *
+ * It holds a downsampled preview of the whole image and the [RegionDecoderPool] its tiles are
+ * decoded with, see [TiledImageDrawable]. The tiles themselves are cached separately, under their
+ * [TileCacheKey].
+ *
+ * @param sourceString the source of the image, which the tile cache keys are derived from
+ * @param layout the tile grids of the image
+ * @param bitmapConfig the config of the preview and of the tiles
+ * @param preview the preview, decoded at [TileLayout.maxSampleSize]
+ */
+class CloseableTiledImage(
+    private val regionDecoderPool: RegionDecoderPool,
+    val sourceString: String,
+    val layout: TileLayout,
+    val bitmapConfig: Bitmap.Config,
+    preview: CloseableReference<Bitmap>
+) : DefaultCloseableImage() {
+
+  @GuardedBy("this") private var previewReference: CloseableReference<Bitmap>? = preview
+
+  private val sizeInBytes = BitmapUtil.getSizeInBytes(preview.get()) + regionDecoderPool.encodedSize
+
+  /** Returns the preview, or null once the image is closed. */
+  @Synchronized fun getPreview(): Bitmap? = previewReference?.get()
+
+  fun getTileCacheKey(sampleSize: Int, column: Int, row: Int): TileCacheKey =
+      TileCacheKey(sourceString, sampleSize, column, row)
+
+  /**
+   * Decodes a tile, blocking while the region decoders are busy.
+   *
+   * @return the tile bitmap, or null if the image is closed or the tile could not be decoded
+   */
+  fun decodeTile(key: TileCacheKey): CloseableReference<Bitmap>? {
+    val tileRect = Rect()
+    layout.getTileRect(key.sampleSize, key.column, key.row, tileRect)
+    return regionDecoderPool.decodeRegion(tileRect, key.sampleSize, bitmapConfig)
+  }
+
+  /** The preview and the encoded image, the tiles are accounted for by their own cache entries. */
+  override fun getSizeInBytes(): Int = sizeInBytes
+
+  override fun getWidth(): Int = layout.width
+
+  override fun getHeight(): Int = layout.height
+
+  override fun close() {
+    val reference: CloseableReference<Bitmap>?
+    synchronized(this) {
+      reference = previewReference
+      previewReference = null
+    }
+    if (reference != null) {
+      CloseableReference.closeSafely(reference)
+      regionDecoderPool.close()
+    }
+  }
+
+  @Synchronized override fun isClosed(): Boolean = previewReference == null
+}
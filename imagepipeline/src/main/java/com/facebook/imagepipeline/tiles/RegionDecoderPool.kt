@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.tiles
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.graphics.BitmapRegionDecoder
+import android.graphics.Rect
+import com.facebook.common.logging.FLog
+import com.facebook.common.references.CloseableReference
+import com.facebook.imagepipeline.bitmaps.SimpleBitmapReleaser
+import com.facebook.imagepipeline.image.EncodedImage
+import com.facebook.imagepipeline.memory.BitmapPool
+import com.facebook.imageutils.BitmapUtil
+import java.io.Closeable
+import java.io.IOException
+import java.util.ArrayDeque
+import java.util.concurrent.Semaphore
+import javax.annotation.concurrent.GuardedBy
+
+/**
+ * Long-lived [BitmapRegionDecoder]s of one encoded image.
+ *
+ * A region decoder parses the image once and then decodes any region of it, but it decodes one
+ * region at a time. The pool creates up to [maxDecoders] of them as regions are decoded in
+ * parallel, and keeps them until it is closed, instead of creating one per decoded region. The
+ * decoded bitmaps are taken from [bitmapPool].
+ *
+ * @param encodedImage the image to decode, owned by the pool
+ */
+class RegionDecoderPool(
+    private val encodedImage: EncodedImage,
+    private val bitmapPool: BitmapPool,
+    private val maxDecoders: Int = DEFAULT_MAX_DECODERS
+) : Closeable {
+
+  private val decoderPermits = Semaphore(maxDecoders)
+
+  @GuardedBy("this") private val idleDecoders = ArrayDeque<BitmapRegionDecoder>()
+
+  @GuardedBy("this") private var isClosed = false
+
+  /** Number of region decoders created, at most [maxDecoders] unless a creation failed. */
+  @get:Synchronized
+  var createdDecoderCount = 0
+    private set
+
+  /** Size of the encoded image the region decoders are created from. */
+  val encodedSize: Int = encodedImage.size
+
+  /**
+   * Decodes a region of the image, waiting for a region decoder if they are all busy.
+   *
+   * @param region the region to decode, in image pixels
+   * @param sampleSize the sample size to decode the region at
+   * @return the decoded bitmap, or null if the pool is closed or the region could not be decoded
+   */
+  fun decodeRegion(
+      region: Rect,
+      sampleSize: Int,
+      bitmapConfig: Bitmap.Config
+  ): CloseableReference<Bitmap>? {
+    try {
+      decoderPermits.acquire()
+    } catch (e: InterruptedException) {
+      Thread.currentThread().interrupt()
+      return null
+    }
+    try {
+      val decoder = acquireDecoder() ?: return null
+      try {
+        return decodeRegion(decoder, region, sampleSize, bitmapConfig)
+      } finally {
+        releaseDecoder(decoder)
+      }
+    } finally {
+      decoderPermits.release()
+    }
+  }
+
+  @Synchronized fun isClosed(): Boolean = isClosed
+
+  /** Closes the encoded image and recycles the idle region decoders, the busy ones once done. */
+  override fun close() {
+    val decoders: List<BitmapRegionDecoder>
+    synchronized(this) {
+      if (isClosed) {
+        return
+      }
+      isClosed = true
+      decoders = ArrayList(idleDecoders)
+      idleDecoders.clear()
+    }
+    decoders.forEach { it.recycle() }
+    EncodedImage.closeSafely(encodedImage)
+  }
+
+  private fun acquireDecoder(): BitmapRegionDecoder? {
+    val inputStream =
+        synchronized(this) {
+          if (isClosed) {
+            return null
+          }
+          idleDecoders.pollFirst()?.let {
+            return it
+          }
+          createdDecoderCount++
+          encodedImage.inputStream
+        } ?: return null
+    // the decoder parses the image, which is not done under the lock
+    return try {
+      inputStream.use { BitmapRegionDecoder.newInstance(it, false) }
+    } catch (e: IOException) {
+      FLog.e(TAG, e, "Could not create a region decoder")
+      null
+    }
+  }
+
+  private fun releaseDecoder(decoder: BitmapRegionDecoder) {
+    synchronized(this) {
+      if (!isClosed) {
+        idleDecoders.addLast(decoder)
+        return
+      }
+    }
+    decoder.recycle()
+  }
+
+  private fun decodeRegion(
+      decoder: BitmapRegionDecoder,
+      region: Rect,
+      sampleSize: Int,
+      bitmapConfig: Bitmap.Config
+  ): CloseableReference<Bitmap>? {
+    val targetWidth = maxOf(region.width() / sampleSize, 1)
+    val targetHeight = maxOf(region.height() / sampleSize, 1)
+    val bitmapToReuse: Bitmap? =
+        bitmapPool.get(BitmapUtil.getSizeInByteForBitmap(targetWidth, targetHeight, bitmapConfig))
+    val options = BitmapFactory.Options()
+    options.inSampleSize = sampleSize
+    options.inPreferredConfig = bitmapConfig
+    options.inMutable = true
+    options.inBitmap = bitmapToReuse
+    val decodedBitmap =
+        try {
+          bitmapToReuse?.reconfigure(targetWidth, targetHeight, bitmapConfig)
+          decoder.decodeRegion(region, options)
+        } catch (e: RuntimeException) {
+          FLog.e(TAG, e, "Could not decode region %s", region)
+          null
+        }
+    if (bitmapToReuse != null && bitmapToReuse === decodedBitmap) {
+      return CloseableReference.of(decodedBitmap, bitmapPool)
+    }
+    bitmapToReuse?.let { bitmapPool.release(it) }
+    return decodedBitmap?.let { CloseableReference.of(it, SimpleBitmapReleaser.getInstance()) }
+  }
+
+  companion object {
+    private const val TAG = "RegionDecoderPool"
+
+    @JvmField
+    val DEFAULT_MAX_DECODERS: Int = Runtime.getRuntime().availableProcessors().coerceIn(1, 4)
+  }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.tiles
+
+import android.net.Uri
+import com.facebook.cache.common.CacheKey
+
+/**
+ * Bitmap memory cache key of one tile of a [CloseableTiledImage].
+ *
+ * @param sourceString the source of the tiled image
+ * @param sampleSize the sample size the tile is decoded at, a power of two
+ * @param column the column of the tile in the grid of the sample size
+ * @param row the row of the tile in the grid of the sample size
+ */
+@Suppress("KtDataClass")
+data class TileCacheKey(
+    val sourceString: String,
+    val sampleSize: Int,
+    val column: Int,
+    val row: Int,
+) : CacheKey {
+
+  /** The tile that covers this one at twice the sample size. */
+  fun getCoarserTileKey(): TileCacheKey =
+      TileCacheKey(sourceString, sampleSize * 2, column / 2, row / 2)
+
+  override fun containsUri(uri: Uri): Boolean = sourceString.contains(uri.toString())
+
+  override fun getUriString(): String = sourceString
+
+  override fun isResourceIdForDebugging(): Boolean = false
+}
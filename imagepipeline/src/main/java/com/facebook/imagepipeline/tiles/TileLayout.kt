@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.tiles
+
+import android.graphics.Rect
+
+/**
+ * Grids of tiles of an image, one per sample size.
+ *
+ * A tile of sample size `s` covers `tileSize * s` image pixels square and is decoded to a bitmap of
+ * at most `tileSize` pixels square. The tiles of the last column and row are cut at the image
+ * edges. Sample sizes are powers of two up to [maxSampleSize], the sample size of the preview that
+ * covers the whole image.
+ *
+ * @param width the width of the image
+ * @param height the height of the image
+ * @param tileSize the size of the tile bitmaps, in pixels
+ * @param maxSampleSize the sample size of the preview
+ */
+class TileLayout(val width: Int, val height: Int, val tileSize: Int, val maxSampleSize: Int) {
+
+  init {
+    require(width > 0 && height > 0) { "Invalid image size: $width x $height" }
+    require(tileSize > 0) { "Invalid tile size: $tileSize" }
+    require(maxSampleSize > 0 && maxSampleSize and (maxSampleSize - 1) == 0) {
+      "The max sample size must be a power of two: $maxSampleSize"
+    }
+  }
+
+  /**
+   * Returns the sample size to draw the image at, the largest one whose tiles are not upscaled.
+   *
+   * @param scale the screen pixels per image pixel
+   */
+  fun getSampleSizeForScale(scale: Float): Int {
+    var sampleSize = 1
+    while (sampleSize < maxSampleSize && sampleSize * 2 * scale <= 1f) {
+      sampleSize *= 2
+    }
+    return sampleSize
+  }
+
+  fun getColumnCount(sampleSize: Int): Int = divideRoundingUp(width, tileSize * sampleSize)
+
+  fun getRowCount(sampleSize: Int): Int = divideRoundingUp(height, tileSize * sampleSize)
+
+  /** Sets [outRect] to the image pixels covered by the tile. */
+  fun getTileRect(sampleSize: Int, column: Int, row: Int, outRect: Rect) {
+    val span = tileSize * sampleSize
+    outRect.set(
+        column * span,
+        row * span,
+        minOf((column + 1) * span, width),
+        minOf((row + 1) * span, height))
+  }
+
+  /**
+   * Sets [outTileRange] to the columns, from left inclusive to right exclusive, and the rows, from
+   * top inclusive to bottom exclusive, of the tiles that intersect [visibleRect].
+   *
+   * @param visibleRect the visible image pixels
+   * @return false if no tile is visible
+   */
+  fun getVisibleTileRange(visibleRect: Rect, sampleSize: Int, outTileRange: Rect): Boolean {
+    val left = maxOf(visibleRect.left, 0)
+    val top = maxOf(visibleRect.top, 0)
+    val right = minOf(visibleRect.right, width)
+    val bottom = minOf(visibleRect.bottom, height)
+    if (left >= right || top >= bottom) {
+      outTileRange.setEmpty()
+      return false
+    }
+    val span = tileSize * sampleSize
+    outTileRange.set(
+        left / span, top / span, divideRoundingUp(right, span), divideRoundingUp(bottom, span))
+    return true
+  }
+
+  companion object {
+    /**
+     * Returns the smallest power of two that downsamples the image to at most [maxPreviewSize]
+     * pixels on its longest side.
+     */
+    @JvmStatic
+    fun getPreviewSampleSize(width: Int, height: Int, maxPreviewSize: Int): Int {
+      val longestSide = maxOf(width, height)
+      var sampleSize = 1
+      while (longestSide / sampleSize > maxPreviewSize) {
+        sampleSize *= 2
+      }
+      return sampleSize
+    }
+
+    private fun divideRoundingUp(value: Int, divisor: Int): Int = (value + divisor - 1) / divisor
+  }
+}
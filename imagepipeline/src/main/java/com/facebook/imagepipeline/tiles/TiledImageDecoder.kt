@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.tiles
+
+import android.graphics.Rect
+import android.media.ExifInterface
+import com.facebook.imagepipeline.common.ImageDecodeOptions
+import com.facebook.imagepipeline.decoder.ImageDecoder
+import com.facebook.imagepipeline.image.CloseableImage
+import com.facebook.imagepipeline.image.EncodedImage
+import com.facebook.imagepipeline.image.QualityInfo
+import com.facebook.imagepipeline.memory.BitmapPool
+
+/**
+ * Decodes very large images to a [CloseableTiledImage], which only holds a downsampled preview and
+ * decodes the tiles shown by a [TiledImageDrawable] on demand.
+ *
+ * Images with fewer than [minTiledPixelCount] pixels, partial images, rotated images and images the
+ * platform region decoder does not support are decoded by [fallbackDecoder]. Set it as the
+ * [ImageDecodeOptions.customImageDecoder] of the requests of a zoomable viewer, together with a
+ * [TiledImageDrawableFactory].
+ *
+ * @param bitmapPool the pool of the preview and tile bitmaps
+ * @param fallbackDecoder the decoder of the images that are not tiled
+ * @param tileSize the size of the tile bitmaps, in pixels
+ * @param maxPreviewSize the max size of the preview, in pixels
+ */
+class TiledImageDecoder
+@JvmOverloads
+constructor(
+    private val bitmapPool: BitmapPool,
+    private val fallbackDecoder: ImageDecoder,
+    private val minTiledPixelCount: Long = DEFAULT_MIN_TILED_PIXEL_COUNT,
+    private val tileSize: Int = DEFAULT_TILE_SIZE,
+    private val maxPreviewSize: Int = DEFAULT_MAX_PREVIEW_SIZE,
+    private val maxRegionDecoders: Int = RegionDecoderPool.DEFAULT_MAX_DECODERS
+) : ImageDecoder {
+
+  override fun decode(
+      encodedImage: EncodedImage,
+      length: Int,
+      qualityInfo: QualityInfo,
+      options: ImageDecodeOptions
+  ): CloseableImage? {
+    if (shouldTile(encodedImage, qualityInfo)) {
+      decodeTiled(encodedImage, options)?.let {
+        return it
+      }
+    }
+    return fallbackDecoder.decode(encodedImage, length, qualityInfo, options)
+  }
+
+  private fun shouldTile(encodedImage: EncodedImage, qualityInfo: QualityInfo): Boolean =
+      qualityInfo.isOfFullQuality &&
+          encodedImage.width > 0 &&
+          encodedImage.height > 0 &&
+          encodedImage.width.toLong() * encodedImage.height >= minTiledPixelCount &&
+          encodedImage.rotationAngle <= 0 &&
+          encodedImage.exifOrientation <= ExifInterface.ORIENTATION_NORMAL
+
+  private fun decodeTiled(
+      encodedImage: EncodedImage,
+      options: ImageDecodeOptions
+  ): CloseableTiledImage? {
+    val width = encodedImage.width
+    val height = encodedImage.height
+    val regionDecoderPool =
+        RegionDecoderPool(
+            EncodedImage.cloneOrNull(encodedImage) ?: return null, bitmapPool, maxRegionDecoders)
+    val layout =
+        TileLayout(
+            width, height, tileSize, TileLayout.getPreviewSampleSize(width, height, maxPreviewSize))
+    val preview =
+        regionDecoderPool.decodeRegion(
+            Rect(0, 0, width, height), layout.maxSampleSize, options.bitmapConfig)
+    if (preview == null) {
+      regionDecoderPool.close()
+      return null
+    }
+    val sourceString =
+        encodedImage.source ?: "tiled_image_" + System.identityHashCode(regionDecoderPool)
+    return CloseableTiledImage(
+        regionDecoderPool, sourceString, layout, options.bitmapConfig, preview)
+  }
+
+  companion object {
+    const val DEFAULT_MIN_TILED_PIXEL_COUNT = 4096L * 4096L
+    const val DEFAULT_TILE_SIZE = 512
+    const val DEFAULT_MAX_PREVIEW_SIZE = 1024
+  }
+}
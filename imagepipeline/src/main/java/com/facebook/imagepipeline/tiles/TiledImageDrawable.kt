@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.tiles
+
+import android.graphics.Bitmap
+import android.graphics.Canvas
+import android.graphics.ColorFilter
+import android.graphics.Matrix
+import android.graphics.Paint
+import android.graphics.PixelFormat
+import android.graphics.Rect
+import android.graphics.RectF
+import android.graphics.drawable.Drawable
+import android.os.Handler
+import android.os.Looper
+import com.facebook.cache.common.CacheKey
+import com.facebook.common.references.CloseableReference
+import com.facebook.drawable.base.DrawableWithCaches
+import com.facebook.imagepipeline.cache.MemoryCache
+import com.facebook.imagepipeline.image.CloseableImage
+import com.facebook.imagepipeline.image.CloseableStaticBitmap
+import com.facebook.imagepipeline.image.ImmutableQualityInfo
+import com.facebook.imagepipeline.instrumentation.FrescoInstrumenter
+import java.util.concurrent.Executor
+import javax.annotation.concurrent.GuardedBy
+import kotlin.math.ceil
+import kotlin.math.hypot
+
+/**
+ * Draws a [CloseableTiledImage] with the tiles of the sample size that matches the scale of the
+ * canvas, e.g. as zoomed by a zoomable controller.
+ *
+ * Only the tiles that intersect the canvas clip are drawn. The missing ones are decoded in parallel
+ * on [decodeExecutor] and cached in [memoryCache], meanwhile their area shows the tile of twice the
+ * sample size if it is cached, or the preview. Once the scale or the clip changes, the tiles that
+ * are no longer visible are released and their pending decodes are skipped.
+ *
+ * @param memoryCache the bitmap memory cache the tiles are cached in
+ * @param decodeExecutor the executor the tiles are decoded on
+ */
+class TiledImageDrawable(
+    private val image: CloseableTiledImage,
+    private val memoryCache: MemoryCache<CacheKey, CloseableImage>,
+    private val decodeExecutor: Executor
+) : Drawable(), DrawableWithCaches {
+
+  private val paint = Paint(Paint.FILTER_BITMAP_FLAG or Paint.DITHER_FLAG)
+  private val canvasMatrix = Matrix()
+  private val matrixValues = FloatArray(9)
+  private val clipRect = Rect()
+  private val visibleRect = Rect()
+  private val tileRange = Rect()
+  private val tileRect = Rect()
+  private val dstRect = RectF()
+  private val mainHandler = Handler(Looper.getMainLooper())
+  private val invalidateRunnable = Runnable { invalidateSelf() }
+
+  /** Tiles drawn by the last frame, kept so that they are not evicted while shown. */
+  private var drawnTiles: MutableMap<TileCacheKey, CloseableReference<CloseableImage>> = HashMap()
+  private var nextDrawnTiles: MutableMap<TileCacheKey, CloseableReference<CloseableImage>> =
+      HashMap()
+
+  /** Tiles decoded since the last frame. */
+  @GuardedBy("this")
+  private val decodedTiles: MutableMap<TileCacheKey, CloseableReference<CloseableImage>> =
+      HashMap()
+
+  /** Tiles missing from the last frame, the decodes of the other ones are skipped. */
+  @GuardedBy("this") private val missingTiles: MutableSet<TileCacheKey> = HashSet()
+
+  @GuardedBy("this") private val pendingTiles: MutableSet<TileCacheKey> = HashSet()
+
+  /** Number of tiles decoded by this drawable. */
+  @get:Synchronized
+  var decodedTileCount = 0
+    private set
+
+  override fun getIntrinsicWidth(): Int = image.width
+
+  override fun getIntrinsicHeight(): Int = image.height
+
+  override fun draw(canvas: Canvas) {
+    val bounds = bounds
+    val preview = image.getPreview()
+    if (preview == null || bounds.isEmpty || !canvas.getClipBounds(clipRect)) {
+      return
+    }
+    canvas.drawBitmap(preview, null, bounds, paint)
+
+    val layout = image.layout
+    val boundsScaleX = bounds.width().toFloat() / layout.width
+    val boundsScaleY = bounds.height().toFloat() / layout.height
+    visibleRect.set(
+        ((clipRect.left - bounds.left) / boundsScaleX).toInt(),
+        ((clipRect.top - bounds.top) / boundsScaleY).toInt(),
+        ceil((clipRect.right - bounds.left) / boundsScaleX).toInt(),
+        ceil((clipRect.bottom - bounds.top) / boundsScaleY).toInt())
+    val sampleSize = layout.getSampleSizeForScale(getCanvasScale(canvas) * boundsScaleX)
+    val missing = HashSet<TileCacheKey>()
+    if (sampleSize < layout.maxSampleSize &&
+        layout.getVisibleTileRange(visibleRect, sampleSize, tileRange)) {
+      takeDecodedTiles()
+      for (row in tileRange.top until tileRange.bottom) {
+        for (column in tileRange.left until tileRange.right) {
+          val key = image.getTileCacheKey(sampleSize, column, row)
+          setDstRect(key, bounds, boundsScaleX, boundsScaleY)
+          val tile = getTile(key)
+          if (tile != null) {
+            drawTile(canvas, tile)
+            continue
+          }
+          missing.add(key)
+          val coarserKey = key.getCoarserTileKey()
+          if (coarserKey.sampleSize < layout.maxSampleSize) {
+            getTile(coarserKey)?.let {
+              canvas.save()
+              canvas.clipRect(dstRect)
+              setDstRect(coarserKey, bounds, boundsScaleX, boundsScaleY)
+              drawTile(canvas, it)
+              canvas.restore()
+            }
+          }
+        }
+      }
+    }
+    closeTiles(drawnTiles)
+    val tiles = drawnTiles
+    drawnTiles = nextDrawnTiles
+    nextDrawnTiles = tiles
+    requestTiles(missing)
+  }
+
+  /** Releases the tiles, they are taken from the memory cache or decoded again once drawn. */
+  override fun dropCaches() {
+    closeTiles(drawnTiles)
+    synchronized(this) {
+      missingTiles.clear()
+      closeTiles(decodedTiles)
+    }
+  }
+
+  override fun setAlpha(alpha: Int) {
+    paint.alpha = alpha
+    invalidateSelf()
+  }
+
+  override fun setColorFilter(colorFilter: ColorFilter?) {
+    paint.colorFilter = colorFilter
+    invalidateSelf()
+  }
+
+  override fun getOpacity(): Int = PixelFormat.TRANSLUCENT
+
+  private fun getCanvasScale(canvas: Canvas): Float {
+    @Suppress("DEPRECATION") canvas.getMatrix(canvasMatrix)
+    canvasMatrix.getValues(matrixValues)
+    return hypot(matrixValues[Matrix.MSCALE_X], matrixValues[Matrix.MSKEW_Y])
+  }
+
+  private fun setDstRect(key: TileCacheKey, bounds: Rect, scaleX: Float, scaleY: Float) {
+    image.layout.getTileRect(key.sampleSize, key.column, key.row, tileRect)
+    dstRect.set(
+        bounds.left + tileRect.left * scaleX,
+        bounds.top + tileRect.top * scaleY,
+        bounds.left + tileRect.right * scaleX,
+        bounds.top + tileRect.bottom * scaleY)
+  }
+
+  private fun drawTile(canvas: Canvas, tile: CloseableReference<CloseableImage>) {
+    val bitmap: Bitmap = (tile.get() as CloseableStaticBitmap).underlyingBitmap
+    canvas.drawBitmap(bitmap, null, dstRect, paint)
+  }
+
+  /** Returns a tile kept for the next frame, or null if it is neither drawn nor cached. */
+  private fun getTile(key: TileCacheKey): CloseableReference<CloseableImage>? {
+    nextDrawnTiles[key]?.let {
+      return it
+    }
+    val tile = drawnTiles.remove(key) ?: memoryCache[key] ?: return null
+    nextDrawnTiles[key] = tile
+    return tile
+  }
+
+  private fun takeDecodedTiles() {
+    synchronized(this) {
+      for ((key, tile) in decodedTiles) {
+        drawnTiles.put(key, tile)?.close()
+      }
+      decodedTiles.clear()
+    }
+  }
+
+  private fun requestTiles(missing: Set<TileCacheKey>) {
+    val keysToDecode = ArrayList<TileCacheKey>()
+    synchronized(this) {
+      missingTiles.clear()
+      missingTiles.addAll(missing)
+      for (key in missing) {
+        if (pendingTiles.add(key)) {
+          keysToDecode.add(key)
+        }
+      }
+    }
+    for (key in keysToDecode) {
+      decodeExecutor.execute(
+          FrescoInstrumenter.decorateRunnable(
+              Runnable { decodeTile(key) }, "TiledImageDrawable_decodeTile"))
+    }
+  }
+
+  private fun decodeTile(key: TileCacheKey) {
+    var tile: CloseableReference<CloseableImage>? = null
+    try {
+      synchronized(this) {
+        // the tile is not shown anymore
+        if (!missingTiles.contains(key)) {
+          return
+        }
+      }
+      tile = memoryCache[key] ?: decodeAndCacheTile(key) ?: return
+    } finally {
+      synchronized(this) {
+        pendingTiles.remove(key)
+        if (tile != null) {
+          decodedTiles.put(key, tile)?.close()
+        }
+      }
+    }
+    mainHandler.post(invalidateRunnable)
+  }
+
+  private fun decodeAndCacheTile(key: TileCacheKey): CloseableReference<CloseableImage>? {
+    val bitmap = image.decodeTile(key) ?: return null
+    val tile: CloseableReference<CloseableImage> =
+        try {
+          CloseableReference.of<CloseableImage>(
+              CloseableStaticBitmap.of(bitmap, ImmutableQualityInfo.FULL_QUALITY, 0))
+        } finally {
+          bitmap.close()
+        }
+    synchronized(this) { decodedTileCount++ }
+    // a tile the cache rejects is still drawn, the drawable holds it until the next frame
+    return try {
+      memoryCache.cache(key, tile) ?: tile.clone()
+    } finally {
+      tile.close()
+    }
+  }
+
+  private fun closeTiles(tiles: MutableMap<TileCacheKey, CloseableReference<CloseableImage>>) {
+    tiles.values.forEach { it.close() }
+    tiles.clear()
+  }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.tiles
+
+import android.graphics.drawable.Drawable
+import com.facebook.cache.common.CacheKey
+import com.facebook.imagepipeline.cache.MemoryCache
+import com.facebook.imagepipeline.drawable.DrawableFactory
+import com.facebook.imagepipeline.image.CloseableImage
+import java.util.concurrent.Executor
+
+/**
+ * Creates a [TiledImageDrawable] for the images decoded by [TiledImageDecoder].
+ *
+ * @param memoryCache the bitmap memory cache the tiles are cached in
+ * @param decodeExecutor the executor the tiles are decoded on, usually the decode executor of the
+ *   pipeline
+ */
+class TiledImageDrawableFactory(
+    private val memoryCache: MemoryCache<CacheKey, CloseableImage>,
+    private val decodeExecutor: Executor
+) : DrawableFactory {
+
+  override fun supportsImageType(image: CloseableImage): Boolean = image is CloseableTiledImage
+
+  override fun createDrawable(image: CloseableImage): Drawable? =
+      (image as? CloseableTiledImage)?.let { TiledImageDrawable(it, memoryCache, decodeExecutor) }
+}
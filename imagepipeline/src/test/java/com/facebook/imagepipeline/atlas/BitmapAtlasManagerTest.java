@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.atlas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import com.facebook.imagepipeline.memory.BitmapPool;
+import com.facebook.imageutils.BitmapUtil;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import kotlin.Unit;
+import kotlin.jvm.functions.Function1;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class BitmapAtlasManagerTest {
+
+  private static final String TAG = "grid";
+  private static final int CELL_SIZE = 128;
+  private static final int THUMBNAIL_COUNT = 100;
+  private static final int THUMBNAIL_WIDTH = 128;
+  private static final int THUMBNAIL_HEIGHT = 96;
+
+  private static final Function1<Canvas, Unit> NO_OP_WRITE = canvas -> Unit.INSTANCE;
+
+  private BitmapPool mBitmapPool;
+  private BitmapAtlasManager mAtlasManager;
+
+  @Before
+  public void setUp() {
+    mBitmapPool = mock(BitmapPool.class);
+    when(mBitmapPool.get(anyInt()))
+        .thenAnswer(
+            new Answer<Bitmap>() {
+              @Override
+              public Bitmap answer(InvocationOnMock invocation) {
+                int side = (int) Math.sqrt((int) invocation.getArgument(0) / 4);
+                return Bitmap.createBitmap(side, side, Bitmap.Config.ARGB_8888);
+              }
+            });
+    mAtlasManager = new BitmapAtlasManager(mBitmapPool);
+  }
+
+  @Test
+  public void testGridOfThumbnailsSharesAtlasBitmaps() {
+    List<CloseableAtlasBitmap> thumbnails = allocate(TAG, THUMBNAIL_COUNT);
+
+    Set<Bitmap> bitmaps = new HashSet<>();
+    long separateSizeInBytes = 0;
+    for (CloseableAtlasBitmap thumbnail : thumbnails) {
+      bitmaps.add(thumbnail.getAtlasBitmap());
+      separateSizeInBytes +=
+          BitmapUtil.getSizeInByteForBitmap(
+              THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT, Bitmap.Config.ARGB_8888);
+    }
+    // 100 thumbnails take 2 atlases of 8 x 8 cells instead of 100 bitmaps
+    assertEquals(2, bitmaps.size());
+    assertEquals(2, mAtlasManager.getAtlasCount());
+    assertEquals(THUMBNAIL_COUNT, mAtlasManager.getThumbnailCount());
+    assertEquals(2L * 1024 * 1024 * 4, mAtlasManager.getAtlasSizeInBytes());
+    // the atlases hold the unused cells of the last one and the unused rows of the cells
+    assertTrue(mAtlasManager.getAtlasSizeInBytes() < 2 * separateSizeInBytes);
+  }
+
+  @Test
+  public void testThumbnailRegionsDoNotOverlap() {
+    List<CloseableAtlasBitmap> thumbnails = allocate(TAG, 64);
+
+    Set<Rect> regions = new HashSet<>();
+    for (CloseableAtlasBitmap thumbnail : thumbnails) {
+      Rect region = thumbnail.getRegion();
+      assertEquals(THUMBNAIL_WIDTH, region.width());
+      assertEquals(THUMBNAIL_HEIGHT, region.height());
+      assertEquals(0, region.left % CELL_SIZE);
+      assertEquals(0, region.top % CELL_SIZE);
+      assertTrue(regions.add(region));
+    }
+    assertSame(thumbnails.get(0).getAtlasBitmap(), thumbnails.get(63).getAtlasBitmap());
+  }
+
+  @Test
+  public void testTagsUseSeparateAtlases() {
+    CloseableAtlasBitmap first = allocate(TAG, 1).get(0);
+    CloseableAtlasBitmap second = allocate("other", 1).get(0);
+
+    assertNotSame(first.getAtlasBitmap(), second.getAtlasBitmap());
+    assertEquals(2, mAtlasManager.getAtlasCount());
+  }
+
+  @Test
+  public void testClosedCellIsReused() {
+    List<CloseableAtlasBitmap> thumbnails = allocate(TAG, 3);
+    Rect region = thumbnails.get(1).getRegion();
+    thumbnails.get(1).close();
+
+    assertTrue(thumbnails.get(1).isClosed());
+    assertNull(thumbnails.get(1).getAtlasBitmap());
+    assertEquals(region, allocate(TAG, 1).get(0).getRegion());
+    assertEquals(1, mAtlasManager.getAtlasCount());
+  }
+
+  @Test
+  public void testAtlasIsReleasedWithItsLastThumbnail() {
+    List<CloseableAtlasBitmap> thumbnails = allocate(TAG, 2);
+    Bitmap atlasBitmap = thumbnails.get(0).getAtlasBitmap();
+
+    thumbnails.get(0).close();
+    verify(mBitmapPool, never()).release(any(Bitmap.class));
+    thumbnails.get(1).close();
+    verify(mBitmapPool, times(1)).release(atlasBitmap);
+
+    assertEquals(0, mAtlasManager.getAtlasCount());
+    assertEquals(0, mAtlasManager.getAtlasSizeInBytes());
+    assertFalse(allocate(TAG, 1).get(0).isClosed());
+  }
+
+  @Test
+  public void testDrawnAtlasIsNoLongerWritten() {
+    List<CloseableAtlasBitmap> thumbnails = allocate(TAG, 2);
+    assertTrue(thumbnails.get(0).writeCell(NO_OP_WRITE));
+    Bitmap atlasBitmap = thumbnails.get(0).getPublishedAtlasBitmap();
+
+    assertFalse(thumbnails.get(1).writeCell(NO_OP_WRITE));
+    thumbnails.get(1).close();
+    // the free cells of the drawn atlas are not allocated any more
+    CloseableAtlasBitmap next = allocate(TAG, 1).get(0);
+    assertNotSame(atlasBitmap, next.getAtlasBitmap());
+    assertTrue(next.writeCell(NO_OP_WRITE));
+    assertEquals(2, mAtlasManager.getAtlasCount());
+  }
+
+  private List<CloseableAtlasBitmap> allocate(String tag, int count) {
+    List<CloseableAtlasBitmap> thumbnails = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      thumbnails.add(
+          mAtlasManager.allocate(
+              tag, CELL_SIZE, Bitmap.Config.ARGB_8888, THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT));
+    }
+    return thumbnails;
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyBoolean;
+import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.graphics.Bitmap;
+import com.facebook.cache.common.CacheKey;
+import com.facebook.common.references.CloseableReference;
+import com.facebook.imagepipeline.bitmaps.PlatformBitmapFactory;
+import com.facebook.imagepipeline.bitmaps.SimpleBitmapReleaser;
+import com.facebook.imagepipeline.common.ImageDecodeOptions;
+import com.facebook.imagepipeline.common.ResizeOptions;
+import com.facebook.imagepipeline.common.RotationOptions;
+import com.facebook.imagepipeline.image.CloseableImage;
+import com.facebook.imagepipeline.image.CloseableStaticBitmap;
+import com.facebook.imagepipeline.image.ImmutableQualityInfo;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class BitmapMemoryCacheSizeIndexTest {
+
+  private static final String SOURCE = "http://fresco.com/image.jpg";
+  private static final int LARGE_SIZE = 1080;
+  private static final int SMALL_SIZE = 200;
+
+  private MemoryCache<CacheKey, CloseableImage> mMemoryCache;
+  private ImageCacheStatsTracker mImageCacheStatsTracker;
+  private BitmapMemoryCacheKey mLargeKey;
+  private BitmapMemoryCacheKey mSmallKey;
+  private CloseableStaticBitmap mLargeImage;
+
+  @Before
+  public void setUp() {
+    mMemoryCache = mock(MemoryCache.class);
+    mImageCacheStatsTracker = mock(ImageCacheStatsTracker.class);
+    mLargeKey = createKey(LARGE_SIZE);
+    mSmallKey = createKey(SMALL_SIZE);
+    mLargeImage = createImage(LARGE_SIZE);
+    when(mMemoryCache.inspect(mLargeKey)).thenReturn(mLargeImage);
+    when(mMemoryCache.get(mLargeKey))
+        .thenReturn(CloseableReference.<CloseableImage>of(mLargeImage));
+  }
+
+  @Test
+  public void testSmallRequestIsServedFromLargeDecode() {
+    BitmapMemoryCacheSizeIndex sizeIndex = new BitmapMemoryCacheSizeIndex(mImageCacheStatsTracker);
+    sizeIndex.onCached(mLargeKey);
+
+    CloseableReference<CloseableImage> reference =
+        sizeIndex.getFromLarger(mMemoryCache, mSmallKey, false);
+
+    assertSame(mLargeImage, reference.get());
+    assertEquals(1, sizeIndex.getServedFromLargerCount());
+    float scale = SMALL_SIZE / (float) LARGE_SIZE;
+    int savedBytes = (int) (mLargeImage.getSizeInBytes() * scale * scale);
+    assertEquals(savedBytes, sizeIndex.getSavedBitmapBytes());
+    verify(mImageCacheStatsTracker).onBitmapCacheHitFromLarger(mSmallKey, mLargeKey, savedBytes);
+  }
+
+  @Test
+  public void testLargeRequestIsNotServedFromSmallDecode() {
+    BitmapMemoryCacheSizeIndex sizeIndex = new BitmapMemoryCacheSizeIndex(mImageCacheStatsTracker);
+    CloseableStaticBitmap smallImage = createImage(SMALL_SIZE);
+    when(mMemoryCache.inspect(mSmallKey)).thenReturn(smallImage);
+    sizeIndex.onCached(mSmallKey);
+
+    assertNull(sizeIndex.getFromLarger(mMemoryCache, mLargeKey, true));
+    assertNull(sizeIndex.getFromLarger(mMemoryCache, createKey(SMALL_SIZE * 2), true));
+    assertEquals(0, sizeIndex.getServedFromLargerCount());
+  }
+
+  @Test
+  public void testEvictedDecodeIsDropped() {
+    BitmapMemoryCacheSizeIndex sizeIndex = new BitmapMemoryCacheSizeIndex(mImageCacheStatsTracker);
+    sizeIndex.onCached(mLargeKey);
+    when(mMemoryCache.inspect(mLargeKey)).thenReturn(null);
+
+    assertNull(sizeIndex.getFromLarger(mMemoryCache, mSmallKey, true));
+    when(mMemoryCache.inspect(mLargeKey)).thenReturn(mLargeImage);
+    assertNull(sizeIndex.getFromLarger(mMemoryCache, mSmallKey, true));
+    verify(mMemoryCache, never()).get(mLargeKey);
+  }
+
+  @Test
+  public void testLargeDecodeIsDownscaledOffTheUiThread() {
+    PlatformBitmapFactory platformBitmapFactory = mock(PlatformBitmapFactory.class);
+    when(platformBitmapFactory.createScaledBitmap(
+            any(Bitmap.class), anyInt(), anyInt(), anyBoolean()))
+        .thenReturn(
+            CloseableReference.of(
+                Bitmap.createBitmap(SMALL_SIZE, SMALL_SIZE, Bitmap.Config.ARGB_8888),
+                SimpleBitmapReleaser.getInstance()));
+    when(mMemoryCache.cache(eq(mSmallKey), any(CloseableReference.class))).thenReturn(null);
+    BitmapMemoryCacheSizeIndex sizeIndex =
+        new BitmapMemoryCacheSizeIndex(mImageCacheStatsTracker, platformBitmapFactory);
+    sizeIndex.onCached(mLargeKey);
+
+    assertNull(sizeIndex.getFromLarger(mMemoryCache, mSmallKey, false));
+    CloseableReference<CloseableImage> reference =
+        sizeIndex.getFromLarger(mMemoryCache, mSmallKey, true);
+
+    verify(platformBitmapFactory)
+        .createScaledBitmap(mLargeImage.getUnderlyingBitmap(), SMALL_SIZE, SMALL_SIZE, true);
+    assertTrue(reference.get() instanceof CloseableStaticBitmap);
+    assertEquals(SMALL_SIZE, reference.get().getWidth());
+    assertEquals(1, sizeIndex.getDownscaledCount());
+    assertEquals(0, sizeIndex.getSavedBitmapBytes());
+  }
+
+  private static BitmapMemoryCacheKey createKey(int size) {
+    return new BitmapMemoryCacheKey(
+        SOURCE,
+        new ResizeOptions(size, size),
+        RotationOptions.autoRotate(),
+        ImageDecodeOptions.defaults(),
+        null,
+        null);
+  }
+
+  private static CloseableStaticBitmap createImage(int size) {
+    return CloseableStaticBitmap.of(
+        Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888),
+        SimpleBitmapReleaser.getInstance(),
+        ImmutableQualityInfo.FULL_QUALITY,
+        0);
+  }
+}
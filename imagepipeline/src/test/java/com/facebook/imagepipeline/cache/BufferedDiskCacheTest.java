@@ -151,6 +151,15 @@ public class BufferedDiskCacheTest {
     assertSame(mPooledByteBuffer, result.getByteBufferRef().get());
   }
 
+  @Test
+  public void testReportsBytesCopiedThroughStream() throws Exception {
+    when(mFileCache.getResource(eq(mCacheKey))).thenReturn(mBinaryResource);
+    when(mPooledByteBuffer.size()).thenReturn(123);
+    mBufferedDiskCache.get(mCacheKey, mIsCancelled);
+    mReadPriorityExecutor.runUntilIdle();
+    verify(mImageCacheStatsTracker).onDiskCacheRead(mCacheKey, 123, 123);
+  }
+
   @Test
   public void testCacheGetCancellation() throws Exception {
     when(mFileCache.getResource(mCacheKey)).thenReturn(mBinaryResource);
@@ -114,6 +114,20 @@ public class ProgressiveJpegParserTest {
     testFirstNBytes(mJpegBytes, mJpegBytes.length, true, 10, 32844);
   }
 
+  @Test
+  public void testOnRealJpegReceivedInChunks() {
+    int bestScanNumber = 0;
+    for (int n = 1000; n < mJpegBytes.length; n += 1000) {
+      boolean foundNewScan =
+          mProgressiveJpegParser.parseMoreData(
+              buildEncodedImage(new TrivialPooledByteBuffer(Arrays.copyOf(mJpegBytes, n))));
+      assertEquals(foundNewScan, mProgressiveJpegParser.getBestScanNumber() > bestScanNumber);
+      bestScanNumber = mProgressiveJpegParser.getBestScanNumber();
+    }
+    testFirstNBytes(mJpegBytes, mJpegBytes.length, true, 10, 32844);
+    assertTrue(mProgressiveJpegParser.isEndMarkerRead());
+  }
+
   /**
    * Feeds mProgressiveJpegParser with n initial bytes from byteArray and checks that
    *
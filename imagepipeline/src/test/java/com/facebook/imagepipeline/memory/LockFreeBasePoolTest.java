@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+
+import android.util.SparseIntArray;
+import com.facebook.common.memory.MemoryTrimmableRegistry;
+import com.facebook.imagepipeline.memory.BasePool.PoolSizeViolationException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/** Tests for BasePool with {@link PoolParams#lockFreeBuckets} set */
+@RunWith(RobolectricTestRunner.class)
+public class LockFreeBasePoolTest {
+
+  @Test
+  public void testReuse() {
+    TestPool pool = new TestPool(10, 14, null);
+    byte[] b1 = pool.get(1);
+    assertEquals(2, b1.length);
+    assertStats(pool, 1, 2, 0, 0);
+
+    pool.release(b1);
+    assertStats(pool, 0, 0, 1, 2);
+
+    assertSame(b1, pool.get(2));
+    assertStats(pool, 1, 2, 0, 0);
+    assertEquals(1, (int) pool.getStats().get(PoolStatsTracker.BUCKETS_USED_PREFIX + 2));
+  }
+
+  @Test
+  public void testFreesOnReleaseAboveSoftCap() {
+    TestPool pool = new TestPool(10, 14, null);
+    byte[] b1 = pool.get(6);
+    byte[] b2 = pool.get(6);
+    assertStats(pool, 2, 12, 0, 0);
+
+    pool.release(b1);
+    assertStats(pool, 1, 6, 0, 0);
+    pool.release(b2);
+    assertStats(pool, 0, 0, 1, 6);
+    assertSame(b2, pool.get(6));
+  }
+
+  @Test
+  public void testFreesOnReleaseAboveMaxLength() {
+    TestPool pool = new TestPool(100, 100, makeBucketSizeArray(2, 1, 4, 1));
+    byte[] b1 = pool.get(2);
+    byte[] b2 = pool.get(2);
+    byte[] b3 = pool.get(6);
+    pool.release(b1);
+    pool.release(b2);
+    pool.release(b3);
+    assertStats(pool, 0, 0, 1, 2);
+  }
+
+  @Test
+  public void testHardCap() {
+    TestPool pool = new TestPool(10, 14, null);
+    pool.get(8);
+    pool.get(6);
+    try {
+      pool.get(2);
+      fail();
+    } catch (PoolSizeViolationException e) {
+      // expected
+    }
+    assertStats(pool, 2, 14, 0, 0);
+  }
+
+  @Test
+  public void testTrimsFreeValuesBeforeAllocating() {
+    TestPool pool = new TestPool(10, 14, null);
+    byte[] b1 = pool.get(4);
+    byte[] b2 = pool.get(4);
+    pool.release(b1);
+    pool.release(b2);
+    assertStats(pool, 0, 0, 2, 8);
+
+    pool.get(8);
+    assertStats(pool, 1, 8, 0, 0);
+  }
+
+  @Test
+  public void testTrimToNothing() {
+    TestPool pool = new TestPool(10, 14, null);
+    byte[] b1 = pool.get(2);
+    byte[] b2 = pool.get(4);
+    pool.release(b1);
+
+    pool.trimToNothing();
+    assertStats(pool, 1, 4, 0, 0);
+    assertNotSame(b1, pool.get(2));
+    pool.release(b2);
+    assertStats(pool, 1, 2, 1, 4);
+  }
+
+  @Test
+  public void testReleaseUnknownValue() {
+    TestPool pool = new TestPool(10, 14, null);
+    pool.release(new byte[2]);
+    assertStats(pool, 0, 0, 0, 0);
+  }
+
+  /**
+   * Copies through the pool from several threads, the way {@link
+   * com.facebook.common.memory.PooledByteStreams} does, and checks that no buffer is handed out
+   * twice and the accounting adds up.
+   */
+  @Test
+  public void testConcurrentCopies() throws Exception {
+    for (int threads = 2; threads <= 8; threads *= 2) {
+      final TestPool pool = new TestPool(256, 1024, makeBucketSizeArray(8, 8, 16, 8, 32, 8));
+      final CountDownLatch start = new CountDownLatch(1);
+      final AtomicReference<Throwable> failure = new AtomicReference<>();
+      List<Thread> workers = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        final int seed = i;
+        Thread worker =
+            new Thread() {
+              @Override
+              public void run() {
+                Random random = new Random(seed);
+                try {
+                  start.await();
+                  for (int j = 0; j < 2000; j++) {
+                    byte[] buffer = pool.get(8 << random.nextInt(3));
+                    for (int k = 0; k < buffer.length; k++) {
+                      buffer[k] = (byte) seed;
+                    }
+                    for (int k = 0; k < buffer.length; k++) {
+                      if (buffer[k] != (byte) seed) {
+                        throw new IllegalStateException("buffer shared between threads");
+                      }
+                    }
+                    pool.release(buffer);
+                  }
+                } catch (Throwable t) {
+                  failure.compareAndSet(null, t);
+                }
+              }
+            };
+        worker.start();
+        workers.add(worker);
+      }
+      start.countDown();
+      for (Thread worker : workers) {
+        worker.join();
+      }
+
+      assertNull(failure.get());
+      int freeBytes = 0;
+      int freeCount = 0;
+      for (int i = 0; i < pool.mBuckets.size(); i++) {
+        Bucket<byte[]> bucket = pool.mBuckets.valueAt(i);
+        assertEquals(0, bucket.getInUseCount());
+        freeBytes += bucket.getFreeListSize() * bucket.mItemSize;
+        freeCount += bucket.getFreeListSize();
+      }
+      assertStats(pool, 0, 0, freeCount, freeBytes);
+      assertTrue(freeBytes <= 256);
+    }
+  }
+
+  private static void assertStats(
+      TestPool pool, int usedCount, int usedBytes, int freeCount, int freeBytes) {
+    Map<String, Integer> stats = pool.getStats();
+    assertEquals(usedCount, (int) stats.get(PoolStatsTracker.USED_COUNT));
+    assertEquals(usedBytes, (int) stats.get(PoolStatsTracker.USED_BYTES));
+    assertEquals(freeCount, (int) stats.get(PoolStatsTracker.FREE_COUNT));
+    assertEquals(freeBytes, (int) stats.get(PoolStatsTracker.FREE_BYTES));
+  }
+
+  private static SparseIntArray makeBucketSizeArray(int... params) {
+    final SparseIntArray bucketSizes = new SparseIntArray();
+    for (int i = 0; i < params.length; i += 2) {
+      bucketSizes.append(params[i], params[i + 1]);
+    }
+    return bucketSizes;
+  }
+
+  /** Allocates byte arrays of the smallest even size that fits the request */
+  private static class TestPool extends BasePool<byte[]> {
+
+    TestPool(int maxPoolSizeSoftCap, int maxPoolSizeHardCap, SparseIntArray bucketSizes) {
+      super(
+          mock(MemoryTrimmableRegistry.class),
+          lockFree(new PoolParams(maxPoolSizeSoftCap, maxPoolSizeHardCap, bucketSizes)),
+          mock(PoolStatsTracker.class));
+      initialize();
+    }
+
+    private static PoolParams lockFree(PoolParams poolParams) {
+      poolParams.lockFreeBuckets = true;
+      return poolParams;
+    }
+
+    @Override
+    protected byte[] alloc(int bucketedSize) {
+      return new byte[bucketedSize];
+    }
+
+    @Override
+    protected void free(byte[] value) {}
+
+    @Override
+    protected int getBucketedSize(int requestSize) {
+      if (requestSize <= 0) {
+        throw new InvalidSizeException(requestSize);
+      }
+      return (requestSize % 2 == 0) ? requestSize : requestSize + 1;
+    }
+
+    @Override
+    protected int getBucketedSizeForValue(byte[] value) {
+      return value.length;
+    }
+
+    @Override
+    protected int getSizeInBytes(int bucketedSize) {
+      return bucketedSize;
+    }
+  }
+}
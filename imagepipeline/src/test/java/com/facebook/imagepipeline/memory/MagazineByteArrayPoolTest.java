@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import android.util.SparseIntArray;
+import com.facebook.common.memory.MemoryTrimType;
+import com.facebook.common.memory.MemoryTrimmableRegistry;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class MagazineByteArrayPoolTest {
+
+  private static final int MAGAZINE_SIZE = 4;
+
+  private MemoryTrimmableRegistry mMemoryTrimmableRegistry;
+  private GenericByteArrayPool mDelegate;
+  private MagazineByteArrayPool mPool;
+
+  @Before
+  public void setup() {
+    SparseIntArray bucketSizes = new SparseIntArray();
+    bucketSizes.put(32, 10);
+    bucketSizes.put(64, 10);
+    PoolParams poolParams = new PoolParams(1024, 1024, bucketSizes);
+    mMemoryTrimmableRegistry = mock(MemoryTrimmableRegistry.class);
+    mDelegate =
+        new GenericByteArrayPool(
+            mMemoryTrimmableRegistry, poolParams, mock(PoolStatsTracker.class));
+    mPool =
+        new MagazineByteArrayPool(mMemoryTrimmableRegistry, mDelegate, poolParams, MAGAZINE_SIZE);
+  }
+
+  @Test
+  public void testReplacesSharedPoolRegistration() {
+    verify(mMemoryTrimmableRegistry).unregisterMemoryTrimmable(mDelegate);
+    verify(mMemoryTrimmableRegistry).registerMemoryTrimmable(mPool);
+  }
+
+  @Test
+  public void testReusesFromMagazine() {
+    byte[] b1 = mPool.get(20);
+    assertEquals(32, b1.length);
+    mPool.release(b1);
+    assertEquals(1, mPool.getThreadMagazineCount(32));
+
+    assertSame(b1, mPool.get(32));
+    assertEquals(0, mPool.getThreadMagazineCount(32));
+    // the shared pool only saw the first get
+    assertStats(1, 32, 0, 0);
+  }
+
+  @Test
+  public void testReturnsOlderHalfWhenFull() {
+    byte[][] values = new byte[MAGAZINE_SIZE + 1][];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = mPool.get(64);
+    }
+    for (byte[] value : values) {
+      mPool.release(value);
+    }
+    assertEquals(MAGAZINE_SIZE / 2 + 1, mPool.getThreadMagazineCount(64));
+    assertStats(MAGAZINE_SIZE / 2 + 1, (MAGAZINE_SIZE / 2 + 1) * 64, MAGAZINE_SIZE / 2, 128);
+
+    // most recently released first
+    assertSame(values[MAGAZINE_SIZE], mPool.get(64));
+    assertSame(values[MAGAZINE_SIZE - 1], mPool.get(64));
+  }
+
+  @Test
+  public void testOtherSizesBypassMagazines() {
+    byte[] b1 = mPool.get(100);
+    assertEquals(100, b1.length);
+    mPool.release(b1);
+    assertStats(0, 0, 0, 0);
+  }
+
+  @Test
+  public void testTrimEmptiesMagazines() {
+    mPool.release(mPool.get(32));
+    mPool.release(mPool.get(64));
+    assertStats(2, 96, 0, 0);
+
+    mPool.trim(MemoryTrimType.OnSystemLowMemoryWhileAppInForeground);
+    assertStats(0, 0, 0, 0);
+    assertEquals(0, mPool.getThreadMagazineCount(32));
+  }
+
+  @Test
+  public void testEmptiesMagazinesAtHardCap() {
+    byte[][] values = new byte[16][];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = mPool.get(64);
+    }
+    for (int i = 0; i < MAGAZINE_SIZE; i++) {
+      mPool.release(values[i]);
+    }
+    assertStats(16, 1024, 0, 0);
+
+    // the shared pool is full, but the magazines hold arrays it can free
+    byte[] b1 = mPool.get(32);
+    assertEquals(32, b1.length);
+    assertEquals(0, mPool.getThreadMagazineCount(64));
+    assertEquals(13, (int) mDelegate.getStats().get(PoolStatsTracker.USED_COUNT));
+  }
+
+  @Test(expected = BasePool.PoolSizeViolationException.class)
+  public void testFailsAtHardCapWithEmptyMagazines() {
+    for (int i = 0; i < 16; i++) {
+      mPool.get(64);
+    }
+    mPool.get(32);
+  }
+
+  @Test
+  public void testEmptiesMagazinesOfDeadThreads() throws Exception {
+    final byte[][] value = new byte[1][];
+    Thread thread =
+        new Thread() {
+          @Override
+          public void run() {
+            value[0] = mPool.get(32);
+            mPool.release(value[0]);
+          }
+        };
+    thread.start();
+    thread.join();
+    assertStats(1, 32, 0, 0);
+
+    // the first use from this thread collects the dead thread's magazines
+    byte[] b1 = mPool.get(64);
+    assertStats(1, 64, 1, 32);
+    assertNotSame(value[0], b1);
+    assertSame(value[0], mPool.get(32));
+  }
+
+  private void assertStats(int usedCount, int usedBytes, int freeCount, int freeBytes) {
+    Map<String, Integer> stats = mDelegate.getStats();
+    assertEquals(usedCount, (int) stats.get(PoolStatsTracker.USED_COUNT));
+    assertEquals(usedBytes, (int) stats.get(PoolStatsTracker.USED_BYTES));
+    assertEquals(freeCount, (int) stats.get(PoolStatsTracker.FREE_COUNT));
+    assertEquals(freeBytes, (int) stats.get(PoolStatsTracker.FREE_BYTES));
+  }
+}
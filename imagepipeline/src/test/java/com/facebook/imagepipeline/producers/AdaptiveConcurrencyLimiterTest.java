@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class AdaptiveConcurrencyLimiterTest {
+
+  private static final int IMAGE_SIZE = 50_000;
+
+  @Test
+  public void testSlowLinkLowersLimit() {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(8, 1, 32);
+    // 20 kB/s, a single download can use all of it
+    new SimulatedLink(20, 20, 100).run(limiter, 1000);
+
+    assertTrue("limit: " + limiter.getLimit(), limiter.getLimit() <= 3);
+  }
+
+  @Test
+  public void testFastLinkRaisesLimit() {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(4, 1, 32);
+    // 2 MB/s, but 100 kB/s per download
+    new SimulatedLink(2000, 100, 50).run(limiter, 3000);
+
+    assertTrue("limit: " + limiter.getLimit(), limiter.getLimit() >= 15);
+    assertTrue(limiter.getThroughputBytesPerSecond() > 1_000_000);
+  }
+
+  @Test
+  public void testLimitStaysWithinBounds() {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(4, 2, 6);
+    new SimulatedLink(20, 20, 100).run(limiter, 500);
+    assertTrue(limiter.getLimit() >= 2);
+
+    new SimulatedLink(2000, 100, 50).run(limiter, 1000);
+    assertTrue(limiter.getLimit() <= 6);
+  }
+
+  @Test
+  public void testLongerTimeToFirstByteLowersLimit() {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(10, 1, 32);
+    long now = 0;
+    for (int i = 0; i < 20; i++) {
+      now += 100;
+      limiter.onFetchCompletion(50, IMAGE_SIZE, now, 5);
+    }
+    assertEquals(10, limiter.getLimit());
+
+    for (int i = 0; i < 20; i++) {
+      now += 100;
+      limiter.onFetchCompletion(1000, IMAGE_SIZE, now, 10);
+    }
+    assertTrue("limit: " + limiter.getLimit(), limiter.getLimit() < 10);
+    assertTrue(limiter.getDecreaseCount() > 0);
+  }
+
+  @Test
+  public void testLimitUnchangedWhenNotUsed() {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(10, 1, 32);
+    long now = 0;
+    for (int i = 0; i < 100; i++) {
+      now += 100;
+      limiter.onFetchCompletion(50, IMAGE_SIZE, now, 3);
+    }
+    assertEquals(10, limiter.getLimit());
+    assertEquals(0, limiter.getIncreaseCount());
+    assertEquals(0, limiter.getDecreaseCount());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInitialLimitOutOfBounds() {
+    new AdaptiveConcurrencyLimiter(10, 1, 8);
+  }
+
+  /**
+   * Simulates a link with a given bandwidth shared by the downloads in flight, each of them capped
+   * by the server, and keeps as many downloads in flight as the limit, like a PriorityNetworkFetcher
+   * with a long queue.
+   */
+  private static class SimulatedLink {
+
+    private final double mBytesPerMs;
+    private final double mBytesPerMsPerDownload;
+    private final long mTtfbMs;
+
+    private long mNowMs;
+
+    SimulatedLink(double bytesPerMs, double bytesPerMsPerDownload, long ttfbMs) {
+      mBytesPerMs = bytesPerMs;
+      mBytesPerMsPerDownload = bytesPerMsPerDownload;
+      mTtfbMs = ttfbMs;
+    }
+
+    void run(AdaptiveConcurrencyLimiter limiter, int downloadCount) {
+      List<Download> inFlight = new ArrayList<>();
+      int completed = 0;
+      while (completed < downloadCount) {
+        while (inFlight.size() < limiter.getLimit()) {
+          inFlight.add(new Download(mNowMs));
+        }
+        mNowMs++;
+        int receiving = 0;
+        for (Download download : inFlight) {
+          if (download.mResponseMs < 0 && mNowMs - download.mStartMs >= mTtfbMs) {
+            download.mResponseMs = mNowMs;
+          }
+          if (download.mResponseMs >= 0) {
+            receiving++;
+          }
+        }
+        if (receiving == 0) {
+          continue;
+        }
+        double bytesPerDownload = Math.min(mBytesPerMsPerDownload, mBytesPerMs / receiving);
+        int inFlightCount = inFlight.size();
+        for (Iterator<Download> iterator = inFlight.iterator(); iterator.hasNext(); ) {
+          Download download = iterator.next();
+          if (download.mResponseMs < 0) {
+            continue;
+          }
+          download.mRemainingBytes -= bytesPerDownload;
+          if (download.mRemainingBytes <= 0) {
+            limiter.onFetchCompletion(
+                download.mResponseMs - download.mStartMs, IMAGE_SIZE, mNowMs, inFlightCount);
+            iterator.remove();
+            completed++;
+          }
+        }
+      }
+    }
+  }
+
+  private static class Download {
+    final long mStartMs;
+    long mResponseMs = -1;
+    double mRemainingBytes = IMAGE_SIZE;
+
+    Download(long startMs) {
+      mStartMs = startMs;
+    }
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.imagepipeline.testing.FakeClock;
+import com.facebook.imagepipeline.testing.TestExecutorService;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class BatchingThreadHandoffProducerQueueImplTest {
+
+  private static final int BIND_COUNT = 30;
+
+  private FakeClock mClock;
+  private TestExecutorService mExecutor;
+  private TestExecutorService mFlushExecutor;
+  private BatchingThreadHandoffProducerQueueImpl mQueue;
+  private List<Integer> mRunRequests;
+
+  @Before
+  public void setUp() {
+    mClock = new FakeClock();
+    mExecutor = new TestExecutorService(new FakeClock());
+    mFlushExecutor = new TestExecutorService(new FakeClock());
+    mQueue = new BatchingThreadHandoffProducerQueueImpl(mExecutor, mFlushExecutor, mClock);
+    mRunRequests = new ArrayList<>();
+  }
+
+  @Test
+  public void testRequestsOfOneFrameAreHandedOffAsOneTask() {
+    for (int i = 0; i < BIND_COUNT; i++) {
+      mQueue.addToQueueOrExecute(newRequest(i));
+    }
+    assertEquals(0, mExecutor.getPendingCount());
+    assertEquals(1, mFlushExecutor.getPendingCount());
+
+    mFlushExecutor.runUntilIdle();
+    assertEquals(1, mExecutor.getPendingCount());
+    mExecutor.runUntilIdle();
+
+    assertEquals(BIND_COUNT, mRunRequests.size());
+    for (int i = 0; i < BIND_COUNT; i++) {
+      assertEquals(i, (int) mRunRequests.get(i));
+    }
+    assertEquals(BIND_COUNT, mQueue.getHandoffCount());
+    assertEquals(1, mQueue.getExecutorSubmissionCount());
+    assertEquals(BIND_COUNT, mQueue.getMainThreadHandoffCount());
+  }
+
+  @Test
+  public void testCurrentQueueHandsOffEachRequest() {
+    ThreadHandoffProducerQueueImpl queue = new ThreadHandoffProducerQueueImpl(mExecutor);
+    for (int i = 0; i < BIND_COUNT; i++) {
+      queue.addToQueueOrExecute(newRequest(i));
+    }
+    assertEquals(BIND_COUNT, mExecutor.getPendingCount());
+  }
+
+  @Test
+  public void testHandoffLatency() {
+    mQueue.addToQueueOrExecute(newRequest(0));
+    mQueue.addToQueueOrExecute(newRequest(1));
+    mClock.incrementBy(16);
+    mFlushExecutor.runUntilIdle();
+    mClock.incrementBy(4);
+    mExecutor.runUntilIdle();
+
+    assertEquals(40, mQueue.getTotalHandoffLatencyMs());
+  }
+
+  @Test
+  public void testRemovedRequestIsNotRun() {
+    Runnable removed = newRequest(0);
+    mQueue.addToQueueOrExecute(removed);
+    mQueue.addToQueueOrExecute(newRequest(1));
+    mQueue.remove(removed);
+    mFlushExecutor.runUntilIdle();
+    mExecutor.runUntilIdle();
+
+    assertEquals(1, mRunRequests.size());
+    assertEquals(1, (int) mRunRequests.get(0));
+  }
+
+  @Test
+  public void testQueuedRequestsAreHandedOffOnStop() {
+    mQueue.startQueueing();
+    mQueue.addToQueueOrExecute(newRequest(0));
+    mQueue.addToQueueOrExecute(newRequest(1));
+    assertEquals(0, mFlushExecutor.getPendingCount());
+    assertTrue(mQueue.isQueueing());
+
+    mQueue.stopQueuing();
+    assertEquals(1, mExecutor.getPendingCount());
+    mExecutor.runUntilIdle();
+    assertEquals(2, mRunRequests.size());
+  }
+
+  @Test
+  public void testRequestOffMainThreadIsHandedOffDirectly() throws InterruptedException {
+    Thread thread =
+        new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                mQueue.addToQueueOrExecute(newRequest(0));
+              }
+            });
+    thread.start();
+    thread.join();
+
+    assertEquals(0, mFlushExecutor.getPendingCount());
+    assertEquals(1, mExecutor.getPendingCount());
+    assertEquals(0, mQueue.getMainThreadHandoffCount());
+  }
+
+  private Runnable newRequest(final int index) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        mRunRequests.add(index);
+      }
+    };
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+
+import com.facebook.common.memory.PooledByteBuffer;
+import com.facebook.common.references.CloseableReference;
+import com.facebook.imagepipeline.common.Priority;
+import com.facebook.imagepipeline.image.EncodedImage;
+import com.facebook.imagepipeline.testing.FakeClock;
+import com.facebook.imagepipeline.testing.TestExecutorService;
+import com.facebook.imagepipeline.testing.TestScheduledExecutorService;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class DecodeBudgetSchedulerTest {
+
+  private static final int BUDGET_MS_PER_SECOND = 100;
+  private static final int MAX_BURST_MS = 10;
+
+  private FakeClock mClock;
+  private TestScheduledExecutorService mTimer;
+  private TestExecutorService mExecutor;
+  private DecodeBudgetScheduler mBudgetScheduler;
+  private List<String> mDecodes;
+
+  @Before
+  public void setUp() {
+    mClock = new FakeClock();
+    mTimer = new TestScheduledExecutorService(mClock);
+    mExecutor = new TestExecutorService(new FakeClock());
+    mBudgetScheduler =
+        new DecodeBudgetScheduler(BUDGET_MS_PER_SECOND, MAX_BURST_MS, mClock, mTimer);
+    mDecodes = new ArrayList<>();
+  }
+
+  @Test
+  public void testIntermediateJobsWaitForBudgetInPriorityOrder() {
+    useUpBudget();
+    JobScheduler lowJob = newJob("low", Priority.LOW);
+    JobScheduler highJob = newJob("high", Priority.HIGH);
+    lowJob.updateJob(fakeEncodedImage(), Consumer.NO_FLAGS);
+    lowJob.scheduleJob();
+    highJob.updateJob(fakeEncodedImage(), Consumer.NO_FLAGS);
+    highJob.scheduleJob();
+    assertEquals(2, mBudgetScheduler.getWaitingJobCount());
+    assertEquals(0, mExecutor.getPendingCount());
+
+    // 40ms of budget are missing, refilled at 100ms per second
+    mClock.incrementBy(400);
+    assertEquals(0, mExecutor.getPendingCount());
+    mClock.incrementBy(1);
+    assertEquals(1, mExecutor.getPendingCount());
+    mExecutor.runUntilIdle();
+    // the low priority job starts once the high priority one is charged
+    mClock.incrementBy(1000);
+    mExecutor.runUntilIdle();
+
+    List<String> expected = new ArrayList<>();
+    expected.add("high");
+    expected.add("low");
+    assertEquals(expected, mDecodes);
+    assertEquals(0, mBudgetScheduler.getWaitingJobCount());
+    assertEquals(2, mBudgetScheduler.getIntermediateDecodeCount());
+  }
+
+  @Test
+  public void testFinalJobDoesNotWaitAndSkipsIntermediateJob() {
+    useUpBudget();
+    JobScheduler job = newJob("job", Priority.HIGH);
+    job.updateJob(fakeEncodedImage(), Consumer.NO_FLAGS);
+    job.scheduleJob();
+    assertEquals(1, mBudgetScheduler.getWaitingJobCount());
+
+    job.updateJob(fakeEncodedImage(), Consumer.IS_LAST);
+    job.scheduleJob();
+    assertEquals(0, mBudgetScheduler.getWaitingJobCount());
+    assertEquals(1, mExecutor.getPendingCount());
+    mExecutor.runUntilIdle();
+
+    assertEquals(1, mDecodes.size());
+    assertEquals(0, mBudgetScheduler.getIntermediateDecodeCount());
+    assertEquals(1, mBudgetScheduler.getSkippedDecodeCount());
+    assertEquals(10, mBudgetScheduler.getSavedDecodeCpuMs());
+  }
+
+  @Test
+  public void testNewerScanSkipsWaitingIntermediateJob() {
+    useUpBudget();
+    JobScheduler job = newJob("job", Priority.HIGH);
+    job.updateJob(fakeEncodedImage(), Consumer.NO_FLAGS);
+    job.scheduleJob();
+    job.updateJob(fakeEncodedImage(), Consumer.NO_FLAGS);
+    job.scheduleJob();
+    assertEquals(1, mBudgetScheduler.getWaitingJobCount());
+
+    mClock.incrementBy(1000);
+    mExecutor.runUntilIdle();
+
+    assertEquals(1, mDecodes.size());
+    assertEquals(1, mBudgetScheduler.getIntermediateDecodeCount());
+    assertEquals(1, mBudgetScheduler.getSkippedDecodeCount());
+  }
+
+  @Test
+  public void testUpdatingStartedJobIsNotSkipped() {
+    useUpBudget();
+    JobScheduler job = newJob("job", Priority.HIGH);
+    job.updateJob(fakeEncodedImage(), Consumer.NO_FLAGS);
+    job.scheduleJob();
+    mClock.incrementBy(1000);
+    assertEquals(0, mBudgetScheduler.getWaitingJobCount());
+    assertEquals(1, mExecutor.getPendingCount());
+
+    // the started job runs with the newer image instead
+    job.updateJob(fakeEncodedImage(), Consumer.NO_FLAGS);
+    mExecutor.runUntilIdle();
+
+    assertEquals(1, mDecodes.size());
+    assertEquals(0, mBudgetScheduler.getSkippedDecodeCount());
+  }
+
+  @Test
+  public void testClearedJobIsSkipped() {
+    useUpBudget();
+    JobScheduler job = newJob("job", Priority.HIGH);
+    job.updateJob(fakeEncodedImage(), Consumer.NO_FLAGS);
+    job.scheduleJob();
+
+    job.clearJob();
+    assertEquals(0, mBudgetScheduler.getWaitingJobCount());
+    assertEquals(JobScheduler.JobState.IDLE, job.mJobState);
+    assertEquals(1, mBudgetScheduler.getSkippedDecodeCount());
+
+    mClock.incrementBy(1000);
+    mExecutor.runUntilIdle();
+    assertEquals(0, mDecodes.size());
+  }
+
+  /** Charges a final decode of 50ms, 40ms more than the budget has. */
+  private void useUpBudget() {
+    mBudgetScheduler.onDecodeFinished(50, false);
+  }
+
+  private JobScheduler newJob(final String name, final Priority priority) {
+    return new JobScheduler(
+        mExecutor,
+        new JobScheduler.JobRunnable() {
+          @Override
+          public void run(EncodedImage encodedImage, @Consumer.Status int status) {
+            mDecodes.add(name);
+          }
+        },
+        0,
+        mBudgetScheduler,
+        () -> priority);
+  }
+
+  private static EncodedImage fakeEncodedImage() {
+    PooledByteBuffer buf = mock(PooledByteBuffer.class);
+    return new EncodedImage(CloseableReference.of(buf));
+  }
+}
@@ -12,6 +12,7 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
+import android.os.SystemClock;
 import bolts.Task;
 import com.facebook.cache.common.CacheKey;
 import com.facebook.cache.common.MultiCacheKey;
@@ -19,11 +20,14 @@ import com.facebook.cache.common.SimpleCacheKey;
 import com.facebook.common.internal.ImmutableMap;
 import com.facebook.common.memory.PooledByteBuffer;
 import com.facebook.common.references.CloseableReference;
+import com.facebook.datasource.DataSource;
 import com.facebook.imagepipeline.cache.BufferedDiskCache;
 import com.facebook.imagepipeline.cache.CacheKeyFactory;
 import com.facebook.imagepipeline.common.Priority;
 import com.facebook.imagepipeline.core.ImagePipelineConfig;
+import com.facebook.imagepipeline.datasource.ProducerToDataSourceAdapter;
 import com.facebook.imagepipeline.image.EncodedImage;
+import com.facebook.imagepipeline.listener.RequestListener2;
 import com.facebook.imagepipeline.request.ImageRequest;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -404,25 +408,99 @@ public class DiskCacheReadProducerTest {
         .onUltimateProducerReached(eq(mProducerContext), anyString(), anyBoolean());
   }
 
+  @Test
+  public void testExpiredRequestIsNotLookedUp() {
+    setUpDiskCacheProducerEnabled(true);
+    SystemClock.setCurrentTimeMillis(1000);
+    setUpDeadline(1000L);
+    mDiskCacheReadProducer.produceResults(mConsumer, mProducerContext);
+    verify(mConsumer).onFailure(any(ExpiredRequestException.class));
+    verify(mConsumer, never()).onCancellation();
+    verify(mProducerListener)
+        .onProducerEvent(
+            mProducerContext, PRODUCER_NAME, BaseProducerContext.EXPIRED_WORK_AVOIDED_EVENT);
+    verify(mProducerListener)
+        .onProducerFinishWithFailure(
+            eq(mProducerContext),
+            eq(PRODUCER_NAME),
+            any(ExpiredRequestException.class),
+            isNull());
+    verifyNoMoreInteractions(mDefaultBufferedDiskCache, mInputProducer);
+  }
+
+  @Test
+  public void testExpiredRequestFinishesDataSource() {
+    setUpDiskCacheProducerEnabled(true);
+    SystemClock.setCurrentTimeMillis(1000);
+    setUpDeadline(1000L);
+    DataSource<EncodedImage> dataSource =
+        ProducerToDataSourceAdapter.create(
+            mDiskCacheReadProducer, mProducerContext, mock(RequestListener2.class));
+    assertTrue(dataSource.isFinished());
+    assertTrue(dataSource.hasFailed());
+    assertTrue(dataSource.getFailureCause() instanceof ExpiredRequestException);
+    verifyNoMoreInteractions(mDefaultBufferedDiskCache, mInputProducer);
+  }
+
+  @Test
+  public void testDiskCacheGetNotFoundExpiredRequest() {
+    setUpDiskCacheProducerEnabled(true);
+    setupDiskCacheGetWait(mDefaultBufferedDiskCache);
+    SystemClock.setCurrentTimeMillis(1000);
+    setUpDeadline(1500L);
+    mDiskCacheReadProducer.produceResults(mConsumer, mProducerContext);
+    SystemClock.setCurrentTimeMillis(2000);
+    mTaskCompletionSource.trySetResult(null);
+    verify(mConsumer).onFailure(any(ExpiredRequestException.class));
+    verify(mConsumer, never()).onCancellation();
+    verify(mProducerListener).onProducerStart(mProducerContext, PRODUCER_NAME);
+    verify(mProducerListener)
+        .onProducerEvent(
+            mProducerContext, PRODUCER_NAME, BaseProducerContext.EXPIRED_WORK_AVOIDED_EVENT);
+    verify(mProducerListener)
+        .onProducerFinishWithFailure(
+            eq(mProducerContext),
+            eq(PRODUCER_NAME),
+            any(ExpiredRequestException.class),
+            isNull());
+    verifyNoMoreInteractions(mInputProducer);
+  }
+
+  /** The context reads the deadline of its request when created. */
+  private void setUpDeadline(long deadlineMs) {
+    when(mImageRequest.getDeadlineMs()).thenReturn(deadlineMs);
+    mProducerContext =
+        new SettableProducerContext(
+            mImageRequest,
+            mRequestId,
+            mProducerListener,
+            mCallerContext,
+            ImageRequest.RequestLevel.FULL_FETCH,
+            false,
+            true,
+            Priority.MEDIUM,
+            mConfig);
+  }
+
   private void setupDiskCacheGetWait(BufferedDiskCache bufferedDiskCache) {
     mTaskCompletionSource = Task.create();
-    when(bufferedDiskCache.get(eq(mCacheKey), mIsCancelled.capture()))
+    when(bufferedDiskCache.get(eq(mCacheKey), mIsCancelled.capture(), any(Priority.class)))
         .thenReturn(mTaskCompletionSource.getTask());
   }
 
   private void setupDiskCacheGetSuccess(BufferedDiskCache bufferedDiskCache) {
     setUpDiskCacheProducerEnabled(true);
-    when(bufferedDiskCache.get(eq(mCacheKey), any(AtomicBoolean.class)))
+    when(bufferedDiskCache.get(eq(mCacheKey), any(AtomicBoolean.class), any(Priority.class)))
         .thenReturn(Task.forResult(mFinalEncodedImage));
   }
 
   private void setupDiskCacheGetNotFound(BufferedDiskCache bufferedDiskCache) {
-    when(bufferedDiskCache.get(eq(mCacheKey), any(AtomicBoolean.class)))
+    when(bufferedDiskCache.get(eq(mCacheKey), any(AtomicBoolean.class), any(Priority.class)))
         .thenReturn(Task.<EncodedImage>forResult(null));
   }
 
   private void setupDiskCacheGetFailure(BufferedDiskCache bufferedDiskCache) {
-    when(bufferedDiskCache.get(eq(mCacheKey), any(AtomicBoolean.class)))
+    when(bufferedDiskCache.get(eq(mCacheKey), any(AtomicBoolean.class), any(Priority.class)))
         .thenReturn(Task.<EncodedImage>forError(mException));
   }
 
@@ -20,6 +20,7 @@ import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
 import com.facebook.common.references.CloseableReference;
+import com.facebook.fresco.middleware.HasExtraData;
 import com.facebook.imagepipeline.cache.BitmapMemoryCacheKey;
 import com.facebook.imagepipeline.cache.CacheKeyFactory;
 import com.facebook.imagepipeline.common.Priority;
@@ -638,4 +639,50 @@ public class MultiplexProducerTest {
     mProducerContext1.setPriority(Priority.MEDIUM);
     assertEquals(Priority.HIGH, mMultiplexedContext1.getPriority());
   }
+
+  @Test
+  public void testManyConsumersAttachAndCancelOnOneKey() {
+    final int count = 100;
+    SettableProducerContext[] contexts = new SettableProducerContext[count];
+    Consumer<CloseableReference<CloseableImage>>[] consumers = new Consumer[count];
+    for (int i = 0; i < count; i++) {
+      contexts[i] =
+          new SettableProducerContext(
+              mImageRequest1,
+              "id" + i,
+              mProducerListener,
+              mCallerContext,
+              ImageRequest.RequestLevel.FULL_FETCH,
+              i != count / 2 /* isPrefetch */,
+              false /* isIntermediateResultExpected */,
+              i == count / 2 ? Priority.HIGH : Priority.LOW,
+              mConfig);
+      consumers[i] = mock(Consumer.class);
+      mMultiplexProducer.produceResults(consumers[i], contexts[i]);
+    }
+    assertEquals(1, mMultiplexProducer.mMultiplexers.size());
+    assertEquals(Priority.HIGH, mMultiplexedContext1.getPriority());
+    assertFalse(mMultiplexedContext1.isPrefetch());
+    assertFalse(mMultiplexedContext1.isIntermediateResultExpected());
+
+    contexts[count - 1].setIsIntermediateResultExpected(true);
+    assertTrue(mMultiplexedContext1.isIntermediateResultExpected());
+    contexts[count / 2].cancel();
+    assertEquals(Priority.LOW, mMultiplexedContext1.getPriority());
+    assertTrue(mMultiplexedContext1.isPrefetch());
+
+    for (int i = 0; i < count - 1; i++) {
+      if (i != count / 2) {
+        contexts[i].cancel();
+      }
+    }
+    assertFalse(mMultiplexedContext1.isCancelled());
+    mForwardingConsumer1.onNewResult(mFinalImageReference1, Consumer.IS_LAST);
+    verify(consumers[count - 1]).onNewResult(mFinalImageReference1, Consumer.IS_LAST);
+    verify(consumers[0], never()).onNewResult(mFinalImageReference1, Consumer.IS_LAST);
+    verify(consumers[0]).onCancellation();
+    Object dedupedCount = contexts[count - 1].getExtra(HasExtraData.KEY_MULTIPLEX_BITMAP_COUNT);
+    assertEquals(1, dedupedCount);
+    assertTrue(mMultiplexProducer.mMultiplexers.isEmpty());
+  }
 }
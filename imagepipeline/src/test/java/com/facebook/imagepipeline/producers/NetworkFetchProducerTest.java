@@ -10,15 +10,18 @@ package com.facebook.imagepipeline.producers;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
+import android.net.Uri;
 import com.facebook.common.internal.Throwables;
 import com.facebook.common.memory.ByteArrayPool;
 import com.facebook.common.memory.PooledByteBuffer;
 import com.facebook.common.memory.PooledByteBufferFactory;
 import com.facebook.common.memory.PooledByteBufferOutputStream;
 import com.facebook.common.references.CloseableReference;
+import com.facebook.imagepipeline.common.BytesRange;
 import com.facebook.imagepipeline.common.Priority;
 import com.facebook.imagepipeline.core.ImagePipelineConfig;
 import com.facebook.imagepipeline.decoder.ProgressiveJpegConfig;
+import com.facebook.imagepipeline.image.EncodedImage;
 import com.facebook.imagepipeline.request.ImageRequest;
 import java.io.IOException;
 import java.io.InputStream;
@@ -240,6 +243,76 @@ public class NetworkFetchProducerTest {
     }
   }
 
+  @Test
+  public void testResumesPartialDownloadOfFailedFetch() throws IOException {
+    PartialDownloadStore partialDownloadStore = new PartialDownloadStore(1024);
+    mNetworkFetchProducer =
+        new TestNetworkFetchProducer(
+            mPooledByteBufferFactory, mByteArrayPool, mNetworkFetcher, partialDownloadStore);
+    when(mImageRequest.getSourceUri()).thenReturn(Uri.parse("http://fresco.com/image.jpg"));
+    when(mPooledByteBufferOutputStream.size()).thenReturn(10);
+    when(mPooledByteBuffer.size()).thenReturn(10);
+    NetworkFetcher.Callback callback = performFetch();
+    InputStream inputStream = mock(InputStream.class);
+    when(inputStream.read(any(byte[].class))).thenThrow(new IOException());
+    mFetchState.setResponseETag("\"etag\"");
+    IOException exception = null;
+    try {
+      callback.onResponse(inputStream, 100);
+    } catch (IOException e) {
+      exception = e;
+    }
+    assertNotNull(exception);
+    assertEquals(BytesRange.from(10), mFetchState.getRequestBytesRange());
+    callback.onFailure(exception);
+    assertEquals(1, partialDownloadStore.getCount());
+
+    FetchState nextFetchState = new FetchState(mConsumer, mProducerContext);
+    when(mNetworkFetcher.createFetchState(eq(mConsumer), eq(mProducerContext)))
+        .thenReturn(nextFetchState);
+    mNetworkFetchProducer.produceResults(mConsumer, mProducerContext);
+    assertEquals(0, partialDownloadStore.getCount());
+    assertEquals(BytesRange.from(10), nextFetchState.getRequestBytesRange());
+    assertEquals("\"etag\"", nextFetchState.getRequestIfRange());
+  }
+
+  @Test
+  public void testResumeAnsweredWithWholeImageStartsOver() throws IOException {
+    PartialDownloadStore partialDownloadStore = new PartialDownloadStore(1024);
+    mNetworkFetchProducer =
+        new TestNetworkFetchProducer(
+            mPooledByteBufferFactory, mByteArrayPool, mNetworkFetcher, partialDownloadStore);
+    when(mImageRequest.getSourceUri()).thenReturn(Uri.parse("http://fresco.com/image.jpg"));
+    when(mPooledByteBufferOutputStream.size()).thenReturn(10);
+    when(mPooledByteBuffer.size()).thenReturn(10);
+    NetworkFetcher.Callback callback = performFetch();
+    InputStream inputStream = mock(InputStream.class);
+    when(inputStream.read(any(byte[].class))).thenThrow(new IOException());
+    mFetchState.setResponseETag("\"etag\"");
+    try {
+      callback.onResponse(inputStream, 100);
+      fail();
+    } catch (IOException e) {
+      // the fetcher retries, asking for the bytes following the partial download
+    }
+    assertEquals(BytesRange.from(10), mFetchState.getRequestBytesRange());
+    mFetchState.setParsedMetaDataSource(mock(EncodedImage.class));
+
+    // the image changed, so the server ignored the range and sent all of it
+    when(mPooledByteBufferOutputStream.size()).thenReturn(0);
+    mFetchState.setResponseBytesRange(null);
+    try {
+      callback.onResponse(inputStream, 100);
+      fail();
+    } catch (IOException e) {
+      // nothing received this time
+    }
+    assertNull(mFetchState.getParsedMetaDataSource());
+    assertNull(mFetchState.clonePartialDownload());
+    assertNull(mFetchState.getRequestBytesRange());
+    assertNull(mFetchState.getRequestIfRange());
+  }
+
   private void verifyPooledByteBufferUsed(int times) {
     verify(mPooledByteBufferOutputStream, times(times)).toByteBuffer();
     verify(mPooledByteBuffer, times(times)).close();
@@ -338,6 +411,14 @@ public class NetworkFetchProducerTest {
       super(pooledByteBufferFactory, byteArrayPool, networkFetcher);
     }
 
+    public TestNetworkFetchProducer(
+        PooledByteBufferFactory pooledByteBufferFactory,
+        ByteArrayPool byteArrayPool,
+        NetworkFetcher networkFetcher,
+        PartialDownloadStore partialDownloadStore) {
+      super(pooledByteBufferFactory, byteArrayPool, networkFetcher, partialDownloadStore);
+    }
+
     public void setSystemUptime(long systemUptime) {
       mSystemUptime = systemUptime;
     }
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import com.facebook.common.memory.PooledByteBuffer;
+import com.facebook.common.references.CloseableReference;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class PartialDownloadStoreTest {
+
+  private static final int MAX_SIZE = 100;
+
+  private PartialDownloadStore mStore;
+
+  @Before
+  public void setUp() {
+    mStore = new PartialDownloadStore(MAX_SIZE);
+  }
+
+  @Test
+  public void testPutAndRemove() {
+    PartialDownload download = newDownload(40);
+    mStore.put("a", download);
+    assertEquals(1, mStore.getCount());
+    assertEquals(40, mStore.getSizeBytes());
+
+    assertSame(download, mStore.remove("a"));
+    assertNull(mStore.remove("a"));
+    assertEquals(0, mStore.getCount());
+    assertEquals(0, mStore.getSizeBytes());
+  }
+
+  @Test
+  public void testPutReplacesAndClosesPrevious() {
+    PooledByteBuffer previousBytes = mockBytes(40);
+    mStore.put("a", newDownload(previousBytes));
+    PartialDownload download = newDownload(30);
+    mStore.put("a", download);
+
+    verify(previousBytes).close();
+    assertEquals(1, mStore.getCount());
+    assertEquals(30, mStore.getSizeBytes());
+    assertSame(download, mStore.remove("a"));
+  }
+
+  @Test
+  public void testEvictsOldestFirst() {
+    PooledByteBuffer oldestBytes = mockBytes(40);
+    mStore.put("a", newDownload(oldestBytes));
+    mStore.put("b", newDownload(40));
+    mStore.put("c", newDownload(40));
+
+    verify(oldestBytes).close();
+    assertNull(mStore.remove("a"));
+    assertEquals(2, mStore.getCount());
+    assertEquals(80, mStore.getSizeBytes());
+  }
+
+  @Test
+  public void testClosesDownloadLargerThanStore() {
+    PooledByteBuffer bytes = mockBytes(MAX_SIZE + 1);
+    mStore.put("a", newDownload(bytes));
+
+    verify(bytes).close();
+    assertEquals(0, mStore.getCount());
+    assertEquals(0, mStore.getSizeBytes());
+  }
+
+  @Test
+  public void testValidator() {
+    assertEquals("\"abc\"", PartialDownload.getValidator("\"abc\"", "date"));
+    assertEquals("date", PartialDownload.getValidator("W/\"abc\"", "date"));
+    assertEquals("date", PartialDownload.getValidator(null, "date"));
+    assertNull(PartialDownload.getValidator("W/\"abc\"", null));
+  }
+
+  private static PartialDownload newDownload(int size) {
+    return newDownload(mockBytes(size));
+  }
+
+  private static PartialDownload newDownload(PooledByteBuffer bytes) {
+    CloseableReference<PooledByteBuffer> bytesRef = CloseableReference.of(bytes);
+    try {
+      return new PartialDownload(bytesRef, "\"etag\"", null);
+    } finally {
+      bytesRef.close();
+    }
+  }
+
+  private static PooledByteBuffer mockBytes(int size) {
+    PooledByteBuffer bytes = mock(PooledByteBuffer.class);
+    when(bytes.size()).thenReturn(size);
+    return bytes;
+  }
+}
@@ -9,6 +9,7 @@ package com.facebook.imagepipeline.producers;
 
 import static com.facebook.imagepipeline.common.Priority.HIGH;
 import static com.facebook.imagepipeline.common.Priority.LOW;
+import static com.facebook.imagepipeline.common.Priority.MEDIUM;
 import static com.facebook.imagepipeline.producers.PriorityNetworkFetcher.INFINITE_REQUEUE;
 import static com.facebook.imagepipeline.producers.PriorityNetworkFetcher.NO_DELAYED_REQUESTS;
 import static com.facebook.imagepipeline.producers.PriorityNetworkFetcher.shouldRetry;
@@ -40,8 +41,10 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import javax.annotation.Nullable;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -1286,6 +1289,195 @@ public class PriorityNetworkFetcherTest {
     assertThat(getLast(delegateFetcher.callbacks.keys()).getUri().toString()).isEqualTo("uri2");
   }
 
+  /**
+   * Scenario: requests of low and medium priority wait in a priority-ordered low-pri queue. Medium
+   * ones are dequeued first, and requests of the same priority in the order they were enqueued.
+   */
+  @Test
+  public void testPriorityOrderedQueues() {
+    RecordingNetworkFetcher recordingNetworkFetcher = new RecordingNetworkFetcher();
+    PriorityNetworkFetcher<FetchState> fetcher =
+        newPriorityOrderedFetcher(recordingNetworkFetcher, 2, 1);
+    fetcher.pause();
+
+    PriorityFetchState<FetchState> low1 = fetch(fetcher, "low1", callback, LOW);
+    PriorityFetchState<FetchState> medium1 = fetch(fetcher, "medium1", callback, MEDIUM);
+    PriorityFetchState<FetchState> low2 = fetch(fetcher, "low2", callback, LOW);
+    PriorityFetchState<FetchState> medium2 = fetch(fetcher, "medium2", callback, MEDIUM);
+    PriorityFetchState<FetchState> low3 = fetch(fetcher, "low3", callback, LOW);
+    assertThat(fetcher.getLowPriQueue())
+        .containsExactly(medium1, medium2, low1, low2, low3)
+        .inOrder();
+
+    // low2 keeps its place among the medium requests
+    ((SettableProducerContext) low2.getContext()).setPriority(MEDIUM);
+    assertThat(fetcher.getLowPriQueue())
+        .containsExactly(medium1, low2, medium2, low1, low3)
+        .inOrder();
+
+    cancel(medium1);
+    PriorityFetchState<FetchState> high = fetch(fetcher, "high", callback, HIGH);
+    ((SettableProducerContext) medium2.getContext()).setPriority(HIGH);
+    assertThat(fetcher.getHiPriQueue()).containsExactly(high, medium2).inOrder();
+    assertThat(fetcher.getLowPriQueue()).containsExactly(low2, low1, low3).inOrder();
+
+    fetcher.resume();
+    assertThat(fetcher.getCurrentlyFetching()).containsExactly(high);
+    fetcher.onFetchCompletion(high, 4317);
+    assertThat(fetcher.getCurrentlyFetching()).containsExactly(medium2);
+    fetcher.onFetchCompletion(medium2, 4317);
+    assertThat(fetcher.getCurrentlyFetching()).containsExactly(low2);
+  }
+
+  /**
+   * Stress scenario: 1000 requests wait in the queues while random ones are cancelled or change
+   * priority. The queues must keep the order a plain FIFO/LIFO list would have.
+   */
+  @Test
+  public void testManyQueuedRequestsWithRandomCancelsAndPriorityChanges() {
+    // Hi-pri requests are LIFO
+    PriorityNetworkFetcher<FetchState> fetcher =
+        newFetcher(delegate, false, 4, 2, true, 0, false, false);
+    fetcher.pause();
+    Random random = new Random(42);
+    LinkedList<PriorityFetchState<FetchState>> hiPriQueue = new LinkedList<>();
+    LinkedList<PriorityFetchState<FetchState>> lowPriQueue = new LinkedList<>();
+    ArrayList<PriorityFetchState<FetchState>> queued = new ArrayList<>();
+
+    for (int i = 0; i < 1000; i++) {
+      boolean isHiPri = random.nextBoolean();
+      PriorityFetchState<FetchState> fetchState = fetch(fetcher, "uri" + i, callback, isHiPri);
+      queued.add(fetchState);
+      if (isHiPri) {
+        hiPriQueue.addFirst(fetchState);
+      } else {
+        lowPriQueue.addLast(fetchState);
+      }
+    }
+
+    for (int i = 0; i < 2000 && !queued.isEmpty(); i++) {
+      PriorityFetchState<FetchState> fetchState = queued.get(random.nextInt(queued.size()));
+      if (random.nextInt(4) == 0) {
+        cancel(fetchState);
+        queued.remove(fetchState);
+        hiPriQueue.remove(fetchState);
+        lowPriQueue.remove(fetchState);
+      } else if (fetchState.getContext().getPriority() == HIGH) {
+        ((SettableProducerContext) fetchState.getContext()).setPriority(LOW);
+        hiPriQueue.remove(fetchState);
+        lowPriQueue.addLast(fetchState);
+      } else {
+        ((SettableProducerContext) fetchState.getContext()).setPriority(HIGH);
+        lowPriQueue.remove(fetchState);
+        hiPriQueue.addFirst(fetchState);
+      }
+    }
+
+    assertThat(fetcher.getHiPriQueue()).containsExactlyElementsIn(hiPriQueue).inOrder();
+    assertThat(fetcher.getLowPriQueue()).containsExactlyElementsIn(lowPriQueue).inOrder();
+    assertThat(fetcher.getCurrentlyFetching()).isEmpty();
+  }
+
+  @Test
+  public void testConcurrencyLimiterSetsOutstandingLimits() {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(2, 1, 8);
+    PriorityNetworkFetcher<FetchState> fetcher =
+        new PriorityNetworkFetcher<>(
+            delegate,
+            true /* isHiPriFifo */,
+            4 /* maxOutstandingHiPri */,
+            2 /* maxOutstandingLowPri */,
+            true /* inflightFetchesCanBeCancelled */,
+            0 /* maxNumberOfRequeue */,
+            false /* doNotCancelRequests */,
+            NO_DELAYED_REQUESTS,
+            0 /* requeueDelayTimeInMillis */,
+            false /* multipleDequeue */,
+            false /* nonRecoverableExceptionPreventsRequeue */,
+            0 /* maxConnectAttemptCount */,
+            0 /* maxAttemptCount */,
+            false /* retryLowPriAll */,
+            false /* retryLowPriUnknownHostException */,
+            false /* retryLowPriConnectionException */,
+            false /* isPriorityOrdered */,
+            limiter,
+            new FakeClock());
+
+    // the limit is 2 for hi-pri requests, and 2 * 2 / 4 = 1 for low-pri ones
+    PriorityFetchState<FetchState> one = fetch(fetcher, "1", callback, false);
+    PriorityFetchState<FetchState> two = fetch(fetcher, "2", callback, false);
+    PriorityFetchState<FetchState> three = fetch(fetcher, "3", callback, true);
+    PriorityFetchState<FetchState> four = fetch(fetcher, "4", callback, true);
+    assertThat(fetcher.getCurrentlyFetching()).containsExactly(one, three);
+    assertThat(fetcher.getHiPriQueue()).containsExactly(four);
+    assertThat(fetcher.getLowPriQueue()).containsExactly(two);
+
+    fetcher.onFetchCompletion(one, 1000);
+    assertThat(fetcher.getCurrentlyFetching()).containsExactly(three, four);
+    assertThat(fetcher.getLowPriQueue()).containsExactly(two);
+
+    Map<String, String> extras = fetcher.getExtraMap(three, 1000);
+    assertThat(extras).containsEntry("concurrency_limit", "2");
+  }
+
+  @Test
+  public void testConcurrencyLimiterKeepsOneLowPriSlotAtLimitOne() {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 1, 8);
+    PriorityNetworkFetcher<FetchState> fetcher =
+        new PriorityNetworkFetcher<>(
+            delegate,
+            true /* isHiPriFifo */,
+            4 /* maxOutstandingHiPri */,
+            2 /* maxOutstandingLowPri */,
+            true /* inflightFetchesCanBeCancelled */,
+            0 /* maxNumberOfRequeue */,
+            false /* doNotCancelRequests */,
+            NO_DELAYED_REQUESTS,
+            0 /* requeueDelayTimeInMillis */,
+            false /* multipleDequeue */,
+            false /* nonRecoverableExceptionPreventsRequeue */,
+            0 /* maxConnectAttemptCount */,
+            0 /* maxAttemptCount */,
+            false /* retryLowPriAll */,
+            false /* retryLowPriUnknownHostException */,
+            false /* retryLowPriConnectionException */,
+            false /* isPriorityOrdered */,
+            limiter,
+            new FakeClock());
+
+    // 1 * 2 / 4 rounds down to 0, but low-pri requests must still be fetched one at a time
+    PriorityFetchState<FetchState> one = fetch(fetcher, "1", callback, false);
+    PriorityFetchState<FetchState> two = fetch(fetcher, "2", callback, false);
+    assertThat(fetcher.getCurrentlyFetching()).containsExactly(one);
+    assertThat(fetcher.getLowPriQueue()).containsExactly(two);
+
+    fetcher.onFetchCompletion(one, 1000);
+    assertThat(fetcher.getCurrentlyFetching()).containsExactly(two);
+    assertThat(fetcher.getLowPriQueue()).isEmpty();
+  }
+
+  private static PriorityNetworkFetcher<FetchState> newPriorityOrderedFetcher(
+      NetworkFetcher<FetchState> delegate, int maxOutstandingHiPri, int maxOutstandingLowPri) {
+    return new PriorityNetworkFetcher<>(
+        delegate,
+        true /* isHiPriFifo */,
+        maxOutstandingHiPri,
+        maxOutstandingLowPri,
+        true /* inflightFetchesCanBeCancelled */,
+        0 /* maxNumberOfRequeue */,
+        false /* doNotCancelRequests */,
+        NO_DELAYED_REQUESTS,
+        0 /* requeueDelayTimeInMillis */,
+        false /* multipleDequeue */,
+        false /* nonRecoverableExceptionPreventsRequeue */,
+        0 /* maxConnectAttemptCount */,
+        0 /* maxAttemptCount */,
+        false /* retryLowPriAll */,
+        false /* retryLowPriUnknownHostException */,
+        false /* retryLowPriConnectionException */,
+        true /* isPriorityOrdered */);
+  }
+
   private static PriorityNetworkFetcher<FetchState> newFetcher(
       NetworkFetcher<FetchState> delegate,
       boolean isHiPriFifo,
@@ -1319,6 +1511,14 @@ public class PriorityNetworkFetcherTest {
       String uri,
       NetworkFetcher.Callback callback,
       boolean isHiPri) {
+    return fetch(fetcher, uri, callback, isHiPri ? HIGH : LOW);
+  }
+
+  private PriorityFetchState<FetchState> fetch(
+      PriorityNetworkFetcher<FetchState> fetcher,
+      String uri,
+      NetworkFetcher.Callback callback,
+      Priority priority) {
     Consumer<EncodedImage> consumer = mock(Consumer.class);
     SettableProducerContext context =
         new SettableProducerContext(
@@ -1327,9 +1527,9 @@ public class PriorityNetworkFetcherTest {
             null,
             null,
             null,
-            !isHiPri,
+            priority != HIGH,
             false,
-            isHiPri ? HIGH : LOW,
+            priority,
             null);
     FetchState delegateFetchState = new FetchState(consumer, context);
     when(delegate.createFetchState(eq(consumer), eq(context))).thenReturn(delegateFetchState);
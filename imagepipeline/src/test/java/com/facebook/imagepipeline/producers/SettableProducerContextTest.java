@@ -10,9 +10,11 @@ package com.facebook.imagepipeline.producers;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
+import android.os.SystemClock;
 import com.facebook.imagepipeline.common.Priority;
 import com.facebook.imagepipeline.core.ImagePipelineConfig;
 import com.facebook.imagepipeline.request.ImageRequest;
+import java.util.Map;
 import org.junit.*;
 import org.junit.runner.*;
 import org.mockito.*;
@@ -115,4 +117,80 @@ public class SettableProducerContextTest {
     verify(mCallbacks2).onIsPrefetchChanged();
     verify(mCallbacks2, never()).onCancellationRequested();
   }
+
+  @Test
+  public void testStalenessBudget() {
+    when(mImageRequest.getStalenessBudgetMs()).thenReturn(100);
+    SystemClock.setCurrentTimeMillis(1000);
+    SettableProducerContext context =
+        new SettableProducerContext(
+            mImageRequest,
+            mRequestId,
+            mock(ProducerListener2.class),
+            mock(Object.class),
+            ImageRequest.RequestLevel.FULL_FETCH,
+            false,
+            true,
+            Priority.HIGH,
+            mConfig);
+    assertFalse(context.isExpired(2000));
+
+    context.setPriority(Priority.LOW);
+    assertFalse(context.isExpired(1099));
+    assertTrue(context.isExpired(1100));
+
+    // the request is visible again, the budget restarts once it is not
+    context.setPriority(Priority.HIGH);
+    assertFalse(context.isExpired(2000));
+  }
+
+  @Test
+  public void testDeadline() {
+    when(mImageRequest.getDeadlineMs()).thenReturn(1000L);
+    SettableProducerContext context =
+        new SettableProducerContext(
+            mImageRequest,
+            mRequestId,
+            mock(ProducerListener2.class),
+            mock(Object.class),
+            ImageRequest.RequestLevel.FULL_FETCH,
+            false,
+            true,
+            Priority.HIGH,
+            mConfig);
+    assertFalse(context.isExpired(999));
+    assertTrue(context.isExpired(1000));
+  }
+
+  @Test
+  public void testExpiredWorkFailsStage() {
+    when(mImageRequest.getDeadlineMs()).thenReturn(1000L);
+    ProducerListener2 listener = mock(ProducerListener2.class);
+    SettableProducerContext context =
+        new SettableProducerContext(
+            mImageRequest,
+            mRequestId,
+            listener,
+            mock(Object.class),
+            ImageRequest.RequestLevel.FULL_FETCH,
+            false,
+            true,
+            Priority.HIGH,
+            mConfig);
+    SystemClock.setCurrentTimeMillis(999);
+    assertNull(BaseProducerContext.checkExpiredWork(context, "producer"));
+    verifyNoMoreInteractions(listener);
+
+    SystemClock.setCurrentTimeMillis(1000);
+    ExpiredRequestException exception = BaseProducerContext.checkExpiredWork(context, "producer");
+    assertNotNull(exception);
+    InOrder inOrder = inOrder(listener);
+    inOrder.verify(listener).onProducerStart(context, "producer");
+    inOrder
+        .verify(listener)
+        .onProducerEvent(context, "producer", BaseProducerContext.EXPIRED_WORK_AVOIDED_EVENT);
+    inOrder.verify(listener).onProducerFinishWithFailure(context, "producer", exception, null);
+    verify(listener, never())
+        .onProducerFinishWithCancellation(eq(context), anyString(), nullable(Map.class));
+  }
 }
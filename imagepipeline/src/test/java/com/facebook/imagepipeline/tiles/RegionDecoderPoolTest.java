@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.tiles;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyBoolean;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import com.facebook.common.memory.PooledByteBuffer;
+import com.facebook.common.references.CloseableReference;
+import com.facebook.imagepipeline.image.EncodedImage;
+import com.facebook.imagepipeline.memory.BitmapPool;
+import com.facebook.imagepipeline.testing.MockBitmapFactory;
+import com.facebook.imagepipeline.testing.TrivialPooledByteBuffer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.stubbing.Answer;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareOnlyThisForTest;
+import org.powermock.modules.junit4.rule.PowerMockRule;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@PrepareOnlyThisForTest({BitmapRegionDecoder.class})
+@Config(manifest = Config.NONE)
+@PowerMockIgnore({"org.mockito.*", "org.robolectric.*", "androidx.*", "android.*"})
+public class RegionDecoderPoolTest {
+
+  private static final Rect REGION = new Rect(0, 0, 512, 256);
+  private static final long TIMEOUT_MS = 5000;
+
+  @Rule public PowerMockRule rule = new PowerMockRule();
+
+  private TrivialPooledByteBuffer mPooledByteBuffer;
+  private EncodedImage mEncodedImage;
+  private List<BitmapRegionDecoder> mDecoders;
+  private AtomicInteger mRecycledDecoderCount;
+  private Semaphore mDecodesStarted;
+  private volatile CountDownLatch mDecodeGate;
+  private volatile boolean mFailNextCreation;
+
+  @Before
+  public void setUp() throws Exception {
+    mPooledByteBuffer = new TrivialPooledByteBuffer(new byte[16]);
+    CloseableReference<PooledByteBuffer> ref = CloseableReference.of(mPooledByteBuffer);
+    mEncodedImage = new EncodedImage(ref);
+    ref.close();
+    mDecoders = new ArrayList<>();
+    mRecycledDecoderCount = new AtomicInteger();
+    mDecodesStarted = new Semaphore(0);
+    mDecodeGate = new CountDownLatch(0);
+
+    mockStatic(BitmapRegionDecoder.class);
+    when(BitmapRegionDecoder.newInstance(any(InputStream.class), anyBoolean()))
+        .thenAnswer((Answer<BitmapRegionDecoder>) invocation -> createDecoder());
+  }
+
+  @Test
+  public void testReusesIdleDecoder() {
+    RegionDecoderPool pool = createPool(2);
+    for (int i = 0; i < 3; i++) {
+      CloseableReference<Bitmap> bitmap = pool.decodeRegion(REGION, 2, Bitmap.Config.ARGB_8888);
+      assertNotNull(bitmap);
+      assertEquals(256, bitmap.get().getWidth());
+      assertEquals(128, bitmap.get().getHeight());
+      bitmap.close();
+    }
+    assertEquals(1, pool.getCreatedDecoderCount());
+    assertEquals(1, mDecoders.size());
+    pool.close();
+  }
+
+  @Test
+  public void testCreatesDecodersUpToMax() throws Exception {
+    RegionDecoderPool pool = createPool(2);
+    mDecodeGate = new CountDownLatch(1);
+    List<DecodeThread> threads = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      DecodeThread thread = new DecodeThread(pool);
+      thread.start();
+      threads.add(thread);
+    }
+
+    assertTrue(mDecodesStarted.tryAcquire(2, TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    // the third decode waits for a permit rather than creating a third decoder
+    assertFalse(mDecodesStarted.tryAcquire(100, TimeUnit.MILLISECONDS));
+    assertEquals(2, pool.getCreatedDecoderCount());
+
+    mDecodeGate.countDown();
+    for (DecodeThread thread : threads) {
+      thread.join(TIMEOUT_MS);
+      assertNotNull(thread.mResult);
+      thread.mResult.close();
+    }
+    assertEquals(2, pool.getCreatedDecoderCount());
+    assertEquals(0, mRecycledDecoderCount.get());
+    pool.close();
+    assertEquals(2, mRecycledDecoderCount.get());
+  }
+
+  @Test
+  public void testCloseRecyclesBusyDecodersOnceDone() throws Exception {
+    RegionDecoderPool pool = createPool(2);
+    // two idle decoders
+    mDecodeGate = new CountDownLatch(1);
+    DecodeThread first = new DecodeThread(pool);
+    DecodeThread second = new DecodeThread(pool);
+    first.start();
+    second.start();
+    assertTrue(mDecodesStarted.tryAcquire(2, TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    mDecodeGate.countDown();
+    first.join(TIMEOUT_MS);
+    second.join(TIMEOUT_MS);
+    assertEquals(2, pool.getCreatedDecoderCount());
+
+    // one of them busy while the pool is closed
+    mDecodeGate = new CountDownLatch(1);
+    DecodeThread busy = new DecodeThread(pool);
+    busy.start();
+    assertTrue(mDecodesStarted.tryAcquire(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    pool.close();
+    assertTrue(pool.isClosed());
+    assertTrue(mPooledByteBuffer.isClosed());
+    assertEquals(1, mRecycledDecoderCount.get());
+
+    mDecodeGate.countDown();
+    busy.join(TIMEOUT_MS);
+    assertNotNull(busy.mResult);
+    assertEquals(2, mRecycledDecoderCount.get());
+
+    assertNull(pool.decodeRegion(REGION, 1, Bitmap.Config.ARGB_8888));
+    assertEquals(2, pool.getCreatedDecoderCount());
+  }
+
+  @Test
+  public void testFailedDecoderCreationReleasesPermit() {
+    RegionDecoderPool pool = createPool(1);
+    mFailNextCreation = true;
+    assertNull(pool.decodeRegion(REGION, 1, Bitmap.Config.ARGB_8888));
+    assertEquals(1, pool.getCreatedDecoderCount());
+
+    CloseableReference<Bitmap> bitmap = pool.decodeRegion(REGION, 1, Bitmap.Config.ARGB_8888);
+    assertNotNull(bitmap);
+    bitmap.close();
+    assertEquals(2, pool.getCreatedDecoderCount());
+    pool.close();
+  }
+
+  private RegionDecoderPool createPool(int maxDecoders) {
+    return new RegionDecoderPool(mEncodedImage, mock(BitmapPool.class), maxDecoders);
+  }
+
+  private BitmapRegionDecoder createDecoder() throws IOException {
+    if (mFailNextCreation) {
+      mFailNextCreation = false;
+      throw new IOException("Unsupported image");
+    }
+    BitmapRegionDecoder decoder = mock(BitmapRegionDecoder.class);
+    when(decoder.decodeRegion(any(Rect.class), any(BitmapFactory.Options.class)))
+        .thenAnswer(
+            (Answer<Bitmap>)
+                invocation -> {
+                  mDecodesStarted.release();
+                  mDecodeGate.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                  Rect region = invocation.getArgument(0);
+                  BitmapFactory.Options options = invocation.getArgument(1);
+                  return MockBitmapFactory.create(
+                      region.width() / options.inSampleSize,
+                      region.height() / options.inSampleSize,
+                      options.inPreferredConfig);
+                });
+    doAnswer(invocation -> mRecycledDecoderCount.incrementAndGet()).when(decoder).recycle();
+    synchronized (mDecoders) {
+      mDecoders.add(decoder);
+    }
+    return decoder;
+  }
+
+  private static class DecodeThread extends Thread {
+    private final RegionDecoderPool mPool;
+    private volatile CloseableReference<Bitmap> mResult;
+
+    DecodeThread(RegionDecoderPool pool) {
+      mPool = pool;
+    }
+
+    @Override
+    public void run() {
+      mResult = mPool.decodeRegion(REGION, 1, Bitmap.Config.ARGB_8888);
+    }
+  }
+}
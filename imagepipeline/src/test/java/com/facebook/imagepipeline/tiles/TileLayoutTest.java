@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.tiles;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.graphics.Rect;
+import android.net.Uri;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class TileLayoutTest {
+
+  private static final int WIDTH = 10000;
+  private static final int HEIGHT = 6000;
+  private static final int TILE_SIZE = 512;
+
+  private TileLayout mLayout;
+
+  @Before
+  public void setUp() {
+    mLayout =
+        new TileLayout(
+            WIDTH, HEIGHT, TILE_SIZE, TileLayout.getPreviewSampleSize(WIDTH, HEIGHT, 1024));
+  }
+
+  @Test
+  public void testPreviewSampleSize() {
+    assertEquals(16, mLayout.getMaxSampleSize());
+    assertEquals(1, TileLayout.getPreviewSampleSize(1000, 800, 1024));
+    assertEquals(2, TileLayout.getPreviewSampleSize(1000, 2048, 1024));
+  }
+
+  @Test
+  public void testSampleSizeForScale() {
+    assertEquals(1, mLayout.getSampleSizeForScale(2f));
+    assertEquals(1, mLayout.getSampleSizeForScale(1f));
+    assertEquals(1, mLayout.getSampleSizeForScale(0.6f));
+    assertEquals(2, mLayout.getSampleSizeForScale(0.5f));
+    assertEquals(4, mLayout.getSampleSizeForScale(0.2f));
+    assertEquals(16, mLayout.getSampleSizeForScale(0.001f));
+  }
+
+  @Test
+  public void testTileRects() {
+    assertEquals(20, mLayout.getColumnCount(1));
+    assertEquals(12, mLayout.getRowCount(1));
+    assertEquals(5, mLayout.getColumnCount(4));
+    assertEquals(3, mLayout.getRowCount(4));
+
+    Rect tileRect = new Rect();
+    mLayout.getTileRect(2, 1, 2, tileRect);
+    assertEquals(new Rect(1024, 2048, 2048, 3072), tileRect);
+    // the last tiles are cut at the image edges
+    mLayout.getTileRect(1, 19, 11, tileRect);
+    assertEquals(new Rect(9728, 5632, WIDTH, HEIGHT), tileRect);
+  }
+
+  @Test
+  public void testVisibleTileRange() {
+    Rect tileRange = new Rect();
+    assertTrue(mLayout.getVisibleTileRange(new Rect(1000, 500, 2100, 1100), 1, tileRange));
+    assertEquals(new Rect(1, 0, 5, 3), tileRange);
+
+    assertTrue(mLayout.getVisibleTileRange(new Rect(1000, 500, 2100, 1100), 4, tileRange));
+    assertEquals(new Rect(0, 0, 2, 1), tileRange);
+
+    assertTrue(mLayout.getVisibleTileRange(new Rect(-500, 5900, 100, 7000), 1, tileRange));
+    assertEquals(new Rect(0, 11, 1, 12), tileRange);
+
+    assertFalse(mLayout.getVisibleTileRange(new Rect(WIDTH, 0, WIDTH + 100, 100), 1, tileRange));
+    assertTrue(tileRange.isEmpty());
+  }
+
+  @Test
+  public void testTileCacheKeys() {
+    TileCacheKey key = new TileCacheKey("http://fresco/big.jpg", 1, 5, 3);
+    assertEquals(new TileCacheKey("http://fresco/big.jpg", 1, 5, 3), key);
+    assertEquals(new TileCacheKey("http://fresco/big.jpg", 1, 5, 3).hashCode(), key.hashCode());
+    assertNotEquals(new TileCacheKey("http://fresco/big.jpg", 2, 5, 3), key);
+    assertEquals(new TileCacheKey("http://fresco/big.jpg", 2, 2, 1), key.getCoarserTileKey());
+    assertTrue(key.containsUri(Uri.parse("http://fresco/big.jpg")));
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.tiles;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyBoolean;
+import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.media.ExifInterface;
+import com.facebook.common.memory.PooledByteBuffer;
+import com.facebook.common.references.CloseableReference;
+import com.facebook.imagepipeline.common.ImageDecodeOptions;
+import com.facebook.imagepipeline.decoder.ImageDecoder;
+import com.facebook.imagepipeline.image.CloseableImage;
+import com.facebook.imagepipeline.image.EncodedImage;
+import com.facebook.imagepipeline.image.ImmutableQualityInfo;
+import com.facebook.imagepipeline.image.QualityInfo;
+import com.facebook.imagepipeline.memory.BitmapPool;
+import com.facebook.imagepipeline.testing.MockBitmapFactory;
+import com.facebook.imagepipeline.testing.TrivialPooledByteBuffer;
+import java.io.IOException;
+import java.io.InputStream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.stubbing.Answer;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareOnlyThisForTest;
+import org.powermock.modules.junit4.rule.PowerMockRule;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@PrepareOnlyThisForTest({BitmapRegionDecoder.class})
+@Config(manifest = Config.NONE)
+@PowerMockIgnore({"org.mockito.*", "org.robolectric.*", "androidx.*", "android.*"})
+public class TiledImageDecoderTest {
+
+  private static final long MIN_TILED_PIXEL_COUNT = 1000L * 1000L;
+  private static final int TILE_SIZE = 256;
+  private static final int MAX_PREVIEW_SIZE = 512;
+
+  @Rule public PowerMockRule rule = new PowerMockRule();
+
+  private TrivialPooledByteBuffer mPooledByteBuffer;
+  private EncodedImage mEncodedImage;
+  private ImageDecoder mFallbackDecoder;
+  private CloseableImage mFallbackImage;
+  private TiledImageDecoder mDecoder;
+
+  @Before
+  public void setUp() throws Exception {
+    mPooledByteBuffer = new TrivialPooledByteBuffer(new byte[16]);
+    CloseableReference<PooledByteBuffer> ref = CloseableReference.of(mPooledByteBuffer);
+    mEncodedImage = new EncodedImage(ref);
+    ref.close();
+    mEncodedImage.setRotationAngle(0);
+    mEncodedImage.setExifOrientation(ExifInterface.ORIENTATION_NORMAL);
+
+    mFallbackImage = mock(CloseableImage.class);
+    mFallbackDecoder = mock(ImageDecoder.class);
+    when(mFallbackDecoder.decode(
+            any(EncodedImage.class),
+            anyInt(),
+            any(QualityInfo.class),
+            any(ImageDecodeOptions.class)))
+        .thenReturn(mFallbackImage);
+    mDecoder =
+        new TiledImageDecoder(
+            mock(BitmapPool.class),
+            mFallbackDecoder,
+            MIN_TILED_PIXEL_COUNT,
+            TILE_SIZE,
+            MAX_PREVIEW_SIZE,
+            2);
+
+    BitmapRegionDecoder regionDecoder = mock(BitmapRegionDecoder.class);
+    when(regionDecoder.decodeRegion(any(Rect.class), any(BitmapFactory.Options.class)))
+        .thenAnswer(
+            (Answer<Bitmap>)
+                invocation -> {
+                  Rect region = invocation.getArgument(0);
+                  BitmapFactory.Options options = invocation.getArgument(1);
+                  return MockBitmapFactory.create(
+                      region.width() / options.inSampleSize,
+                      region.height() / options.inSampleSize,
+                      options.inPreferredConfig);
+                });
+    mockStatic(BitmapRegionDecoder.class);
+    when(BitmapRegionDecoder.newInstance(any(InputStream.class), anyBoolean()))
+        .thenReturn(regionDecoder);
+  }
+
+  @Test
+  public void testTilesLargeImage() {
+    setSize(4000, 3000);
+    CloseableImage image = decode(ImmutableQualityInfo.FULL_QUALITY);
+
+    assertTrue(image instanceof CloseableTiledImage);
+    CloseableTiledImage tiledImage = (CloseableTiledImage) image;
+    assertEquals(4000, tiledImage.getWidth());
+    assertEquals(3000, tiledImage.getHeight());
+    assertEquals(TILE_SIZE, tiledImage.getLayout().getTileSize());
+    assertEquals(8, tiledImage.getLayout().getMaxSampleSize());
+    assertEquals(500, tiledImage.getPreview().getWidth());
+    verify(mFallbackDecoder, never())
+        .decode(
+            any(EncodedImage.class),
+            anyInt(),
+            any(QualityInfo.class),
+            any(ImageDecodeOptions.class));
+
+    // the tiled image holds its own reference to the encoded image
+    mEncodedImage.close();
+    assertFalse(mPooledByteBuffer.isClosed());
+    tiledImage.close();
+    assertTrue(mPooledByteBuffer.isClosed());
+  }
+
+  @Test
+  public void testSmallImageFallsBack() {
+    setSize(1000, 999);
+    assertSame(mFallbackImage, decode(ImmutableQualityInfo.FULL_QUALITY));
+  }
+
+  @Test
+  public void testPartialImageFallsBack() {
+    setSize(4000, 3000);
+    assertSame(mFallbackImage, decode(ImmutableQualityInfo.of(1, true, false)));
+  }
+
+  @Test
+  public void testUnknownSizeFallsBack() {
+    setSize(0, 3000);
+    assertSame(mFallbackImage, decode(ImmutableQualityInfo.FULL_QUALITY));
+  }
+
+  @Test
+  public void testRotatedImageFallsBack() {
+    setSize(4000, 3000);
+    mEncodedImage.setRotationAngle(90);
+    assertSame(mFallbackImage, decode(ImmutableQualityInfo.FULL_QUALITY));
+
+    mEncodedImage.setRotationAngle(0);
+    mEncodedImage.setExifOrientation(ExifInterface.ORIENTATION_FLIP_HORIZONTAL);
+    assertSame(mFallbackImage, decode(ImmutableQualityInfo.FULL_QUALITY));
+  }
+
+  @Test
+  public void testUnsupportedImageFallsBack() throws Exception {
+    setSize(4000, 3000);
+    when(BitmapRegionDecoder.newInstance(any(InputStream.class), anyBoolean()))
+        .thenThrow(new IOException("Unsupported image"));
+    assertSame(mFallbackImage, decode(ImmutableQualityInfo.FULL_QUALITY));
+
+    // the reference taken for the region decoders is released
+    mEncodedImage.close();
+    assertTrue(mPooledByteBuffer.isClosed());
+  }
+
+  private void setSize(int width, int height) {
+    mEncodedImage.setWidth(width);
+    mEncodedImage.setHeight(height);
+  }
+
+  private CloseableImage decode(QualityInfo qualityInfo) {
+    return mDecoder.decode(
+        mEncodedImage, mEncodedImage.getSize(), qualityInfo, ImageDecodeOptions.defaults());
+  }
+}
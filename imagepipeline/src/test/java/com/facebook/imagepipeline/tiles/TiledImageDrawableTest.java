@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.tiles;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyBoolean;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import com.facebook.cache.common.CacheKey;
+import com.facebook.common.memory.PooledByteBuffer;
+import com.facebook.common.references.CloseableReference;
+import com.facebook.imagepipeline.bitmaps.SimpleBitmapReleaser;
+import com.facebook.imagepipeline.cache.MemoryCache;
+import com.facebook.imagepipeline.image.CloseableImage;
+import com.facebook.imagepipeline.image.CloseableStaticBitmap;
+import com.facebook.imagepipeline.image.EncodedImage;
+import com.facebook.imagepipeline.image.ImmutableQualityInfo;
+import com.facebook.imagepipeline.memory.BitmapPool;
+import com.facebook.imagepipeline.testing.MockBitmapFactory;
+import com.facebook.imagepipeline.testing.TrivialPooledByteBuffer;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.stubbing.Answer;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareOnlyThisForTest;
+import org.powermock.modules.junit4.rule.PowerMockRule;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@PrepareOnlyThisForTest({BitmapRegionDecoder.class})
+@Config(manifest = Config.NONE)
+@PowerMockIgnore({"org.mockito.*", "org.robolectric.*", "androidx.*", "android.*"})
+public class TiledImageDrawableTest {
+
+  private static final String SOURCE = "tiled_image";
+  private static final int IMAGE_SIZE = 8192;
+  private static final int TILE_SIZE = 512;
+  // the bounds show the image at 1/8, the sample size of the preview
+  private static final Rect BOUNDS = new Rect(0, 0, 1024, 1024);
+  private static final float FULL_RESOLUTION_SCALE = 8f;
+
+  @Rule public PowerMockRule rule = new PowerMockRule();
+
+  private BitmapRegionDecoder mRegionDecoder;
+  private Bitmap mPreview;
+  private MemoryCache<CacheKey, CloseableImage> mMemoryCache;
+  private List<Runnable> mDecodeTasks;
+  private TiledImageDrawable mDrawable;
+
+  @Before
+  @SuppressWarnings("unchecked")
+  public void setUp() throws Exception {
+    mRegionDecoder = mock(BitmapRegionDecoder.class);
+    when(mRegionDecoder.decodeRegion(any(Rect.class), any(BitmapFactory.Options.class)))
+        .thenAnswer(
+            (Answer<Bitmap>)
+                invocation -> {
+                  Rect region = invocation.getArgument(0);
+                  BitmapFactory.Options options = invocation.getArgument(1);
+                  return MockBitmapFactory.create(
+                      region.width() / options.inSampleSize,
+                      region.height() / options.inSampleSize,
+                      options.inPreferredConfig);
+                });
+    mockStatic(BitmapRegionDecoder.class);
+    when(BitmapRegionDecoder.newInstance(any(InputStream.class), anyBoolean()))
+        .thenReturn(mRegionDecoder);
+
+    CloseableReference<PooledByteBuffer> ref =
+        CloseableReference.of(new TrivialPooledByteBuffer(new byte[16]));
+    EncodedImage encodedImage = new EncodedImage(ref);
+    ref.close();
+    TileLayout layout =
+        new TileLayout(
+            IMAGE_SIZE,
+            IMAGE_SIZE,
+            TILE_SIZE,
+            TileLayout.getPreviewSampleSize(IMAGE_SIZE, IMAGE_SIZE, BOUNDS.width()));
+    mPreview = MockBitmapFactory.create(1024, 1024, Bitmap.Config.ARGB_8888);
+    CloseableTiledImage image =
+        new CloseableTiledImage(
+            new RegionDecoderPool(encodedImage, mock(BitmapPool.class), 2),
+            SOURCE,
+            layout,
+            Bitmap.Config.ARGB_8888,
+            CloseableReference.of(mPreview, SimpleBitmapReleaser.getInstance()));
+
+    mMemoryCache = mock(MemoryCache.class);
+    when(mMemoryCache.cache(any(CacheKey.class), any(CloseableReference.class)))
+        .thenAnswer(
+            invocation -> ((CloseableReference<CloseableImage>) invocation.getArgument(1)).clone());
+    mDecodeTasks = new ArrayList<>();
+    mDrawable = new TiledImageDrawable(image, mMemoryCache, mDecodeTasks::add);
+    mDrawable.setBounds(BOUNDS);
+  }
+
+  @Test
+  public void testDrawsPreviewOnlyWhenItIsSharpEnough() {
+    Canvas canvas = draw(1f, BOUNDS);
+    verify(canvas).drawBitmap(eq(mPreview), isNull(), eq(BOUNDS), any(Paint.class));
+    assertEquals(0, mDecodeTasks.size());
+  }
+
+  @Test
+  public void testRequestsVisibleTilesOnce() {
+    // 1024 x 512 image pixels, the first two tiles of the first row
+    Canvas canvas = draw(FULL_RESOLUTION_SCALE, new Rect(0, 0, 128, 64));
+    verify(canvas).drawBitmap(eq(mPreview), isNull(), eq(BOUNDS), any(Paint.class));
+    assertEquals(2, mDecodeTasks.size());
+
+    // the tiles are already being decoded
+    draw(FULL_RESOLUTION_SCALE, new Rect(0, 0, 128, 64));
+    assertEquals(2, mDecodeTasks.size());
+    verify(mMemoryCache, times(2)).get(new TileCacheKey(SOURCE, 1, 0, 0));
+  }
+
+  @Test
+  public void testSkipsTilesNoLongerVisible() {
+    draw(FULL_RESOLUTION_SCALE, new Rect(0, 0, 64, 64));
+    draw(FULL_RESOLUTION_SCALE, new Rect(640, 640, 704, 704));
+    assertEquals(2, mDecodeTasks.size());
+
+    runDecodeTasks();
+    assertEquals(1, mDrawable.getDecodedTileCount());
+    // only the tile still visible is decoded
+    verify(mRegionDecoder).decodeRegion(any(Rect.class), any(BitmapFactory.Options.class));
+    verify(mRegionDecoder)
+        .decodeRegion(eq(new Rect(5120, 5120, 5632, 5632)), any(BitmapFactory.Options.class));
+  }
+
+  @Test
+  public void testDrawsDecodedTile() {
+    draw(FULL_RESOLUTION_SCALE, new Rect(0, 0, 64, 64));
+    runDecodeTasks();
+    TileCacheKey key = new TileCacheKey(SOURCE, 1, 0, 0);
+    verify(mMemoryCache).cache(eq(key), any(CloseableReference.class));
+
+    Canvas canvas = draw(FULL_RESOLUTION_SCALE, new Rect(0, 0, 64, 64));
+    verify(canvas)
+        .drawBitmap(any(Bitmap.class), isNull(), eq(new RectF(0, 0, 64, 64)), any(Paint.class));
+    assertEquals(1, mDecodeTasks.size());
+  }
+
+  @Test
+  public void testDrawsCachedTileWithoutDecodingIt() {
+    Bitmap tileBitmap = MockBitmapFactory.create(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+    CloseableReference<CloseableImage> tile =
+        CloseableReference.of(
+            CloseableStaticBitmap.of(
+                tileBitmap,
+                SimpleBitmapReleaser.getInstance(),
+                ImmutableQualityInfo.FULL_QUALITY,
+                0));
+    when(mMemoryCache.get(new TileCacheKey(SOURCE, 1, 0, 0))).thenReturn(tile);
+
+    Canvas canvas = draw(FULL_RESOLUTION_SCALE, new Rect(0, 0, 64, 64));
+    verify(canvas)
+        .drawBitmap(eq(tileBitmap), isNull(), eq(new RectF(0, 0, 64, 64)), any(Paint.class));
+    assertEquals(0, mDecodeTasks.size());
+  }
+
+  /** Draws the drawable on a canvas scaled by the given factor and clipped to the given rect. */
+  private Canvas draw(float scale, Rect clip) {
+    Canvas canvas = mock(Canvas.class);
+    when(canvas.getClipBounds(any(Rect.class)))
+        .thenAnswer(
+            invocation -> {
+              ((Rect) invocation.getArgument(0)).set(clip);
+              return true;
+            });
+    doAnswer(
+            invocation -> {
+              ((Matrix) invocation.getArgument(0)).setScale(scale, scale);
+              return null;
+            })
+        .when(canvas)
+        .getMatrix(any(Matrix.class));
+    mDrawable.draw(canvas);
+    return canvas;
+  }
+
+  private void runDecodeTasks() {
+    for (Runnable task : new ArrayList<>(mDecodeTasks)) {
+      task.run();
+    }
+  }
+}
@@ -15,11 +15,16 @@ import com.facebook.common.memory.ByteArrayPool;
 import com.facebook.common.memory.PooledByteStreams;
 import com.facebook.imagepipeline.testing.FakeBufferMemoryChunkPool;
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
 import org.robolectric.annotation.Config;
 
 /** Basic tests for {@link MemoryPooledByteBufferFactory} */
@@ -70,6 +75,41 @@ public class MemoryPooledByteBufferFactoryTest {
     testNewByteBuf_5(mBufferFactory, mBufferStats);
   }
 
+  @Test
+  public void testNewByteBufFromChannel() throws Exception {
+    File file = new File(RuntimeEnvironment.application.getCacheDir(), "channel-test");
+    FileOutputStream outputStream = new FileOutputStream(file);
+    try {
+      outputStream.write(mData);
+    } finally {
+      outputStream.close();
+    }
+    FileInputStream inputStream = new FileInputStream(file);
+    MemoryPooledByteBuffer sb;
+    try {
+      sb = mBufferFactory.newByteBuffer(inputStream.getChannel());
+    } finally {
+      inputStream.close();
+    }
+    Assert.assertNotNull(sb);
+    Assert.assertEquals(mData.length, sb.size());
+    Assert.assertEquals(16, sb.getCloseableReference().get().getSize());
+    assertArrayEquals(mData, getBytes(sb), mData.length);
+    file.delete();
+  }
+
+  @Test
+  public void testNewByteBufFromByteBuffer() {
+    ByteBuffer source = ByteBuffer.wrap(mData);
+    source.position(2);
+    MemoryPooledByteBuffer sb = mBufferFactory.newByteBuffer(source);
+    Assert.assertNotNull(sb);
+    Assert.assertEquals(mData.length - 2, sb.size());
+    Assert.assertEquals(2, source.position());
+    Assert.assertEquals(mData[2], sb.read(0));
+    Assert.assertEquals(mData[mData.length - 1], sb.read(sb.size() - 1));
+  }
+
   private void testNewByteBuf_1(
       final MemoryPooledByteBufferFactory mFactory, final PoolStats mStats) throws Exception {
     MemoryPooledByteBuffer sb1 = mFactory.newByteBuffer(new ByteArrayInputStream(mData));
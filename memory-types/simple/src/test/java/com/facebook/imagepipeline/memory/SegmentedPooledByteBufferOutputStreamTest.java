@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.memory;
+
+import com.facebook.common.internal.ImmutableMap;
+import com.facebook.common.memory.PooledByteBuffer;
+import com.facebook.common.memory.PooledByteBufferInputStream;
+import com.facebook.common.references.CloseableReference;
+import com.facebook.imagepipeline.testing.FakeBufferMemoryChunkPool;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/** Tests for {@link SegmentedPooledByteBufferOutputStream} and {@link SegmentedPooledByteBuffer} */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class SegmentedPooledByteBufferOutputStreamTest {
+  private static final int SEGMENT_SIZE = 8;
+
+  private BufferMemoryChunkPool mPool;
+  private PoolStats<byte[]> mStats;
+  private byte[] mData;
+
+  @Before
+  public void setup() {
+    mPool = new FakeBufferMemoryChunkPool();
+    mStats = new PoolStats(mPool);
+    mData = new byte[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19};
+  }
+
+  @Test
+  public void testTakesSegmentsWithoutReallocating() throws Exception {
+    SegmentedPooledByteBufferOutputStream os =
+        new SegmentedPooledByteBufferOutputStream(mPool, SEGMENT_SIZE);
+    SegmentedPooledByteBuffer buf = doWrite(os, mData);
+
+    Assert.assertEquals(mData.length, buf.size());
+    Assert.assertEquals(3, buf.getSegmentCount());
+    Assert.assertArrayEquals(mData, getBytes(buf));
+    mStats.refresh();
+    Assert.assertEquals(
+        ImmutableMap.of(
+            32, new IntPair(0, 0),
+            16, new IntPair(0, 0),
+            8, new IntPair(3, 0),
+            4, new IntPair(0, 0)),
+        mStats.getBucketStats());
+
+    os.close();
+    buf.close();
+    mStats.refresh();
+    Assert.assertEquals(new IntPair(0, 3), mStats.getBucketStats().get(8));
+  }
+
+  @Test
+  public void testGatheringReads() throws Exception {
+    SegmentedPooledByteBufferOutputStream os =
+        new SegmentedPooledByteBufferOutputStream(mPool, SEGMENT_SIZE);
+    os.write(mData, 0, mData.length);
+    SegmentedPooledByteBuffer buf = os.toByteBuffer();
+
+    byte[] bytes = new byte[12];
+    Assert.assertEquals(10, buf.read(5, bytes, 1, 10));
+    Assert.assertArrayEquals(Arrays.copyOfRange(mData, 5, 15), Arrays.copyOfRange(bytes, 1, 11));
+    Assert.assertEquals(mData[17], buf.read(17));
+
+    PooledByteBufferInputStream is = new PooledByteBufferInputStream(buf);
+    byte[] streamed = new byte[mData.length];
+    int offset = 0;
+    int length;
+    while ((length = is.read(streamed, offset, Math.min(7, streamed.length - offset))) > 0) {
+      offset += length;
+    }
+    Assert.assertArrayEquals(mData, streamed);
+
+    ByteBuffer contiguous = buf.getByteBuffer();
+    Assert.assertTrue(contiguous.isDirect());
+    Assert.assertEquals(mData.length, contiguous.remaining());
+    byte[] copied = new byte[mData.length];
+    contiguous.duplicate().get(copied);
+    Assert.assertArrayEquals(mData, copied);
+    Assert.assertSame(contiguous, buf.getByteBuffer());
+    os.close();
+    buf.close();
+  }
+
+  @Test
+  public void testIntermediateBuffersShareSegments() throws Exception {
+    SegmentedPooledByteBufferOutputStream os =
+        new SegmentedPooledByteBufferOutputStream(mPool, SEGMENT_SIZE);
+    SegmentedPooledByteBuffer buf1 = doWrite(os, Arrays.copyOf(mData, 9));
+    SegmentedPooledByteBuffer buf2 = doWrite(os, Arrays.copyOfRange(mData, 9, 20));
+    Assert.assertEquals(9, buf1.size());
+    Assert.assertEquals(2, buf1.getSegmentCount());
+    Assert.assertEquals(20, buf2.size());
+    Assert.assertArrayEquals(Arrays.copyOf(mData, 9), getBytes(buf1));
+    Assert.assertArrayEquals(mData, getBytes(buf2));
+
+    final CloseableReference<MemoryChunk> first = buf1.mSegments.get(0);
+    final CloseableReference<MemoryChunk> last = buf2.mSegments.get(2);
+    Assert.assertSame(first.get(), buf2.mSegments.get(0).get());
+    Assert.assertEquals(3, first.getUnderlyingReferenceTestOnly().getRefCountTestOnly());
+    Assert.assertEquals(2, last.getUnderlyingReferenceTestOnly().getRefCountTestOnly());
+    os.close();
+    buf1.close();
+    buf2.close();
+    Assert.assertEquals(0, first.getUnderlyingReferenceTestOnly().getRefCountTestOnly());
+    Assert.assertEquals(0, last.getUnderlyingReferenceTestOnly().getRefCountTestOnly());
+  }
+
+  @Test
+  public void testEmpty() {
+    SegmentedPooledByteBufferOutputStream os =
+        new SegmentedPooledByteBufferOutputStream(mPool, SEGMENT_SIZE);
+    SegmentedPooledByteBuffer buf = os.toByteBuffer();
+    Assert.assertEquals(0, buf.size());
+    Assert.assertEquals(0, buf.getSegmentCount());
+    os.close();
+    buf.close();
+    Assert.assertTrue(buf.isClosed());
+    mStats.refresh();
+    Assert.assertEquals(0, mStats.mUsedCount);
+    Assert.assertEquals(0, mStats.mFreeCount);
+  }
+
+  @Test(expected = PooledByteBuffer.ClosedException.class)
+  public void testGetByteBufferAfterClose() throws Exception {
+    SegmentedPooledByteBufferOutputStream os =
+        new SegmentedPooledByteBufferOutputStream(mPool, SEGMENT_SIZE);
+    SegmentedPooledByteBuffer buf = doWrite(os, mData);
+    os.close();
+    buf.close();
+    buf.getByteBuffer();
+  }
+
+  @Test(expected = MemoryPooledByteBufferOutputStream.InvalidStreamException.class)
+  public void testToByteBufferAfterClose() {
+    SegmentedPooledByteBufferOutputStream os =
+        new SegmentedPooledByteBufferOutputStream(mPool, SEGMENT_SIZE);
+    os.close();
+    os.toByteBuffer();
+  }
+
+  // write out the contents of data into the output stream
+  private static SegmentedPooledByteBuffer doWrite(
+      SegmentedPooledByteBufferOutputStream os, byte[] data) throws Exception {
+    for (int i = 0; i < data.length; i++) {
+      os.write(data, i, 1);
+    }
+    return os.toByteBuffer();
+  }
+
+  private static byte[] getBytes(SegmentedPooledByteBuffer bb) {
+    byte[] bytes = new byte[bb.size()];
+    bb.read(0, bytes, 0, bytes.length);
+    return bytes;
+  }
+}
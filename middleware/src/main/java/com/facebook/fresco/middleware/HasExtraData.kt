@@ -41,6 +41,8 @@ interface HasExtraData {
     /* number of deduped request in EncodedCacheKeyMultiplexProducer */
     const val KEY_MULTIPLEX_ENCODED_COUNT = "multiplex_enc_cnt"
     const val KEY_LAST_SCAN_NUMBER = "last_scan_num"
+    /* number of bytes of the image NetworkFetchProducer resumed instead of downloading them again */
+    const val KEY_RESUMED_BYTES = "resumed_bytes"
 
     const val KEY_IMAGE_SOURCE_EXTRAS = "image_source_extras"
     const val KEY_COLOR_SPACE = "image_color_space"
@@ -13,8 +13,12 @@ import android.util.Pair;
 import bolts.Continuation;
 import bolts.Task;
 import com.facebook.cache.common.CacheKey;
+import com.facebook.cache.common.ResourceIdHasher;
+import com.facebook.cache.common.Sha1ResourceIdHasher;
 import com.facebook.cache.common.SimpleCacheKey;
 import com.facebook.cache.disk.DiskStorage;
+import com.facebook.cache.disk.DiskStorageCache;
+import com.facebook.cache.disk.FileCache;
 import com.facebook.common.internal.ByteStreams;
 import com.facebook.common.internal.Preconditions;
 import com.facebook.common.internal.Predicate;
@@ -105,7 +109,7 @@ public class FrescoFlipperPlugin extends BufferingFlipperPlugin
     mFlipperImageTracker =
         imageTracker instanceof FlipperImageTracker
             ? (FlipperImageTracker) imageTracker
-            : new FlipperImageTracker();
+            : new FlipperImageTracker(getMainDiskCacheResourceIdHasher());
     mPlatformBitmapFactory = bitmapFactory;
     mSonarObjectHelper = flipperObjectHelper;
     mMemoryManager = memoryManager;
@@ -119,7 +123,7 @@ public class FrescoFlipperPlugin extends BufferingFlipperPlugin
 
   public FrescoFlipperPlugin() {
     this(
-        new FlipperImageTracker(),
+        new FlipperImageTracker(getMainDiskCacheResourceIdHasher()),
         Fresco.getImagePipelineFactory().getPlatformBitmapFactory(),
         null,
         new NoOpDebugMemoryManager(),
@@ -128,6 +132,17 @@ public class FrescoFlipperPlugin extends BufferingFlipperPlugin
         null);
   }
 
+  /** Returns the hasher of the main disk cache, or the default one if it is not known yet. */
+  private static ResourceIdHasher getMainDiskCacheResourceIdHasher() {
+    if (Fresco.hasBeenInitialized()) {
+      FileCache mainFileCache = Fresco.getImagePipelineFactory().getMainFileCache();
+      if (mainFileCache instanceof DiskStorageCache) {
+        return ((DiskStorageCache) mainFileCache).getResourceIdHasher();
+      }
+    }
+    return Sha1ResourceIdHasher.getInstance();
+  }
+
   public FlipperImageTracker getFlipperImageTracker() {
     return mFlipperImageTracker;
   }
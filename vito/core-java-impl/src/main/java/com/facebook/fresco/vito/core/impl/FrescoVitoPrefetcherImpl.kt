@@ -19,18 +19,36 @@ import com.facebook.fresco.vito.options.DecodedImageOptions
 import com.facebook.fresco.vito.options.EncodedImageOptions
 import com.facebook.fresco.vito.options.ImageOptions
 import com.facebook.fresco.vito.options.ImageOptions.Companion.defaults
+import com.facebook.imagepipeline.common.Priority
 import com.facebook.imagepipeline.core.ImagePipeline
 import com.facebook.imagepipeline.listener.RequestListener
 import com.facebook.imagepipeline.request.ImageRequest
 import java.lang.NullPointerException
 import java.util.concurrent.CancellationException
 
-class FrescoVitoPrefetcherImpl(
+class FrescoVitoPrefetcherImpl
+@JvmOverloads
+constructor(
     private val imagePipeline: ImagePipeline,
     private val imagePipelineUtils: ImagePipelineUtils,
-    private val callerContextVerifier: CallerContextVerifier?
+    private val callerContextVerifier: CallerContextVerifier?,
+    prefetchWithDistanceToViewport: Boolean = false
 ) : FrescoVitoPrefetcher {
 
+  /**
+   * Prefetches the images reported by [setDistanceToViewport], with the default image options, or
+   * null if the distances are ignored.
+   */
+  val viewportPrefetchScheduler: ViewportPrefetchScheduler? =
+      if (prefetchWithDistanceToViewport) {
+        ViewportPrefetchScheduler(
+            ViewportPrefetchScheduler.PrefetchStarter { target, uri, callerContext, priority, _ ->
+              prefetchWithPriority(target, uri, callerContext, priority)
+            })
+      } else {
+        null
+      }
+
   override fun prefetch(
       prefetchTarget: PrefetchTarget,
       uri: Uri,
@@ -109,13 +127,41 @@ class FrescoVitoPrefetcherImpl(
     }
   }
 
+  private fun prefetchWithPriority(
+      prefetchTarget: PrefetchTarget,
+      uri: Uri,
+      callerContext: Any?,
+      priority: Priority
+  ): DataSource<Void> {
+    if (prefetchTarget == PrefetchTarget.MEMORY_DECODED) {
+      // bitmap prefetches always have the default priority
+      val imageRequest = imagePipelineUtils.buildImageRequest(uri, defaults())
+      return prefetch(prefetchTarget, imageRequest, callerContext, null)
+    }
+    callerContextVerifier?.verifyCallerContext(callerContext, false)
+    val imageRequest =
+        imagePipelineUtils.buildEncodedImageRequest(uri, defaults())
+            ?: return DataSources.immediateFailedDataSource(NULL_IMAGE_MESSAGE)
+    return if (prefetchTarget == PrefetchTarget.MEMORY_ENCODED) {
+      imagePipeline.prefetchToEncodedCache(imageRequest, callerContext, priority)
+    } else {
+      imagePipeline.prefetchToDiskCache(imageRequest, callerContext, priority)
+    }
+  }
+
   override fun setDistanceToViewport(
       distance: Int,
       callerContext: Any?,
       uri: Uri?,
       callsite: String
   ) {
-    // empty
+    if (uri != null) {
+      viewportPrefetchScheduler?.setDistanceToViewport(distance, callerContext, uri, callsite)
+    }
+  }
+
+  override fun setScrollVelocity(itemsPerSecond: Float, callsite: String) {
+    viewportPrefetchScheduler?.setScrollVelocity(itemsPerSecond, callsite)
   }
 
   companion object {
@@ -64,6 +64,9 @@ class NoOpFrescoVitoPrefetcher : FrescoVitoPrefetcher {
       callsite: String
   ) = throwUnsupportedOperationException()
 
+  override fun setScrollVelocity(itemsPerSecond: Float, callsite: String) =
+      throwUnsupportedOperationException()
+
   private fun throwUnsupportedOperationException(): Nothing {
     throw UnsupportedOperationException(EXCEPTION_MSG)
   }
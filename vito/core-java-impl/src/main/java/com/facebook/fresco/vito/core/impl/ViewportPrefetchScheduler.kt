@@ -0,0 +1,347 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.fresco.vito.core.impl
+
+import android.net.Uri
+import com.facebook.common.executors.CallerThreadExecutor
+import com.facebook.common.time.MonotonicClock
+import com.facebook.common.time.RealtimeSinceBootClock
+import com.facebook.datasource.BaseDataSubscriber
+import com.facebook.datasource.DataSource
+import com.facebook.fresco.vito.core.PrefetchTarget
+import com.facebook.imagepipeline.common.Priority
+import javax.annotation.concurrent.GuardedBy
+import kotlin.math.abs
+
+/**
+ * Prefetches images from their distance to the viewport and the scroll velocity of their callsite.
+ *
+ * Every image reported by [setDistanceToViewport] is a candidate. Its distance, in items, is
+ * reduced by how far its callsite scrolls towards it in [LOOKAHEAD_MS], and the candidates of all
+ * callsites are ranked by this distance. The closest [maxInFlightPrefetches] ones are prefetched:
+ * to the bitmap cache when they are next up, to the encoded cache when they are near and to the
+ * disk cache when they are far. As the distances change, the prefetches are moved to their new
+ * target or priority, and they are cancelled once the image is outranked, further than
+ * [maxDistance] or behind the scroll direction.
+ *
+ * The scroll velocity of a callsite is estimated from the distance updates of its images, unless
+ * it is reported by [setScrollVelocity].
+ */
+class ViewportPrefetchScheduler
+@JvmOverloads
+constructor(
+    private val prefetchStarter: PrefetchStarter,
+    private val maxInFlightPrefetches: Int = DEFAULT_MAX_IN_FLIGHT_PREFETCHES,
+    private val maxDistance: Int = DEFAULT_MAX_DISTANCE,
+    private val clock: MonotonicClock = RealtimeSinceBootClock.get()
+) {
+
+  /** Starts a prefetch, the scheduler closes the returned data source to cancel it. */
+  fun interface PrefetchStarter {
+    fun prefetch(
+        target: PrefetchTarget,
+        uri: Uri,
+        callerContext: Any?,
+        priority: Priority,
+        callsite: String
+    ): DataSource<Void>
+  }
+
+  private class Callsite(val name: String) {
+    val candidates: MutableMap<Uri, Candidate> = HashMap()
+
+    /** Positive when the images below the viewport come closer. */
+    var itemsPerSecond = 0f
+  }
+
+  private class Candidate(val uri: Uri, val callsite: Callsite) {
+    var callerContext: Any? = null
+    var distance = 0
+    var distanceUpdateMs = 0L
+    var rank = 0f
+    var target: PrefetchTarget? = null
+    var priority = Priority.LOW
+    var dataSource: DataSource<Void>? = null
+  }
+
+  @GuardedBy("this") private val callsites: MutableMap<String, Callsite> = HashMap()
+
+  @GuardedBy("this") private var isRescheduling = false
+
+  @GuardedBy("this") private var isRescheduleNeeded = false
+
+  /** Frees the slot of a finished prefetch for the next candidate. */
+  private val finishSubscriber =
+      object : BaseDataSubscriber<Void>() {
+        override fun onNewResultImpl(dataSource: DataSource<Void>) {
+          if (dataSource.isFinished) {
+            onPrefetchFinished()
+          }
+        }
+
+        override fun onFailureImpl(dataSource: DataSource<Void>) {
+          onPrefetchFinished()
+        }
+      }
+
+  /** Number of prefetches started, including the ones that moved a prefetch to a new target. */
+  @get:Synchronized
+  var startedPrefetchCount = 0
+    private set
+
+  /** Number of in-flight prefetches replaced by one with another target or priority. */
+  @get:Synchronized
+  var reprioritizedPrefetchCount = 0
+    private set
+
+  /** Number of in-flight prefetches cancelled before the image became visible. */
+  @get:Synchronized
+  var cancelledPrefetchCount = 0
+    private set
+
+  /**
+   * Sum of the progress of the cancelled prefetches, i.e. how many images worth of fetching was
+   * wasted on them.
+   */
+  @get:Synchronized
+  var wastedPrefetchProgress = 0f
+    private set
+
+  /** Number of images that became visible. */
+  @get:Synchronized
+  var visibleCount = 0
+    private set
+
+  /** Number of images that were already prefetched to the bitmap cache when they became visible. */
+  @get:Synchronized
+  var decodedWhenVisibleCount = 0
+    private set
+
+  /** Returns the fraction of the images that were decoded when they became visible. */
+  @Synchronized
+  fun getDecodedWhenVisibleRatio(): Float =
+      if (visibleCount == 0) 0f else decodedWhenVisibleCount.toFloat() / visibleCount
+
+  /**
+   * Updates the distance of an image to the viewport and reschedules the prefetches.
+   *
+   * @param distance the distance in items, positive below the viewport, negative above it and 0
+   *   when the image is visible
+   */
+  @Synchronized
+  fun setDistanceToViewport(distance: Int, callerContext: Any?, uri: Uri, callsite: String) {
+    val nowMs = clock.now()
+    val site = callsites.getOrPut(callsite) { Callsite(callsite) }
+    val existingCandidate = site.candidates[uri]
+    val isNew = existingCandidate == null
+    if (existingCandidate == null) {
+      if (site.candidates.size >= MAX_CANDIDATES_PER_CALLSITE) {
+        findEvictedCandidate(site)?.let {
+          cancel(it)
+          site.candidates.remove(it.uri)
+        }
+      }
+    } else {
+      val elapsedMs = nowMs - existingCandidate.distanceUpdateMs
+      if (elapsedMs > 0 && distance != existingCandidate.distance) {
+        val itemsPerSecond = (existingCandidate.distance - distance) * 1000f / elapsedMs
+        site.itemsPerSecond += VELOCITY_SMOOTHING * (itemsPerSecond - site.itemsPerSecond)
+      }
+    }
+    val candidate = existingCandidate ?: Candidate(uri, site).also { site.candidates[uri] = it }
+    candidate.callerContext = callerContext
+    candidate.distanceUpdateMs = nowMs
+    if (distance == 0 && (isNew || candidate.distance != 0)) {
+      onVisible(candidate)
+    }
+    candidate.distance = distance
+    reschedule()
+  }
+
+  /**
+   * Sets the scroll velocity of a callsite, in items per second, positive when the images below the
+   * viewport come closer.
+   */
+  @Synchronized
+  fun setScrollVelocity(itemsPerSecond: Float, callsite: String) {
+    callsites.getOrPut(callsite) { Callsite(callsite) }.itemsPerSecond = itemsPerSecond
+    reschedule()
+  }
+
+  /** Cancels the prefetches of a callsite and forgets its images, e.g. when its list goes away. */
+  @Synchronized
+  fun clear(callsite: String) {
+    val site = callsites.remove(callsite) ?: return
+    site.candidates.values.forEach { cancel(it) }
+    reschedule()
+  }
+
+  /**
+   * Returns the candidate to forget to make room for a new one: the visible one reported the
+   * longest ago, which needs no prefetch, or else the furthest one.
+   */
+  @GuardedBy("this")
+  private fun findEvictedCandidate(site: Callsite): Candidate? =
+      site.candidates.values.filter { it.distance == 0 }.minByOrNull { it.distanceUpdateMs }
+          ?: site.candidates.values.maxByOrNull { it.rank }
+
+  @GuardedBy("this")
+  private fun onVisible(candidate: Candidate) {
+    visibleCount++
+    val dataSource = candidate.dataSource ?: return
+    if (candidate.target == PrefetchTarget.MEMORY_DECODED && isSuccessful(dataSource)) {
+      decodedWhenVisibleCount++
+    }
+    // the image is fetched for display now, the prefetch is not needed to keep it going
+    if (!dataSource.isFinished) {
+      dataSource.close()
+      candidate.dataSource = null
+      candidate.target = null
+    }
+  }
+
+  @Synchronized
+  private fun onPrefetchFinished() {
+    reschedule()
+  }
+
+  /** Reschedules, once more if a prefetch finished or was closed while it did. */
+  @GuardedBy("this")
+  private fun reschedule() {
+    if (isRescheduling) {
+      isRescheduleNeeded = true
+      return
+    }
+    isRescheduling = true
+    try {
+      do {
+        isRescheduleNeeded = false
+        rescheduleOnce()
+      } while (isRescheduleNeeded)
+    } finally {
+      isRescheduling = false
+    }
+  }
+
+  @GuardedBy("this")
+  private fun rescheduleOnce() {
+    val ranked = ArrayList<Candidate>()
+    for (site in callsites.values) {
+      val iterator = site.candidates.values.iterator()
+      while (iterator.hasNext()) {
+        val candidate = iterator.next()
+        if (candidate.distance == 0) {
+          // visible images are not prefetched, and are the first to be forgotten
+          candidate.rank = 0f
+          continue
+        }
+        val towardsItemsPerSecond =
+            if (candidate.distance > 0) site.itemsPerSecond else -site.itemsPerSecond
+        candidate.rank = abs(candidate.distance) - towardsItemsPerSecond * LOOKAHEAD_MS / 1000f
+        if (candidate.rank > maxDistance || towardsItemsPerSecond < -MIN_ITEMS_PER_SECOND) {
+          cancel(candidate)
+          iterator.remove()
+        } else {
+          ranked.add(candidate)
+        }
+      }
+    }
+    ranked.sortBy { it.rank }
+
+    var inFlightCount = 0
+    for (candidate in ranked) {
+      val target =
+          when {
+            candidate.rank <= MAX_DECODED_RANK -> PrefetchTarget.MEMORY_DECODED
+            candidate.rank <= MAX_ENCODED_RANK -> PrefetchTarget.MEMORY_ENCODED
+            else -> PrefetchTarget.DISK
+          }
+      if (isDone(candidate, target)) {
+        continue
+      }
+      if (inFlightCount < maxInFlightPrefetches) {
+        inFlightCount++
+        update(candidate, target)
+      } else {
+        cancel(candidate)
+      }
+    }
+  }
+
+  /** Whether the candidate needs no more work for the target. */
+  @GuardedBy("this")
+  private fun isDone(candidate: Candidate, target: PrefetchTarget): Boolean {
+    val dataSource = candidate.dataSource ?: return false
+    val currentTarget = candidate.target ?: return false
+    if (!dataSource.isFinished) {
+      return false
+    }
+    // a failed prefetch is not retried, the image is fetched again once it is visible
+    return currentTarget == target ||
+        (!dataSource.hasFailed() && currentTarget.ordinal <= target.ordinal)
+  }
+
+  @GuardedBy("this")
+  private fun update(candidate: Candidate, target: PrefetchTarget) {
+    val priority = if (target == PrefetchTarget.DISK) Priority.LOW else Priority.MEDIUM
+    val previousDataSource = candidate.dataSource
+    if (previousDataSource != null &&
+        !previousDataSource.isFinished &&
+        candidate.target == target &&
+        candidate.priority == priority) {
+      return
+    }
+    // the new prefetch is started before the previous one is closed, so that the fetch they share
+    // is not cancelled in between
+    val dataSource =
+        prefetchStarter.prefetch(
+            target, candidate.uri, candidate.callerContext, priority, candidate.callsite.name)
+    candidate.dataSource = dataSource
+    candidate.target = target
+    candidate.priority = priority
+    startedPrefetchCount++
+    if (previousDataSource != null) {
+      if (!previousDataSource.isFinished) {
+        reprioritizedPrefetchCount++
+      }
+      previousDataSource.close()
+    }
+    dataSource.subscribe(finishSubscriber, CallerThreadExecutor.getInstance())
+  }
+
+  /** Cancels the prefetch of the candidate if it is in flight. */
+  @GuardedBy("this")
+  private fun cancel(candidate: Candidate) {
+    val dataSource = candidate.dataSource ?: return
+    if (dataSource.isFinished) {
+      return
+    }
+    cancelledPrefetchCount++
+    wastedPrefetchProgress += dataSource.progress
+    dataSource.close()
+    candidate.dataSource = null
+    candidate.target = null
+  }
+
+  private fun isSuccessful(dataSource: DataSource<Void>): Boolean =
+      dataSource.isFinished && !dataSource.hasFailed()
+
+  companion object {
+    const val DEFAULT_MAX_IN_FLIGHT_PREFETCHES = 6
+    const val DEFAULT_MAX_DISTANCE = 8
+
+    /** How far ahead the scroll velocity moves the images. */
+    const val LOOKAHEAD_MS = 500
+
+    private const val MAX_DECODED_RANK = 1f
+    private const val MAX_ENCODED_RANK = 3f
+    private const val MIN_ITEMS_PER_SECOND = 0.5f
+    private const val VELOCITY_SMOOTHING = 0.5f
+    private const val MAX_CANDIDATES_PER_CALLSITE = 64
+  }
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.fresco.vito.core.impl;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+import android.net.Uri;
+import com.facebook.datasource.AbstractDataSource;
+import com.facebook.datasource.DataSource;
+import com.facebook.fresco.vito.core.PrefetchTarget;
+import com.facebook.imagepipeline.common.Priority;
+import com.facebook.imagepipeline.testing.FakeClock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class ViewportPrefetchSchedulerTest {
+
+  private static final String CALLSITE = "feed";
+
+  // scroll replay
+  private static final int CELL_COUNT = 60;
+  private static final int VISIBLE_CELL_COUNT = 4;
+  private static final int FRAME_MS = 16;
+  private static final int FETCH_MS = 300;
+  private static final int DECODE_MS = 50;
+  private static final int IMAGE_BYTES = 100_000;
+
+  private FakeClock mClock;
+  private List<FakePrefetch> mPrefetches;
+  private Map<Uri, Float> mFetchedFractions;
+  private ViewportPrefetchScheduler mScheduler;
+  private int mLastVisibleCell;
+
+  @Before
+  public void setUp() {
+    mClock = new FakeClock();
+    mPrefetches = new ArrayList<>();
+    mFetchedFractions = new HashMap<>();
+    mScheduler =
+        new ViewportPrefetchScheduler(
+            new ViewportPrefetchScheduler.PrefetchStarter() {
+              @Override
+              public DataSource<Void> prefetch(
+                  PrefetchTarget target,
+                  Uri uri,
+                  Object callerContext,
+                  Priority priority,
+                  String callsite) {
+                FakePrefetch prefetch = new FakePrefetch(target, uri, priority);
+                mPrefetches.add(prefetch);
+                return prefetch.dataSource;
+              }
+            },
+            ViewportPrefetchScheduler.DEFAULT_MAX_IN_FLIGHT_PREFETCHES,
+            ViewportPrefetchScheduler.DEFAULT_MAX_DISTANCE,
+            mClock);
+  }
+
+  @Test
+  public void testTargetDependsOnDistance() {
+    mScheduler.setDistanceToViewport(1, null, uri(1), CALLSITE);
+    mScheduler.setDistanceToViewport(2, null, uri(2), CALLSITE);
+    mScheduler.setDistanceToViewport(5, null, uri(5), CALLSITE);
+
+    assertThat(mPrefetches).hasSize(3);
+    assertPrefetch(mPrefetches.get(0), uri(1), PrefetchTarget.MEMORY_DECODED, Priority.MEDIUM);
+    assertPrefetch(mPrefetches.get(1), uri(2), PrefetchTarget.MEMORY_ENCODED, Priority.MEDIUM);
+    assertPrefetch(mPrefetches.get(2), uri(5), PrefetchTarget.DISK, Priority.LOW);
+  }
+
+  @Test
+  public void testPrefetchMovesToNearerTarget() {
+    mScheduler.setDistanceToViewport(5, null, uri(0), CALLSITE);
+    mClock.incrementBy(2000);
+    mScheduler.setDistanceToViewport(1, null, uri(0), CALLSITE);
+
+    assertThat(mPrefetches).hasSize(2);
+    assertPrefetch(mPrefetches.get(1), uri(0), PrefetchTarget.MEMORY_DECODED, Priority.MEDIUM);
+    assertThat(mPrefetches.get(0).dataSource.isClosed()).isTrue();
+    assertThat(mScheduler.getReprioritizedPrefetchCount()).isEqualTo(1);
+    assertThat(mScheduler.getCancelledPrefetchCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testScrollVelocityBringsFarImagesCloser() {
+    mScheduler.setScrollVelocity(8, CALLSITE);
+    mScheduler.setDistanceToViewport(5, null, uri(0), CALLSITE);
+
+    // 5 items away, 4 items closer within the lookahead
+    assertPrefetch(mPrefetches.get(0), uri(0), PrefetchTarget.MEMORY_DECODED, Priority.MEDIUM);
+  }
+
+  @Test
+  public void testPrefetchBehindScrollDirectionIsCancelled() {
+    mScheduler.setDistanceToViewport(2, null, uri(0), CALLSITE);
+    mPrefetches.get(0).dataSource.setProgress(0.5f);
+
+    mScheduler.setScrollVelocity(-4, CALLSITE);
+
+    assertThat(mPrefetches.get(0).dataSource.isClosed()).isTrue();
+    assertThat(mScheduler.getCancelledPrefetchCount()).isEqualTo(1);
+    assertThat(mScheduler.getWastedPrefetchProgress()).isEqualTo(0.5f);
+  }
+
+  @Test
+  public void testOutrankedPrefetchWaitsForFreeSlot() {
+    mScheduler =
+        new ViewportPrefetchScheduler(
+            new ViewportPrefetchScheduler.PrefetchStarter() {
+              @Override
+              public DataSource<Void> prefetch(
+                  PrefetchTarget target,
+                  Uri uri,
+                  Object callerContext,
+                  Priority priority,
+                  String callsite) {
+                FakePrefetch prefetch = new FakePrefetch(target, uri, priority);
+                mPrefetches.add(prefetch);
+                return prefetch.dataSource;
+              }
+            },
+            1,
+            ViewportPrefetchScheduler.DEFAULT_MAX_DISTANCE,
+            mClock);
+    mScheduler.setDistanceToViewport(2, null, uri(2), CALLSITE);
+    mScheduler.setDistanceToViewport(1, null, uri(1), CALLSITE);
+
+    assertThat(mPrefetches).hasSize(2);
+    assertThat(mPrefetches.get(0).dataSource.isClosed()).isTrue();
+    assertThat(mScheduler.getCancelledPrefetchCount()).isEqualTo(1);
+
+    mPrefetches.get(1).dataSource.finish();
+    assertThat(mPrefetches).hasSize(3);
+    assertPrefetch(mPrefetches.get(2), uri(2), PrefetchTarget.MEMORY_ENCODED, Priority.MEDIUM);
+  }
+
+  @Test
+  public void testVisibleImagesAreForgottenFirst() {
+    // 64 candidates, the most a callsite keeps
+    for (int i = 0; i < 60; i++) {
+      mScheduler.setDistanceToViewport(0, null, uri(100 + i), CALLSITE);
+      mClock.incrementBy(1);
+    }
+    for (int distance = 1; distance <= 4; distance++) {
+      mScheduler.setDistanceToViewport(distance, null, uri(distance), CALLSITE);
+    }
+    assertThat(mPrefetches).hasSize(4);
+
+    mScheduler.setDistanceToViewport(5, null, uri(5), CALLSITE);
+    assertThat(mPrefetches).hasSize(5);
+    assertThat(mScheduler.getCancelledPrefetchCount()).isEqualTo(0);
+
+    // the image visible the longest ago was forgotten, the others are still known to be visible
+    mScheduler.setDistanceToViewport(0, null, uri(101), CALLSITE);
+    assertThat(mScheduler.getVisibleCount()).isEqualTo(60);
+    mScheduler.setDistanceToViewport(0, null, uri(100), CALLSITE);
+    assertThat(mScheduler.getVisibleCount()).isEqualTo(61);
+  }
+
+  @Test
+  public void testDecodedWhenVisible() {
+    mScheduler.setDistanceToViewport(1, null, uri(0), CALLSITE);
+    mScheduler.setDistanceToViewport(1, null, uri(1), CALLSITE);
+    mPrefetches.get(0).dataSource.finish();
+
+    mClock.incrementBy(500);
+    mScheduler.setDistanceToViewport(0, null, uri(0), CALLSITE);
+    mScheduler.setDistanceToViewport(0, null, uri(1), CALLSITE);
+
+    assertThat(mScheduler.getVisibleCount()).isEqualTo(2);
+    assertThat(mScheduler.getDecodedWhenVisibleCount()).isEqualTo(1);
+    // the in-flight prefetch is closed, but it is not wasted
+    assertThat(mPrefetches.get(1).dataSource.isClosed()).isTrue();
+    assertThat(mScheduler.getCancelledPrefetchCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testScrollReplayAtReadingSpeed() {
+    startReplay();
+    replay(2, 30_000);
+
+    // all but the cells visible from the start are decoded in time
+    assertThat(mScheduler.getVisibleCount()).isEqualTo(CELL_COUNT);
+    assertThat(mScheduler.getDecodedWhenVisibleRatio()).isGreaterThanOrEqualTo(0.9f);
+    assertThat(getWastedBytes()).isEqualTo(0L);
+  }
+
+  @Test
+  public void testScrollReplayFling() {
+    startReplay();
+    replay(2, 10_000);
+    float readingRatio = mScheduler.getDecodedWhenVisibleRatio();
+    replay(20, 1_000);
+
+    // the cells are visible before they can be fetched, the prefetches are handed over
+    assertThat(mScheduler.getDecodedWhenVisibleRatio()).isLessThan(readingRatio);
+    assertThat(getWastedBytes()).isEqualTo(0L);
+  }
+
+  @Test
+  public void testScrollReplayWithReversal() {
+    startReplay();
+    replay(4, 3_000);
+    replay(-4, 2_000);
+
+    assertThat(mScheduler.getCancelledPrefetchCount()).isGreaterThan(0);
+    assertThat(getWastedBytes()).isGreaterThan(0L);
+    assertThat(getWastedBytes())
+        .isLessThan((long) mScheduler.getCancelledPrefetchCount() * IMAGE_BYTES);
+  }
+
+  private void startReplay() {
+    for (int cell = 0; cell < VISIBLE_CELL_COUNT; cell++) {
+      mScheduler.setDistanceToViewport(0, null, uri(cell), CALLSITE);
+    }
+    mLastVisibleCell = VISIBLE_CELL_COUNT - 1;
+    sendRangeEvents();
+  }
+
+  /** Scrolls at the speed for the duration, fetching one frame at a time. */
+  private void replay(float cellsPerSecond, int durationMs) {
+    double position = mLastVisibleCell;
+    for (int timeMs = 0; timeMs < durationMs; timeMs += FRAME_MS) {
+      mClock.incrementBy(FRAME_MS);
+      fetchForOneFrame();
+      position += cellsPerSecond * FRAME_MS / 1000.0;
+      int lastVisibleCell = (int) Math.floor(position);
+      lastVisibleCell = Math.max(VISIBLE_CELL_COUNT - 1, Math.min(CELL_COUNT - 1, lastVisibleCell));
+      while (mLastVisibleCell != lastVisibleCell) {
+        mLastVisibleCell += mLastVisibleCell < lastVisibleCell ? 1 : -1;
+        sendRangeEvents();
+      }
+    }
+  }
+
+  /** Sends the distances of the cells that entered a working range, as the Litho spec does. */
+  private void sendRangeEvents() {
+    int firstVisibleCell = mLastVisibleCell - VISIBLE_CELL_COUNT + 1;
+    for (int distance = 3; distance >= 1; distance--) {
+      sendDistance(mLastVisibleCell + distance, distance);
+    }
+    sendDistance(mLastVisibleCell, 0);
+    sendDistance(firstVisibleCell, 0);
+    sendDistance(firstVisibleCell - 1, -1);
+  }
+
+  private void sendDistance(int cell, int distance) {
+    if (cell >= 0 && cell < CELL_COUNT) {
+      mScheduler.setDistanceToViewport(distance, null, uri(cell), CALLSITE);
+    }
+  }
+
+  /**
+   * Fetches the images of the in-flight prefetches. The prefetches of an image share its fetch,
+   * like they share it in the pipeline, and the bitmap prefetches also decode it.
+   */
+  private void fetchForOneFrame() {
+    List<FakePrefetch> inFlight = new ArrayList<>();
+    for (FakePrefetch prefetch : mPrefetches) {
+      if (!prefetch.dataSource.isClosed() && !prefetch.dataSource.isFinished()) {
+        inFlight.add(prefetch);
+      }
+    }
+    Map<Uri, Float> fetchedFractions = new HashMap<>();
+    for (FakePrefetch prefetch : inFlight) {
+      fetchedFractions.put(
+          prefetch.uri, getFetchedFraction(prefetch.uri) + (float) FRAME_MS / FETCH_MS);
+    }
+    mFetchedFractions.putAll(fetchedFractions);
+    for (FakePrefetch prefetch : inFlight) {
+      float fetchedFraction = getFetchedFraction(prefetch.uri);
+      float doneFraction =
+          prefetch.target == PrefetchTarget.MEMORY_DECODED ? 1 + (float) DECODE_MS / FETCH_MS : 1;
+      if (fetchedFraction >= doneFraction) {
+        prefetch.dataSource.finish();
+      } else {
+        prefetch.dataSource.setProgress(Math.min(1, fetchedFraction));
+      }
+    }
+  }
+
+  private float getFetchedFraction(Uri uri) {
+    Float fetchedFraction = mFetchedFractions.get(uri);
+    return fetchedFraction != null ? fetchedFraction : 0;
+  }
+
+  private long getWastedBytes() {
+    return (long) (mScheduler.getWastedPrefetchProgress() * IMAGE_BYTES);
+  }
+
+  private static Uri uri(int cell) {
+    return Uri.parse("https://example.com/" + cell + ".jpg");
+  }
+
+  private static void assertPrefetch(
+      FakePrefetch prefetch, Uri uri, PrefetchTarget target, Priority priority) {
+    assertThat(prefetch.uri).isEqualTo(uri);
+    assertThat(prefetch.target).isEqualTo(target);
+    assertThat(prefetch.priority).isEqualTo(priority);
+  }
+
+  private static class FakePrefetch {
+    final PrefetchTarget target;
+    final Uri uri;
+    final Priority priority;
+    final FakeDataSource dataSource = new FakeDataSource();
+
+    FakePrefetch(PrefetchTarget target, Uri uri, Priority priority) {
+      this.target = target;
+      this.uri = uri;
+      this.priority = priority;
+    }
+  }
+
+  private static class FakeDataSource extends AbstractDataSource<Void> {
+    void finish() {
+      setResult(null, true, null);
+    }
+
+    @Override
+    public boolean setProgress(float progress) {
+      return super.setProgress(progress);
+    }
+  }
+}
@@ -54,5 +54,7 @@ constructor(override val prefetchConfig: PrefetchConfig = DefaultPrefetchConfig(
     override fun prefetchTargetWorkingRange(): PrefetchTarget = PrefetchTarget.MEMORY_DECODED
 
     override fun prioritizeWithWorkingRange(): Boolean = false
+
+    override fun prefetchWithDistanceToViewport(): Boolean = false
   }
 }
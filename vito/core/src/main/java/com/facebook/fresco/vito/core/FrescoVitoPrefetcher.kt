@@ -128,4 +128,14 @@ interface FrescoVitoPrefetcher {
    * @param callsite the callsite from which this request is being made, for logging
    */
   fun setDistanceToViewport(distance: Int, callerContext: Any?, uri: Uri?, callsite: String)
+
+  /**
+   * Sets the scroll velocity of the callsite for the purpose of prioritization. Without it, the
+   * velocity is estimated from the distance updates. Does nothing by default.
+   *
+   * @param itemsPerSecond the scroll velocity in items per second. Positive values mean that the
+   *   images below the viewport come closer
+   * @param callsite the callsite the images are shown in
+   */
+  fun setScrollVelocity(itemsPerSecond: Float, callsite: String) = Unit
 }
@@ -23,4 +23,6 @@ interface PrefetchConfig {
   fun prefetchTargetWorkingRange(): PrefetchTarget
 
   fun prioritizeWithWorkingRange(): Boolean
+
+  fun prefetchWithDistanceToViewport(): Boolean = false
 }
@@ -468,7 +468,8 @@ object FrescoVitoImage2Spec {
         FrescoVitoImage2.registerImagePrefetchWorkingRange(
             c, BoundaryWorkingRange(prefetchConfig.prefetchWorkingRangeSize()))
       }
-      if (prefetchConfig.prioritizeWithWorkingRange()) {
+      if (prefetchConfig.prioritizeWithWorkingRange() ||
+          prefetchConfig.prefetchWithDistanceToViewport()) {
         FrescoVitoImage2.registerBelow3WorkingRange(c, BelowViewportWorkingRange(3, Int.MAX_VALUE))
         FrescoVitoImage2.registerBelow2WorkingRange(c, BelowViewportWorkingRange(2, 2))
         FrescoVitoImage2.registerBelow1WorkingRange(c, BelowViewportWorkingRange(1, 1))
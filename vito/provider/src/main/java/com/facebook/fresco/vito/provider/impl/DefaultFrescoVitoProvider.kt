@@ -57,7 +57,11 @@ class DefaultFrescoVitoProvider(
           "Fresco must be initialized before DefaultFrescoVitoProvider can be used!")
     }
     frescoVitoPrefetcher =
-        FrescoVitoPrefetcherImpl(imagePipeline, imagePipelineUtils, callerContextVerifier)
+        FrescoVitoPrefetcherImpl(
+            imagePipeline,
+            imagePipelineUtils,
+            callerContextVerifier,
+            frescoVitoConfig.prefetchConfig.prefetchWithDistanceToViewport())
     vitoImagePipeline = VitoImagePipelineImpl(imagePipeline, imagePipelineUtils)
     frescoController =
         FrescoController2Impl(
@@ -50,7 +50,11 @@ class KFrescoVitoProvider(
   }
 
   private val _prefetcher: FrescoVitoPrefetcher by lazy {
-    FrescoVitoPrefetcherImpl(frescoImagePipeline, imagePipelineUtils, callerContextVerifier)
+    FrescoVitoPrefetcherImpl(
+        frescoImagePipeline,
+        imagePipelineUtils,
+        callerContextVerifier,
+        vitoConfig.prefetchConfig.prefetchWithDistanceToViewport())
   }
 
   override fun getController(): FrescoController2 = _controller